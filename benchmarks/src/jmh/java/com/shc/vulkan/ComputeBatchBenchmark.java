@@ -0,0 +1,89 @@
+package com.shc.vulkan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+/**
+ * Measures the host side of a batch of the {@link ComputeBatchExample}, which is filling the input region of a slot and
+ * checking the results in it's output region. This runs while the device works on the other slots, so it has to take
+ * less time than the device takes for a batch, or the device waits on the host. The output of the shader is simulated
+ * by writing the expected results, so no GPU is needed. The time is reported per batch of a million items.
+ * <p>
+ * Before measuring, the check itself is verified: it must find no wrong items in the simulated output, and must find a
+ * wrong first and last item of the batch.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ComputeBatchBenchmark
+{
+    private static final int BATCH_ITEMS = 1 << 20;
+
+    private FloatBuffer input;
+    private FloatBuffer output;
+
+    private long firstItem;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        input = memAllocFloat(BATCH_ITEMS);
+        output = memAllocFloat(BATCH_ITEMS);
+
+        for (int i = 0; i < BATCH_ITEMS; i++)
+            output.put(i, ComputeBatchExample.resultValue(firstItem + i));
+
+        expectWrong(0, "the simulated output");
+
+        output.put(0, -1);
+        output.put(BATCH_ITEMS - 1, -1);
+        expectWrong(2, "a wrong first and last item");
+
+        output.put(0, ComputeBatchExample.resultValue(firstItem));
+        output.put(BATCH_ITEMS - 1, ComputeBatchExample.resultValue(firstItem + BATCH_ITEMS - 1));
+        expectWrong(0, "the restored output");
+    }
+
+    private void expectWrong(int expected, String what)
+    {
+        int wrong = ComputeBatchExample.checkBatch(output, firstItem);
+
+        if (wrong != expected)
+            throw new IllegalStateException("The check found " + wrong + " wrong items in " + what + " instead of " +
+                                            expected);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        memFree(input);
+        memFree(output);
+    }
+
+    @Benchmark
+    public FloatBuffer fillBatch()
+    {
+        ComputeBatchExample.fillBatch(input, firstItem);
+        return input;
+    }
+
+    @Benchmark
+    public int checkBatch()
+    {
+        return ComputeBatchExample.checkBatch(output, firstItem);
+    }
+}
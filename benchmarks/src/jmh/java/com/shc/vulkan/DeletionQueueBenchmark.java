@@ -0,0 +1,237 @@
+package com.shc.vulkan;
+
+import org.lwjgl.vulkan.VkSubmitInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+/**
+ * Measures the {@link DeletionQueue} against a simulated device, whose clock completes every frame two frames after it
+ * was submitted, and checks the {@link LeakTracker} with allocations that are leaked on purpose. Neither needs a GPU.
+ * The time is reported per object, to queue it and to destroy it.
+ * <p>
+ * Every frame creates a few objects, uses each of them for a random number of frames, and then queues them to be
+ * destroyed, tagged with the last frame that used them. The run fails if an object is destroyed before the device is
+ * done with it, if an object is destroyed twice or never, or if the frames of an iteration allocate on the heap. The
+ * counter and JMH allocate a few hundred bytes in every iteration, so the heap is checked against the number of frames
+ * of the iteration: an allocation in the frames would be at least 16 bytes for every frame, which is far more than the
+ * slack that is allowed. The heap is only checked without {@code -Dvulkan.debug.leaks=true}.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DeletionQueueBenchmark
+{
+    private static final int OBJECTS_PER_FRAME = 8;
+    private static final int FRAMES_IN_FLIGHT  = 2;
+    private static final int MAX_LIFETIME      = 4;
+    private static final int COUNTER_SLACK     = 1024;
+
+    // The handles are reused in a ring, which is much larger than the number of objects that are alive or queued
+    private static final int HANDLE_COUNT = 4096;
+
+    /**
+     * A clock that is advanced by hand, standing in for the fences of a device.
+     */
+    private static class SimulatedClock implements FenceClock
+    {
+        private long completedValue;
+
+        @Override
+        public long getCompletedValue()
+        {
+            return completedValue;
+        }
+
+        @Override
+        public void waitFor(long value)
+        {
+            completedValue = Math.max(completedValue, value);
+        }
+    }
+
+    private SimulatedClock          clock;
+    private DeletionQueue           queue;
+    private DeletionQueue.Destroyer destroyer;
+
+    // The last frame that used every object, and whether it is alive, indexed by the handle
+    private final long[] lastUsedFrames = new long[HANDLE_COUNT + 1];
+    private final BitSet live           = new BitSet(HANDLE_COUNT + 1);
+
+    // The objects that are in use, as the handle and the frame after which they are destroyed
+    private final long[] liveHandles = new long[OBJECTS_PER_FRAME * (MAX_LIFETIME + 1)];
+    private final long[] liveUntil   = new long[liveHandles.length];
+    private int          liveCount;
+
+    private final Random random = new Random(42);
+
+    private long frame;
+    private long createdCount;
+    private int  maxQueued;
+
+    private long counterCost;
+    private long heapBefore;
+    private long framesBefore;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        // Both allocators have to be in place before LWJGL allocates anything
+        AllocationCounter.install();
+        LeakTracker.install();
+
+        checkLeakTracker();
+
+        clock = new SimulatedClock();
+        queue = new DeletionQueue(null, clock);
+        destroyer = this::destroyObject;
+
+        // Reading the counter allocates on it's own, so that is not counted against the queue
+        counterCost = -AllocationCounter.getHeapAllocatedBytes() + AllocationCounter.getHeapAllocatedBytes();
+    }
+
+    private static void checkLeakTracker()
+    {
+        int liveBefore = LeakTracker.getLiveAllocationCount();
+
+        ByteBuffer freed = memAlloc(128);
+        ByteBuffer leaked = leakBuffer();
+        VkSubmitInfo leakedStruct = leakStruct();
+
+        memFree(freed);
+
+        int leaks = LeakTracker.getLiveAllocationCount() - liveBefore;
+        String report = LeakTracker.getReport();
+
+        if (leaks != 2 || !report.contains("leakBuffer") || !report.contains("leakStruct"))
+            throw new IllegalStateException("The leak tracker found " + leaks + " leaks instead of 2:\n" + report);
+
+        memFree(leaked);
+        leakedStruct.free();
+
+        if (LeakTracker.getLiveAllocationCount() != liveBefore)
+            throw new IllegalStateException("The leak tracker still reports the freed allocations");
+    }
+
+    private static ByteBuffer leakBuffer()
+    {
+        return memAlloc(256);
+    }
+
+    private static VkSubmitInfo leakStruct()
+    {
+        return VkSubmitInfo.calloc();
+    }
+
+    private void destroyObject(long handle)
+    {
+        if (lastUsedFrames[(int) handle] > clock.getCompletedValue())
+            throw new IllegalStateException("Object " + handle + " was destroyed while frame " +
+                                            lastUsedFrames[(int) handle] + " was still in flight");
+
+        if (!live.get((int) handle))
+            throw new IllegalStateException("Object " + handle + " was destroyed twice");
+
+        live.clear((int) handle);
+    }
+
+    @Setup(Level.Iteration)
+    public void readCounter()
+    {
+        framesBefore = frame;
+        heapBefore = AllocationCounter.getHeapAllocatedBytes();
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkCounter()
+    {
+        long heapAllocated = AllocationCounter.getHeapAllocatedBytes() - heapBefore - counterCost;
+        long frames = frame - framesBefore;
+
+        // The debug mode keeps the queued handles in a map, to catch a handle that is queued twice
+        if (heapBefore >= 0 && !LeakTracker.isEnabled() && heapAllocated > COUNTER_SLACK + frames)
+            throw new IllegalStateException("The queue allocated " + heapAllocated + " bytes on the heap in " +
+                                            frames + " frames");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        // The objects that are still alive at the end are last used by the last frame
+        for (int i = 0; i < liveCount; i++)
+            queue.destroy(destroyer, liveHandles[i], frame);
+
+        queue.destroy();
+
+        if (!live.isEmpty() || queue.getDestroyedCount() != createdCount)
+            throw new IllegalStateException((createdCount - queue.getDestroyedCount()) + " objects were never " +
+                                            "destroyed");
+
+        System.out.println(String.format("Destroyed %d objects over %d frames, at most %d queued at once",
+                createdCount, frame, maxQueued));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OBJECTS_PER_FRAME)
+    public int frame()
+    {
+        frame++;
+
+        // The frame slot is free once the frame that used it before has completed
+        clock.waitFor(frame - FRAMES_IN_FLIGHT);
+        queue.flush();
+
+        for (int i = 0; i < OBJECTS_PER_FRAME; i++)
+        {
+            int handle = (int) (createdCount++ % HANDLE_COUNT) + 1;
+
+            // By the time the ring comes around, the object that had the handle before must be destroyed
+            if (live.get(handle))
+                throw new IllegalStateException("Object " + handle + " was never destroyed");
+
+            live.set(handle);
+
+            liveHandles[liveCount] = handle;
+            liveUntil[liveCount] = frame + random.nextInt(MAX_LIFETIME);
+            liveCount++;
+        }
+
+        // Use the live objects in this frame, and queue the ones that this frame used for the last time
+        for (int i = 0; i < liveCount; )
+        {
+            long handle = liveHandles[i];
+            lastUsedFrames[(int) handle] = frame;
+
+            if (liveUntil[i] == frame)
+            {
+                queue.destroy(destroyer, handle, frame);
+
+                liveCount--;
+                liveHandles[i] = liveHandles[liveCount];
+                liveUntil[i] = liveUntil[liveCount];
+            }
+            else
+                i++;
+        }
+
+        maxQueued = Math.max(maxQueued, queue.size());
+
+        return maxQueued;
+    }
+}
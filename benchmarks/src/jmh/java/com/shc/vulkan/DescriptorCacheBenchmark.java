@@ -0,0 +1,162 @@
+package com.shc.vulkan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Measures the lookups of the {@link DescriptorKeyCache} that the {@link DescriptorCache} uses to find the descriptor
+ * sets of the draws. No GPU is needed for this, a miss inserts a fake handle where the descriptor cache would allocate
+ * and write a set. The time is reported per lookup.
+ * <p>
+ * Every frame looks up the sets of tens of thousands of draws. Each draw binds a uniform buffer range and a texture out
+ * of a few thousand materials, picked with a skewed distribution so that a few materials are used by most draws, like
+ * in a real scene. The cache holds fewer sets than there are materials, so the least recently used sets are evicted
+ * once they are out of flight.
+ * <p>
+ * The fake handles carry the material that they were inserted for, and the run fails if a hit returns the set of
+ * another material, or if the lookups allocate on the heap during an iteration once the cache is filled. The hit rate
+ * is printed at the end.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DescriptorCacheBenchmark
+{
+    private static final int DRAWS_PER_FRAME  = 50000;
+    private static final int MATERIALS        = 8192;
+    private static final int MAX_CACHED_SETS  = 4096;
+    private static final int FRAMES_IN_FLIGHT = 2;
+    private static final int COUNTER_SLACK    = 1024;
+    private static final int FILL_FRAMES      = 200;
+
+    // The low bits of the fake handles hold the material
+    private static final int MATERIAL_BITS = 16;
+
+    private static final long LAYOUT = 0x1000;
+
+    private DescriptorKeyCache cache;
+    private DescriptorKey      key;
+    private int[]              materials;
+
+    private long frame;
+    private long nextHandle;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private long counterCost;
+    private long heapBefore;
+    private long framesBefore;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        cache = new DescriptorKeyCache(MAX_CACHED_SETS, 9);
+        key = new DescriptorKey(9);
+
+        // Pick the material of every draw up front, so that the random numbers are not measured
+        Random random = new Random(7);
+        materials = new int[DRAWS_PER_FRAME * 16];
+
+        for (int i = 0; i < materials.length; i++)
+            materials[i] = (int) (MATERIALS * Math.pow(random.nextDouble(), 3));
+
+        nextHandle = 1;
+
+        // The cache grows while it fills up, run enough frames for it to reach it's steady size before the heap is
+        // checked
+        for (int i = 0; i < FILL_FRAMES; i++)
+            frame();
+
+        counterCost = -AllocationCounter.getHeapAllocatedBytes() + AllocationCounter.getHeapAllocatedBytes();
+    }
+
+    @Setup(Level.Iteration)
+    public void readCounter()
+    {
+        framesBefore = frame;
+        heapBefore = AllocationCounter.getHeapAllocatedBytes();
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkCounter()
+    {
+        long heapAllocated = AllocationCounter.getHeapAllocatedBytes() - heapBefore - counterCost;
+        long frames = frame - framesBefore;
+
+        if (heapBefore >= 0 && heapAllocated > COUNTER_SLACK + frames)
+            throw new IllegalStateException("The cache allocated " + heapAllocated + " bytes on the heap in " +
+                                            frames + " frames");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        System.out.println(String.format("Hit rate: %.2f%%, misses: %d, evictions: %d, cached: %d",
+                100.0 * hits / (hits + misses), misses, evictions, cache.size()));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DRAWS_PER_FRAME)
+    public int frame()
+    {
+        frame++;
+        int offset = (int) (frame % 16) * DRAWS_PER_FRAME;
+
+        for (int draw = 0; draw < DRAWS_PER_FRAME; draw++)
+        {
+            int material = materials[offset + draw];
+
+            // The same words as DescriptorCache.bindBuffer and bindImage put in the key
+            key.clear()
+               .put(LAYOUT)
+               .put(0, VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER).put(0x2000).put(material * 256L).put(256)
+               .put(1 << 16, VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER).put(0x3000).put(0x4000 + material)
+               .put(VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL);
+
+            int entry = cache.find(key, frame);
+
+            if (entry >= 0)
+            {
+                if ((cache.getValue(entry) & ((1 << MATERIAL_BITS) - 1)) != material)
+                    throw new IllegalStateException("The lookup of material " + material + " returned the set of " +
+                                                    "another material");
+
+                hits++;
+                continue;
+            }
+
+            misses++;
+
+            if (cache.size() >= MAX_CACHED_SETS)
+            {
+                int oldest = cache.getLeastRecentlyUsed();
+
+                if (cache.getStamp(oldest) + FRAMES_IN_FLIGHT <= frame)
+                {
+                    cache.remove(oldest);
+                    evictions++;
+                }
+            }
+
+            cache.insert(key, (nextHandle++ << MATERIAL_BITS) | material, 0, frame);
+        }
+
+        return cache.size();
+    }
+}
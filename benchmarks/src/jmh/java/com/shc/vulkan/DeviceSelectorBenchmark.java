@@ -0,0 +1,268 @@
+package com.shc.vulkan;
+
+import org.lwjgl.vulkan.VkExtensionProperties;
+import org.lwjgl.vulkan.VkMemoryHeap;
+import org.lwjgl.vulkan.VkPhysicalDeviceLimits;
+import org.lwjgl.vulkan.VkPhysicalDeviceMemoryProperties;
+import org.lwjgl.vulkan.VkPhysicalDeviceProperties;
+import org.lwjgl.vulkan.VkQueueFamilyProperties;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.KHRSwapchain.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Measures how long the {@link DeviceSelector} takes to rank a large machine of 16 devices and pick one. No GPU is
+ * needed for this, the candidates are made from structs that are written by hand at the offsets that LWJGL uses to
+ * read them, so they look exactly like the structs that a driver fills.
+ * <p>
+ * Before measuring, the selection is checked against synthetic machines. The main machine is like one of our multi-GPU
+ * nodes, where the driver lists the integrated GPU and a CPU device before the discrete GPUs, and one of the discrete
+ * GPUs lacks the swapchain extension. Forcing a device with {@code -Dvulkan.device} is checked too, with an index that
+ * is also a part of the name of a better device. The run fails if the wrong device is picked in any scenario, and the
+ * ranked report of the scenario is printed.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DeviceSelectorBenchmark
+{
+    private static final long MB = 1024 * 1024;
+    private static final long GB = 1024 * MB;
+
+    private static final int GRAPHICS_COMPUTE_TRANSFER = VK_QUEUE_GRAPHICS_BIT | VK_QUEUE_COMPUTE_BIT |
+                                                         VK_QUEUE_TRANSFER_BIT;
+
+    private DeviceSelector        rendering;
+    private List<DeviceCandidate> candidates;
+
+    @Setup(Level.Trial)
+    public void checkSelection()
+    {
+        List<DeviceCandidate> node = Arrays.asList(
+                createDevice(0, "Intel HD Graphics 630", VK_PHYSICAL_DEVICE_TYPE_INTEGRATED_GPU, 16 * GB,
+                        1 << 27, new int[]{ GRAPHICS_COMPUTE_TRANSFER }, VK_KHR_SWAPCHAIN_EXTENSION_NAME),
+                createDevice(1, "llvmpipe (LLVM 3.9, 256 bits)", VK_PHYSICAL_DEVICE_TYPE_CPU, 0,
+                        1L << 31, new int[]{ GRAPHICS_COMPUTE_TRANSFER }, VK_KHR_SWAPCHAIN_EXTENSION_NAME),
+                createDevice(2, "GeForce GTX 1080", VK_PHYSICAL_DEVICE_TYPE_DISCRETE_GPU, 8 * GB,
+                        1L << 31, new int[]{ GRAPHICS_COMPUTE_TRANSFER, VK_QUEUE_COMPUTE_BIT | VK_QUEUE_TRANSFER_BIT,
+                                            VK_QUEUE_TRANSFER_BIT }, VK_KHR_SWAPCHAIN_EXTENSION_NAME),
+                createDevice(3, "Radeon Instinct MI25", VK_PHYSICAL_DEVICE_TYPE_DISCRETE_GPU, 16 * GB,
+                        1L << 31, new int[]{ GRAPHICS_COMPUTE_TRANSFER, VK_QUEUE_COMPUTE_BIT, VK_QUEUE_TRANSFER_BIT })
+        );
+
+        rendering = new DeviceSelector()
+                .requireExtensions(VK_KHR_SWAPCHAIN_EXTENSION_NAME)
+                .requireQueueFlags(VK_QUEUE_GRAPHICS_BIT);
+
+        check("Rendering on a multi-GPU node", rendering, node, 2);
+
+        // Headless compute does not need a swapchain, so the device with more memory wins
+        DeviceSelector compute = new DeviceSelector()
+                .requireQueueFlags(VK_QUEUE_COMPUTE_BIT)
+                .requireStorageBufferRange(1L << 30);
+
+        check("Compute on a multi-GPU node", compute, node, 3);
+
+        // A policy that saves power by preferring the integrated GPU
+        DeviceSelector lowPower = new DeviceSelector()
+                .requireExtensions(VK_KHR_SWAPCHAIN_EXTENSION_NAME)
+                .setScorer(candidate -> candidate.getDeviceType() == VK_PHYSICAL_DEVICE_TYPE_INTEGRATED_GPU ? 2 :
+                                        DeviceSelector.defaultScore(candidate) / 1e6);
+
+        check("Low power on a multi-GPU node", lowPower, node, 0);
+
+        // An integrated GPU with a huge shared heap must still lose to a small discrete GPU
+        List<DeviceCandidate> laptop = Arrays.asList(
+                createDevice(0, "Intel Iris Pro", VK_PHYSICAL_DEVICE_TYPE_INTEGRATED_GPU, 64 * GB, 1 << 27,
+                        new int[]{ GRAPHICS_COMPUTE_TRANSFER }, VK_KHR_SWAPCHAIN_EXTENSION_NAME),
+                createDevice(1, "GeForce GT 750M", VK_PHYSICAL_DEVICE_TYPE_DISCRETE_GPU, 2 * GB, 1 << 27,
+                        new int[]{ GRAPHICS_COMPUTE_TRANSFER }, VK_KHR_SWAPCHAIN_EXTENSION_NAME)
+        );
+
+        check("Rendering on a laptop", rendering, laptop, 1);
+
+        // Identical devices keep the order of the driver
+        List<DeviceCandidate> twins = Arrays.asList(
+                createDevice(0, "GeForce GTX 1080 (A)", VK_PHYSICAL_DEVICE_TYPE_DISCRETE_GPU, 8 * GB, 1L << 31,
+                        new int[]{ GRAPHICS_COMPUTE_TRANSFER }, VK_KHR_SWAPCHAIN_EXTENSION_NAME),
+                createDevice(1, "GeForce GTX 1080 (B)", VK_PHYSICAL_DEVICE_TYPE_DISCRETE_GPU, 8 * GB, 1L << 31,
+                        new int[]{ GRAPHICS_COMPUTE_TRANSFER }, VK_KHR_SWAPCHAIN_EXTENSION_NAME)
+        );
+
+        check("Rendering on twin GPUs", rendering, twins, 0);
+
+        // A forced index wins over a better device whose name happens to contain it, and names are matched otherwise
+        try
+        {
+            System.setProperty("vulkan.device", "1");
+            check("Forcing an index on twin GPUs", rendering, twins, 1);
+
+            System.setProperty("vulkan.device", "GTX");
+            check("Forcing a name on a multi-GPU node", lowPower, node, 2);
+        }
+        finally
+        {
+            System.clearProperty("vulkan.device");
+        }
+
+        // Nothing meets the requirements
+        DeviceSelector impossible = new DeviceSelector().requireDeviceLocalMemory(1024 * GB);
+        boolean rejected = false;
+
+        try
+        {
+            impossible.select(impossible.rank(node));
+        }
+        catch (IllegalStateException e)
+        {
+            if (!e.getMessage().startsWith("No physical device"))
+                throw e;
+
+            rejected = true;
+        }
+
+        if (!rejected)
+            throw new IllegalStateException("A device was picked though none has 1 TB of memory");
+
+        // A large machine, with the four kinds of devices repeated
+        candidates = new ArrayList<>();
+
+        for (int i = 0; i < 16; i++)
+            candidates.add(createDevice(i, "Device " + i, VK_PHYSICAL_DEVICE_TYPE_INTEGRATED_GPU + i % 4,
+                    (i + 1) * GB, 1 << 27 << (i % 4), new int[]{ GRAPHICS_COMPUTE_TRANSFER, VK_QUEUE_COMPUTE_BIT },
+                    i % 3 == 0 ? "VK_EXT_debug_marker" : VK_KHR_SWAPCHAIN_EXTENSION_NAME));
+    }
+
+    private static void check(String scenario, DeviceSelector selector, List<DeviceCandidate> candidates,
+                              int expectedIndex)
+    {
+        List<DeviceSelector.Ranking> rankings = selector.rank(candidates);
+        int picked = selector.select(rankings).getIndex();
+
+        if (picked != expectedIndex)
+        {
+            System.out.println(scenario);
+            System.out.println("~~~~~~~~~~");
+            DeviceSelector.printReport(rankings);
+
+            throw new IllegalStateException(scenario + ": picked device " + picked + " instead of " + expectedIndex);
+        }
+    }
+
+    @Benchmark
+    public int rankSixteenDevices()
+    {
+        return rendering.select(rendering.rank(candidates)).getIndex();
+    }
+
+    /**
+     * Makes a candidate from structs that are written by hand. The candidate copies the structs, so they are freed
+     * right after.
+     *
+     * @param index             The index of the device.
+     * @param name              The name of the device.
+     * @param deviceType        The VkPhysicalDeviceType of the device.
+     * @param deviceLocalMemory The size of the device local heap, or zero for a device with only host memory.
+     * @param storageRange      The maxStorageBufferRange limit, as an unsigned int.
+     * @param queueFlags        The flags of every queue family.
+     * @param extensionNames    The extensions that the device supports.
+     */
+    private static DeviceCandidate createDevice(int index, String name, int deviceType, long deviceLocalMemory,
+                                                long storageRange, int[] queueFlags, String... extensionNames)
+    {
+        ByteBuffer properties = memCalloc(VkPhysicalDeviceProperties.SIZEOF);
+        ByteBuffer memory = memCalloc(VkPhysicalDeviceMemoryProperties.SIZEOF);
+        ByteBuffer families = memCalloc(queueFlags.length * VkQueueFamilyProperties.SIZEOF);
+        ByteBuffer extensions = memCalloc(Math.max(1, extensionNames.length) * VkExtensionProperties.SIZEOF);
+
+        try
+        {
+            writeProperties(memAddress(properties), name, deviceType, storageRange);
+            writeMemoryProperties(memAddress(memory), deviceLocalMemory);
+
+            for (int i = 0; i < queueFlags.length; i++)
+            {
+                long family = memAddress(families) + i * VkQueueFamilyProperties.SIZEOF;
+
+                memPutInt(family + VkQueueFamilyProperties.QUEUEFLAGS, queueFlags[i]);
+                memPutInt(family + VkQueueFamilyProperties.QUEUECOUNT, i == 0 ? 16 : 2);
+            }
+
+            for (int i = 0; i < extensionNames.length; i++)
+            {
+                long extension = memAddress(extensions) + i * VkExtensionProperties.SIZEOF;
+
+                putString(extension + VkExtensionProperties.EXTENSIONNAME, extensionNames[i]);
+                memPutInt(extension + VkExtensionProperties.SPECVERSION, 1);
+            }
+
+            return new DeviceCandidate(index, null, VkPhysicalDeviceProperties.create(memAddress(properties)),
+                    VkPhysicalDeviceMemoryProperties.create(memAddress(memory)),
+                    VkQueueFamilyProperties.create(memAddress(families), queueFlags.length),
+                    VkExtensionProperties.create(memAddress(extensions), extensionNames.length));
+        }
+        finally
+        {
+            memFree(properties);
+            memFree(memory);
+            memFree(families);
+            memFree(extensions);
+        }
+    }
+
+    private static void writeProperties(long properties, String name, int deviceType, long storageRange)
+    {
+        memPutInt(properties + VkPhysicalDeviceProperties.APIVERSION, VulkanExample.VK_MAKE_VERSION(1, 0, 39));
+        memPutInt(properties + VkPhysicalDeviceProperties.DEVICETYPE, deviceType);
+        putString(properties + VkPhysicalDeviceProperties.DEVICENAME, name);
+
+        long limits = properties + VkPhysicalDeviceProperties.LIMITS;
+
+        memPutInt(limits + VkPhysicalDeviceLimits.MAXIMAGEDIMENSION2D, deviceType == VK_PHYSICAL_DEVICE_TYPE_CPU
+                                                                       ? 8192 : 16384);
+        memPutInt(limits + VkPhysicalDeviceLimits.MAXSTORAGEBUFFERRANGE, (int) storageRange);
+        memPutInt(limits + VkPhysicalDeviceLimits.MAXUNIFORMBUFFERRANGE, 65536);
+    }
+
+    private static void writeMemoryProperties(long memory, long deviceLocalMemory)
+    {
+        // A device local heap if the device has one, and the host heap
+        long heaps = memory + VkPhysicalDeviceMemoryProperties.MEMORYHEAPS;
+        int heapCount = 0;
+
+        if (deviceLocalMemory > 0)
+        {
+            memPutLong(heaps + VkMemoryHeap.SIZE, deviceLocalMemory);
+            memPutInt(heaps + VkMemoryHeap.FLAGS, VK_MEMORY_HEAP_DEVICE_LOCAL_BIT);
+            heapCount++;
+        }
+
+        memPutLong(heaps + heapCount * VkMemoryHeap.SIZEOF + VkMemoryHeap.SIZE, 32 * GB);
+        memPutInt(memory + VkPhysicalDeviceMemoryProperties.MEMORYHEAPCOUNT, heapCount + 1);
+    }
+
+    private static void putString(long address, String text)
+    {
+        for (int i = 0; i < text.length(); i++)
+            memPutByte(address + i, (byte) text.charAt(i));
+
+        memPutByte(address + text.length(), (byte) 0);
+    }
+}
@@ -0,0 +1,377 @@
+package com.shc.vulkan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+/**
+ * Measures the sorting and the merging of the {@link DrawQueue} with a simulated scene, so no GPU is needed. Every
+ * object of the scene has a fixed pass, pipeline, descriptor set, material and mesh, with a few materials and meshes
+ * used much more than the rest, like the props of a level. Before every frame, the depths of all the objects change,
+ * like when the camera moves, and the objects are shuffled into a new order to submit them in. A few objects are in
+ * the overlay pass 12, whose keys have the highest bit set, to check that the keys are sorted as unsigned numbers.
+ * <p>
+ * The time is reported per frame, to submit all the draws and to flush them, and for comparison, the time that
+ * {@code Arrays.sort} takes to sort only the keys. The frames are long enough for the camera to be moved outside of
+ * the measured time. Before measuring, a frame is checked: the run fails if the flush emits a bind or a draw that
+ * doesn't match the state of the draws, if a combination of state is drawn more than once, if the instances of a
+ * draw are not front to back, or if there are more draw calls or pipeline binds than combinations of state. The frames
+ * must not allocate on the heap, which is checked for every iteration with a slack for the counter. The draw calls
+ * and binds after merging are printed at the end, along with the binds of recording the draws in submission order.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DrawQueueBenchmark
+{
+    private static final int COUNTER_SLACK = 1024;
+
+    private static final int PIPELINES       = 32;
+    private static final int DESCRIPTOR_SETS = 64;
+    private static final int MATERIALS       = 512;
+    private static final int MESHES          = 2048;
+    private static final int OVERLAY_PASS    = 12;
+
+    /**
+     * Counts the emitted commands, and checks every draw against the state of the objects that it draws.
+     */
+    private static class CheckingTarget implements DrawQueue.Target
+    {
+        private final int[] passes;
+        private final int[] pipelines;
+        private final int[] descriptorSets;
+        private final int[] materials;
+        private final int[] meshes;
+
+        private int[] depths;
+        private IntBuffer instances;
+        private boolean checking;
+
+        private int pass = -1;
+        private int pipeline;
+        private int descriptorSet;
+        private int material;
+
+        private long lastState = -1;
+        private int  instanceCount;
+
+        CheckingTarget(int[] passes, int[] pipelines, int[] descriptorSets, int[] materials, int[] meshes)
+        {
+            this.passes = passes;
+            this.pipelines = pipelines;
+            this.descriptorSets = descriptorSets;
+            this.materials = materials;
+            this.meshes = meshes;
+        }
+
+        void begin(int[] depths, IntBuffer instances, boolean checking)
+        {
+            this.depths = depths;
+            this.instances = instances;
+            this.checking = checking;
+
+            pass = -1;
+            lastState = -1;
+            instanceCount = 0;
+        }
+
+        @Override
+        public void beginPass(int pass)
+        {
+            if (pass <= this.pass)
+                throw new IllegalStateException("The pass " + pass + " was begun after the pass " + this.pass);
+
+            this.pass = pass;
+        }
+
+        @Override
+        public void bindPipeline(int pipeline)
+        {
+            this.pipeline = pipeline;
+        }
+
+        @Override
+        public void bindDescriptorSet(int descriptorSet)
+        {
+            this.descriptorSet = descriptorSet;
+        }
+
+        @Override
+        public void bindMaterial(int material)
+        {
+            this.material = material;
+        }
+
+        @Override
+        public void drawInstanced(int mesh, int firstInstance, int instanceCount)
+        {
+            this.instanceCount += instanceCount;
+
+            if (!checking)
+                return;
+
+            // The combinations of state must come in increasing order, so that each one is drawn only once
+            long state = (long) pass << 60 | (long) pipeline << 48 | (long) descriptorSet << 36 |
+                         (long) material << 24 | mesh;
+
+            if (Long.compareUnsigned(state, lastState) <= 0 && lastState != -1)
+                throw new IllegalStateException("The draws are not sorted, or the same state is drawn twice");
+
+            lastState = state;
+
+            for (int i = firstInstance; i < firstInstance + instanceCount; i++)
+            {
+                int object = instances.get(i);
+
+                if (passes[object] != pass || pipelines[object] != pipeline ||
+                    descriptorSets[object] != descriptorSet || materials[object] != material || meshes[object] != mesh)
+                    throw new IllegalStateException("The object " + object + " is drawn with the wrong state");
+
+                if (i > firstInstance && depths[object] < depths[instances.get(i - 1)])
+                    throw new IllegalStateException("The instances of a draw are not front to back");
+            }
+        }
+    }
+
+    @Param({ "100000", "1000000" })
+    private int drawCount;
+
+    private final Random random = new Random(11);
+
+    private int[] passes;
+    private int[] pipelines;
+    private int[] descriptorSets;
+    private int[] materials;
+    private int[] meshes;
+
+    private int[]  order;
+    private int[]  depths;
+    private long[] keys;
+
+    private DrawQueue      queue;
+    private CheckingTarget target;
+    private IntBuffer      instances;
+
+    private long frames;
+
+    private long counterCost;
+    private long heapBefore;
+    private long framesBefore;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        passes = new int[drawCount];
+        pipelines = new int[drawCount];
+        descriptorSets = new int[drawCount];
+        materials = new int[drawCount];
+        meshes = new int[drawCount];
+
+        for (int i = 0; i < drawCount; i++)
+        {
+            // A few materials are used by most of the objects, and every material uses a few meshes
+            int material = skewed(random, MATERIALS);
+
+            passes[i] = random.nextInt(100) == 0 ? OVERLAY_PASS : random.nextInt(4);
+            materials[i] = material;
+            pipelines[i] = material % PIPELINES;
+            descriptorSets[i] = material % DESCRIPTOR_SETS;
+            meshes[i] = (material * 7 + skewed(random, 8)) % MESHES;
+        }
+
+        order = new int[drawCount];
+        depths = new int[drawCount];
+        keys = new long[drawCount];
+
+        for (int i = 0; i < drawCount; i++)
+            order[i] = i;
+
+        queue = new DrawQueue();
+        target = new CheckingTarget(passes, pipelines, descriptorSets, materials, meshes);
+        instances = memAllocInt(drawCount);
+
+        // Only this frame is checked, the checks are slower than the flush
+        moveCamera();
+        submitAndFlush(true);
+        checkMerging();
+
+        // Reading the counter allocates on it's own, so that is not counted against the queue
+        counterCost = -AllocationCounter.getHeapAllocatedBytes() + AllocationCounter.getHeapAllocatedBytes();
+    }
+
+    /**
+     * Checks that the number of draw calls and pipeline binds is the number of distinct combinations of state, which is
+     * the fewest that the draws can be recorded with.
+     */
+    private void checkMerging()
+    {
+        Set<Long> drawStates = new HashSet<>();
+        Set<Long> pipelineStates = new HashSet<>();
+
+        for (int i = 0; i < drawCount; i++)
+        {
+            drawStates.add(DrawQueue.encodeKey(passes[i], pipelines[i], descriptorSets[i], materials[i], meshes[i], 0));
+            pipelineStates.add((long) passes[i] << 32 | pipelines[i]);
+        }
+
+        if (queue.getDrawCalls() != drawStates.size())
+            throw new IllegalStateException(queue.getDrawCalls() + " draw calls for " + drawStates.size() +
+                                            " combinations of state");
+
+        if (queue.getPipelineBinds() != pipelineStates.size())
+            throw new IllegalStateException(queue.getPipelineBinds() + " pipeline binds for " + pipelineStates.size() +
+                                            " pipelines in the passes");
+    }
+
+    /**
+     * Gives every object a new depth and shuffles the order that they are submitted in, like when the camera moves.
+     * The keys for {@code Arrays.sort} are made from the new depths, in the new order.
+     */
+    @Setup(Level.Invocation)
+    public void moveCamera()
+    {
+        for (int i = 0; i < drawCount; i++)
+            depths[i] = random.nextInt(4096);
+
+        shuffle(order, random);
+
+        for (int i = 0; i < drawCount; i++)
+        {
+            int object = order[i];
+
+            keys[i] = DrawQueue.encodeKey(passes[object], pipelines[object], descriptorSets[object],
+                    materials[object], meshes[object], depths[object]);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void readCounter()
+    {
+        framesBefore = frames;
+        heapBefore = AllocationCounter.getHeapAllocatedBytes();
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkCounter()
+    {
+        long heapAllocated = AllocationCounter.getHeapAllocatedBytes() - heapBefore - counterCost;
+        long iterationFrames = frames - framesBefore;
+
+        // Only the frames of the queue are checked, sorting the keys is for comparison
+        if (heapBefore >= 0 && iterationFrames > 0 && heapAllocated > COUNTER_SLACK + iterationFrames)
+            throw new IllegalStateException("The queue allocated " + heapAllocated + " bytes on the heap in " +
+                                            iterationFrames + " frames");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        memFree(instances);
+
+        int[] unsorted = countUnsortedBinds();
+
+        System.out.println(String.format("%d draws: %d sort passes, %d draw calls, %d / %d / %d binds", drawCount,
+                queue.getSortPasses(), queue.getDrawCalls(), queue.getPipelineBinds(), queue.getDescriptorSetBinds(),
+                queue.getMaterialBinds()));
+        System.out.println(String.format("In submission order: %d draw calls, %d / %d / %d binds", drawCount,
+                unsorted[0], unsorted[1], unsorted[2]));
+    }
+
+    private int[] countUnsortedBinds()
+    {
+        int[] binds = new int[3];
+        int pipeline = -1;
+        int descriptorSet = -1;
+        int material = -1;
+
+        for (int object : order)
+        {
+            if (pipelines[object] != pipeline)
+                binds[0]++;
+
+            if (descriptorSets[object] != descriptorSet)
+                binds[1]++;
+
+            if (materials[object] != material)
+                binds[2]++;
+
+            pipeline = pipelines[object];
+            descriptorSet = descriptorSets[object];
+            material = materials[object];
+        }
+
+        return binds;
+    }
+
+    private static int skewed(Random random, int count)
+    {
+        // The square of a uniform number favours the small values
+        double uniform = random.nextDouble();
+        return (int) (uniform * uniform * count);
+    }
+
+    private static void shuffle(int[] array, Random random)
+    {
+        for (int i = array.length - 1; i > 0; i--)
+        {
+            int j = random.nextInt(i + 1);
+            int temp = array[i];
+
+            array[i] = array[j];
+            array[j] = temp;
+        }
+    }
+
+    private int submitAndFlush(boolean checking)
+    {
+        for (int i = 0; i < drawCount; i++)
+        {
+            int object = order[i];
+
+            queue.submit(DrawQueue.encodeKey(passes[object], pipelines[object], descriptorSets[object],
+                    materials[object], meshes[object], depths[object]), object);
+        }
+
+        instances.clear();
+        target.begin(depths, instances, checking);
+        queue.flush(target, instances);
+
+        if (target.instanceCount != drawCount)
+            throw new IllegalStateException(target.instanceCount + " instances were drawn instead of " + drawCount);
+
+        frames++;
+
+        return queue.getDrawCalls();
+    }
+
+    @Benchmark
+    public int frame()
+    {
+        return submitAndFlush(false);
+    }
+
+    @Benchmark
+    public long[] sortKeys()
+    {
+        Arrays.sort(keys);
+        return keys;
+    }
+}
@@ -0,0 +1,105 @@
+package com.shc.vulkan;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+/**
+ * Measures the marshalling of the extension names that {@link VkUtils#createInstance(String, String...)} passes to
+ * the driver, without creating the instance. The names are encoded the way the method did before it moved to the
+ * stack, with a native allocation for the array and for every name, with the stack and buffer wrappers of LWJGL, and
+ * with {@link VkMarshal}, which is what the method does now.
+ * <p>
+ * The GLFW extensions are left out, since they are only copied as pointers and need a window system to query.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ExtensionNamesBenchmark
+{
+    private static final String[] EXTENSIONS = {
+            "VK_KHR_surface",
+            "VK_KHR_xcb_surface",
+            "VK_EXT_debug_report",
+            "VK_KHR_get_physical_device_properties2",
+            "VK_KHR_xlib_surface",
+            "VK_KHR_wayland_surface",
+            "VK_KHR_display",
+            "VK_NV_external_memory_capabilities"
+    };
+
+    @Param({ "2", "8" })
+    private int extensionCount;
+
+    private String[] extensions;
+
+    @Setup
+    public void setup()
+    {
+        extensions = Arrays.copyOf(EXTENSIONS, extensionCount);
+    }
+
+    @Benchmark
+    public long nativeHeap()
+    {
+        PointerBuffer names = memAllocPointer(extensions.length);
+        ByteBuffer[] encoded = new ByteBuffer[extensions.length];
+
+        for (int i = 0; i < extensions.length; i++)
+        {
+            encoded[i] = memASCII(extensions[i]);
+            names.put(encoded[i]);
+        }
+
+        names.flip();
+        long first = names.get(0);
+
+        for (ByteBuffer name : encoded)
+            memFree(name);
+
+        memFree(names);
+
+        return first;
+    }
+
+    @Benchmark
+    public long stackWrappers()
+    {
+        try (MemoryStack stack = stackPush())
+        {
+            PointerBuffer names = stack.mallocPointer(extensions.length);
+
+            for (String extension : extensions)
+                names.put(stack.ASCII(extension));
+
+            names.flip();
+
+            return names.get(0);
+        }
+    }
+
+    @Benchmark
+    public long vkMarshal()
+    {
+        try (MemoryStack stack = stackPush())
+        {
+            return memGetAddress(VkMarshal.nExtensionNames(stack, null, extensions));
+        }
+    }
+}
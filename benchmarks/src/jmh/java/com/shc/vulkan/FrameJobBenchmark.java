@@ -0,0 +1,141 @@
+package com.shc.vulkan;
+
+import org.joml.Matrix4f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+/**
+ * Measures how the recording of a frame scales with the number of threads of the {@link FrameJobSystem}. No GPU is
+ * needed for this, the recording of every draw is simulated by the CPU work that a real recording does per draw: the
+ * model view projection matrix is computed with JOML and written along with the draw parameters into a command stream
+ * of the chunk, like {@code vkCmdPushConstants} and {@code vkCmdDrawIndexed} would write into a secondary command
+ * buffer.
+ * <p>
+ * The draws are split into one chunk for every thread. Before measuring, the draws are recorded into a single stream
+ * on the calling thread, and after the run the streams of the chunks are merged in chunk order and checksummed, and the
+ * run fails if the checksum differs from the one of the single stream.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FrameJobBenchmark
+{
+    // The bytes written for every draw: a 4x4 matrix and the five parameters of vkCmdDrawIndexed
+    private static final int DRAW_SIZE = 16 * 4 + 5 * 4;
+
+    @Param({ "100000" })
+    private int drawCount;
+
+    @Param({ "1", "2", "4" })
+    private int threads;
+
+    private FrameJobSystem     jobSystem;
+    private FrameJobSystem.Job job;
+
+    private ByteBuffer[] streams;
+    private long         expectedChecksum;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        Matrix4f viewProjection = new Matrix4f()
+                .perspective((float) Math.toRadians(60), 16f / 9f, 0.1f, 1000f)
+                .lookAt(0, 10, 50, 0, 0, 0, 0, 1, 0);
+
+        ByteBuffer single = memAlloc(drawCount * DRAW_SIZE);
+        recordDraws(single, new Matrix4f(), viewProjection, 0, drawCount);
+        expectedChecksum = checksum(new ByteBuffer[]{ single });
+        memFree(single);
+
+        jobSystem = new FrameJobSystem(threads);
+
+        streams = new ByteBuffer[threads];
+        Matrix4f[] matrices = new Matrix4f[threads];
+
+        for (int i = 0; i < threads; i++)
+        {
+            streams[i] = memAlloc((drawCount / threads + 1) * DRAW_SIZE);
+            matrices[i] = new Matrix4f();
+        }
+
+        job = (chunk, start, end) -> recordDraws(streams[chunk], matrices[chunk], viewProjection, start, end);
+    }
+
+    @Benchmark
+    public void recordFrame()
+    {
+        jobSystem.run(drawCount, threads, job);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        long checksum = checksum(streams);
+
+        jobSystem.shutdown();
+
+        for (ByteBuffer stream : streams)
+            memFree(stream);
+
+        if (checksum != expectedChecksum)
+            throw new IllegalStateException("The merged streams differ from a single stream with " + threads +
+                                            " threads");
+    }
+
+    private static void recordDraws(ByteBuffer stream, Matrix4f model, Matrix4f viewProjection, int start, int end)
+    {
+        stream.clear();
+
+        for (int i = start; i < end; i++)
+        {
+            // Lay the objects out on a grid, each one rotated by it's index
+            model.translation((i % 100) * 2f, 0, (i / 100 % 100) * 2f)
+                 .rotateY(i * 0.01f);
+
+            viewProjection.mul(model, model);
+
+            model.get(stream.position(), stream);
+            stream.position(stream.position() + 16 * 4);
+
+            stream.putInt(36)     // indexCount
+                  .putInt(1)      // instanceCount
+                  .putInt(0)      // firstIndex
+                  .putInt(i * 24) // vertexOffset
+                  .putInt(i);     // firstInstance
+        }
+
+        stream.flip();
+    }
+
+    private static long checksum(ByteBuffer[] streams)
+    {
+        // FNV-1a over the merged streams, in chunk order
+        long hash = 0xcbf29ce484222325L;
+
+        for (ByteBuffer stream : streams)
+        {
+            for (int i = 0; i < stream.limit(); i++)
+            {
+                hash ^= stream.get(i) & 0xFF;
+                hash *= 0x100000001b3L;
+            }
+        }
+
+        return hash;
+    }
+}
@@ -0,0 +1,343 @@
+package com.shc.vulkan;
+
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the {@link GpuProfiler} against simulated timestamp queries, so no GPU is needed. Every frame has a few
+ * scopes, one of them nested, whose GPU times are known. The timestamps tick with the period of a real device, and have
+ * 36 valid bits that wrap around early in a run. The device completes every frame two frames after it was recorded.
+ * The time is reported per scope, to record it and to read it's results back.
+ * <p>
+ * Before measuring, a fixed run with a hitch in the middle, where the device stops for a few frames, is checked. It
+ * fails if the measured GPU times of the scopes don't match the simulated ones, if the hitch doesn't drop the frames
+ * whose slots came around before they completed (instead of waiting for them), or if the trace doesn't have an event
+ * for every scope. The trace is written to the file given with {@code -Dvulkan.profiler.trace=file.json}, or to a
+ * temporary file that is deleted after the check. The measured frames must not allocate on the heap, which is checked
+ * for every iteration with a slack for the counter and JMH, like in the {@link DeletionQueueBenchmark}.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GpuProfilerBenchmark
+{
+    private static final int CHECKED_FRAMES   = 20000;
+    private static final int FRAMES_IN_FLIGHT = 2;
+    private static final int SLOT_COUNT       = FRAMES_IN_FLIGHT + 1;
+    private static final int MAX_SCOPES       = 8;
+    private static final int COUNTER_SLACK    = 1024;
+
+    private static final float TIMESTAMP_PERIOD = 83.333f;
+    private static final int   VALID_BITS       = 36;
+
+    private static final int HITCH_FRAME  = CHECKED_FRAMES / 2;
+    private static final int HITCH_LENGTH = 5;
+
+    // The number of scopes in a frame, which the time of a frame is divided by
+    private static final int SCOPE_COUNT = 5;
+
+    private static final String[] SCOPES     = { "shadows", "gbuffer", "lighting", "ssao", "post" };
+    private static final long[]   GPU_MICROS = { 1200, 2500, 1800, 600, 400 };
+
+    /**
+     * Timestamp queries of a simulated GPU, which runs the frames one after another. The tick of a timestamp is the GPU
+     * time at which it is written, and the GPU time only moves forward with the work that the benchmark simulates.
+     */
+    private static class SimulatedQueries implements GpuProfiler.TimestampQueries
+    {
+        private final long[]    ticks;
+        private final boolean[] written;
+        private final long      mask = (1L << VALID_BITS) - 1;
+
+        // Start close to the end of the valid bits, so that the timestamps wrap around
+        private long gpuTicks = (1L << VALID_BITS) - 100000;
+
+        SimulatedQueries(int queryCount)
+        {
+            ticks = new long[queryCount];
+            written = new boolean[queryCount];
+        }
+
+        void work(long ticks)
+        {
+            gpuTicks += ticks;
+        }
+
+        @Override
+        public void reset(VkCommandBuffer commandBuffer, int firstQuery, int queryCount)
+        {
+            Arrays.fill(written, firstQuery, firstQuery + queryCount, false);
+        }
+
+        @Override
+        public void writeTimestamp(VkCommandBuffer commandBuffer, int pipelineStage, int query)
+        {
+            ticks[query] = gpuTicks & mask;
+            written[query] = true;
+        }
+
+        @Override
+        public boolean getResults(int firstQuery, int queryCount, long[] results)
+        {
+            for (int i = firstQuery; i < firstQuery + queryCount; i++)
+            {
+                if (!written[i])
+                    return false;
+            }
+
+            System.arraycopy(ticks, firstQuery, results, 0, queryCount);
+            return true;
+        }
+
+        @Override
+        public float getTimestampPeriod()
+        {
+            return TIMESTAMP_PERIOD;
+        }
+
+        @Override
+        public int getTimestampValidBits()
+        {
+            return VALID_BITS;
+        }
+
+        @Override
+        public void destroy()
+        {
+        }
+    }
+
+    /**
+     * A clock that is advanced by hand, standing in for the fences of a device.
+     */
+    private static class SimulatedClock implements FenceClock
+    {
+        private long completedValue;
+
+        @Override
+        public long getCompletedValue()
+        {
+            return completedValue;
+        }
+
+        @Override
+        public void waitFor(long value)
+        {
+            completedValue = Math.max(completedValue, value);
+        }
+    }
+
+    /**
+     * A profiler with it's simulated device, and the GPU times that the simulation has given to every scope.
+     */
+    private static class Simulation
+    {
+        private final SimulatedQueries queries;
+        private final SimulatedClock   clock;
+        private final GpuProfiler      profiler;
+
+        // The jitter of the GPU times is known, so that the expected means can be checked exactly
+        private final Random random         = new Random(42);
+        private final long[] expectedTotals = new long[SCOPES.length];
+
+        private long frame;
+
+        Simulation(int maxTraceEvents)
+        {
+            queries = new SimulatedQueries(GpuProfiler.getQueryCount(SLOT_COUNT, MAX_SCOPES));
+            clock = new SimulatedClock();
+            profiler = new GpuProfiler(queries, clock, SLOT_COUNT, MAX_SCOPES, maxTraceEvents);
+        }
+
+        void frame(boolean hitch)
+        {
+            frame++;
+
+            // The device completes the frames a few frames late, and not at all during a hitch
+            if (!hitch)
+                clock.waitFor(frame - FRAMES_IN_FLIGHT);
+
+            profiler.beginFrame(null, frame);
+
+            for (int i = 0; i < SCOPES.length; i++)
+            {
+                // The ssao scope is nested in the lighting scope
+                if (i == 3)
+                    continue;
+
+                int scope = profiler.beginScope(null, SCOPES[i]);
+                simulateScope(i);
+
+                if (i == 2)
+                {
+                    int nested = profiler.beginScope(null, SCOPES[3]);
+                    expectedTotals[2] += simulateScope(3);
+                    profiler.endScope(null, nested);
+                }
+
+                profiler.endScope(null, scope);
+            }
+
+            profiler.endFrame();
+        }
+
+        private long simulateScope(int scope)
+        {
+            // The measured time is a whole number of ticks, so the simulated time is too
+            long ticks = (long) (GPU_MICROS[scope] * 1000 * (0.9 + random.nextDouble() * 0.2) / TIMESTAMP_PERIOD);
+            long nanos = (long) (ticks * (double) TIMESTAMP_PERIOD);
+
+            queries.work(ticks);
+            expectedTotals[scope] += nanos;
+
+            return nanos;
+        }
+
+        void finish()
+        {
+            clock.waitFor(frame);
+            profiler.collect();
+        }
+    }
+
+    private Simulation simulation;
+
+    private long counterCost;
+    private long heapBefore;
+    private long framesBefore;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        checkProfiler();
+
+        // The trace was checked above, and would fill up in a fraction of a second, so the measured profiler keeps none
+        simulation = new Simulation(0);
+
+        // Reading the counter allocates on it's own, so that is not counted against the profiler
+        counterCost = -AllocationCounter.getHeapAllocatedBytes() + AllocationCounter.getHeapAllocatedBytes();
+    }
+
+    private static void checkProfiler() throws IOException
+    {
+        Simulation simulation = new Simulation(CHECKED_FRAMES * SCOPES.length * 2);
+        GpuProfiler profiler = simulation.profiler;
+
+        for (int frame = 1; frame <= CHECKED_FRAMES; frame++)
+            simulation.frame(frame >= HITCH_FRAME && frame < HITCH_FRAME + HITCH_LENGTH);
+
+        simulation.finish();
+
+        long expectedFrames = CHECKED_FRAMES - profiler.getDroppedFrames();
+
+        if (profiler.getCollectedFrames() != expectedFrames)
+            throw new IllegalStateException(profiler.getCollectedFrames() + " frames were read instead of " +
+                                            expectedFrames);
+
+        if (profiler.getDroppedFrames() == 0)
+            throw new IllegalStateException("The hitch of the device didn't drop any frames");
+
+        if (profiler.getDroppedFrames() > HITCH_LENGTH)
+            throw new IllegalStateException(profiler.getDroppedFrames() + " frames were dropped by a hitch of " +
+                                            HITCH_LENGTH + " frames");
+
+        for (int i = 0; i < SCOPES.length; i++)
+        {
+            GpuProfiler.ScopeStats stats = profiler.getScopeStats(SCOPES[i]);
+            double measured = stats.getGpuTime().getMeanNanos();
+            double expected = simulation.expectedTotals[i] / (double) CHECKED_FRAMES;
+
+            // The dropped frames are missing from the measured mean, and every tick can be off by one
+            if (Math.abs(measured - expected) > expected * 0.01 + TIMESTAMP_PERIOD)
+                throw new IllegalStateException(String.format("The scope %s took %.1f us instead of %.1f us",
+                        SCOPES[i], measured / 1000.0, expected / 1000.0));
+        }
+
+        checkTrace(profiler);
+        profiler.destroy();
+    }
+
+    private static void checkTrace(GpuProfiler profiler) throws IOException
+    {
+        String traceFile = System.getProperty("vulkan.profiler.trace");
+        boolean temporary = traceFile == null;
+
+        if (temporary)
+            traceFile = Files.createTempFile("gpu-trace", ".json").toString();
+
+        try
+        {
+            profiler.writeTrace(traceFile);
+
+            String trace = new String(Files.readAllBytes(Paths.get(traceFile)), StandardCharsets.UTF_8);
+
+            String event = "\"ph\":\"X\"";
+            int events = 0;
+
+            for (int index = trace.indexOf(event); index >= 0; index = trace.indexOf(event, index + 1))
+                events++;
+
+            if (!trace.startsWith("{") || !trace.trim().endsWith("]}") || events != profiler.getTraceEventCount())
+                throw new IllegalStateException("The trace has " + events + " events instead of " +
+                                                profiler.getTraceEventCount());
+        }
+        finally
+        {
+            if (temporary)
+                Files.delete(Paths.get(traceFile));
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void readCounter()
+    {
+        framesBefore = simulation.frame;
+        heapBefore = AllocationCounter.getHeapAllocatedBytes();
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkCounter()
+    {
+        long heapAllocated = AllocationCounter.getHeapAllocatedBytes() - heapBefore - counterCost;
+        long frames = simulation.frame - framesBefore;
+
+        if (heapBefore >= 0 && heapAllocated > COUNTER_SLACK + frames)
+            throw new IllegalStateException("Profiling allocated " + heapAllocated + " bytes on the heap in " +
+                                            frames + " frames");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        simulation.finish();
+        simulation.profiler.printSummary();
+        simulation.profiler.destroy();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SCOPE_COUNT)
+    public long frame()
+    {
+        simulation.frame(false);
+        return simulation.frame;
+    }
+}
@@ -0,0 +1,215 @@
+package com.shc.vulkan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the {@link InputEventQueue} and the {@link FramePacer} that decouple the input from the rendering in
+ * {@link VulkanExample}. No window or GPU is needed for this.
+ * <p>
+ * The {@code queue} group measures the raw throughput of the queue, with a producer thread that offers events as fast
+ * as it can and a consumer thread that drains them. Every event carries it's sequence number, and the consumer fails
+ * the run if an event arrives out of order or corrupted. At the end of the run the rest of the queue is drained, and
+ * the run fails if any event that was offered never arrived.
+ * <p>
+ * The {@code pacedFrame} benchmark is a frame of the render thread of an example: a producer thread sends events at
+ * the rate of a 1000 Hz mouse, while the frames are paced to the target frame rate with a simulated frame of CPU work,
+ * so the time of a frame is the frame time that the pacer achieves. The latency from every event to the end of the
+ * frame that handled it is printed at the end of the run.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+@BenchmarkMode(Mode.AverageTime)
+public class InputEventQueueBenchmark
+{
+    private static final int QUEUE_CAPACITY = 4096;
+
+    private static final long EVENT_INTERVAL = 1000000L;
+
+    /**
+     * The queue shared by the producer and the consumer of the {@code queue} group. The fields of each side are only
+     * written by the thread of that side.
+     */
+    @State(Scope.Group)
+    public static class Queue
+    {
+        private InputEventQueue queue;
+
+        // Written by the producer
+        private long offered;
+
+        // Written by the consumer
+        private long received;
+
+        private InputEventQueue.Handler checker;
+
+        @Setup(Level.Trial)
+        public void setup()
+        {
+            queue = new InputEventQueue(QUEUE_CAPACITY);
+
+            checker = (type, code, action, mods, data, timestamp) ->
+            {
+                long sequence = received++;
+
+                if (type != InputEventQueue.CURSOR_POS || code != (int) sequence || action != 1 ||
+                    timestamp != sequence || InputEventQueue.getFirstFloat(data) != (float) sequence)
+                    throw new IllegalStateException("Event " + sequence + " arrived out of order or corrupted");
+            };
+        }
+
+        @TearDown(Level.Trial)
+        public void checkDelivery()
+        {
+            // Both the threads of the group are done, so the rest of the queue can be drained from this one
+            while (queue.drain(checker) > 0)
+                continue;
+
+            if (received != offered)
+                throw new IllegalStateException(offered + " events were offered, but " + received + " arrived");
+        }
+    }
+
+    /**
+     * A render loop paced to the target frame rate, fed by a producer thread that runs for the whole run.
+     */
+    @State(Scope.Thread)
+    public static class PacedLoop
+    {
+        @Param({ "60" })
+        private double targetFps;
+
+        @Param({ "4000" })
+        private long workMicros;
+
+        private InputEventQueue    queue;
+        private FramePacer         pacer;
+        private FrameTimeHistogram latency;
+
+        private final long[] timestamps = new long[QUEUE_CAPACITY];
+        private int          count;
+
+        private InputEventQueue.Handler handler;
+
+        private Thread           producer;
+        private volatile boolean running;
+
+        private long frames;
+        private long startTime;
+
+        @Setup(Level.Trial)
+        public void setup()
+        {
+            queue = new InputEventQueue(QUEUE_CAPACITY);
+            pacer = new FramePacer(targetFps);
+            latency = new FrameTimeHistogram();
+
+            handler = (type, code, action, mods, data, timestamp) -> timestamps[count++] = timestamp;
+
+            running = true;
+
+            producer = new Thread(() ->
+            {
+                long next = System.nanoTime();
+
+                while (running)
+                {
+                    queue.offer(InputEventQueue.CURSOR_POS, 0, 0, 0, 0, System.nanoTime());
+
+                    next += EVENT_INTERVAL;
+                    LockSupport.parkNanos(next - System.nanoTime());
+                }
+            }, "Producer");
+
+            producer.setDaemon(true);
+            producer.start();
+
+            startTime = System.nanoTime();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws InterruptedException
+        {
+            long elapsed = System.nanoTime() - startTime;
+
+            running = false;
+            producer.join();
+
+            System.out.println(String.format("Paced: %d frames, %.1f fps for a target of %.1f, idle %.1f%%",
+                    frames, frames / (elapsed / 1e9), targetFps, 100.0 * pacer.getWaitedNanos() / elapsed));
+
+            System.out.println(String.format("Input latency (microseconds) of %d events: p50 %.1f, p95 %.1f, " +
+                                             "p99 %.1f, max %.1f, dropped %d", latency.getCount(),
+                    latency.getPercentile(50) / 1000.0,
+                    latency.getPercentile(95) / 1000.0,
+                    latency.getPercentile(99) / 1000.0,
+                    latency.getMaxNanos() / 1000.0,
+                    queue.getDroppedCount()));
+        }
+    }
+
+    @Benchmark
+    @Group("queue")
+    @GroupThreads(1)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean offer(Queue state)
+    {
+        long sequence = state.offered;
+
+        // The event is retried by the next call when the queue is full, so that no sequence number is lost
+        if (!state.queue.offer(InputEventQueue.CURSOR_POS, (int) sequence, 1, 0,
+                InputEventQueue.packFloats(sequence, -sequence), sequence))
+            return false;
+
+        state.offered = sequence + 1;
+
+        return true;
+    }
+
+    @Benchmark
+    @Group("queue")
+    @GroupThreads(1)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int drain(Queue state)
+    {
+        return state.queue.drain(state.checker);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int pacedFrame(PacedLoop state)
+    {
+        state.pacer.waitForNextFrame();
+
+        state.count = 0;
+        state.queue.drain(state.handler);
+
+        // The simulated frame
+        long workEnd = System.nanoTime() + state.workMicros * 1000L;
+
+        while (System.nanoTime() < workEnd)
+            Thread.yield();
+
+        long frameEnd = System.nanoTime();
+
+        for (int i = 0; i < state.count; i++)
+            state.latency.record(frameEnd - state.timestamps[i]);
+
+        state.frames++;
+
+        return state.count;
+    }
+}
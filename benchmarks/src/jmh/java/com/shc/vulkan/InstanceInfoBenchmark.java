@@ -0,0 +1,119 @@
+package com.shc.vulkan;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkApplicationInfo;
+import org.lwjgl.vulkan.VkInstanceCreateInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Measures the building of the VkApplicationInfo and VkInstanceCreateInfo structs that
+ * {@link VkUtils#createInstance(String, String...)} passes to the driver. The structs are built with malloc and free,
+ * on the stack with the struct wrappers of LWJGL, and on the stack by their addresses with {@link VkMarshal}. The
+ * wrappers create a small Java object for every struct and buffer, which shows up in the GC profiler unless the JIT
+ * manages to eliminate them.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InstanceInfoBenchmark
+{
+    private String applicationName = "Vulkan Tests";
+    private String engineName      = "";
+
+    private int apiVersion = VulkanExample.VK_MAKE_VERSION(1, 0, 4);
+
+    // The array of extension names is the same for all the methods, it is measured by the ExtensionNamesBenchmark
+    private PointerBuffer extensionNames;
+
+    @Setup
+    public void setup()
+    {
+        extensionNames = memAllocPointer(1);
+        extensionNames.put(0, memAddress(memASCII("VK_KHR_surface")));
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        nmemFree(extensionNames.get(0));
+        memFree(extensionNames);
+    }
+
+    @Benchmark
+    public long malloc()
+    {
+        ByteBuffer pApplicationName = memASCII(applicationName);
+        ByteBuffer pEngineName = memASCII(engineName);
+
+        VkApplicationInfo appInfo = VkApplicationInfo.calloc()
+                .sType(VK_STRUCTURE_TYPE_APPLICATION_INFO)
+                .pApplicationName(pApplicationName)
+                .pEngineName(pEngineName)
+                .apiVersion(apiVersion);
+
+        VkInstanceCreateInfo instInfo = VkInstanceCreateInfo.calloc()
+                .sType(VK_STRUCTURE_TYPE_INSTANCE_CREATE_INFO)
+                .pApplicationInfo(appInfo)
+                .ppEnabledExtensionNames(extensionNames);
+
+        long result = instInfo.pApplicationInfo().apiVersion();
+
+        instInfo.free();
+        appInfo.free();
+
+        memFree(pEngineName);
+        memFree(pApplicationName);
+
+        return result;
+    }
+
+    @Benchmark
+    public long stackWrappers()
+    {
+        try (MemoryStack stack = stackPush())
+        {
+            VkApplicationInfo appInfo = VkApplicationInfo.callocStack(stack)
+                    .sType(VK_STRUCTURE_TYPE_APPLICATION_INFO)
+                    .pApplicationName(stack.ASCII(applicationName))
+                    .pEngineName(stack.ASCII(engineName))
+                    .apiVersion(apiVersion);
+
+            VkInstanceCreateInfo instInfo = VkInstanceCreateInfo.callocStack(stack)
+                    .sType(VK_STRUCTURE_TYPE_INSTANCE_CREATE_INFO)
+                    .pApplicationInfo(appInfo)
+                    .ppEnabledExtensionNames(extensionNames);
+
+            return instInfo.pApplicationInfo().apiVersion();
+        }
+    }
+
+    @Benchmark
+    public long vkMarshal()
+    {
+        try (MemoryStack stack = stackPush())
+        {
+            long appInfo = VkMarshal.nApplicationInfo(stack, applicationName, engineName, apiVersion);
+            long instInfo = VkMarshal.nInstanceCreateInfo(stack, appInfo, extensionNames.address(),
+                    extensionNames.remaining());
+
+            return VkApplicationInfo.napiVersion(memGetAddress(instInfo + VkInstanceCreateInfo.PAPPLICATIONINFO));
+        }
+    }
+}
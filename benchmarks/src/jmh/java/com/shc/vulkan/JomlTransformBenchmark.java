@@ -0,0 +1,129 @@
+package com.shc.vulkan;
+
+import org.joml.Matrix4f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+/**
+ * Measures the per-frame transforms of a scene with JOML: the model matrix of every object is built from it's
+ * position, rotation and scale, multiplied with the view projection matrix and written into a native buffer, like the
+ * uniform data that is uploaded every frame. The time and the allocations are reported per object.
+ * <p>
+ * The matrices are made with new objects for every object, with matrices that are reused across the objects, and with
+ * the affine multiplies that skip the parts of the matrices that are known to be zero.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JomlTransformBenchmark
+{
+    private static final int OBJECT_COUNT = 4096;
+
+    private final float[] positions = new float[OBJECT_COUNT * 3];
+    private final float[] angles    = new float[OBJECT_COUNT];
+    private final float[] scales    = new float[OBJECT_COUNT];
+
+    private final Matrix4f projection     = new Matrix4f();
+    private final Matrix4f view           = new Matrix4f();
+    private final Matrix4f viewProjection = new Matrix4f();
+
+    private final Matrix4f model = new Matrix4f();
+    private final Matrix4f mvp   = new Matrix4f();
+
+    private FloatBuffer uniforms;
+
+    @Setup
+    public void setup()
+    {
+        Random random = new Random(3);
+
+        for (int i = 0; i < OBJECT_COUNT; i++)
+        {
+            positions[i * 3] = random.nextFloat() * 200 - 100;
+            positions[i * 3 + 1] = random.nextFloat() * 20;
+            positions[i * 3 + 2] = random.nextFloat() * 200 - 100;
+
+            angles[i] = random.nextFloat() * (float) Math.PI * 2;
+            scales[i] = 0.5f + random.nextFloat();
+        }
+
+        projection.setPerspective((float) Math.toRadians(60), 16f / 9f, 0.1f, 1000f);
+        view.setLookAt(0, 50, 150, 0, 0, 0, 0, 1, 0);
+        projection.mulPerspectiveAffine(view, viewProjection);
+
+        uniforms = memAllocFloat(OBJECT_COUNT * 16);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        memFree(uniforms);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OBJECT_COUNT)
+    public FloatBuffer newMatrices()
+    {
+        for (int i = 0; i < OBJECT_COUNT; i++)
+        {
+            Matrix4f transform = new Matrix4f()
+                    .translate(positions[i * 3], positions[i * 3 + 1], positions[i * 3 + 2])
+                    .rotateY(angles[i])
+                    .scale(scales[i]);
+
+            new Matrix4f(projection).mul(view).mul(transform).get(i * 16, uniforms);
+        }
+
+        return uniforms;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OBJECT_COUNT)
+    public FloatBuffer reusedMatrices()
+    {
+        for (int i = 0; i < OBJECT_COUNT; i++)
+        {
+            model.translation(positions[i * 3], positions[i * 3 + 1], positions[i * 3 + 2])
+                 .rotateY(angles[i])
+                 .scale(scales[i]);
+
+            viewProjection.mul(model, mvp).get(i * 16, uniforms);
+        }
+
+        return uniforms;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OBJECT_COUNT)
+    public FloatBuffer affineMatrices()
+    {
+        for (int i = 0; i < OBJECT_COUNT; i++)
+        {
+            float angle = angles[i];
+            float scale = scales[i];
+
+            // A rotation about the Y axis as a quaternion is (0, sin(a / 2), 0, cos(a / 2))
+            model.translationRotateScale(positions[i * 3], positions[i * 3 + 1], positions[i * 3 + 2],
+                    0, (float) Math.sin(angle * 0.5), 0, (float) Math.cos(angle * 0.5), scale);
+
+            viewProjection.mulAffineR(model, mvp).get(i * 16, uniforms);
+        }
+
+        return uniforms;
+    }
+}
@@ -0,0 +1,102 @@
+package com.shc.vulkan;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkDeviceCreateInfo;
+import org.lwjgl.vulkan.VkInstanceCreateInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+/**
+ * Measures all the marshalling that {@link VkUtils#createInstance(String, String...)} and
+ * {@link VkUtils#createDevice(org.lwjgl.vulkan.VkPhysicalDevice, int, String...)} do before they call the driver, and
+ * checks that it doesn't allocate any native memory. The {@link AllocationCounter} is installed before LWJGL allocates
+ * anything in the forked JVM, and the run fails if the number of native allocations changes over an iteration. The GC
+ * profiler reports the heap allocations, which should be zero as well.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MarshalAllocationBenchmark
+{
+    private static final String[] EXTENSIONS = {
+            "VK_KHR_surface",
+            "VK_KHR_xcb_surface",
+            "VK_EXT_debug_report"
+    };
+
+    private static final String[] DEVICE_EXTENSIONS = {
+            "VK_KHR_swapchain"
+    };
+
+    private String applicationName = "Vulkan Tests";
+    private int    apiVersion      = VulkanExample.VK_MAKE_VERSION(1, 0, 4);
+
+    private long nativeAllocations;
+
+    @Setup(Level.Trial)
+    public void installCounter()
+    {
+        AllocationCounter.install();
+
+        // If LWJGL created it's allocator before the counter was installed, nothing would ever be counted
+        long before = AllocationCounter.getNativeAllocationCount();
+        memFree(memAlloc(16));
+
+        if (AllocationCounter.getNativeAllocationCount() == before)
+            throw new IllegalStateException("The allocation counter was installed after LWJGL created it's allocator");
+    }
+
+    @Setup(Level.Iteration)
+    public void readCounter()
+    {
+        nativeAllocations = AllocationCounter.getNativeAllocationCount();
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkCounter()
+    {
+        long allocated = AllocationCounter.getNativeAllocationCount() - nativeAllocations;
+
+        if (allocated != 0)
+            throw new IllegalStateException("The marshalling made " + allocated + " native allocations");
+    }
+
+    @Benchmark
+    public int instanceCreateInfo()
+    {
+        try (MemoryStack stack = stackPush())
+        {
+            long extensionNames = VkMarshal.nExtensionNames(stack, null, EXTENSIONS);
+            long appInfo = VkMarshal.nApplicationInfo(stack, applicationName, "", apiVersion);
+            long instInfo = VkMarshal.nInstanceCreateInfo(stack, appInfo, extensionNames, EXTENSIONS.length);
+
+            return VkInstanceCreateInfo.nenabledExtensionCount(instInfo);
+        }
+    }
+
+    @Benchmark
+    public int deviceCreateInfo()
+    {
+        try (MemoryStack stack = stackPush())
+        {
+            long extensionNames = VkMarshal.nExtensionNames(stack, null, DEVICE_EXTENSIONS);
+            long deviceInfo = VkMarshal.nDeviceCreateInfo(stack, 0, extensionNames, DEVICE_EXTENSIONS.length);
+
+            return VkDeviceCreateInfo.nenabledExtensionCount(deviceInfo);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.shc.vulkan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.lwjgl.vulkan.KHRSwapchain.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Measures the compilation of the {@link RenderGraph} with thousands of passes, and checks the results. No GPU is
+ * needed for this, since compiling the graph does not call into Vulkan.
+ * <p>
+ * Every synthetic pass writes a new transient image or buffer, and reads a few of the resources written by the recent
+ * passes, like a chain of post processing and compute passes. Some of the outputs are never read, so those passes are
+ * culled. The last pass composes the most recent images into the imported backbuffer.
+ * <p>
+ * The graph is compiled and checked once before measuring, and checked again after the run: the run fails if passes
+ * that conflict on a resource are in the wrong order or in the same level, or if transient resources share memory
+ * while their lifetimes overlap. The number of barrier calls against the number of accesses that needed
+ * synchronization, and the transient memory with and without aliasing are printed at the end.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RenderGraphBenchmark
+{
+    // How far back the passes look for the resources to read
+    private static final int READ_WINDOW = 12;
+
+    private static final long MB = 1024 * 1024;
+
+    @Param({ "100", "1000", "5000", "10000" })
+    private int passCount;
+
+    private RenderGraph graph;
+
+    private int[]   written;
+    private int[][] reads;
+    private long[]  sizes;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        graph = new RenderGraph(1024);
+
+        written = new int[passCount];
+        reads = new int[passCount][];
+        sizes = new long[passCount];
+
+        buildGraph(graph, passCount, new Random(passCount), written, reads, sizes);
+
+        graph.compile();
+        verify(graph, passCount, written, reads, sizes);
+    }
+
+    @Benchmark
+    public RenderGraph compile()
+    {
+        graph.compile();
+        return graph;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        verify(graph, passCount, written, reads, sizes);
+
+        System.out.println(String.format("%d live passes in %d levels, %d hazards, %d barrier calls, " +
+                                         "%d image barriers, %d MB aliased, %d MB unaliased",
+                graph.getLivePassCount(), graph.getLevelCount(), graph.getHazardCount(), graph.getBarrierCallCount(),
+                graph.getImageBarrierCount(), graph.getTransientMemorySize() / MB,
+                graph.getUnaliasedMemorySize() / MB));
+    }
+
+    /**
+     * Builds the synthetic graph, and records the resource written by every pass, the passes whose outputs it reads
+     * and the size of it's output, to check the compiled graph against.
+     */
+    private static void buildGraph(RenderGraph graph, int passCount, Random random, int[] written, int[][] reads,
+                                   long[] sizes)
+    {
+        int backbuffer = graph.importImage("Backbuffer", VK_NULL_HANDLE, VK_IMAGE_ASPECT_COLOR_BIT,
+                VK_IMAGE_LAYOUT_UNDEFINED, VK_IMAGE_LAYOUT_PRESENT_SRC_KHR);
+
+        boolean[] isImage = new boolean[passCount];
+
+        for (int p = 0; p < passCount - 1; p++)
+        {
+            RenderGraph.Pass pass = graph.addPass("Pass " + p, commandBuffer -> {});
+
+            // Read a few of the recent outputs, a tenth of the outputs are never read and get culled
+            int readCount = 1 + random.nextInt(3);
+            int[] sources = new int[readCount];
+            int sourceCount = 0;
+
+            for (int i = 0; i < readCount && p > 0; i++)
+            {
+                int source = Math.max(0, p - 1 - random.nextInt(READ_WINDOW));
+
+                if (source % 10 == 9)
+                    continue;
+
+                sources[sourceCount++] = source;
+
+                if (isImage[source])
+                    pass.read(written[source], random.nextBoolean() ? ResourceUsage.SAMPLED_FRAGMENT
+                                                                    : ResourceUsage.SAMPLED_COMPUTE);
+                else
+                    pass.read(written[source], random.nextBoolean() ? ResourceUsage.INDIRECT_BUFFER
+                                                                    : ResourceUsage.VERTEX_BUFFER);
+            }
+
+            reads[p] = Arrays.copyOf(sources, sourceCount);
+
+            long size = (1 + random.nextInt(16)) * MB;
+            sizes[p] = size;
+
+            if (random.nextInt(4) == 0)
+            {
+                written[p] = graph.createBuffer("Buffer " + p, size, 256);
+                pass.write(written[p], ResourceUsage.STORAGE_WRITE_COMPUTE);
+            }
+            else
+            {
+                written[p] = graph.createImage("Image " + p, VK_IMAGE_ASPECT_COLOR_BIT, size, 64 * 1024);
+                isImage[p] = true;
+
+                pass.write(written[p], random.nextBoolean() ? ResourceUsage.COLOR_ATTACHMENT
+                                                            : ResourceUsage.STORAGE_WRITE_COMPUTE);
+            }
+        }
+
+        // Compose the last few images into the backbuffer
+        RenderGraph.Pass compose = graph.addPass("Compose", commandBuffer -> {});
+        int[] sources = new int[READ_WINDOW];
+        int sourceCount = 0;
+
+        for (int p = Math.max(0, passCount - 1 - READ_WINDOW); p < passCount - 1; p++)
+        {
+            if (isImage[p])
+            {
+                compose.read(written[p], ResourceUsage.SAMPLED_FRAGMENT);
+                sources[sourceCount++] = p;
+            }
+        }
+
+        compose.write(backbuffer, ResourceUsage.COLOR_ATTACHMENT);
+
+        written[passCount - 1] = backbuffer;
+        reads[passCount - 1] = Arrays.copyOf(sources, sourceCount);
+    }
+
+    private static void verify(RenderGraph graph, int passCount, int[] written, int[][] reads, long[] sizes)
+    {
+        int[] firstLevel = new int[passCount];
+        int[] lastLevel = new int[passCount];
+
+        for (int p = 0; p < passCount; p++)
+        {
+            int level = graph.getPassLevel(p);
+
+            if (level < 0)
+                continue;
+
+            firstLevel[p] = lastLevel[p] = level;
+
+            for (int source : reads[p])
+            {
+                if (graph.getPassLevel(source) < 0)
+                    throw new IllegalStateException("Pass " + p + " reads the output of the culled pass " + source);
+
+                if (graph.getPassLevel(source) >= level)
+                    throw new IllegalStateException("Pass " + p + " is not in a later level than pass " + source);
+
+                lastLevel[source] = Math.max(lastLevel[source], level);
+            }
+        }
+
+        // Transient resources that share memory must not be alive in the same level. The sizes are multiples of the
+        // granularity, so they are not padded by the graph.
+        for (int a = 0; a < passCount - 1; a++)
+        {
+            if (graph.getPassLevel(a) < 0)
+                continue;
+
+            for (int b = a + 1; b < passCount - 1; b++)
+            {
+                if (graph.getPassLevel(b) < 0)
+                    continue;
+
+                long offsetA = graph.getMemoryOffset(written[a]);
+                long offsetB = graph.getMemoryOffset(written[b]);
+
+                boolean sharesMemory = offsetA < offsetB + sizes[b] && offsetB < offsetA + sizes[a];
+
+                if (sharesMemory && firstLevel[a] <= lastLevel[b] && firstLevel[b] <= lastLevel[a])
+                    throw new IllegalStateException("Resources of passes " + a + " and " + b + " overlap");
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.shc.vulkan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a frame of the {@link RingAllocator} as the {@link StagingRing} uses it, with a few uploads of different
+ * sizes and alignments, and the device running two frames behind. The device is simulated by a {@link FenceClock} that
+ * is advanced by hand, so no GPU is needed.
+ * <p>
+ * Before measuring, the bookkeeping is checked against the simulated clock: regions that would cross the end of the
+ * ring must wrap around to offset zero, a region larger than the ring must be rejected, a full ring must wait for the
+ * oldest submission exactly once and count it as a stall, and a ring filled with regions that are not submitted yet
+ * must fail instead of waiting forever. The run fails if any of these is wrong.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RingAllocatorBenchmark
+{
+    private static final int CAPACITY         = 1024;
+    private static final int FRAMES_IN_FLIGHT = 2;
+
+    /**
+     * A clock whose completed value only changes when it is set, or when something waits for a value, in which case
+     * the device is assumed to finish the work right away.
+     */
+    private static class ManualClock implements FenceClock
+    {
+        private long completedValue;
+        private int  waitCount;
+
+        @Override
+        public long getCompletedValue()
+        {
+            return completedValue;
+        }
+
+        @Override
+        public void waitFor(long value)
+        {
+            waitCount++;
+
+            if (value > completedValue)
+                completedValue = value;
+        }
+    }
+
+    private RingAllocator ring;
+    private ManualClock   clock;
+    private long          frame;
+
+    @Setup(Level.Trial)
+    public void checkBookkeeping()
+    {
+        checkWraparound();
+        checkOversized();
+        checkStalls();
+        checkUnsubmitted();
+
+        ring = new RingAllocator(64 * 1024);
+        clock = new ManualClock();
+    }
+
+    private static void checkWraparound()
+    {
+        RingAllocator ring = new RingAllocator(CAPACITY);
+
+        expect(ring.allocate(400, 16), 0, "The first region");
+        ring.submit(1);
+        expect(ring.allocate(400, 16), 400, "The second region");
+        ring.submit(2);
+
+        // The third region doesn't fit before the end, and the start of the ring is still in flight
+        expect(ring.allocate(400, 16), -1, "A region over a batch in flight");
+
+        ring.retire(1);
+
+        // The 224 bytes at the end of the ring are skipped, and the region starts at the beginning again
+        expect(ring.allocate(400, 16), 0, "The wrapped region");
+        expect(ring.getUsedBytes(), CAPACITY, "The used bytes after wrapping");
+
+        ring.submit(3);
+        ring.retire(2);
+
+        expect(ring.allocate(10, 256), 512, "An aligned region after the wrapped one");
+
+        ring.submit(4);
+        ring.retire(4);
+
+        // Once nothing is in use, the ring starts over from the beginning
+        expect(ring.getUsedBytes(), 0, "The used bytes when everything is retired");
+        expect(ring.allocate(CAPACITY, 16), 0, "A region as large as the ring");
+    }
+
+    private static void checkOversized()
+    {
+        RingAllocator ring = new RingAllocator(CAPACITY);
+        ManualClock clock = new ManualClock();
+
+        try
+        {
+            ring.allocate(CAPACITY + 1, 16);
+            throw new IllegalStateException("Allocating a region larger than the ring did not fail");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected, the region can never fit
+        }
+
+        try
+        {
+            ring.reserve(CAPACITY + 1, 16, clock);
+            throw new IllegalStateException("Reserving a region larger than the ring did not fail");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected, and it must fail before waiting on the clock
+        }
+
+        expect(clock.waitCount, 0, "The waits for an oversized region");
+        expect(ring.getUsedBytes(), 0, "The used bytes after an oversized region");
+    }
+
+    private static void checkStalls()
+    {
+        RingAllocator ring = new RingAllocator(CAPACITY);
+        ManualClock clock = new ManualClock();
+
+        // Fill the ring with three frames that the device has not finished yet
+        for (int value = 1; value <= 3; value++)
+        {
+            ring.reserve(CAPACITY / 4, 16, clock);
+            ring.submit(value);
+        }
+
+        expect(ring.reserve(CAPACITY / 4, 16, clock), 3 * CAPACITY / 4, "The region that fits without waiting");
+        ring.submit(4);
+        expect(ring.getStallCount(), 0, "The stalls while the ring has room");
+
+        // The ring is full, so this has to wait for the oldest frame, and only that one
+        expect(ring.reserve(CAPACITY / 4, 16, clock), 0, "The region after the stall");
+        ring.submit(5);
+        expect(ring.getStallCount(), 1, "The stalls after the ring filled up");
+        expect(clock.waitCount, 1, "The waits after the ring filled up");
+        expect(clock.completedValue, 1, "The value waited for");
+
+        // When the device catches up on it's own, the completed value is used and nothing waits
+        clock.completedValue = 3;
+
+        expect(ring.reserve(CAPACITY / 2, 16, clock), CAPACITY / 4, "The region after the device caught up");
+        expect(ring.getStallCount(), 1, "The stalls after the device caught up");
+        expect(clock.waitCount, 1, "The waits after the device caught up");
+
+        // A region that has to wrap around needs the start of the ring too, so it waits for every frame in flight
+        ring.submit(6);
+        expect(ring.reserve(CAPACITY / 2 + CAPACITY / 4, 16, clock), 0, "The region that wraps around");
+        expect(ring.getStallCount(), 4, "The stalls for the region that wraps around");
+        expect(clock.waitCount, 4, "The waits for the region that wraps around");
+        expect(clock.completedValue, 6, "The value waited for, for the region that wraps around");
+    }
+
+    private static void checkUnsubmitted()
+    {
+        RingAllocator ring = new RingAllocator(CAPACITY);
+        ManualClock clock = new ManualClock();
+
+        ring.reserve(CAPACITY / 2, 16, clock);
+        ring.reserve(CAPACITY / 2, 16, clock);
+
+        boolean failed = false;
+
+        try
+        {
+            ring.reserve(16, 16, clock);
+        }
+        catch (IllegalStateException e)
+        {
+            failed = true;
+        }
+
+        if (!failed)
+            throw new IllegalStateException("Reserving in a ring full of unsubmitted regions did not fail");
+
+        if (!ring.hasUnsubmittedRegions() || clock.waitCount != 0)
+            throw new IllegalStateException("The ring waited for regions that were never submitted");
+    }
+
+    private static void expect(long actual, long expected, String what)
+    {
+        if (actual != expected)
+            throw new IllegalStateException(what + " is " + actual + " instead of " + expected);
+    }
+
+    @Benchmark
+    public long frame()
+    {
+        // Vertices, indices and uniforms, like the uploads of a frame
+        long offsets = ring.reserve(12 * 1024, 16, clock);
+        offsets += ring.reserve(3 * 1024, 4, clock);
+        offsets += ring.reserve(256, 256, clock);
+
+        ring.submit(++frame);
+
+        // The device finishes the frames in order, a couple of frames behind the CPU
+        clock.completedValue = frame - FRAMES_IN_FLIGHT;
+
+        return offsets;
+    }
+}
@@ -0,0 +1,313 @@
+package com.shc.vulkan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+/**
+ * Measures the loading of hundreds of shader modules with the {@link ShaderCache}. No GPU is needed for this, the
+ * modules are made by a factory that reads every word of the code once, the way a driver has to, and hands out fake
+ * handles.
+ * <p>
+ * Synthetic SPIR-V files of a few kilobytes to a few hundred kilobytes are written to a temporary directory, and a
+ * fifth of them are copies of other files, like the variants of a shader. The {@code heapCopy} benchmark loads the
+ * files by reading them onto the heap and copying them into a native buffer one after the other, which is what the
+ * examples would do without the cache, and the {@code cache} benchmark loads them with the cache and a number of
+ * loader threads. Both of them fail the run if the driver sees different code than the files have, and the cache also
+ * fails it if it makes more than one module for the same code or leaves a module alive when it is destroyed.
+ * <p>
+ * The {@code hotReload} benchmark changes a file while the cache watches the directory, and measures the time till a
+ * module with the new code is swapped in.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ShaderCacheBenchmark
+{
+    private static final int SHADER_COUNT = 500;
+
+    private static final int  SPIRV_MAGIC          = 0x07230203;
+    private static final long RELOAD_TIMEOUT_NANOS = 10_000_000_000L;
+
+    private Path directory;
+    private int  uniqueCount;
+    private long expectedChecksum;
+
+    /**
+     * A cache that is made before every load of all the shaders, and destroyed and checked after it.
+     */
+    @State(Scope.Thread)
+    public static class CacheLoad
+    {
+        @Param({ "1", "4" })
+        private int threads;
+
+        private CountingFactory factory;
+        private ShaderCache     cache;
+
+        @Setup(Level.Invocation)
+        public void create(ShaderCacheBenchmark benchmark)
+        {
+            factory = new CountingFactory();
+            cache = new ShaderCache(factory, benchmark.directory.toFile(), threads);
+        }
+
+        @TearDown(Level.Invocation)
+        public void destroy(ShaderCacheBenchmark benchmark)
+        {
+            int createdCount = cache.getCreatedModuleCount();
+            cache.destroy();
+
+            if (createdCount != benchmark.uniqueCount)
+                throw new IllegalStateException("Made " + createdCount + " modules for " + benchmark.uniqueCount +
+                                                " unique shaders");
+
+            if (factory.liveModules.get() != 0)
+                throw new IllegalStateException(factory.liveModules.get() + " modules were not destroyed");
+        }
+    }
+
+    /**
+     * A cache that watches the directory, with a shader that is changed by every invocation.
+     */
+    @State(Scope.Thread)
+    public static class Reload
+    {
+        private static final String NAME = "reload.spv";
+
+        private CountingFactory    factory;
+        private ShaderCache        cache;
+        private ShaderCache.Shader shader;
+
+        private Path   file;
+        private Random random;
+
+        @Setup(Level.Trial)
+        public void create(ShaderCacheBenchmark benchmark) throws IOException
+        {
+            random = new Random(13);
+            file = benchmark.directory.resolve(NAME);
+            Files.write(file, createShader(random, 16 * 1024));
+
+            factory = new CountingFactory();
+            cache = new ShaderCache(factory, benchmark.directory.toFile(), 2);
+
+            shader = cache.load(NAME);
+            cache.enableHotReload();
+        }
+
+        @TearDown(Level.Trial)
+        public void destroy()
+        {
+            cache.printStatistics();
+            cache.destroy();
+
+            if (factory.liveModules.get() != 0)
+                throw new IllegalStateException(factory.liveModules.get() + " modules were not destroyed");
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        directory = Files.createTempDirectory("shaders");
+        uniqueCount = writeShaders(directory);
+        expectedChecksum = heapCopy();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(directory))
+        {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * Loads every file without the cache, by reading it onto the heap and copying it into a native buffer for the
+     * driver, and returns the checksum of all the code that the driver saw.
+     */
+    @Benchmark
+    public long heapCopy() throws IOException
+    {
+        long checksum = 0;
+
+        for (int i = 0; i < SHADER_COUNT; i++)
+        {
+            byte[] bytes = Files.readAllBytes(directory.resolve(getName(i)));
+            ByteBuffer code = memAlloc(bytes.length);
+
+            code.put(bytes).flip();
+            checksum += readCode(code);
+
+            memFree(code);
+        }
+
+        if (expectedChecksum != 0 && checksum != expectedChecksum)
+            throw new IllegalStateException("The files were changed while they were loaded");
+
+        return checksum;
+    }
+
+    @Benchmark
+    public long cache(CacheLoad load)
+    {
+        ShaderCache.Shader[] shaders = new ShaderCache.Shader[SHADER_COUNT];
+
+        for (int i = 0; i < SHADER_COUNT; i++)
+            shaders[i] = load.cache.load(getName(i));
+
+        // The driver sees every unique module once, the checksum of the heap copy counts the copies too
+        long checksum = 0;
+
+        for (ShaderCache.Shader shader : shaders)
+            checksum += load.factory.getChecksum(shader.getModule());
+
+        if (checksum != expectedChecksum)
+            throw new IllegalStateException("The cache loaded different code than the files have");
+
+        return checksum;
+    }
+
+    @Benchmark
+    public int hotReload(Reload reload) throws Exception
+    {
+        byte[] content = createShader(reload.random, 16 * 1024);
+        long checksum = readCode(ByteBuffer.wrap(content).order(ByteOrder.nativeOrder()));
+        int generation = reload.shader.getGeneration();
+
+        long startTime = System.nanoTime();
+        Files.write(reload.file, content);
+
+        // Poll the way the render thread would, once every frame. A write can be seen half done, so wait for the
+        // module with all of the new code.
+        while (reload.factory.getChecksum(reload.shader.getModule()) != checksum)
+        {
+            if (System.nanoTime() - startTime > RELOAD_TIMEOUT_NANOS)
+                throw new IllegalStateException("The changed shader was not reloaded");
+
+            Thread.sleep(1);
+            reload.cache.applyReloads(null);
+        }
+
+        if (reload.shader.getGeneration() <= generation)
+            throw new IllegalStateException("The reloaded module was swapped in without a new generation");
+
+        return reload.shader.getGeneration();
+    }
+
+    /**
+     * Writes the synthetic shaders, and returns the number of different contents among them.
+     */
+    private static int writeShaders(Path directory) throws IOException
+    {
+        Random random = new Random(11);
+        byte[][] contents = new byte[SHADER_COUNT][];
+        int uniqueCount = 0;
+
+        for (int i = 0; i < SHADER_COUNT; i++)
+        {
+            if (i % 5 == 4)
+                contents[i] = contents[random.nextInt(i)];
+            else
+            {
+                contents[i] = createShader(random, 4 * 1024 + random.nextInt(252 * 1024));
+                uniqueCount++;
+            }
+
+            Files.write(directory.resolve(getName(i)), contents[i]);
+        }
+
+        return uniqueCount;
+    }
+
+    private static byte[] createShader(Random random, int size)
+    {
+        ByteBuffer code = ByteBuffer.allocate(size & ~3).order(ByteOrder.nativeOrder());
+
+        code.putInt(SPIRV_MAGIC).putInt(0x00010000).putInt(0).putInt(random.nextInt(1 << 16)).putInt(0);
+
+        while (code.hasRemaining())
+            code.putInt(random.nextInt());
+
+        return code.array();
+    }
+
+    private static String getName(int index)
+    {
+        return "shader" + index + ".spv";
+    }
+
+    /**
+     * Reads every word of the code, like a driver that parses the SPIR-V would.
+     */
+    private static long readCode(ByteBuffer code)
+    {
+        long sum = 0;
+
+        for (int i = 0; i < code.limit(); i += 4)
+            sum += code.getInt(i);
+
+        return sum;
+    }
+
+    /**
+     * Makes fake modules, and keeps the checksum of the code of every live module.
+     */
+    private static final class CountingFactory implements ShaderCache.ModuleFactory
+    {
+        private final Map<Long, Long> checksums   = new ConcurrentHashMap<>();
+        private final AtomicLong      nextModule  = new AtomicLong(1);
+        private final AtomicLong      liveModules = new AtomicLong();
+
+        @Override
+        public long create(long code, long codeSize)
+        {
+            long module = nextModule.getAndIncrement();
+
+            checksums.put(module, readCode(memByteBuffer(code, (int) codeSize)));
+            liveModules.incrementAndGet();
+
+            return module;
+        }
+
+        @Override
+        public void destroy(long module)
+        {
+            checksums.remove(module);
+            liveModules.decrementAndGet();
+        }
+
+        private long getChecksum(long module)
+        {
+            Long checksum = checksums.get(module);
+            return checksum == null ? 0 : checksum;
+        }
+    }
+}
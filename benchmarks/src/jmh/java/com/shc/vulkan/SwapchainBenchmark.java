@@ -0,0 +1,203 @@
+package com.shc.vulkan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.lwjgl.vulkan.KHRSurface.*;
+
+/**
+ * Runs the frame pacing of the {@link SwapchainManager} against the simulated display of a
+ * {@link HeadlessSwapchainTarget}, so it can be measured on a machine without a display or a GPU. Every operation is a
+ * frame with a fixed amount of CPU work, with the simulated GPU taking a fixed time for every frame, so the time of an
+ * operation is the frame time that the present policy and the number of frames in flight end up with. The window is
+ * resized at the start of every iteration, so every iteration also goes through the recreation of the swapchain. The
+ * frames that were shown, dropped and torn, the stutters, and the latency from presenting a frame to it being shown are
+ * printed at the end of every trial.
+ * <p>
+ * Before measuring, the window is resized, minimized and restored while rendering, and the run fails if the swapchain
+ * doesn't follow the window. It also fails if the manager keeps more frames in flight than it was asked to, leaks a
+ * swapchain, or if a FIFO iteration doesn't follow the refresh rate.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SwapchainBenchmark
+{
+    private static final int[] ALL_MODES  = { VK_PRESENT_MODE_FIFO_KHR, VK_PRESENT_MODE_MAILBOX_KHR,
+                                              VK_PRESENT_MODE_IMMEDIATE_KHR };
+    private static final int[] NO_MAILBOX = { VK_PRESENT_MODE_FIFO_KHR, VK_PRESENT_MODE_IMMEDIATE_KHR };
+
+    @Param({ "POWER_SAVING", "LOW_LATENCY" })
+    public SwapchainManager.PresentPolicy policy;
+
+    @Param({ "1", "2", "3" })
+    public int framesInFlight;
+
+    @Param({ "true", "false" })
+    public boolean mailbox;
+
+    @Param({ "60" })
+    public double refreshRate;
+
+    @Param({ "2000" })
+    public long cpuMicros;
+
+    @Param({ "4000" })
+    public long gpuMicros;
+
+    private HeadlessSwapchainTarget target;
+    private SwapchainManager        swapchain;
+
+    private int  iteration;
+    private long iterationStart;
+    private long iterationFrames;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        checkResize();
+
+        target = createTarget();
+        swapchain = new SwapchainManager(target, framesInFlight, policy);
+    }
+
+    private HeadlessSwapchainTarget createTarget()
+    {
+        return new HeadlessSwapchainTarget(refreshRate, gpuMicros * 1000, 1280, 720, mailbox ? ALL_MODES : NO_MAILBOX);
+    }
+
+    /**
+     * Renders through a resize, a minimize and a restore of the window, like a user would do, and checks that the
+     * swapchain ends up at the size of the window.
+     */
+    private void checkResize()
+    {
+        HeadlessSwapchainTarget target = createTarget();
+        SwapchainManager swapchain = new SwapchainManager(target, framesInFlight, policy);
+
+        renderFrames(swapchain, 10);
+        target.setWindowSize(1920, 1080);
+        renderFrames(swapchain, 10);
+
+        // Nothing can be rendered while minimized
+        target.setWindowSize(0, 0);
+
+        for (int i = 0; i < 10; i++)
+            if (swapchain.beginFrame())
+                swapchain.endFrame();
+
+        target.setWindowSize(1920, 1080);
+        renderFrames(swapchain, 10);
+
+        long recreated = swapchain.getRecreateCount();
+        swapchain.destroy();
+
+        if (target.getWidth() != 1920 || recreated < 1)
+            throw new IllegalStateException("The swapchain didn't follow the resize of the window");
+
+        if (swapchain.getSkippedFrames() == 0)
+            throw new IllegalStateException("Frames were rendered while the window was minimized");
+
+        checkTarget(target);
+    }
+
+    private void renderFrames(SwapchainManager swapchain, int count)
+    {
+        for (int frames = 0; frames < count; )
+        {
+            if (swapchain.beginFrame())
+            {
+                swapchain.endFrame();
+                frames++;
+            }
+        }
+    }
+
+    private void checkTarget(HeadlessSwapchainTarget target)
+    {
+        if (target.getLiveSwapchains() != 0)
+            throw new IllegalStateException(target.getLiveSwapchains() + " swapchains were never destroyed");
+
+        if (target.getMaxFramesInFlight() > framesInFlight)
+            throw new IllegalStateException(target.getMaxFramesInFlight() + " frames were in flight, more than " +
+                                            framesInFlight);
+    }
+
+    @Setup(Level.Iteration)
+    public void resize()
+    {
+        // The target changes size on it's own, like a window that is resized by the user
+        if (iteration++ % 2 == 0)
+            target.setWindowSize(1920, 1080);
+        else
+            target.setWindowSize(1280, 720);
+
+        iterationFrames = 0;
+        iterationStart = System.nanoTime();
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkFrameRate()
+    {
+        if (swapchain.getPresentMode() != VK_PRESENT_MODE_FIFO_KHR)
+            return;
+
+        double seconds = (System.nanoTime() - iterationStart) / 1e9;
+
+        // After the resize, the images of the new swapchain are filled without waiting for the display, so only the
+        // frames after them have to follow the refresh rate
+        double fps = iterationFrames / seconds;
+        double pacedFps = (iterationFrames - swapchain.getImageCount()) / seconds;
+
+        if (pacedFps > refreshRate * 1.05 || fps < refreshRate * 0.75)
+            throw new IllegalStateException(String.format("FIFO ran at %.1f fps on a %.0f Hz display", fps,
+                    refreshRate));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        int presentMode = swapchain.getPresentMode();
+        long recreated = swapchain.getRecreateCount();
+
+        swapchain.destroy();
+        checkTarget(target);
+
+        FrameTimeHistogram latency = target.getDisplayLatency();
+
+        System.out.println(String.format("%s: %d shown, %d dropped, %d torn, %d repeats, latency p50 %.2f ms and " +
+                                         "p99 %.2f ms, %d recreated",
+                SwapchainManager.translatePresentMode(presentMode), target.getDisplayedFrames(),
+                target.getDroppedFrames(), target.getTornFrames(), target.getRepeatedRefreshes(),
+                latency.getPercentile(50) / 1e6, latency.getPercentile(99) / 1e6, recreated));
+    }
+
+    @Benchmark
+    public boolean frame()
+    {
+        if (!swapchain.beginFrame())
+            return false;
+
+        long workEnd = System.nanoTime() + cpuMicros * 1000;
+
+        while (System.nanoTime() < workEnd)
+            Thread.yield();
+
+        swapchain.endFrame();
+        iterationFrames++;
+
+        return true;
+    }
+}
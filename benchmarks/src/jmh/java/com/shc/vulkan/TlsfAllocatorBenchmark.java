@@ -0,0 +1,153 @@
+package com.shc.vulkan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the {@link TlsfAllocator} that places the resources in the blocks of the {@link DeviceMemoryAllocator}. No
+ * GPU is needed for this, since the allocator only does the bookkeeping. The time is reported per operation, which is
+ * an allocation or a free.
+ * <p>
+ * A random mix of buffers and optimal images, with sizes from a few bytes to a few megabytes, is allocated and freed in
+ * a 256 MB block, with a granularity that is smaller than some of the alignments and one that is larger than all of
+ * them. After every iteration the live allocations are checked to not overlap, to be aligned, and to respect the
+ * buffer image granularity, and the fragmentation is printed. At the end of the run everything is freed, and the run
+ * fails if the free ranges are not merged back into a single range.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TlsfAllocatorBenchmark
+{
+    private static final long BLOCK_SIZE = 256L * 1024 * 1024;
+    private static final int  MAX_LIVE   = 20000;
+
+    @Param({ "64", "1024" })
+    private long granularity;
+
+    private TlsfAllocator allocator;
+    private Random        random;
+
+    private final int[]  live       = new int[MAX_LIVE];
+    private final long[] alignments = new long[MAX_LIVE];
+    private final int[]  types      = new int[MAX_LIVE];
+    private int          liveCount;
+
+    private long operations;
+    private long failed;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        allocator = new TlsfAllocator(BLOCK_SIZE, granularity);
+        random = new Random(42);
+    }
+
+    @Benchmark
+    public int operation()
+    {
+        operations++;
+
+        boolean allocate = liveCount == 0 || (liveCount < MAX_LIVE && random.nextInt(100) < 52);
+
+        if (!allocate)
+        {
+            int index = random.nextInt(liveCount);
+            allocator.free(live[index]);
+
+            liveCount--;
+            live[index] = live[liveCount];
+            alignments[index] = alignments[liveCount];
+            types[index] = types[liveCount];
+
+            return liveCount;
+        }
+
+        // Mostly small allocations, with the occasional large one like a texture
+        long size = random.nextInt(10) == 0 ? 1 + random.nextInt(4 * 1024 * 1024) : 1 + random.nextInt(64 * 1024);
+        long alignment = 1L << random.nextInt(9);
+        int type = random.nextInt(4) == 0 ? TlsfAllocator.TYPE_OPTIMAL : TlsfAllocator.TYPE_LINEAR;
+
+        int handle = allocator.allocate(size, alignment, type);
+
+        if (handle < 0)
+        {
+            failed++;
+            return liveCount;
+        }
+
+        live[liveCount] = handle;
+        alignments[liveCount] = alignment;
+        types[liveCount] = type;
+        liveCount++;
+
+        return liveCount;
+    }
+
+    @TearDown(Level.Iteration)
+    public void verify()
+    {
+        // Sort the indices of the live allocations by their offsets
+        Integer[] order = new Integer[liveCount];
+
+        for (int i = 0; i < liveCount; i++)
+            order[i] = i;
+
+        Arrays.sort(order, (a, b) -> Long.compare(allocator.getOffset(live[a]), allocator.getOffset(live[b])));
+
+        for (int i = 0; i < liveCount; i++)
+        {
+            int current = order[i];
+            long offset = allocator.getOffset(live[current]);
+
+            if (offset % alignments[current] != 0)
+                throw new IllegalStateException("Allocation at " + offset + " is not aligned");
+
+            if (offset + allocator.getSize(live[current]) > BLOCK_SIZE)
+                throw new IllegalStateException("Allocation at " + offset + " is out of the block");
+
+            if (i == 0)
+                continue;
+
+            int previous = order[i - 1];
+            long previousEnd = allocator.getOffset(live[previous]) + allocator.getSize(live[previous]);
+
+            if (previousEnd > offset)
+                throw new IllegalStateException("Allocations overlap at " + offset);
+
+            if (types[previous] != types[current] && (previousEnd - 1) / granularity == offset / granularity)
+                throw new IllegalStateException("Buffer and image share a granularity page at " + offset);
+        }
+
+        System.out.println(String.format("%d live, %d of %d operations failed, %.1f%% used, %d free ranges, " +
+                                         "fragmentation %.3f", liveCount, failed, operations,
+                100.0 * allocator.getUsedBytes() / BLOCK_SIZE, allocator.getFreeRangeCount(),
+                allocator.getFragmentation()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        for (int i = 0; i < liveCount; i++)
+            allocator.free(live[i]);
+
+        liveCount = 0;
+
+        if (allocator.getFreeRangeCount() != 1 || allocator.getLargestFreeRange() != BLOCK_SIZE)
+            throw new IllegalStateException("The free ranges were not merged back into a single range");
+    }
+}
@@ -0,0 +1,193 @@
+package com.shc.vulkan;
+
+import org.joml.Matrix4f;
+import org.joml.Quaternionf;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+/**
+ * Measures how the {@link TransformSystem} scales with the number of entities and the number of threads. No GPU is
+ * needed for this, the matrices are written into a native buffer that stands in for the mapped memory of an instance
+ * buffer. The time is reported per update of all the entities, so the speedup of a thread count is the time of one
+ * thread divided by it's time, for the same number of entities.
+ * <p>
+ * Before measuring, the matrices written by the measured thread count are compared with the ones written by a single
+ * thread, and a sample of them with the ones built by JOML one object at a time. The stride of 64 floats is the one of
+ * a dynamic uniform buffer aligned to 256 bytes. The run fails if the matrices differ, or if an iteration allocates on
+ * the heap for every entity. The fork join pool allocates a few bytes when the work is handed to it, so a few bytes
+ * per update are allowed.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TransformSystemBenchmark
+{
+    private static final int CHECK_STRIDE = 61;
+
+    @Param({ "10000", "100000", "1000000" })
+    private int entityCount;
+
+    @Param({ "1", "2", "4" })
+    private int threadCount;
+
+    @Param({ "16", "64" })
+    private int stride;
+
+    private TransformSystem transforms;
+    private FrameJobSystem  jobSystem;
+
+    private ByteBuffer  memory;
+    private FloatBuffer destination;
+
+    private long updates;
+
+    private long counterCost;
+    private long heapBefore;
+    private long updatesBefore;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        transforms = new TransformSystem(entityCount);
+        fill(transforms, entityCount);
+
+        memory = memAlignedAlloc(64, entityCount * stride * 4);
+        destination = memFloatBuffer(memAddress(memory), entityCount * stride);
+
+        // The matrices of a single thread are the reference for the other thread counts
+        FrameJobSystem singleThread = new FrameJobSystem(1);
+        transforms.update(singleThread, destination, stride);
+        singleThread.shutdown();
+
+        check(transforms, destination, stride);
+        long expectedChecksum = checksum(destination, entityCount, stride);
+
+        jobSystem = new FrameJobSystem(threadCount);
+
+        memSet(memAddress(memory), 0, memory.capacity());
+        transforms.update(jobSystem, destination, stride);
+
+        if (checksum(destination, entityCount, stride) != expectedChecksum)
+            throw new IllegalStateException("The matrices of " + threadCount + " threads differ from one thread");
+
+        // Reading the counter allocates on it's own, so that is not counted against the updates
+        counterCost = -AllocationCounter.getHeapAllocatedBytes() + AllocationCounter.getHeapAllocatedBytes();
+    }
+
+    private static void fill(TransformSystem transforms, int entityCount)
+    {
+        Random random = new Random(7);
+        Quaternionf rotation = new Quaternionf();
+
+        for (int i = 0; i < entityCount; i++)
+        {
+            int entity = transforms.add();
+
+            rotation.rotationXYZ(random.nextFloat() * 6.28f, random.nextFloat() * 6.28f, random.nextFloat() * 6.28f);
+
+            transforms.setPosition(entity, random.nextFloat() * 200 - 100, random.nextFloat() * 20,
+                    random.nextFloat() * 200 - 100);
+            transforms.setRotation(entity, rotation.x, rotation.y, rotation.z, rotation.w);
+            transforms.setScale(entity, 0.5f + random.nextFloat(), 0.5f + random.nextFloat(),
+                    0.5f + random.nextFloat());
+        }
+    }
+
+    private static void check(TransformSystem transforms, FloatBuffer destination, int stride)
+    {
+        Matrix4f expected = new Matrix4f();
+        Quaternionf rotation = new Quaternionf();
+        float[] actual = new float[16];
+        float[] reference = new float[16];
+
+        for (int i = 0; i < transforms.getCount(); i += CHECK_STRIDE)
+        {
+            rotation.set(transforms.getRotationX().get(i), transforms.getRotationY().get(i),
+                    transforms.getRotationZ().get(i), transforms.getRotationW().get(i));
+
+            // The same transform, built the long way
+            expected.translation(transforms.getPositionX().get(i), transforms.getPositionY().get(i),
+                    transforms.getPositionZ().get(i))
+                    .rotate(rotation)
+                    .scale(transforms.getScaleX().get(i), transforms.getScaleY().get(i), transforms.getScaleZ().get(i))
+                    .get(reference);
+
+            for (int j = 0; j < 16; j++)
+                actual[j] = destination.get(i * stride + j);
+
+            for (int j = 0; j < 16; j++)
+            {
+                if (Math.abs(actual[j] - reference[j]) > 1e-4f * Math.max(1, Math.abs(reference[j])))
+                    throw new IllegalStateException("The matrix of entity " + i + " is " + Arrays.toString(actual) +
+                                                    " instead of " + Arrays.toString(reference));
+            }
+        }
+    }
+
+    private static long checksum(FloatBuffer destination, int entityCount, int stride)
+    {
+        long checksum = 0;
+
+        for (int i = 0; i < entityCount; i++)
+        {
+            for (int j = 0; j < 16; j++)
+                checksum = checksum * 31 + Float.floatToRawIntBits(destination.get(i * stride + j));
+        }
+
+        return checksum;
+    }
+
+    @Setup(Level.Iteration)
+    public void readCounter()
+    {
+        updatesBefore = updates;
+        heapBefore = AllocationCounter.getHeapAllocatedBytes();
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkCounter()
+    {
+        long heapAllocated = AllocationCounter.getHeapAllocatedBytes() - heapBefore - counterCost;
+        long iterationUpdates = updates - updatesBefore;
+
+        // Handing the work to the pool may allocate a little, but nothing must be allocated per entity
+        if (heapBefore >= 0 && iterationUpdates > 0 && heapAllocated / iterationUpdates >= entityCount)
+            throw new IllegalStateException("An update allocated " + heapAllocated / iterationUpdates +
+                                            " bytes on the heap");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        jobSystem.shutdown();
+        memAlignedFree(memory);
+        transforms.destroy();
+    }
+
+    @Benchmark
+    public FloatBuffer update()
+    {
+        transforms.update(jobSystem, destination, stride);
+        updates++;
+
+        return destination;
+    }
+}
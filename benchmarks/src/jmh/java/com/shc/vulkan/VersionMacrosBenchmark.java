@@ -0,0 +1,49 @@
+package com.shc.vulkan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the version macros of the {@link VulkanExample}. Extracting the version into an array allocates the array
+ * on every call, which the GC profiler shows against the methods that extract a single part of the version.
+ * <p>
+ * The versions are read from fields of the state, so that the JIT can not fold the macros into constants.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class VersionMacrosBenchmark
+{
+    private int major = 1;
+    private int minor = 0;
+    private int patch = 39;
+
+    private int version = VulkanExample.VK_MAKE_VERSION(1, 0, 39);
+
+    @Benchmark
+    public int makeVersion()
+    {
+        return VulkanExample.VK_MAKE_VERSION(major, minor, patch);
+    }
+
+    @Benchmark
+    public int[] extractVersion()
+    {
+        return VulkanExample.VK_EXTRACT_VERSION(version);
+    }
+
+    @Benchmark
+    public int extractVersionParts()
+    {
+        return VulkanExample.VK_VERSION_MAJOR(version) + VulkanExample.VK_VERSION_MINOR(version) +
+               VulkanExample.VK_VERSION_PATCH(version);
+    }
+}
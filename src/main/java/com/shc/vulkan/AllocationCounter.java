@@ -0,0 +1,187 @@
+package com.shc.vulkan;
+
+import org.lwjgl.system.Configuration;
+import org.lwjgl.system.MemoryUtil.MemoryAllocator;
+import org.lwjgl.system.jemalloc.JEmallocAllocator;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the allocations made by a piece of code, both on the Java heap and on the native heap through LWJGL. This is
+ * used to check that the helpers in {@link VkUtils} and the per-frame code paths do not allocate anything, by reading
+ * the counters before and after a call and comparing them.
+ * <p>
+ * The heap allocations are measured with the per-thread allocation counter of the JVM, and the native allocations are
+ * counted by a memory allocator that wraps the default jemalloc allocator of LWJGL. This allocator has to be installed
+ * with {@link #install()} before LWJGL allocates any memory, that is, as the first thing in the main method.
+ * <pre>{@code
+ * long heap = AllocationCounter.getHeapAllocatedBytes();
+ * long nativeAllocs = AllocationCounter.getNativeAllocationCount();
+ *
+ * VkUtils.getFirstPhysicalDevice(instance);
+ *
+ * long heapDelta = AllocationCounter.getHeapAllocatedBytes() - heap;
+ * long nativeDelta = AllocationCounter.getNativeAllocationCount() - nativeAllocs;
+ * }</pre>
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public final class AllocationCounter
+{
+    private static final AtomicLong nativeAllocations = new AtomicLong();
+    private static final AtomicLong nativeFrees       = new AtomicLong();
+
+    private static volatile boolean installed;
+
+    private AllocationCounter()
+    {
+    }
+
+    /**
+     * Installs the counting memory allocator into LWJGL. This has no effect if LWJGL has already created it's
+     * allocator, so it should be called before anything else touches the LWJGL memory functions.
+     */
+    public static synchronized void install()
+    {
+        if (installed)
+            return;
+
+        Configuration.MEMORY_ALLOCATOR.set(new CountingAllocator(new JEmallocAllocator()));
+        installed = true;
+    }
+
+    public static boolean isInstalled()
+    {
+        return installed;
+    }
+
+    /**
+     * Returns the number of bytes that the current thread has allocated on the Java heap since it started.
+     *
+     * @return The number of bytes allocated, or -1 if the JVM does not support measuring it.
+     */
+    public static long getHeapAllocatedBytes()
+    {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+
+        return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Returns the number of native allocations (malloc, calloc, realloc and aligned_alloc) that were made through LWJGL
+     * since the counting allocator was installed.
+     *
+     * @return The number of native allocations made by all the threads.
+     */
+    public static long getNativeAllocationCount()
+    {
+        return nativeAllocations.get();
+    }
+
+    /**
+     * Returns the number of native frees that were made through LWJGL since the counting allocator was installed.
+     *
+     * @return The number of native frees made by all the threads.
+     */
+    public static long getNativeFreeCount()
+    {
+        return nativeFrees.get();
+    }
+
+    /**
+     * A memory allocator that counts the calls and forwards them to another allocator. The function pointers are
+     * forwarded as is, so calls made by native code through them are not counted.
+     */
+    private static final class CountingAllocator implements MemoryAllocator
+    {
+        private final MemoryAllocator delegate;
+
+        CountingAllocator(MemoryAllocator delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public long getMalloc()
+        {
+            return delegate.getMalloc();
+        }
+
+        @Override
+        public long getCalloc()
+        {
+            return delegate.getCalloc();
+        }
+
+        @Override
+        public long getRealloc()
+        {
+            return delegate.getRealloc();
+        }
+
+        @Override
+        public long getFree()
+        {
+            return delegate.getFree();
+        }
+
+        @Override
+        public long getAlignedAlloc()
+        {
+            return delegate.getAlignedAlloc();
+        }
+
+        @Override
+        public long getAlignedFree()
+        {
+            return delegate.getAlignedFree();
+        }
+
+        @Override
+        public long malloc(long size)
+        {
+            nativeAllocations.incrementAndGet();
+            return delegate.malloc(size);
+        }
+
+        @Override
+        public long calloc(long num, long size)
+        {
+            nativeAllocations.incrementAndGet();
+            return delegate.calloc(num, size);
+        }
+
+        @Override
+        public long realloc(long ptr, long size)
+        {
+            nativeAllocations.incrementAndGet();
+            return delegate.realloc(ptr, size);
+        }
+
+        @Override
+        public void free(long ptr)
+        {
+            nativeFrees.incrementAndGet();
+            delegate.free(ptr);
+        }
+
+        @Override
+        public long aligned_alloc(long alignment, long size)
+        {
+            nativeAllocations.incrementAndGet();
+            return delegate.aligned_alloc(alignment, size);
+        }
+
+        @Override
+        public void aligned_free(long ptr)
+        {
+            nativeFrees.incrementAndGet();
+            delegate.aligned_free(ptr);
+        }
+    }
+}
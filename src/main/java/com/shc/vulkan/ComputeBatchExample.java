@@ -0,0 +1,542 @@
+package com.shc.vulkan;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkBufferCreateInfo;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkCommandBufferAllocateInfo;
+import org.lwjgl.vulkan.VkCommandBufferBeginInfo;
+import org.lwjgl.vulkan.VkCommandPoolCreateInfo;
+import org.lwjgl.vulkan.VkComputePipelineCreateInfo;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkInstance;
+import org.lwjgl.vulkan.VkMemoryAllocateInfo;
+import org.lwjgl.vulkan.VkMemoryRequirements;
+import org.lwjgl.vulkan.VkPhysicalDeviceLimits;
+import org.lwjgl.vulkan.VkPhysicalDeviceMemoryProperties;
+import org.lwjgl.vulkan.VkQueue;
+import org.lwjgl.vulkan.VkSpecializationInfo;
+import org.lwjgl.vulkan.VkSpecializationMapEntry;
+import org.lwjgl.vulkan.VkSubmitInfo;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * This example runs Vulkan as a batch processor, without any window, surface or swapchain. The instance and the device
+ * are created without the surface extensions, so it runs on a CPU Vulkan driver like lavapipe on a machine without a
+ * GPU or a display.
+ * <p>
+ * A large dataset of floats is streamed through the {@code shaders/batch.comp} compute shader one batch at a time. The
+ * batches go through a ring of slots, two by default, each with an input and an output region in a single persistently
+ * mapped host visible buffer. While the device works on the batch of one slot, the host checks the results of the
+ * previous batch of the next slot and fills it with the next input, so the queue always has work waiting. Every slot
+ * has it's command buffer recorded once, with many dispatches in it, so every batch is a single queue submit. The
+ * command buffers are recorded by a {@link RenderGraph} with a compute pass and a host read pass, which puts in the
+ * barrier that makes the results visible to the host. The submissions are paced with a {@link VkFenceClock}, which
+ * waits for the batch that last used a slot before the slot is refilled.
+ * <p>
+ * The size of the run is set with {@code -Dvulkan.compute.items=N}, the number of items of a batch with
+ * {@code -Dvulkan.compute.batch=N}, the number of items of a dispatch with {@code -Dvulkan.compute.dispatch=N} and the
+ * number of slots with {@code -Dvulkan.compute.slots=N}. The SPIR-V is loaded from the directory given by
+ * {@code -Dvulkan.shaders.dir}, which is {@code shaders} by default. The throughput in items per second is printed at
+ * the end, and the run fails if any checked result is wrong.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class ComputeBatchExample extends VulkanExample
+{
+    private static final long TOTAL_ITEMS    = Long.getLong("vulkan.compute.items", 64L << 20);
+    private static final int  BATCH_ITEMS    = Integer.getInteger("vulkan.compute.batch", 1 << 20);
+    private static final int  DISPATCH_ITEMS = Integer.getInteger("vulkan.compute.dispatch", 1 << 16);
+    private static final int  SLOT_COUNT     = Integer.getInteger("vulkan.compute.slots", 2);
+
+    private static final int   PUSH_CONSTANT_SIZE = 16;
+    private static final float SCALE              = 2.0f;
+    private static final float BIAS               = 0.5f;
+
+    // Every this many items of a batch are checked, along with the last item of the batch
+    private static final int CHECK_STRIDE = 61;
+
+    // The host reads the results after the fence of the batch signals
+    private static final ResourceUsage HOST_READ = new ResourceUsage("Host Read", false,
+            VK_PIPELINE_STAGE_HOST_BIT,
+            VK_ACCESS_HOST_READ_BIT,
+            VK_IMAGE_LAYOUT_UNDEFINED);
+
+    private VkInstance      instance;
+    private DeviceCandidate candidate;
+    private VkDevice        device;
+    private VkQueue         queue;
+
+    private ShaderCache          shaderCache;
+    private PipelineCacheManager pipelineCache;
+    private DescriptorCache      descriptorCache;
+    private VkFenceClock         clock;
+
+    private long setLayout;
+    private long pipelineLayout;
+    private long pipeline;
+
+    private long buffer;
+    private long memory;
+    private long mappedAddress;
+    private long regionSize;
+
+    private RenderGraph       graph;
+    private long              commandPool;
+    private VkCommandBuffer[] commandBuffers;
+    private VkSubmitInfo[]    submitInfos;
+
+    private int localSize;
+    private int dispatchesPerBatch;
+
+    private long startTime;
+    private long checkedItems;
+    private long mismatches;
+
+    public static void main(String[] args)
+    {
+        title = "Vulkan Compute Batch Example";
+
+        // Unless a frame count or a duration is given, run just enough frames to process all the items
+        if (benchmarkFrames <= 0 && benchmarkMillis <= 0)
+            benchmarkFrames = (int) ((TOTAL_ITEMS + BATCH_ITEMS - 1) / BATCH_ITEMS);
+
+        new ComputeBatchExample().start();
+    }
+
+    @Override
+    protected boolean needsSurface()
+    {
+        return false;
+    }
+
+    @Override
+    public VkInstance initVulkan()
+    {
+        // No surface extensions, this instance never presents anything
+        instance = VkUtils.createInstance(title);
+
+        // Kept in a field, since the limits below point into the memory of the candidate
+        candidate = VkUtils.selectPhysicalDevice(instance, new DeviceSelector()
+                .requireQueueFlags(VK_QUEUE_COMPUTE_BIT)
+                .requireStorageBufferRange(BATCH_ITEMS * 4L));
+
+        int queueFamily = candidate.getComputeQueueFamily();
+        VkPhysicalDeviceLimits limits = candidate.getLimits();
+
+        System.out.println("Running on " + candidate.getName() + ", queue family " + queueFamily);
+
+        device = VkUtils.createDevice(candidate.getDevice(), queueFamily);
+
+        try (MemoryStack stack = stackPush())
+        {
+            PointerBuffer pQueue = stack.mallocPointer(1);
+            vkGetDeviceQueue(device, queueFamily, 0, pQueue);
+            queue = new VkQueue(pQueue.get(0), device);
+        }
+
+        // The work group is as large as the device allows, up to 256 invocations
+        localSize = Math.min(256, Math.min(limits.maxComputeWorkGroupInvocations(),
+                limits.maxComputeWorkGroupSize(0)));
+
+        // A dispatch can't have more work groups than the device allows
+        int dispatchItems = (int) Math.min(Math.min(DISPATCH_ITEMS, BATCH_ITEMS),
+                (long) limits.maxComputeWorkGroupCount(0) * localSize);
+
+        dispatchesPerBatch = (BATCH_ITEMS + dispatchItems - 1) / dispatchItems;
+
+        shaderCache = new ShaderCache(device, new File(System.getProperty("vulkan.shaders.dir", "shaders")));
+        pipelineCache = new PipelineCacheManager(device, candidate.getProperties());
+        descriptorCache = new DescriptorCache(device, 1, SLOT_COUNT, 2);
+        clock = new VkFenceClock(device, SLOT_COUNT);
+
+        createBuffer(candidate.getMemoryProperties(), limits.minStorageBufferOffsetAlignment());
+        createPipeline(shaderCache.load("batch.comp.spv"));
+        recordCommandBuffers(queueFamily, dispatchItems);
+
+        pipelineCache.printStartupTiming();
+
+        return instance;
+    }
+
+    /**
+     * Creates the buffer that holds the input and the output regions of all the slots, in memory that stays mapped for
+     * the whole run. Cached memory is preferred since the host reads the results back, and falls back to any host
+     * visible and coherent memory.
+     */
+    private void createBuffer(VkPhysicalDeviceMemoryProperties memoryProperties, long offsetAlignment)
+    {
+        long alignment = Math.max(offsetAlignment, 16);
+        regionSize = (BATCH_ITEMS * 4L + alignment - 1) / alignment * alignment;
+
+        long size = regionSize * 2 * SLOT_COUNT;
+
+        try (MemoryStack stack = stackPush())
+        {
+            VkBufferCreateInfo bufferInfo = VkBufferCreateInfo.callocStack(stack)
+                    .sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO)
+                    .size(size)
+                    .usage(VK_BUFFER_USAGE_STORAGE_BUFFER_BIT)
+                    .sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+
+            LongBuffer pHandle = stack.mallocLong(1);
+            int err = vkCreateBuffer(device, bufferInfo, null, pHandle);
+
+            if (err != VK_SUCCESS)
+                throw new IllegalStateException("Could not create the batch buffer: " + err);
+
+            buffer = pHandle.get(0);
+
+            VkMemoryRequirements requirements = VkMemoryRequirements.mallocStack(stack);
+            vkGetBufferMemoryRequirements(device, buffer, requirements);
+
+            int hostFlags = VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT;
+            int memoryType = VkUtils.findMemoryType(memoryProperties, requirements.memoryTypeBits(),
+                    hostFlags | VK_MEMORY_PROPERTY_HOST_CACHED_BIT);
+
+            if (memoryType < 0)
+                memoryType = VkUtils.findMemoryType(memoryProperties, requirements.memoryTypeBits(), hostFlags);
+
+            if (memoryType < 0)
+                throw new IllegalStateException("No host visible and coherent memory type for the batch buffer");
+
+            VkMemoryAllocateInfo allocateInfo = VkMemoryAllocateInfo.callocStack(stack)
+                    .sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO)
+                    .allocationSize(requirements.size())
+                    .memoryTypeIndex(memoryType);
+
+            err = vkAllocateMemory(device, allocateInfo, null, pHandle);
+
+            if (err != VK_SUCCESS)
+                throw new IllegalStateException("Could not allocate the batch memory: " + err);
+
+            memory = pHandle.get(0);
+
+            vkBindBufferMemory(device, buffer, memory, 0);
+
+            PointerBuffer pData = stack.mallocPointer(1);
+            err = vkMapMemory(device, memory, 0, size, 0, pData);
+
+            if (err != VK_SUCCESS)
+                throw new IllegalStateException("Could not map the batch memory: " + err);
+
+            mappedAddress = pData.get(0);
+        }
+    }
+
+    private long getInputOffset(int slot)
+    {
+        return regionSize * 2 * slot;
+    }
+
+    private long getOutputOffset(int slot)
+    {
+        return regionSize * 2 * slot + regionSize;
+    }
+
+    private void createPipeline(ShaderCache.Shader shader)
+    {
+        descriptorCache.beginSetLayout();
+        descriptorCache.layoutBinding(0, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, 1, VK_SHADER_STAGE_COMPUTE_BIT);
+        descriptorCache.layoutBinding(1, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, 1, VK_SHADER_STAGE_COMPUTE_BIT);
+        setLayout = descriptorCache.endSetLayout();
+
+        descriptorCache.beginPipelineLayout();
+        descriptorCache.pipelineSetLayout(setLayout);
+        descriptorCache.pushConstantRange(VK_SHADER_STAGE_COMPUTE_BIT, 0, PUSH_CONSTANT_SIZE);
+        pipelineLayout = descriptorCache.endPipelineLayout();
+
+        try (MemoryStack stack = stackPush())
+        {
+            // The work group size is the specialization constant 0 of the shader
+            VkSpecializationMapEntry.Buffer mapEntries = VkSpecializationMapEntry.callocStack(1, stack)
+                    .constantID(0)
+                    .offset(0)
+                    .size(4);
+
+            VkSpecializationInfo specializationInfo = VkSpecializationInfo.callocStack(stack)
+                    .pMapEntries(mapEntries)
+                    .pData(stack.malloc(4).putInt(0, localSize));
+
+            VkComputePipelineCreateInfo.Buffer pipelineInfo = VkComputePipelineCreateInfo.callocStack(1, stack)
+                    .sType(VK_STRUCTURE_TYPE_COMPUTE_PIPELINE_CREATE_INFO)
+                    .layout(pipelineLayout);
+
+            pipelineInfo.stage()
+                    .sType(VK_STRUCTURE_TYPE_PIPELINE_SHADER_STAGE_CREATE_INFO)
+                    .stage(VK_SHADER_STAGE_COMPUTE_BIT)
+                    .module(shader.getModule())
+                    .pName(stack.UTF8("main"))
+                    .pSpecializationInfo(specializationInfo);
+
+            LongBuffer pPipeline = stack.mallocLong(1);
+            int err = vkCreateComputePipelines(device, pipelineCache.getPipelineCache(), pipelineInfo, null, pPipeline);
+
+            if (err != VK_SUCCESS)
+                throw new IllegalStateException("Could not create the compute pipeline: " + err);
+
+            pipeline = pPipeline.get(0);
+        }
+    }
+
+    /**
+     * Records the command buffer of every slot once, by executing the graph into it. The batch is split into
+     * dispatches that each push the range of items they work on, and the graph puts a barrier after them that makes the
+     * results visible to the host once the fence signals.
+     */
+    private void recordCommandBuffers(int queueFamily, int dispatchItems)
+    {
+        commandBuffers = new VkCommandBuffer[SLOT_COUNT];
+        submitInfos = new VkSubmitInfo[SLOT_COUNT];
+
+        try (MemoryStack stack = stackPush())
+        {
+            VkCommandPoolCreateInfo poolInfo = VkCommandPoolCreateInfo.callocStack(stack)
+                    .sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO)
+                    .queueFamilyIndex(queueFamily);
+
+            LongBuffer pPool = stack.mallocLong(1);
+            int err = vkCreateCommandPool(device, poolInfo, null, pPool);
+
+            if (err != VK_SUCCESS)
+                throw new IllegalStateException("Could not create the command pool: " + err);
+
+            commandPool = pPool.get(0);
+
+            VkCommandBufferAllocateInfo allocateInfo = VkCommandBufferAllocateInfo.callocStack(stack)
+                    .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO)
+                    .commandPool(commandPool)
+                    .level(VK_COMMAND_BUFFER_LEVEL_PRIMARY)
+                    .commandBufferCount(SLOT_COUNT);
+
+            PointerBuffer pCommandBuffers = stack.mallocPointer(SLOT_COUNT);
+            err = vkAllocateCommandBuffers(device, allocateInfo, pCommandBuffers);
+
+            if (err != VK_SUCCESS)
+                throw new IllegalStateException("Could not allocate the command buffers: " + err);
+
+            VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.callocStack(stack)
+                    .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO);
+
+            ByteBuffer pushConstants = stack.malloc(PUSH_CONSTANT_SIZE);
+            pushConstants.putFloat(8, SCALE).putFloat(12, BIAS);
+
+            LongBuffer pSet = stack.mallocLong(1);
+
+            // The slots only differ in the descriptor set, so the graph is compiled once and executed for all of them
+            graph = new RenderGraph();
+            int batchBuffer = graph.importBuffer("Batch Buffer", buffer);
+
+            graph.addPass("Dispatch", commandBuffer ->
+            {
+                vkCmdBindPipeline(commandBuffer, VK_PIPELINE_BIND_POINT_COMPUTE, pipeline);
+                vkCmdBindDescriptorSets(commandBuffer, VK_PIPELINE_BIND_POINT_COMPUTE, pipelineLayout, 0, pSet, null);
+
+                for (int first = 0; first < BATCH_ITEMS; first += dispatchItems)
+                {
+                    int count = Math.min(dispatchItems, BATCH_ITEMS - first);
+
+                    pushConstants.putInt(0, first).putInt(4, count);
+                    vkCmdPushConstants(commandBuffer, pipelineLayout, VK_SHADER_STAGE_COMPUTE_BIT, 0, pushConstants);
+                    vkCmdDispatch(commandBuffer, (count + localSize - 1) / localSize, 1, 1);
+                }
+            }).write(batchBuffer, ResourceUsage.STORAGE_WRITE_COMPUTE);
+
+            // Records nothing, the host reads the results after the submit
+            graph.addPass("Readback", commandBuffer -> {})
+                 .read(batchBuffer, HOST_READ)
+                 .markSideEffect();
+
+            graph.compile();
+
+            for (int slot = 0; slot < SLOT_COUNT; slot++)
+            {
+                descriptorCache.beginSet(setLayout);
+                descriptorCache.bindBuffer(0, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, buffer, getInputOffset(slot),
+                        BATCH_ITEMS * 4L);
+                descriptorCache.bindBuffer(1, VK_DESCRIPTOR_TYPE_STORAGE_BUFFER, buffer, getOutputOffset(slot),
+                        BATCH_ITEMS * 4L);
+                long set = descriptorCache.endSet();
+
+                VkCommandBuffer commandBuffer = new VkCommandBuffer(pCommandBuffers.get(slot), device);
+                vkBeginCommandBuffer(commandBuffer, beginInfo);
+
+                pSet.put(0, set);
+                graph.execute(commandBuffer);
+
+                err = vkEndCommandBuffer(commandBuffer);
+
+                if (err != VK_SUCCESS)
+                    throw new IllegalStateException("Could not record the command buffer: " + err);
+
+                commandBuffers[slot] = commandBuffer;
+
+                // The submit infos live as long as the example, so submitting a batch allocates nothing
+                PointerBuffer pCommandBuffer = memAllocPointer(1).put(0, commandBuffer.address());
+
+                submitInfos[slot] = VkSubmitInfo.calloc()
+                        .sType(VK_STRUCTURE_TYPE_SUBMIT_INFO)
+                        .pCommandBuffers(pCommandBuffer);
+            }
+        }
+    }
+
+    /**
+     * Returns the input value of an item. The values are exact in a float, and so are the results of the shader, so
+     * they can be checked for equality.
+     */
+    private static float inputValue(long item)
+    {
+        return (item & 0xFFFF) * 0.25f;
+    }
+
+    /**
+     * Returns the value that the shader writes for an item.
+     */
+    static float resultValue(long item)
+    {
+        return inputValue(item) * SCALE + BIAS;
+    }
+
+    /**
+     * Writes the input values of all the items of a batch. This is the host side of a batch, along with
+     * {@link #checkBatch(FloatBuffer, long)}, and runs while the device works on the other slots.
+     *
+     * @param input     The input region of the slot, with the items of the batch remaining.
+     * @param firstItem The index of the first item of the batch in the dataset.
+     */
+    static void fillBatch(FloatBuffer input, long firstItem)
+    {
+        int items = input.remaining();
+
+        for (int i = 0; i < items; i++)
+            input.put(input.position() + i, inputValue(firstItem + i));
+    }
+
+    /**
+     * Checks every {@code CHECK_STRIDE}th result of a batch and the last one, against the values the shader writes.
+     *
+     * @param output    The output region of the slot, with the items of the batch remaining.
+     * @param firstItem The index of the first item of the batch in the dataset.
+     *
+     * @return The number of checked items that are wrong.
+     */
+    static int checkBatch(FloatBuffer output, long firstItem)
+    {
+        int items = output.remaining();
+        int wrong = 0;
+
+        for (int i = 0; i < items; i += CHECK_STRIDE)
+            if (output.get(output.position() + i) != resultValue(firstItem + i))
+                wrong++;
+
+        if (output.get(output.position() + items - 1) != resultValue(firstItem + items - 1))
+            wrong++;
+
+        return wrong;
+    }
+
+    /**
+     * Returns the number of items that {@link #checkBatch(FloatBuffer, long)} checks in a batch of the given size.
+     */
+    static int getCheckedItemCount(int items)
+    {
+        return (items + CHECK_STRIDE - 1) / CHECK_STRIDE + 1;
+    }
+
+    private void fillSlot(int slot, long batch)
+    {
+        fillBatch(memFloatBuffer(mappedAddress + getInputOffset(slot), BATCH_ITEMS), batch * BATCH_ITEMS);
+    }
+
+    private void checkSlot(int slot, long batch)
+    {
+        int wrong = checkBatch(memFloatBuffer(mappedAddress + getOutputOffset(slot), BATCH_ITEMS), batch * BATCH_ITEMS);
+
+        if (wrong > 0 && mismatches == 0)
+            System.err.println(wrong + " of the checked items of the batch " + batch + " are wrong");
+
+        checkedItems += getCheckedItemCount(BATCH_ITEMS);
+        mismatches += wrong;
+    }
+
+    @Override
+    public void render()
+    {
+        if (startTime == 0)
+            startTime = System.nanoTime();
+
+        // Waits for the batch that last used the slot, which was submitted SLOT_COUNT batches ago
+        long value = clock.beginSubmission();
+        long batch = value - 1;
+        int slot = (int) (batch % SLOT_COUNT);
+
+        if (batch >= SLOT_COUNT)
+            checkSlot(slot, batch - SLOT_COUNT);
+
+        fillSlot(slot, batch);
+
+        int err = vkQueueSubmit(queue, submitInfos[slot], clock.getFence(value));
+
+        if (err != VK_SUCCESS)
+            throw new IllegalStateException("Could not submit the batch: " + err);
+    }
+
+    @Override
+    public void cleanUp()
+    {
+        long batches = clock.getSubmittedValue();
+
+        if (batches > 0)
+        {
+            // Drain the batches that are still in flight
+            clock.waitFor(batches);
+
+            for (long batch = Math.max(0, batches - SLOT_COUNT); batch < batches; batch++)
+                checkSlot((int) (batch % SLOT_COUNT), batch);
+
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+            long items = batches * BATCH_ITEMS;
+
+            System.out.println(String.format("Processed %d items in %.3f s: %.1f M items/s", items, seconds,
+                    items / seconds / 1e6));
+            System.out.println(String.format("%d submits, %d dispatches, %d items checked", batches,
+                    batches * dispatchesPerBatch, checkedItems));
+        }
+
+        clock.destroy();
+
+        for (VkSubmitInfo submitInfo : submitInfos)
+        {
+            memFree(submitInfo.pCommandBuffers());
+            submitInfo.free();
+        }
+
+        graph.destroy();
+
+        vkDestroyCommandPool(device, commandPool, null);
+        vkDestroyPipeline(device, pipeline, null);
+
+        descriptorCache.destroy();
+        pipelineCache.destroy();
+        shaderCache.destroy();
+
+        vkUnmapMemory(device, memory);
+        vkDestroyBuffer(device, buffer, null);
+        vkFreeMemory(device, memory, null);
+
+        vkDestroyDevice(device, null);
+        vkDestroyInstance(instance, null);
+
+        if (mismatches > 0)
+            throw new IllegalStateException(mismatches + " of " + checkedItems + " checked items were wrong");
+    }
+}
@@ -0,0 +1,249 @@
+package com.shc.vulkan;
+
+import org.lwjgl.vulkan.VkDevice;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Destroys resources once the device is done with them, without waiting for the device to go idle. Every destroy
+ * request is tagged with the {@link FenceClock} value of the last submission that used the resource, and the resource
+ * is only destroyed by {@link #flush()} once that value has completed. Call {@link #flush()} once per frame, usually
+ * right after waiting for the frame slot, and {@link #destroy()} at shutdown, which waits for all the values in the
+ * queue and destroys everything that is left.
+ * <p>
+ * The requests are kept in a ring of primitive arrays, and the built in destroyers are created once, so queueing a
+ * destroy doesn't allocate. Other kinds of objects are destroyed with a {@link Destroyer} of their own, which should
+ * also be created once and reused. The requests are flushed in the order they were queued, so a request with an older
+ * value behind a request with a newer one waits a little longer than it has to, which is always safe.
+ * <p>
+ * When the leak tracking of the {@link LeakTracker} is enabled, the queue also checks that no handle is queued twice,
+ * and reports the place where it was first queued when it is.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class DeletionQueue
+{
+    /**
+     * Destroys a single object by it's handle.
+     */
+    @FunctionalInterface
+    public interface Destroyer
+    {
+        void destroy(long handle);
+    }
+
+    private final FenceClock clock;
+
+    private final Destroyer bufferDestroyer;
+    private final Destroyer imageDestroyer;
+    private final Destroyer imageViewDestroyer;
+    private final Destroyer memoryFreer;
+    private final Destroyer samplerDestroyer;
+    private final Destroyer framebufferDestroyer;
+    private final Destroyer pipelineDestroyer;
+    private final Destroyer descriptorPoolDestroyer;
+
+    private long[]      values     = new long[256];
+    private long[]      handles    = new long[256];
+    private Destroyer[] destroyers = new Destroyer[256];
+
+    private int head;
+    private int size;
+
+    private long destroyedCount;
+    private long highestValue;
+
+    // The handles in the queue with the place they were queued from, only kept when the leak tracking is enabled
+    private final Map<Long, Throwable> pendingHandles = LeakTracker.isEnabled() ? new HashMap<>() : null;
+
+    /**
+     * Creates the deletion queue.
+     *
+     * @param device The device that the resources belong to, or null if only custom destroyers are used.
+     * @param clock  The clock of the submissions that use the resources.
+     */
+    public DeletionQueue(VkDevice device, FenceClock clock)
+    {
+        this.clock = clock;
+
+        bufferDestroyer = handle -> vkDestroyBuffer(device, handle, null);
+        imageDestroyer = handle -> vkDestroyImage(device, handle, null);
+        imageViewDestroyer = handle -> vkDestroyImageView(device, handle, null);
+        memoryFreer = handle -> vkFreeMemory(device, handle, null);
+        samplerDestroyer = handle -> vkDestroySampler(device, handle, null);
+        framebufferDestroyer = handle -> vkDestroyFramebuffer(device, handle, null);
+        pipelineDestroyer = handle -> vkDestroyPipeline(device, handle, null);
+        descriptorPoolDestroyer = handle -> vkDestroyDescriptorPool(device, handle, null);
+    }
+
+    /**
+     * Queues an object to be destroyed once the given value completes.
+     *
+     * @param destroyer     The destroyer of the object.
+     * @param handle        The handle of the object.
+     * @param lastUsedValue The clock value of the last submission that used the object.
+     */
+    public void destroy(Destroyer destroyer, long handle, long lastUsedValue)
+    {
+        if (handle == VK_NULL_HANDLE)
+            return;
+
+        if (pendingHandles != null)
+        {
+            Throwable previous = pendingHandles.putIfAbsent(handle, new Throwable("First queued here"));
+
+            if (previous != null)
+                throw new IllegalStateException("The handle 0x" + Long.toHexString(handle) + " is queued twice",
+                        previous);
+        }
+
+        if (size == values.length)
+            grow();
+
+        int index = (head + size) & (values.length - 1);
+
+        values[index] = lastUsedValue;
+        handles[index] = handle;
+        destroyers[index] = destroyer;
+        size++;
+
+        highestValue = Math.max(highestValue, lastUsedValue);
+    }
+
+    private void grow()
+    {
+        int capacity = values.length;
+
+        // Unroll the ring so that the head is at zero again
+        long[] newValues = new long[capacity * 2];
+        long[] newHandles = new long[capacity * 2];
+        Destroyer[] newDestroyers = new Destroyer[capacity * 2];
+
+        for (int i = 0; i < size; i++)
+        {
+            int index = (head + i) & (capacity - 1);
+
+            newValues[i] = values[index];
+            newHandles[i] = handles[index];
+            newDestroyers[i] = destroyers[index];
+        }
+
+        values = newValues;
+        handles = newHandles;
+        destroyers = newDestroyers;
+        head = 0;
+    }
+
+    public void destroyBuffer(long buffer, long lastUsedValue)
+    {
+        destroy(bufferDestroyer, buffer, lastUsedValue);
+    }
+
+    public void destroyImage(long image, long lastUsedValue)
+    {
+        destroy(imageDestroyer, image, lastUsedValue);
+    }
+
+    public void destroyImageView(long imageView, long lastUsedValue)
+    {
+        destroy(imageViewDestroyer, imageView, lastUsedValue);
+    }
+
+    public void freeMemory(long memory, long lastUsedValue)
+    {
+        destroy(memoryFreer, memory, lastUsedValue);
+    }
+
+    public void destroySampler(long sampler, long lastUsedValue)
+    {
+        destroy(samplerDestroyer, sampler, lastUsedValue);
+    }
+
+    public void destroyFramebuffer(long framebuffer, long lastUsedValue)
+    {
+        destroy(framebufferDestroyer, framebuffer, lastUsedValue);
+    }
+
+    public void destroyPipeline(long pipeline, long lastUsedValue)
+    {
+        destroy(pipelineDestroyer, pipeline, lastUsedValue);
+    }
+
+    public void destroyDescriptorPool(long descriptorPool, long lastUsedValue)
+    {
+        destroy(descriptorPoolDestroyer, descriptorPool, lastUsedValue);
+    }
+
+    /**
+     * Destroys the objects whose values have completed, without waiting for the device.
+     *
+     * @return The number of objects that were destroyed.
+     */
+    public int flush()
+    {
+        return flush(clock.getCompletedValue());
+    }
+
+    private int flush(long completedValue)
+    {
+        int count = 0;
+
+        while (size > 0 && values[head] <= completedValue)
+        {
+            Destroyer destroyer = destroyers[head];
+            long handle = handles[head];
+
+            // Clear the slot first, so that a destroyer that fails doesn't leave the reference behind
+            destroyers[head] = null;
+            head = (head + 1) & (values.length - 1);
+            size--;
+
+            if (pendingHandles != null)
+                pendingHandles.remove(handle);
+
+            destroyer.destroy(handle);
+            count++;
+        }
+
+        destroyedCount += count;
+        return count;
+    }
+
+    /**
+     * Returns the number of objects that are waiting to be destroyed.
+     *
+     * @return The number of queued objects.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the number of objects that were destroyed since the queue was created.
+     *
+     * @return The number of destroyed objects.
+     */
+    public long getDestroyedCount()
+    {
+        return destroyedCount;
+    }
+
+    /**
+     * Waits for the device to be done with all the queued objects, and destroys them. Call this at shutdown, before the
+     * device is destroyed.
+     */
+    public void destroy()
+    {
+        if (size > 0)
+            clock.waitFor(highestValue);
+
+        flush(Long.MAX_VALUE);
+
+        Arrays.fill(destroyers, null);
+    }
+}
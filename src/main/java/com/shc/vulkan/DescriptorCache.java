@@ -0,0 +1,747 @@
+package com.shc.vulkan;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkDescriptorBufferInfo;
+import org.lwjgl.vulkan.VkDescriptorImageInfo;
+import org.lwjgl.vulkan.VkDescriptorPoolCreateInfo;
+import org.lwjgl.vulkan.VkDescriptorPoolSize;
+import org.lwjgl.vulkan.VkDescriptorSetAllocateInfo;
+import org.lwjgl.vulkan.VkDescriptorSetLayoutBinding;
+import org.lwjgl.vulkan.VkDescriptorSetLayoutCreateInfo;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkPipelineLayoutCreateInfo;
+import org.lwjgl.vulkan.VkPushConstantRange;
+import org.lwjgl.vulkan.VkWriteDescriptorSet;
+
+import java.util.Arrays;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Caches the descriptor set layouts, the pipeline layouts and the descriptor sets, so that the examples don't create
+ * them again every frame. Everything is described by filling a reusable {@link DescriptorKey} through the begin and
+ * end methods, so looking up something that is already cached does not allocate anything:
+ * <pre>{@code
+ * cache.beginSetLayout();
+ * cache.layoutBinding(0, VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER, 1, VK_SHADER_STAGE_VERTEX_BIT);
+ * long layout = cache.endSetLayout();
+ *
+ * cache.beginSet(layout);
+ * cache.bindBuffer(0, VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER, uniformBuffer, 0, 64);
+ * long set = cache.endSet();
+ * }</pre>
+ * Layouts and pipeline layouts are deduplicated by their structure, and live till the cache is destroyed. Descriptor
+ * sets are keyed by their layout and the resources bound to them, and are allocated from persistent pools. When more
+ * than the maximum number of sets are cached, the least recently used set is evicted once the device is done with the
+ * frames that used it, and is reused for the new set if it has the same layout.
+ * <p>
+ * Sets that change every frame can be allocated with {@link #endTransientSet()} instead, from pools that belong to the
+ * frame in flight. Those pools are reset as a whole in {@link #beginFrame()} rather than freeing the sets, and more
+ * pools are added when they run out. The cache is not thread safe, it should be used from the render thread.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class DescriptorCache
+{
+    /**
+     * The number of sets that every descriptor pool can allocate.
+     */
+    private static final int POOL_MAX_SETS = 256;
+
+    /**
+     * The number of descriptors of every type that a pool has for every set, indexed by the VkDescriptorType.
+     */
+    private static final int[] POOL_DESCRIPTORS_PER_SET = {
+            1, // VK_DESCRIPTOR_TYPE_SAMPLER
+            4, // VK_DESCRIPTOR_TYPE_COMBINED_IMAGE_SAMPLER
+            2, // VK_DESCRIPTOR_TYPE_SAMPLED_IMAGE
+            1, // VK_DESCRIPTOR_TYPE_STORAGE_IMAGE
+            1, // VK_DESCRIPTOR_TYPE_UNIFORM_TEXEL_BUFFER
+            1, // VK_DESCRIPTOR_TYPE_STORAGE_TEXEL_BUFFER
+            4, // VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER
+            2, // VK_DESCRIPTOR_TYPE_STORAGE_BUFFER
+            1, // VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC
+            1, // VK_DESCRIPTOR_TYPE_STORAGE_BUFFER_DYNAMIC
+            1, // VK_DESCRIPTOR_TYPE_INPUT_ATTACHMENT
+    };
+
+    private static final int WORDS_PER_BINDING = 4;
+
+    private final VkDevice device;
+    private final int      framesInFlight;
+    private final int      maxCachedSets;
+    private final int      maxBindings;
+
+    private final DescriptorKey key;
+
+    private final DescriptorKeyCache setLayouts;
+    private final DescriptorKeyCache pipelineLayouts;
+    private final DescriptorKeyCache sets;
+
+    // The layout of the set being described, and the counts of the pipeline layout being described
+    private long currentLayout;
+    private int  setLayoutCount;
+    private int  pushConstantRangeCount;
+
+    // The pools of the cached sets, which allow freeing the sets one by one
+    private long[] persistentPools = new long[4];
+    private int    persistentPoolCount;
+    private int    currentPersistentPool;
+
+    // The pools of the transient sets, for every frame in flight
+    private final long[][] framePools;
+    private final int[]    framePoolCounts;
+    private final int[]    currentFramePools;
+
+    private long frameNumber;
+    private int  frameIndex;
+
+    // The set allocated by the last successful call to allocateSet
+    private long lastAllocatedSet;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long transientAllocations;
+
+    /**
+     * Creates the descriptor cache.
+     *
+     * @param device         The device to create the descriptor objects on.
+     * @param framesInFlight The number of frames that can be in flight on the device at the same time.
+     * @param maxCachedSets  The number of descriptor sets to keep before evicting the least recently used ones.
+     * @param maxBindings    The largest number of descriptors that a set binds.
+     */
+    public DescriptorCache(VkDevice device, int framesInFlight, int maxCachedSets, int maxBindings)
+    {
+        this.device = device;
+        this.framesInFlight = framesInFlight;
+        this.maxCachedSets = maxCachedSets;
+        this.maxBindings = maxBindings;
+
+        key = new DescriptorKey(1 + maxBindings * WORDS_PER_BINDING);
+
+        setLayouts = new DescriptorKeyCache(64, maxBindings * 2);
+        pipelineLayouts = new DescriptorKeyCache(64, 32);
+        sets = new DescriptorKeyCache(maxCachedSets, 1 + maxBindings * WORDS_PER_BINDING);
+
+        framePools = new long[framesInFlight][4];
+        framePoolCounts = new int[framesInFlight];
+        currentFramePools = new int[framesInFlight];
+    }
+
+    /**
+     * Starts the next frame: resets the transient pools of the frame in flight that is reused. The device must be done
+     * with the frame that was begun {@code framesInFlight} frames before this one.
+     */
+    public void beginFrame()
+    {
+        frameNumber++;
+        frameIndex = (int) (frameNumber % framesInFlight);
+
+        for (int i = 0; i < framePoolCounts[frameIndex]; i++)
+            vkResetDescriptorPool(device, framePools[frameIndex][i], 0);
+
+        currentFramePools[frameIndex] = 0;
+    }
+
+    /**
+     * Starts describing a descriptor set layout, add the bindings with
+     * {@link #layoutBinding(int, int, int, int)} and get the layout with {@link #endSetLayout()}.
+     */
+    public void beginSetLayout()
+    {
+        key.clear();
+    }
+
+    /**
+     * Adds a binding to the descriptor set layout being described.
+     *
+     * @param binding         The binding number.
+     * @param descriptorType  The VkDescriptorType of the binding.
+     * @param descriptorCount The number of descriptors in the binding.
+     * @param stageFlags      The VkShaderStageFlags of the shaders that access the binding.
+     */
+    public void layoutBinding(int binding, int descriptorType, int descriptorCount, int stageFlags)
+    {
+        key.put(binding, descriptorType).put(descriptorCount, stageFlags);
+    }
+
+    /**
+     * Returns the descriptor set layout that was described, creating it if no layout with the same bindings was
+     * created before.
+     *
+     * @return The handle of the VkDescriptorSetLayout.
+     */
+    public long endSetLayout()
+    {
+        int entry = setLayouts.find(key, frameNumber);
+
+        if (entry >= 0)
+            return setLayouts.getValue(entry);
+
+        int bindingCount = key.length() / 2;
+
+        try (MemoryStack stack = stackPush())
+        {
+            long pBindings = stack.ncalloc(VkDescriptorSetLayoutBinding.ALIGNOF,
+                    bindingCount, VkDescriptorSetLayoutBinding.SIZEOF);
+
+            for (int i = 0; i < bindingCount; i++)
+            {
+                long binding = pBindings + i * VkDescriptorSetLayoutBinding.SIZEOF;
+
+                memPutInt(binding + VkDescriptorSetLayoutBinding.BINDING, (int) (key.get(i * 2) >>> 32));
+                memPutInt(binding + VkDescriptorSetLayoutBinding.DESCRIPTORTYPE, (int) key.get(i * 2));
+                memPutInt(binding + VkDescriptorSetLayoutBinding.DESCRIPTORCOUNT, (int) (key.get(i * 2 + 1) >>> 32));
+                memPutInt(binding + VkDescriptorSetLayoutBinding.STAGEFLAGS, (int) key.get(i * 2 + 1));
+            }
+
+            long createInfo = stack.ncalloc(VkDescriptorSetLayoutCreateInfo.ALIGNOF, 1,
+                    VkDescriptorSetLayoutCreateInfo.SIZEOF);
+
+            memPutInt(createInfo + VkDescriptorSetLayoutCreateInfo.STYPE,
+                    VK_STRUCTURE_TYPE_DESCRIPTOR_SET_LAYOUT_CREATE_INFO);
+            memPutInt(createInfo + VkDescriptorSetLayoutCreateInfo.BINDINGCOUNT, bindingCount);
+            memPutAddress(createInfo + VkDescriptorSetLayoutCreateInfo.PBINDINGS, pBindings);
+
+            long pLayout = stack.nmalloc(8, 8);
+            int err = nvkCreateDescriptorSetLayout(device, createInfo, NULL, pLayout);
+
+            if (err != VK_SUCCESS)
+                throw new IllegalStateException("Could not create the descriptor set layout: " + err);
+
+            long layout = memGetLong(pLayout);
+            setLayouts.insert(key, layout, 0, frameNumber);
+
+            return layout;
+        }
+    }
+
+    /**
+     * Starts describing a pipeline layout, add the set layouts in the order of their set numbers with
+     * {@link #pipelineSetLayout(long)}, then the push constant ranges with {@link #pushConstantRange(int, int, int)},
+     * and get the layout with {@link #endPipelineLayout()}.
+     */
+    public void beginPipelineLayout()
+    {
+        key.clear();
+
+        setLayoutCount = 0;
+        pushConstantRangeCount = 0;
+    }
+
+    /**
+     * Adds the next descriptor set layout to the pipeline layout being described.
+     *
+     * @param setLayout The handle of the VkDescriptorSetLayout.
+     */
+    public void pipelineSetLayout(long setLayout)
+    {
+        if (pushConstantRangeCount > 0)
+            throw new IllegalStateException("The set layouts must be added before the push constant ranges");
+
+        key.put(setLayout);
+        setLayoutCount++;
+    }
+
+    /**
+     * Adds a push constant range to the pipeline layout being described.
+     *
+     * @param stageFlags The VkShaderStageFlags of the shaders that access the range.
+     * @param offset     The offset of the range in bytes.
+     * @param size       The size of the range in bytes.
+     */
+    public void pushConstantRange(int stageFlags, int offset, int size)
+    {
+        key.put(stageFlags, offset).put(size, 0);
+        pushConstantRangeCount++;
+    }
+
+    /**
+     * Returns the pipeline layout that was described, creating it if no pipeline layout with the same set layouts and
+     * push constant ranges was created before.
+     *
+     * @return The handle of the VkPipelineLayout.
+     */
+    public long endPipelineLayout()
+    {
+        // The counts go last, so that the set layouts and the ranges can not be mistaken for each other
+        key.put(setLayoutCount, pushConstantRangeCount);
+
+        int entry = pipelineLayouts.find(key, frameNumber);
+
+        if (entry >= 0)
+            return pipelineLayouts.getValue(entry);
+
+        try (MemoryStack stack = stackPush())
+        {
+            long pSetLayouts = stack.nmalloc(8, Math.max(1, setLayoutCount) * 8);
+
+            for (int i = 0; i < setLayoutCount; i++)
+                memPutLong(pSetLayouts + i * 8, key.get(i));
+
+            long pRanges = stack.ncalloc(VkPushConstantRange.ALIGNOF, Math.max(1, pushConstantRangeCount),
+                    VkPushConstantRange.SIZEOF);
+
+            for (int i = 0; i < pushConstantRangeCount; i++)
+            {
+                long range = pRanges + i * VkPushConstantRange.SIZEOF;
+                long first = key.get(setLayoutCount + i * 2);
+
+                memPutInt(range + VkPushConstantRange.STAGEFLAGS, (int) (first >>> 32));
+                memPutInt(range + VkPushConstantRange.OFFSET, (int) first);
+                memPutInt(range + VkPushConstantRange.SIZE, (int) (key.get(setLayoutCount + i * 2 + 1) >>> 32));
+            }
+
+            long createInfo = stack.ncalloc(VkPipelineLayoutCreateInfo.ALIGNOF, 1, VkPipelineLayoutCreateInfo.SIZEOF);
+
+            memPutInt(createInfo + VkPipelineLayoutCreateInfo.STYPE, VK_STRUCTURE_TYPE_PIPELINE_LAYOUT_CREATE_INFO);
+            memPutInt(createInfo + VkPipelineLayoutCreateInfo.SETLAYOUTCOUNT, setLayoutCount);
+            memPutAddress(createInfo + VkPipelineLayoutCreateInfo.PSETLAYOUTS, pSetLayouts);
+            memPutInt(createInfo + VkPipelineLayoutCreateInfo.PUSHCONSTANTRANGECOUNT, pushConstantRangeCount);
+            memPutAddress(createInfo + VkPipelineLayoutCreateInfo.PPUSHCONSTANTRANGES, pRanges);
+
+            long pLayout = stack.nmalloc(8, 8);
+            int err = nvkCreatePipelineLayout(device, createInfo, NULL, pLayout);
+
+            if (err != VK_SUCCESS)
+                throw new IllegalStateException("Could not create the pipeline layout: " + err);
+
+            long layout = memGetLong(pLayout);
+            pipelineLayouts.insert(key, layout, 0, frameNumber);
+
+            return layout;
+        }
+    }
+
+    /**
+     * Starts describing a descriptor set, bind the resources with the bind methods and get the set with
+     * {@link #endSet()} or {@link #endTransientSet()}.
+     *
+     * @param layout The descriptor set layout of the set.
+     */
+    public void beginSet(long layout)
+    {
+        key.clear().put(layout);
+        currentLayout = layout;
+    }
+
+    /**
+     * Binds a buffer to the set being described.
+     *
+     * @param binding        The binding number.
+     * @param descriptorType The VkDescriptorType, one of the buffer types.
+     * @param buffer         The handle of the VkBuffer.
+     * @param offset         The offset in the buffer.
+     * @param range          The size of the range of the buffer that is bound.
+     */
+    public void bindBuffer(int binding, int descriptorType, long buffer, long offset, long range)
+    {
+        bindBuffer(binding, 0, descriptorType, buffer, offset, range);
+    }
+
+    /**
+     * Binds a buffer to an element of an arrayed binding of the set being described.
+     *
+     * @param binding        The binding number.
+     * @param arrayElement   The index in the array of the binding.
+     * @param descriptorType The VkDescriptorType, one of the buffer types.
+     * @param buffer         The handle of the VkBuffer.
+     * @param offset         The offset in the buffer.
+     * @param range          The size of the range of the buffer that is bound.
+     */
+    public void bindBuffer(int binding, int arrayElement, int descriptorType, long buffer, long offset, long range)
+    {
+        putBinding(binding, arrayElement, descriptorType);
+        key.put(buffer).put(offset).put(range);
+    }
+
+    /**
+     * Binds an image to the set being described.
+     *
+     * @param binding        The binding number.
+     * @param descriptorType The VkDescriptorType, one of the image or sampler types.
+     * @param sampler        The handle of the VkSampler, or {@code VK_NULL_HANDLE}.
+     * @param imageView      The handle of the VkImageView, or {@code VK_NULL_HANDLE} for a sampler.
+     * @param imageLayout    The layout that the image is in when it is accessed.
+     */
+    public void bindImage(int binding, int descriptorType, long sampler, long imageView, int imageLayout)
+    {
+        bindImage(binding, 0, descriptorType, sampler, imageView, imageLayout);
+    }
+
+    /**
+     * Binds an image to an element of an arrayed binding of the set being described.
+     *
+     * @param binding        The binding number.
+     * @param arrayElement   The index in the array of the binding.
+     * @param descriptorType The VkDescriptorType, one of the image or sampler types.
+     * @param sampler        The handle of the VkSampler, or {@code VK_NULL_HANDLE}.
+     * @param imageView      The handle of the VkImageView, or {@code VK_NULL_HANDLE} for a sampler.
+     * @param imageLayout    The layout that the image is in when it is accessed.
+     */
+    public void bindImage(int binding, int arrayElement, int descriptorType, long sampler, long imageView,
+                          int imageLayout)
+    {
+        putBinding(binding, arrayElement, descriptorType);
+        key.put(sampler).put(imageView).put(imageLayout);
+    }
+
+    /**
+     * Binds a texel buffer view to the set being described.
+     *
+     * @param binding        The binding number.
+     * @param descriptorType The VkDescriptorType, one of the texel buffer types.
+     * @param bufferView     The handle of the VkBufferView.
+     */
+    public void bindTexelBuffer(int binding, int descriptorType, long bufferView)
+    {
+        putBinding(binding, 0, descriptorType);
+        key.put(bufferView).put(0).put(0);
+    }
+
+    private void putBinding(int binding, int arrayElement, int descriptorType)
+    {
+        if (key.length() >= 1 + maxBindings * WORDS_PER_BINDING)
+            throw new IllegalStateException("The set binds more than " + maxBindings + " descriptors");
+
+        key.put((binding << 16) | (arrayElement & 0xFFFF), descriptorType);
+    }
+
+    /**
+     * Returns the descriptor set that was described, allocating and writing it if no set with the same layout and
+     * resources is cached.
+     *
+     * @return The handle of the VkDescriptorSet.
+     */
+    public long endSet()
+    {
+        int entry = sets.find(key, frameNumber);
+
+        if (entry >= 0)
+        {
+            hits++;
+            return sets.getValue(entry);
+        }
+
+        misses++;
+
+        long set = VK_NULL_HANDLE;
+        int pool = -1;
+
+        if (sets.size() >= maxCachedSets)
+        {
+            int oldest = sets.getLeastRecentlyUsed();
+
+            // Only evict the set once the device is done with all the frames that used it, otherwise let the cache
+            // grow past the limit for now
+            if (sets.getStamp(oldest) + framesInFlight <= frameNumber)
+            {
+                evictions++;
+
+                if (sets.getKeyWord(oldest, 0) == currentLayout)
+                {
+                    set = sets.getValue(oldest);
+                    pool = sets.getTag(oldest);
+                }
+                else
+                    freeSet(sets.getValue(oldest), persistentPools[sets.getTag(oldest)]);
+
+                sets.remove(oldest);
+            }
+        }
+
+        if (set == VK_NULL_HANDLE)
+        {
+            pool = allocatePersistentSet(currentLayout);
+            set = lastAllocatedSet;
+        }
+
+        writeSet(set);
+        sets.insert(key, set, pool, frameNumber);
+
+        return set;
+    }
+
+    /**
+     * Allocates the descriptor set that was described from the pools of the current frame and writes it, without
+     * caching it. The set is valid till the same frame in flight is begun again.
+     *
+     * @return The handle of the VkDescriptorSet.
+     */
+    public long endTransientSet()
+    {
+        transientAllocations++;
+
+        long[] pools = framePools[frameIndex];
+
+        while (true)
+        {
+            boolean newPool = currentFramePools[frameIndex] == framePoolCounts[frameIndex];
+
+            if (newPool)
+            {
+                if (framePoolCounts[frameIndex] == pools.length)
+                    pools = framePools[frameIndex] = Arrays.copyOf(pools, pools.length * 2);
+
+                pools[framePoolCounts[frameIndex]++] = createPool(0);
+            }
+
+            if (allocateSet(pools[currentFramePools[frameIndex]], currentLayout))
+                break;
+
+            // A set that doesn't fit in an empty pool never will, so creating more pools would not help
+            if (newPool)
+                throw new IllegalStateException("Could not allocate a descriptor set from a new pool");
+
+            // This pool is full, move on to the next one
+            currentFramePools[frameIndex]++;
+        }
+
+        writeSet(lastAllocatedSet);
+
+        return lastAllocatedSet;
+    }
+
+    private int allocatePersistentSet(long layout)
+    {
+        for (int i = 0; i < persistentPoolCount; i++)
+        {
+            int pool = (currentPersistentPool + i) % persistentPoolCount;
+
+            if (allocateSet(persistentPools[pool], layout))
+            {
+                currentPersistentPool = pool;
+                return pool;
+            }
+        }
+
+        if (persistentPoolCount == persistentPools.length)
+            persistentPools = Arrays.copyOf(persistentPools, persistentPoolCount * 2);
+
+        int pool = persistentPoolCount++;
+        persistentPools[pool] = createPool(VK_DESCRIPTOR_POOL_CREATE_FREE_DESCRIPTOR_SET_BIT);
+
+        if (!allocateSet(persistentPools[pool], layout))
+            throw new IllegalStateException("Could not allocate a descriptor set from a new pool");
+
+        currentPersistentPool = pool;
+
+        return pool;
+    }
+
+    private boolean allocateSet(long pool, long layout)
+    {
+        try (MemoryStack stack = stackPush())
+        {
+            long pLayout = stack.nmalloc(8, 8);
+            memPutLong(pLayout, layout);
+
+            long allocateInfo = stack.ncalloc(VkDescriptorSetAllocateInfo.ALIGNOF, 1,
+                    VkDescriptorSetAllocateInfo.SIZEOF);
+
+            memPutInt(allocateInfo + VkDescriptorSetAllocateInfo.STYPE,
+                    VK_STRUCTURE_TYPE_DESCRIPTOR_SET_ALLOCATE_INFO);
+            memPutLong(allocateInfo + VkDescriptorSetAllocateInfo.DESCRIPTORPOOL, pool);
+            memPutInt(allocateInfo + VkDescriptorSetAllocateInfo.DESCRIPTORSETCOUNT, 1);
+            memPutAddress(allocateInfo + VkDescriptorSetAllocateInfo.PSETLAYOUTS, pLayout);
+
+            long pSet = stack.nmalloc(8, 8);
+
+            // Running out of pool memory is reported as VK_ERROR_OUT_OF_POOL_MEMORY_KHR or VK_ERROR_FRAGMENTED_POOL,
+            // and as VK_ERROR_OUT_OF_DEVICE_MEMORY by older drivers, so any failure moves on to another pool
+            if (nvkAllocateDescriptorSets(device, allocateInfo, pSet) != VK_SUCCESS)
+                return false;
+
+            lastAllocatedSet = memGetLong(pSet);
+
+            return true;
+        }
+    }
+
+    private void freeSet(long set, long pool)
+    {
+        try (MemoryStack stack = stackPush())
+        {
+            long pSet = stack.nmalloc(8, 8);
+            memPutLong(pSet, set);
+
+            nvkFreeDescriptorSets(device, pool, 1, pSet);
+        }
+    }
+
+    private long createPool(int flags)
+    {
+        try (MemoryStack stack = stackPush())
+        {
+            int typeCount = POOL_DESCRIPTORS_PER_SET.length;
+            long pPoolSizes = stack.ncalloc(VkDescriptorPoolSize.ALIGNOF, typeCount, VkDescriptorPoolSize.SIZEOF);
+
+            for (int type = 0; type < typeCount; type++)
+            {
+                long poolSize = pPoolSizes + type * VkDescriptorPoolSize.SIZEOF;
+
+                memPutInt(poolSize + VkDescriptorPoolSize.TYPE, type);
+                memPutInt(poolSize + VkDescriptorPoolSize.DESCRIPTORCOUNT,
+                        POOL_DESCRIPTORS_PER_SET[type] * POOL_MAX_SETS);
+            }
+
+            long createInfo = stack.ncalloc(VkDescriptorPoolCreateInfo.ALIGNOF, 1, VkDescriptorPoolCreateInfo.SIZEOF);
+
+            memPutInt(createInfo + VkDescriptorPoolCreateInfo.STYPE, VK_STRUCTURE_TYPE_DESCRIPTOR_POOL_CREATE_INFO);
+            memPutInt(createInfo + VkDescriptorPoolCreateInfo.FLAGS, flags);
+            memPutInt(createInfo + VkDescriptorPoolCreateInfo.MAXSETS, POOL_MAX_SETS);
+            memPutInt(createInfo + VkDescriptorPoolCreateInfo.POOLSIZECOUNT, typeCount);
+            memPutAddress(createInfo + VkDescriptorPoolCreateInfo.PPOOLSIZES, pPoolSizes);
+
+            long pPool = stack.nmalloc(8, 8);
+            int err = nvkCreateDescriptorPool(device, createInfo, NULL, pPool);
+
+            if (err != VK_SUCCESS)
+                throw new IllegalStateException("Could not create a descriptor pool: " + err);
+
+            return memGetLong(pPool);
+        }
+    }
+
+    private void writeSet(long set)
+    {
+        int writeCount = (key.length() - 1) / WORDS_PER_BINDING;
+
+        if (writeCount == 0)
+            return;
+
+        try (MemoryStack stack = stackPush())
+        {
+            long pWrites = stack.ncalloc(VkWriteDescriptorSet.ALIGNOF, writeCount, VkWriteDescriptorSet.SIZEOF);
+
+            // The buffer and the image infos are both three words, so one array serves for both
+            int infoSize = Math.max(VkDescriptorBufferInfo.SIZEOF, VkDescriptorImageInfo.SIZEOF);
+            long pInfos = stack.ncalloc(8, writeCount, infoSize);
+
+            for (int i = 0; i < writeCount; i++)
+            {
+                int word = 1 + i * WORDS_PER_BINDING;
+                long header = key.get(word);
+
+                int binding = (int) (header >>> 48);
+                int arrayElement = (int) (header >>> 32) & 0xFFFF;
+                int type = (int) header;
+
+                long write = pWrites + i * VkWriteDescriptorSet.SIZEOF;
+                long info = pInfos + i * infoSize;
+
+                memPutInt(write + VkWriteDescriptorSet.STYPE, VK_STRUCTURE_TYPE_WRITE_DESCRIPTOR_SET);
+                memPutLong(write + VkWriteDescriptorSet.DSTSET, set);
+                memPutInt(write + VkWriteDescriptorSet.DSTBINDING, binding);
+                memPutInt(write + VkWriteDescriptorSet.DSTARRAYELEMENT, arrayElement);
+                memPutInt(write + VkWriteDescriptorSet.DESCRIPTORCOUNT, 1);
+                memPutInt(write + VkWriteDescriptorSet.DESCRIPTORTYPE, type);
+
+                switch (type)
+                {
+                    case VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER:
+                    case VK_DESCRIPTOR_TYPE_STORAGE_BUFFER:
+                    case VK_DESCRIPTOR_TYPE_UNIFORM_BUFFER_DYNAMIC:
+                    case VK_DESCRIPTOR_TYPE_STORAGE_BUFFER_DYNAMIC:
+                        memPutLong(info + VkDescriptorBufferInfo.BUFFER, key.get(word + 1));
+                        memPutLong(info + VkDescriptorBufferInfo.OFFSET, key.get(word + 2));
+                        memPutLong(info + VkDescriptorBufferInfo.RANGE, key.get(word + 3));
+                        memPutAddress(write + VkWriteDescriptorSet.PBUFFERINFO, info);
+                        break;
+
+                    case VK_DESCRIPTOR_TYPE_UNIFORM_TEXEL_BUFFER:
+                    case VK_DESCRIPTOR_TYPE_STORAGE_TEXEL_BUFFER:
+                        memPutLong(info, key.get(word + 1));
+                        memPutAddress(write + VkWriteDescriptorSet.PTEXELBUFFERVIEW, info);
+                        break;
+
+                    default:
+                        memPutLong(info + VkDescriptorImageInfo.SAMPLER, key.get(word + 1));
+                        memPutLong(info + VkDescriptorImageInfo.IMAGEVIEW, key.get(word + 2));
+                        memPutInt(info + VkDescriptorImageInfo.IMAGELAYOUT, (int) key.get(word + 3));
+                        memPutAddress(write + VkWriteDescriptorSet.PIMAGEINFO, info);
+                        break;
+                }
+            }
+
+            nvkUpdateDescriptorSets(device, writeCount, pWrites, 0, NULL);
+        }
+    }
+
+    public long getHits()
+    {
+        return hits;
+    }
+
+    public long getMisses()
+    {
+        return misses;
+    }
+
+    public long getEvictions()
+    {
+        return evictions;
+    }
+
+    public int getCachedSetCount()
+    {
+        return sets.size();
+    }
+
+    /**
+     * Prints the hits, misses and evictions of the set cache, and the number of layouts and pools.
+     */
+    public void printStatistics()
+    {
+        long lookups = hits + misses;
+
+        System.out.println("Descriptor Cache");
+        System.out.println("~~~~~~~~~~~~~~~~");
+        System.out.println("\tSet Layouts: " + setLayouts.size());
+        System.out.println("\tPipeline Layouts: " + pipelineLayouts.size());
+        System.out.println("\tCached Sets: " + sets.size() + " / " + maxCachedSets);
+        System.out.println("\tHit Rate: " + String.format("%.2f%%", lookups == 0 ? 0.0 : 100.0 * hits / lookups));
+        System.out.println("\tMisses: " + misses);
+        System.out.println("\tEvictions: " + evictions);
+        System.out.println("\tTransient Sets: " + transientAllocations);
+        System.out.println("\tPersistent Pools: " + persistentPoolCount);
+
+        int framePoolCount = 0;
+
+        for (int count : framePoolCounts)
+            framePoolCount += count;
+
+        System.out.println("\tFrame Pools: " + framePoolCount);
+    }
+
+    /**
+     * Destroys all the pools, which frees the sets, and all the layouts. The device must be done with all the frames
+     * that used them.
+     */
+    public void destroy()
+    {
+        for (int i = 0; i < persistentPoolCount; i++)
+            vkDestroyDescriptorPool(device, persistentPools[i], null);
+
+        for (int f = 0; f < framesInFlight; f++)
+            for (int i = 0; i < framePoolCounts[f]; i++)
+                vkDestroyDescriptorPool(device, framePools[f][i], null);
+
+        for (int i = pipelineLayouts.getMostRecentlyUsed(); i >= 0; i = pipelineLayouts.getNext(i))
+            vkDestroyPipelineLayout(device, pipelineLayouts.getValue(i), null);
+
+        for (int i = setLayouts.getMostRecentlyUsed(); i >= 0; i = setLayouts.getNext(i))
+            vkDestroyDescriptorSetLayout(device, setLayouts.getValue(i), null);
+
+        sets.clear();
+        pipelineLayouts.clear();
+        setLayouts.clear();
+
+        persistentPoolCount = 0;
+        Arrays.fill(framePoolCounts, 0);
+    }
+}
@@ -0,0 +1,135 @@
+package com.shc.vulkan;
+
+import java.util.Arrays;
+
+/**
+ * A reusable key made of 64 bit words, whose hash is computed as the words are added. The {@link DescriptorCache} fills
+ * one of these with the description of a layout or the resources bound to a descriptor set, and looks it up in a
+ * {@link DescriptorKeyCache}. Since the same key is cleared and filled again for every lookup, looking up does not
+ * allocate anything.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public final class DescriptorKey
+{
+    private long[] words;
+    private int    length;
+    private long   state;
+
+    /**
+     * Creates an empty key.
+     *
+     * @param capacity The number of words that the key can hold before it has to grow.
+     */
+    public DescriptorKey(int capacity)
+    {
+        words = new long[Math.max(1, capacity)];
+        clear();
+    }
+
+    /**
+     * Removes all the words from the key.
+     *
+     * @return This key, for chaining.
+     */
+    public DescriptorKey clear()
+    {
+        length = 0;
+        state = 0x9E3779B97F4A7C15L;
+
+        return this;
+    }
+
+    /**
+     * Adds a word to the key.
+     *
+     * @param word The word to add.
+     *
+     * @return This key, for chaining.
+     */
+    public DescriptorKey put(long word)
+    {
+        if (length == words.length)
+            words = Arrays.copyOf(words, length * 2);
+
+        words[length++] = word;
+
+        state = Long.rotateLeft(state ^ (word * 0xC2B2AE3D27D4EB4FL), 31) * 0x9E3779B97F4A7C15L;
+
+        return this;
+    }
+
+    /**
+     * Adds two ints to the key as a single word.
+     *
+     * @param high The int for the upper half of the word.
+     * @param low  The int for the lower half of the word.
+     *
+     * @return This key, for chaining.
+     */
+    public DescriptorKey put(int high, int low)
+    {
+        return put(((long) high << 32) | (low & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Returns the hash of the words in the key. The state is mixed once more so that keys that differ only in the last
+     * word still spread over the whole table.
+     *
+     * @return The 64 bit hash of the key.
+     */
+    public long hash()
+    {
+        long h = state ^ length;
+
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+
+        return h;
+    }
+
+    public long get(int index)
+    {
+        return words[index];
+    }
+
+    public int length()
+    {
+        return length;
+    }
+
+    /**
+     * Checks whether the key has the same words as a range of an array.
+     *
+     * @param array  The array to compare with.
+     * @param offset The offset of the words in the array.
+     * @param count  The number of words in the array.
+     *
+     * @return True if the words are the same.
+     */
+    boolean matches(long[] array, int offset, int count)
+    {
+        if (count != length)
+            return false;
+
+        for (int i = 0; i < length; i++)
+            if (array[offset + i] != words[i])
+                return false;
+
+        return true;
+    }
+
+    /**
+     * Copies the words of the key into an array.
+     *
+     * @param array  The array to copy into.
+     * @param offset The offset in the array to copy to.
+     */
+    void copyTo(long[] array, int offset)
+    {
+        System.arraycopy(words, 0, array, offset, length);
+    }
+}
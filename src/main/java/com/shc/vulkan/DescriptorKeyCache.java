@@ -0,0 +1,307 @@
+package com.shc.vulkan;
+
+import java.util.Arrays;
+
+/**
+ * A hash table from {@link DescriptorKey}s to a long value and an int tag, with the entries kept in the order they were
+ * last used. This is the bookkeeping behind the {@link DescriptorCache}, where the values are the Vulkan handles, and it
+ * does not call into Vulkan itself, so it can be benchmarked without a device.
+ * <p>
+ * Everything is stored in primitive arrays: the words of the keys with a fixed stride, the entries, the links of the
+ * least recently used list, and an open addressing table of entry indices with linear probing. Finding an entry and
+ * inserting one when there is room never allocates, the arrays only grow when the table is full.
+ * <p>
+ * Every entry has a stamp, which is the frame it was last used in. The cache never evicts entries on it's own, the
+ * owner decides with {@link #getLeastRecentlyUsed()} and the stamp whether the oldest entry can be removed.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class DescriptorKeyCache
+{
+    private static final int NONE = -1;
+
+    private final int stride;
+
+    private long[] keyWords;
+    private int[]  keyLengths;
+    private long[] hashes;
+    private long[] values;
+    private int[]  tags;
+    private long[] stamps;
+
+    // The least recently used list, from the most recent at the head to the least recent at the tail. The next links
+    // of the free entries make the free list.
+    private int[] previous;
+    private int[] next;
+    private int   head     = NONE;
+    private int   tail     = NONE;
+    private int   freeHead = NONE;
+    private int   size;
+
+    private int[] table;
+    private int   mask;
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param capacity    The number of entries before the arrays have to grow.
+     * @param maxKeyWords The largest number of words in a key.
+     */
+    public DescriptorKeyCache(int capacity, int maxKeyWords)
+    {
+        stride = maxKeyWords;
+        allocate(Math.max(capacity, 4));
+    }
+
+    private void allocate(int capacity)
+    {
+        int oldCapacity = hashes == null ? 0 : hashes.length;
+
+        keyWords = keyWords == null ? new long[capacity * stride] : Arrays.copyOf(keyWords, capacity * stride);
+        keyLengths = keyLengths == null ? new int[capacity] : Arrays.copyOf(keyLengths, capacity);
+        hashes = hashes == null ? new long[capacity] : Arrays.copyOf(hashes, capacity);
+        values = values == null ? new long[capacity] : Arrays.copyOf(values, capacity);
+        tags = tags == null ? new int[capacity] : Arrays.copyOf(tags, capacity);
+        stamps = stamps == null ? new long[capacity] : Arrays.copyOf(stamps, capacity);
+        previous = previous == null ? new int[capacity] : Arrays.copyOf(previous, capacity);
+        next = next == null ? new int[capacity] : Arrays.copyOf(next, capacity);
+
+        // The new entries are all free
+        for (int i = capacity - 1; i >= oldCapacity; i--)
+        {
+            next[i] = freeHead;
+            freeHead = i;
+        }
+
+        // Keep the table at most half full, so that the probes stay short
+        table = new int[Integer.highestOneBit(capacity) * 4];
+        mask = table.length - 1;
+
+        Arrays.fill(table, NONE);
+
+        for (int i = head; i != NONE; i = next[i])
+            table[findFreeSlot(hashes[i])] = i;
+    }
+
+    private int findFreeSlot(long hash)
+    {
+        int slot = (int) hash & mask;
+
+        while (table[slot] != NONE)
+            slot = (slot + 1) & mask;
+
+        return slot;
+    }
+
+    /**
+     * Finds the entry of a key, and marks it as the most recently used.
+     *
+     * @param key   The key to find.
+     * @param stamp The stamp of the current frame, which is stored in the entry if it is found.
+     *
+     * @return The index of the entry, or -1 if the key is not in the cache.
+     */
+    public int find(DescriptorKey key, long stamp)
+    {
+        long hash = key.hash();
+
+        for (int slot = (int) hash & mask; table[slot] != NONE; slot = (slot + 1) & mask)
+        {
+            int entry = table[slot];
+
+            if (hashes[entry] == hash && key.matches(keyWords, entry * stride, keyLengths[entry]))
+            {
+                stamps[entry] = stamp;
+                moveToHead(entry);
+
+                return entry;
+            }
+        }
+
+        return NONE;
+    }
+
+    /**
+     * Inserts a key that is not in the cache yet, as the most recently used entry.
+     *
+     * @param key   The key to insert.
+     * @param value The value of the entry.
+     * @param tag   The tag of the entry.
+     * @param stamp The stamp of the current frame.
+     *
+     * @return The index of the new entry.
+     */
+    public int insert(DescriptorKey key, long value, int tag, long stamp)
+    {
+        if (key.length() > stride)
+            throw new IllegalArgumentException("The key has " + key.length() + " words, the cache allows " + stride);
+
+        if (freeHead == NONE)
+            allocate(hashes.length * 2);
+
+        int entry = freeHead;
+        freeHead = next[entry];
+
+        key.copyTo(keyWords, entry * stride);
+        keyLengths[entry] = key.length();
+        hashes[entry] = key.hash();
+        values[entry] = value;
+        tags[entry] = tag;
+        stamps[entry] = stamp;
+
+        previous[entry] = NONE;
+        next[entry] = head;
+
+        if (head != NONE)
+            previous[head] = entry;
+
+        head = entry;
+
+        if (tail == NONE)
+            tail = entry;
+
+        table[findFreeSlot(hashes[entry])] = entry;
+        size++;
+
+        return entry;
+    }
+
+    /**
+     * Removes an entry from the cache.
+     *
+     * @param entry The index of the entry.
+     */
+    public void remove(int entry)
+    {
+        int slot = (int) hashes[entry] & mask;
+
+        while (table[slot] != entry)
+            slot = (slot + 1) & mask;
+
+        table[slot] = NONE;
+
+        // Shift the entries after the hole back, so that no probe sequence is broken by it
+        for (int j = (slot + 1) & mask; table[j] != NONE; j = (j + 1) & mask)
+        {
+            int home = (int) hashes[table[j]] & mask;
+
+            boolean between = slot <= j ? (slot < home && home <= j) : (slot < home || home <= j);
+
+            if (!between)
+            {
+                table[slot] = table[j];
+                table[j] = NONE;
+                slot = j;
+            }
+        }
+
+        unlink(entry);
+
+        next[entry] = freeHead;
+        freeHead = entry;
+        size--;
+    }
+
+    private void moveToHead(int entry)
+    {
+        if (entry == head)
+            return;
+
+        unlink(entry);
+
+        previous[entry] = NONE;
+        next[entry] = head;
+        previous[head] = entry;
+        head = entry;
+
+        if (tail == NONE)
+            tail = entry;
+    }
+
+    private void unlink(int entry)
+    {
+        if (previous[entry] != NONE)
+            next[previous[entry]] = next[entry];
+        else
+            head = next[entry];
+
+        if (next[entry] != NONE)
+            previous[next[entry]] = previous[entry];
+        else
+            tail = previous[entry];
+    }
+
+    /**
+     * Returns the entry that was used the longest time ago.
+     *
+     * @return The index of the entry, or -1 if the cache is empty.
+     */
+    public int getLeastRecentlyUsed()
+    {
+        return tail;
+    }
+
+    /**
+     * Returns the entry that was used most recently, to iterate over all the entries with {@link #getNext(int)}.
+     *
+     * @return The index of the entry, or -1 if the cache is empty.
+     */
+    public int getMostRecentlyUsed()
+    {
+        return head;
+    }
+
+    /**
+     * Returns the entry that was used before the given entry.
+     *
+     * @param entry The index of the entry.
+     *
+     * @return The index of the next entry, or -1 if this was the least recently used entry.
+     */
+    public int getNext(int entry)
+    {
+        return next[entry];
+    }
+
+    public long getValue(int entry)
+    {
+        return values[entry];
+    }
+
+    public int getTag(int entry)
+    {
+        return tags[entry];
+    }
+
+    public long getStamp(int entry)
+    {
+        return stamps[entry];
+    }
+
+    /**
+     * Returns a word of the key of an entry.
+     *
+     * @param entry The index of the entry.
+     * @param index The index of the word in the key.
+     *
+     * @return The word of the key.
+     */
+    public long getKeyWord(int entry, int index)
+    {
+        return keyWords[entry * stride + index];
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Removes all the entries.
+     */
+    public void clear()
+    {
+        while (head != NONE)
+            remove(head);
+    }
+}
@@ -0,0 +1,64 @@
+package com.shc.vulkan;
+
+/**
+ * A range of device memory that was sub-allocated by the {@link DeviceMemoryAllocator}. The resources should be bound
+ * to the memory at the offset of the allocation, with {@code vkBindBufferMemory} or {@code vkBindImageMemory}.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public final class DeviceAllocation
+{
+    final DeviceMemoryAllocator.Block block;
+    final int                         handle;
+
+    private final long memory;
+    private final long offset;
+    private final long size;
+    private final int  memoryType;
+
+    DeviceAllocation(DeviceMemoryAllocator.Block block, int handle, long memory, long offset, long size, int memoryType)
+    {
+        this.block = block;
+        this.handle = handle;
+        this.memory = memory;
+        this.offset = offset;
+        this.size = size;
+        this.memoryType = memoryType;
+    }
+
+    /**
+     * Returns the handle of the VkDeviceMemory that this allocation is a part of.
+     *
+     * @return The VkDeviceMemory handle.
+     */
+    public long getMemory()
+    {
+        return memory;
+    }
+
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+
+    public int getMemoryType()
+    {
+        return memoryType;
+    }
+
+    /**
+     * Returns whether this allocation has a VkDeviceMemory of it's own, which is the case for the allocations that are
+     * too large to be sub-allocated from a block.
+     *
+     * @return True if the allocation is dedicated.
+     */
+    public boolean isDedicated()
+    {
+        return block.dedicated;
+    }
+}
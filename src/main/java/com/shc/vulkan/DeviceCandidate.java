@@ -0,0 +1,270 @@
+package com.shc.vulkan;
+
+import org.lwjgl.vulkan.VkExtensionProperties;
+import org.lwjgl.vulkan.VkPhysicalDevice;
+import org.lwjgl.vulkan.VkPhysicalDeviceLimits;
+import org.lwjgl.vulkan.VkPhysicalDeviceMemoryProperties;
+import org.lwjgl.vulkan.VkPhysicalDeviceProperties;
+import org.lwjgl.vulkan.VkQueueFamilyProperties;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * A physical device that the {@link DeviceSelector} can pick, with the facts about it that the selection needs. The
+ * device is described by the same structs that the driver fills, so the candidates of the real devices come straight
+ * from the {@link PhysicalDeviceSnapshot}s, and synthetic candidates can be made from structs that are written by hand
+ * to check a selection policy without the hardware.
+ * <p>
+ * The structs are copied into memory that the candidate owns, so a candidate stays valid after the snapshots or the
+ * structs it was made from are freed. The structs it returns point into that memory, including the limits that are
+ * nested in the properties, so the candidate has to be kept reachable while they are used.
+ * <p>
+ * The size of the device local memory, the queue families to use for graphics, compute and transfers, and the set of
+ * extension names are worked out once when the candidate is made.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public final class DeviceCandidate
+{
+    private final int              index;
+    private final VkPhysicalDevice device;
+
+    private final VkPhysicalDeviceProperties       properties;
+    private final VkPhysicalDeviceMemoryProperties memoryProperties;
+    private final VkQueueFamilyProperties.Buffer   queueFamilies;
+
+    private final Set<String> extensions = new HashSet<>();
+
+    private final long deviceLocalMemory;
+
+    private final int graphicsQueueFamily;
+    private final int computeQueueFamily;
+    private final int transferQueueFamily;
+
+    /**
+     * Creates a candidate from the structs of a device. The structs are copied, so they can be freed after this.
+     *
+     * @param index            The index of the device in the order that the driver enumerated them.
+     * @param device           The physical device, or null for a synthetic candidate.
+     * @param properties       The properties of the device, with it's limits.
+     * @param memoryProperties The memory heaps and types of the device.
+     * @param queueFamilies    The queue families of the device.
+     * @param extensions       The extensions that the device supports.
+     */
+    public DeviceCandidate(int index, VkPhysicalDevice device, VkPhysicalDeviceProperties properties,
+                           VkPhysicalDeviceMemoryProperties memoryProperties,
+                           VkQueueFamilyProperties.Buffer queueFamilies, VkExtensionProperties.Buffer extensions)
+    {
+        this.index = index;
+        this.device = device;
+
+        // The copies are in memory managed by the garbage collector, which frees them with the candidate
+        this.properties = VkPhysicalDeviceProperties.create();
+        this.memoryProperties = VkPhysicalDeviceMemoryProperties.create();
+        this.queueFamilies = VkQueueFamilyProperties.create(queueFamilies.remaining());
+
+        memCopy(properties.address(), this.properties.address(), VkPhysicalDeviceProperties.SIZEOF);
+        memCopy(memoryProperties.address(), this.memoryProperties.address(), VkPhysicalDeviceMemoryProperties.SIZEOF);
+        memCopy(queueFamilies.address(), this.queueFamilies.address(),
+                queueFamilies.remaining() * VkQueueFamilyProperties.SIZEOF);
+
+        for (int i = 0; i < extensions.remaining(); i++)
+            this.extensions.add(extensions.get(extensions.position() + i).extensionNameString());
+
+        // The largest heap is where the resources end up, the heaps are not added up since a resource can't span them
+        long largestHeap = 0;
+
+        for (int i = 0; i < memoryProperties.memoryHeapCount(); i++)
+            if ((memoryProperties.memoryHeaps(i).flags() & VK_MEMORY_HEAP_DEVICE_LOCAL_BIT) != 0)
+                largestHeap = Math.max(largestHeap, memoryProperties.memoryHeaps(i).size());
+
+        deviceLocalMemory = largestHeap;
+
+        graphicsQueueFamily = findQueueFamily(VK_QUEUE_GRAPHICS_BIT, 0);
+        computeQueueFamily = findQueueFamily(VK_QUEUE_COMPUTE_BIT, VK_QUEUE_GRAPHICS_BIT);
+        transferQueueFamily = findQueueFamily(VK_QUEUE_TRANSFER_BIT, VK_QUEUE_GRAPHICS_BIT | VK_QUEUE_COMPUTE_BIT);
+    }
+
+    /**
+     * Creates a candidate from the snapshot of a device in a {@link PhysicalDeviceRegistry}.
+     *
+     * @param registry The registry of the devices.
+     * @param index    The index of the device in the registry.
+     *
+     * @return The candidate for the device.
+     */
+    public static DeviceCandidate fromRegistry(PhysicalDeviceRegistry registry, int index)
+    {
+        PhysicalDeviceSnapshot snapshot = registry.getSnapshot(index);
+
+        return new DeviceCandidate(index, registry.getDevice(index), snapshot.getProperties(),
+                snapshot.getMemoryProperties(), snapshot.getQueueFamilies(), snapshot.getExtensions());
+    }
+
+    /**
+     * Finds the queue family with the required flags that has the fewest of the avoided flags, so that a family that
+     * only does compute is picked over the graphics family for compute, when the device has one.
+     *
+     * @return The index of the queue family, or -1 if no family has the required flags.
+     */
+    private int findQueueFamily(int requiredFlags, int avoidedFlags)
+    {
+        int best = -1;
+        int bestAvoided = Integer.MAX_VALUE;
+
+        for (int i = 0; i < queueFamilies.remaining(); i++)
+        {
+            VkQueueFamilyProperties family = queueFamilies.get(queueFamilies.position() + i);
+
+            if (family.queueCount() == 0 || (family.queueFlags() & requiredFlags) != requiredFlags)
+                continue;
+
+            int avoided = Integer.bitCount(family.queueFlags() & avoidedFlags);
+
+            if (avoided < bestAvoided)
+            {
+                best = i;
+                bestAvoided = avoided;
+            }
+        }
+
+        return best;
+    }
+
+    public int getIndex()
+    {
+        return index;
+    }
+
+    /**
+     * Returns the physical device of this candidate.
+     *
+     * @return The physical device, or null if this is a synthetic candidate.
+     */
+    public VkPhysicalDevice getDevice()
+    {
+        return device;
+    }
+
+    public VkPhysicalDeviceProperties getProperties()
+    {
+        return properties;
+    }
+
+    public VkPhysicalDeviceLimits getLimits()
+    {
+        return properties.limits();
+    }
+
+    public VkPhysicalDeviceMemoryProperties getMemoryProperties()
+    {
+        return memoryProperties;
+    }
+
+    public VkQueueFamilyProperties.Buffer getQueueFamilies()
+    {
+        return queueFamilies;
+    }
+
+    public String getName()
+    {
+        return properties.deviceNameString();
+    }
+
+    public int getDeviceType()
+    {
+        return properties.deviceType();
+    }
+
+    /**
+     * Returns the size of the largest device local memory heap, which is the video memory on a discrete GPU and a part
+     * of the system memory on an integrated GPU.
+     *
+     * @return The size of the heap in bytes, or zero if the device has no device local heap.
+     */
+    public long getDeviceLocalMemory()
+    {
+        return deviceLocalMemory;
+    }
+
+    /**
+     * Returns whether any queue family of the device has all the given flags.
+     *
+     * @param queueFlags The VkQueueFlags to look for.
+     *
+     * @return True if the device has a queue family with the flags.
+     */
+    public boolean hasQueueFlags(int queueFlags)
+    {
+        for (int i = 0; i < queueFamilies.remaining(); i++)
+        {
+            VkQueueFamilyProperties family = queueFamilies.get(queueFamilies.position() + i);
+
+            if (family.queueCount() > 0 && (family.queueFlags() & queueFlags) == queueFlags)
+                return true;
+        }
+
+        return false;
+    }
+
+    public int getGraphicsQueueFamily()
+    {
+        return graphicsQueueFamily;
+    }
+
+    /**
+     * Returns the queue family to submit compute work to, which is a family without graphics when the device has one.
+     *
+     * @return The index of the queue family, or -1 if the device can't do compute.
+     */
+    public int getComputeQueueFamily()
+    {
+        return computeQueueFamily;
+    }
+
+    /**
+     * Returns the queue family to submit transfers to, which is a family without graphics and compute when the device
+     * has one. Graphics and compute families can always do transfers, even if they don't report the transfer bit.
+     *
+     * @return The index of the queue family, or the graphics or compute family if no family reports the transfer bit.
+     */
+    public int getTransferQueueFamily()
+    {
+        if (transferQueueFamily >= 0)
+            return transferQueueFamily;
+
+        return graphicsQueueFamily >= 0 ? graphicsQueueFamily : computeQueueFamily;
+    }
+
+    /**
+     * Returns whether the device has a queue family that does compute but no graphics, so that compute work can run
+     * alongside the rendering.
+     *
+     * @return True if the device has an async compute queue family.
+     */
+    public boolean hasDedicatedComputeQueue()
+    {
+        return computeQueueFamily >= 0 &&
+               (queueFamilies.get(queueFamilies.position() + computeQueueFamily).queueFlags() & VK_QUEUE_GRAPHICS_BIT) == 0;
+    }
+
+    /**
+     * Returns whether the device has a queue family that only does transfers, which is usually a DMA engine.
+     *
+     * @return True if the device has a dedicated transfer queue family.
+     */
+    public boolean hasDedicatedTransferQueue()
+    {
+        return transferQueueFamily >= 0 && (queueFamilies.get(queueFamilies.position() + transferQueueFamily)
+                                                    .queueFlags() & (VK_QUEUE_GRAPHICS_BIT | VK_QUEUE_COMPUTE_BIT)) == 0;
+    }
+
+    public boolean hasExtension(String extensionName)
+    {
+        return extensions.contains(extensionName);
+    }
+}
@@ -0,0 +1,364 @@
+package com.shc.vulkan;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkMemoryAllocateInfo;
+import org.lwjgl.vulkan.VkMemoryRequirements;
+import org.lwjgl.vulkan.VkPhysicalDeviceMemoryProperties;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * A pooled device memory allocator. Instead of calling {@code vkAllocateMemory} for every resource, which quickly runs
+ * into the {@code maxMemoryAllocationCount} limit (which is as low as 4096 on many drivers), this allocates large
+ * blocks of VkDeviceMemory and places the resources inside them using a {@link TlsfAllocator}.
+ * <p>
+ * There is a pool of blocks for every memory type. The resources in a block are kept apart by the
+ * {@code bufferImageGranularity} limit of the device whenever a buffer and an optimal image end up next to each other.
+ * Allocations larger than half a block get a dedicated VkDeviceMemory of their own, which is kept in a list of it's
+ * own for every memory type, so that it is counted in the statistics and freed by {@link #destroy()}. Empty blocks are
+ * released, except for the last block of every pool, which is kept around to avoid allocating it again and again.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class DeviceMemoryAllocator
+{
+    /**
+     * The default size of the blocks that are allocated from the device.
+     */
+    public static final long DEFAULT_BLOCK_SIZE = 64L * 1024 * 1024;
+
+    private final VkDevice device;
+    private final long     blockSize;
+    private final long     bufferImageGranularity;
+
+    // A copy of the memory properties, so that the allocator doesn't depend on the lifetime of the struct it was given
+    private final VkPhysicalDeviceMemoryProperties memoryProperties = VkPhysicalDeviceMemoryProperties.create();
+
+    private final long[] heapSizes;
+    private final int[]  memoryTypeHeaps;
+
+    private final List<List<Block>> pools;
+    private final List<List<Block>> dedicatedBlocks;
+
+    /**
+     * Creates an allocator for the device, with the default block size.
+     *
+     * @param device                 The device to allocate the memory from.
+     * @param memoryProperties       The memory properties of the physical device.
+     * @param bufferImageGranularity The bufferImageGranularity limit of the physical device.
+     */
+    public DeviceMemoryAllocator(VkDevice device, VkPhysicalDeviceMemoryProperties memoryProperties,
+                                 long bufferImageGranularity)
+    {
+        this(device, memoryProperties, bufferImageGranularity, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates an allocator for the device.
+     *
+     * @param device                 The device to allocate the memory from.
+     * @param memoryProperties       The memory properties of the physical device.
+     * @param bufferImageGranularity The bufferImageGranularity limit of the physical device.
+     * @param blockSize              The size of the blocks that are allocated from the device.
+     */
+    public DeviceMemoryAllocator(VkDevice device, VkPhysicalDeviceMemoryProperties memoryProperties,
+                                 long bufferImageGranularity, long blockSize)
+    {
+        this.device = device;
+        this.blockSize = blockSize;
+        this.bufferImageGranularity = Math.max(1, bufferImageGranularity);
+
+        memCopy(memoryProperties.address(), this.memoryProperties.address(), VkPhysicalDeviceMemoryProperties.SIZEOF);
+
+        int memoryTypeCount = memoryProperties.memoryTypeCount();
+
+        memoryTypeHeaps = new int[memoryTypeCount];
+        heapSizes = new long[memoryProperties.memoryHeapCount()];
+
+        for (int i = 0; i < memoryTypeCount; i++)
+            memoryTypeHeaps[i] = memoryProperties.memoryTypes(i).heapIndex();
+
+        for (int i = 0; i < heapSizes.length; i++)
+            heapSizes[i] = memoryProperties.memoryHeaps(i).size();
+
+        pools = new ArrayList<>(memoryTypeCount);
+        dedicatedBlocks = new ArrayList<>(memoryTypeCount);
+
+        for (int i = 0; i < memoryTypeCount; i++)
+        {
+            pools.add(new ArrayList<>());
+            dedicatedBlocks.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Finds the first memory type that is allowed by the memory requirements of a resource and has all the required
+     * property flags, with {@link VkUtils#findMemoryType(VkPhysicalDeviceMemoryProperties, int, int)}.
+     *
+     * @param memoryTypeBits The memoryTypeBits of the VkMemoryRequirements of the resource.
+     * @param requiredFlags  The VkMemoryPropertyFlags that the memory type must have.
+     *
+     * @return The index of the memory type, or -1 if no memory type is suitable.
+     */
+    public int findMemoryType(int memoryTypeBits, int requiredFlags)
+    {
+        return VkUtils.findMemoryType(memoryProperties, memoryTypeBits, requiredFlags);
+    }
+
+    /**
+     * Allocates memory for a resource.
+     *
+     * @param requirements  The memory requirements of the resource, from vkGetBufferMemoryRequirements or
+     *                      vkGetImageMemoryRequirements.
+     * @param requiredFlags The VkMemoryPropertyFlags that the memory must have.
+     * @param optimalImage  True if the resource is an image with optimal tiling, false for buffers and linear images.
+     *
+     * @return The allocation, that the resource can be bound to.
+     */
+    public DeviceAllocation allocate(VkMemoryRequirements requirements, int requiredFlags, boolean optimalImage)
+    {
+        return allocate(requirements.size(), requirements.alignment(), requirements.memoryTypeBits(), requiredFlags,
+                optimalImage);
+    }
+
+    /**
+     * Allocates memory for a resource.
+     *
+     * @param size           The size of the memory in bytes.
+     * @param alignment      The alignment of the memory.
+     * @param memoryTypeBits The memory types that the resource can be placed in.
+     * @param requiredFlags  The VkMemoryPropertyFlags that the memory must have.
+     * @param optimalImage   True if the resource is an image with optimal tiling, false for buffers and linear images.
+     *
+     * @return The allocation, that the resource can be bound to.
+     */
+    public DeviceAllocation allocate(long size, long alignment, int memoryTypeBits, int requiredFlags,
+                                     boolean optimalImage)
+    {
+        int memoryType = findMemoryType(memoryTypeBits, requiredFlags);
+
+        if (memoryType < 0)
+            throw new IllegalArgumentException("No memory type has the required flags " + requiredFlags);
+
+        int type = optimalImage ? TlsfAllocator.TYPE_OPTIMAL : TlsfAllocator.TYPE_LINEAR;
+
+        if (size > blockSize / 2)
+        {
+            // The dedicated memory starts at offset zero, which satisfies any alignment
+            Block block = new Block(memoryType, size, 1, true);
+            dedicatedBlocks.get(memoryType).add(block);
+
+            return block.allocate(size, 1, type);
+        }
+
+        List<Block> pool = pools.get(memoryType);
+
+        // Prefer the blocks that were allocated last, they are the most likely to have space
+        for (int i = pool.size() - 1; i >= 0; i--)
+        {
+            DeviceAllocation allocation = pool.get(i).allocate(size, alignment, type);
+
+            if (allocation != null)
+                return allocation;
+        }
+
+        Block block = new Block(memoryType, Math.min(blockSize, heapSizes[memoryTypeHeaps[memoryType]]),
+                bufferImageGranularity, false);
+        pool.add(block);
+
+        DeviceAllocation allocation = block.allocate(size, alignment, type);
+
+        if (allocation == null)
+            throw new IllegalStateException("Could not allocate " + size + " bytes from a new block");
+
+        return allocation;
+    }
+
+    /**
+     * Frees an allocation. The resource bound to it must be destroyed, and not be in use by the device anymore.
+     *
+     * @param allocation The allocation to free.
+     */
+    public void free(DeviceAllocation allocation)
+    {
+        Block block = allocation.block;
+
+        if (block.dedicated)
+        {
+            dedicatedBlocks.get(block.memoryType).remove(block);
+            block.destroy();
+            return;
+        }
+
+        block.allocator.free(allocation.handle);
+
+        List<Block> pool = pools.get(block.memoryType);
+
+        if (block.allocator.isEmpty() && pool.size() > 1)
+        {
+            pool.remove(block);
+            block.destroy();
+        }
+    }
+
+    /**
+     * Returns the statistics of the pool of a memory type, including the dedicated allocations of the memory type.
+     *
+     * @param memoryType The index of the memory type.
+     *
+     * @return The statistics of the pool.
+     */
+    public Statistics getStatistics(int memoryType)
+    {
+        Statistics statistics = new Statistics();
+
+        for (Block block : pools.get(memoryType))
+            statistics.add(block.allocator);
+
+        for (Block block : dedicatedBlocks.get(memoryType))
+        {
+            statistics.add(block.allocator);
+            statistics.dedicatedBlockCount++;
+        }
+
+        return statistics;
+    }
+
+    /**
+     * Prints the statistics of all the memory types that have blocks to the standard output.
+     */
+    public void printStatistics()
+    {
+        for (int i = 0; i < pools.size(); i++)
+        {
+            if (pools.get(i).isEmpty() && dedicatedBlocks.get(i).isEmpty())
+                continue;
+
+            System.out.println("Memory Type " + i + ": " + getStatistics(i));
+        }
+    }
+
+    /**
+     * Frees all the blocks of memory, and the dedicated allocations. Any allocations that are still alive become
+     * invalid.
+     */
+    public void destroy()
+    {
+        destroyBlocks(pools);
+        destroyBlocks(dedicatedBlocks);
+    }
+
+    private static void destroyBlocks(List<List<Block>> blocks)
+    {
+        for (List<Block> list : blocks)
+        {
+            for (Block block : list)
+                block.destroy();
+
+            list.clear();
+        }
+    }
+
+    /**
+     * The statistics of the pool of a memory type, to see how well the memory is used, and how fragmented it is.
+     */
+    public static final class Statistics
+    {
+        public int  blockCount;
+        public int  dedicatedBlockCount;
+        public int  allocationCount;
+        public long usedBytes;
+        public long freeBytes;
+        public int  freeRangeCount;
+        public long largestFreeRange;
+
+        void add(TlsfAllocator allocator)
+        {
+            blockCount++;
+            allocationCount += allocator.getAllocationCount();
+            usedBytes += allocator.getUsedBytes();
+            freeBytes += allocator.getFreeBytes();
+            freeRangeCount += allocator.getFreeRangeCount();
+            largestFreeRange = Math.max(largestFreeRange, allocator.getLargestFreeRange());
+        }
+
+        /**
+         * Returns how fragmented the free space is. This is zero when the free space is a single range, and gets closer
+         * to one as the free space is split into more and smaller ranges.
+         *
+         * @return The fragmentation, between zero and one.
+         */
+        public double getFragmentation()
+        {
+            return freeBytes == 0 ? 0.0 : 1.0 - (double) largestFreeRange / freeBytes;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d blocks (%d dedicated), %d allocations, %d bytes used, %d bytes free in " +
+                                 "%d ranges, largest free range %d bytes, fragmentation %.3f", blockCount,
+                    dedicatedBlockCount, allocationCount, usedBytes, freeBytes, freeRangeCount, largestFreeRange,
+                    getFragmentation());
+        }
+    }
+
+    /**
+     * A single VkDeviceMemory allocation, and the allocator that places the resources inside it.
+     */
+    final class Block
+    {
+        final int           memoryType;
+        final long          memory;
+        final TlsfAllocator allocator;
+        final boolean       dedicated;
+
+        Block(int memoryType, long size, long granularity, boolean dedicated)
+        {
+            this.memoryType = memoryType;
+            this.dedicated = dedicated;
+
+            try (MemoryStack stack = stackPush())
+            {
+                VkMemoryAllocateInfo allocateInfo = VkMemoryAllocateInfo.callocStack(stack)
+                        .sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO)
+                        .allocationSize(size)
+                        .memoryTypeIndex(memoryType);
+
+                LongBuffer pMemory = stack.mallocLong(1);
+                int err = vkAllocateMemory(device, allocateInfo, null, pMemory);
+
+                if (err != VK_SUCCESS)
+                    throw new IllegalStateException("Could not allocate " + size + " bytes of device memory: " + err);
+
+                memory = pMemory.get(0);
+            }
+
+            allocator = new TlsfAllocator(size, granularity);
+        }
+
+        DeviceAllocation allocate(long size, long alignment, int type)
+        {
+            int handle = allocator.allocate(size, alignment, type);
+
+            if (handle < 0)
+                return null;
+
+            return new DeviceAllocation(this, handle, memory, allocator.getOffset(handle), size, memoryType);
+        }
+
+        void destroy()
+        {
+            vkFreeMemory(device, memory, null);
+        }
+    }
+}
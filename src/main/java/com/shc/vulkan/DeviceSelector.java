@@ -0,0 +1,400 @@
+package com.shc.vulkan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static com.shc.vulkan.VkUtils.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Picks the physical device to use out of all the devices of the machine, instead of taking the first one that the
+ * driver happens to list, which on machines with several GPUs is often the integrated GPU or a CPU device.
+ * <p>
+ * The selection has two steps. First every {@link DeviceCandidate} is checked against the requirements, like the
+ * extensions and queue families that the example can't run without, and the candidates that fail a requirement are
+ * rejected with the reason. Then the remaining candidates are scored by a {@link Scorer}, and the one with the highest
+ * score is picked. The {@link #defaultScore(DeviceCandidate) default scorer} prefers discrete GPUs, then more video
+ * memory, async compute and transfer queues, and larger limits. Examples can plug in their own scorer, for example to
+ * prefer the integrated GPU to save power.
+ * <p>
+ * The ranking of all the candidates with their scores and rejections is printed by {@link #printReport(List)}, so
+ * that it is easy to see why a device was or wasn't picked. A device can be forced with {@code -Dvulkan.device=N},
+ * where N is the index of the device or a part of it's name, as long as it meets the requirements. The indices are
+ * matched first, and the names only when no device has the index.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class DeviceSelector
+{
+    /**
+     * Scores a candidate that meets all the requirements. A higher score is better.
+     */
+    @FunctionalInterface
+    public interface Scorer
+    {
+        double score(DeviceCandidate candidate);
+    }
+
+    /**
+     * The result of the selection for one candidate.
+     */
+    public static final class Ranking
+    {
+        private final DeviceCandidate candidate;
+        private final double          score;
+        private final String          rejection;
+
+        private Ranking(DeviceCandidate candidate, double score, String rejection)
+        {
+            this.candidate = candidate;
+            this.score = score;
+            this.rejection = rejection;
+        }
+
+        public DeviceCandidate getCandidate()
+        {
+            return candidate;
+        }
+
+        /**
+         * Returns the score of the candidate.
+         *
+         * @return The score, or zero if the candidate was rejected.
+         */
+        public double getScore()
+        {
+            return score;
+        }
+
+        public boolean isAccepted()
+        {
+            return rejection == null;
+        }
+
+        /**
+         * Returns the first requirement that the candidate did not meet.
+         *
+         * @return The description of the requirement, or null if the candidate was accepted.
+         */
+        public String getRejection()
+        {
+            return rejection;
+        }
+    }
+
+    private static final class Requirement
+    {
+        private final String                     description;
+        private final Predicate<DeviceCandidate> test;
+
+        private Requirement(String description, Predicate<DeviceCandidate> test)
+        {
+            this.description = description;
+            this.test = test;
+        }
+    }
+
+    private static final long MB = 1024 * 1024;
+
+    private final List<Requirement> requirements = new ArrayList<>();
+
+    private Scorer scorer = DeviceSelector::defaultScore;
+
+    /**
+     * Adds a requirement that every candidate must meet to be picked.
+     *
+     * @param description The description of the requirement, which is shown as the reason of the rejection.
+     * @param test        The test of the requirement.
+     *
+     * @return This selector, for chaining.
+     */
+    public DeviceSelector require(String description, Predicate<DeviceCandidate> test)
+    {
+        requirements.add(new Requirement(description, test));
+        return this;
+    }
+
+    /**
+     * Requires the candidates to support all the given extensions, like the swapchain extension.
+     *
+     * @param extensionNames The names of the extensions.
+     *
+     * @return This selector, for chaining.
+     */
+    public DeviceSelector requireExtensions(String... extensionNames)
+    {
+        for (String extensionName : extensionNames)
+            require("Extension " + extensionName, candidate -> candidate.hasExtension(extensionName));
+
+        return this;
+    }
+
+    /**
+     * Requires the candidates to have a queue family with all the given flags.
+     *
+     * @param queueFlags The VkQueueFlags that a single queue family must have.
+     *
+     * @return This selector, for chaining.
+     */
+    public DeviceSelector requireQueueFlags(int queueFlags)
+    {
+        return require("Queue family with flags 0x" + Integer.toHexString(queueFlags),
+                candidate -> candidate.hasQueueFlags(queueFlags));
+    }
+
+    /**
+     * Requires the candidates to have a device local heap of at least the given size.
+     *
+     * @param bytes The smallest size of the heap in bytes.
+     *
+     * @return This selector, for chaining.
+     */
+    public DeviceSelector requireDeviceLocalMemory(long bytes)
+    {
+        return require("Device local memory of " + bytes / MB + " MB",
+                candidate -> candidate.getDeviceLocalMemory() >= bytes);
+    }
+
+    /**
+     * Requires the candidates to allow storage buffer ranges of at least the given size.
+     *
+     * @param bytes The smallest value of the maxStorageBufferRange limit, as an unsigned int.
+     *
+     * @return This selector, for chaining.
+     */
+    public DeviceSelector requireStorageBufferRange(long bytes)
+    {
+        return require("Storage buffer range of " + bytes + " bytes",
+                candidate -> (candidate.getLimits().maxStorageBufferRange() & 0xFFFFFFFFL) >= bytes);
+    }
+
+    /**
+     * Sets the scorer that ranks the candidates that meet the requirements.
+     *
+     * @param scorer The scorer to use.
+     *
+     * @return This selector, for chaining.
+     */
+    public DeviceSelector setScorer(Scorer scorer)
+    {
+        this.scorer = scorer;
+        return this;
+    }
+
+    /**
+     * The scorer that is used unless another one is set. The type of the device is worth the most, so that a discrete
+     * GPU always wins over an integrated one, and the video memory, the queue families and the limits decide between
+     * devices of the same type.
+     *
+     * @param candidate The candidate to score.
+     *
+     * @return The score of the candidate.
+     */
+    public static double defaultScore(DeviceCandidate candidate)
+    {
+        double score;
+
+        switch (candidate.getDeviceType())
+        {
+            case VK_PHYSICAL_DEVICE_TYPE_DISCRETE_GPU:
+                score = 400000;
+                break;
+
+            case VK_PHYSICAL_DEVICE_TYPE_INTEGRATED_GPU:
+                score = 300000;
+                break;
+
+            case VK_PHYSICAL_DEVICE_TYPE_VIRTUAL_GPU:
+                score = 200000;
+                break;
+
+            case VK_PHYSICAL_DEVICE_TYPE_CPU:
+                score = 100000;
+                break;
+
+            default:
+                score = 0;
+        }
+
+        // A point for every megabyte of video memory, up to 32 GB so that the rest never adds up to another type
+        score += Math.min(candidate.getDeviceLocalMemory() / MB, 32768);
+
+        if (candidate.hasDedicatedComputeQueue())
+            score += 2000;
+
+        if (candidate.hasDedicatedTransferQueue())
+            score += 1000;
+
+        // The limits only break the ties, a point for every doubling
+        score += log2(candidate.getLimits().maxStorageBufferRange() & 0xFFFFFFFFL);
+        score += log2(candidate.getLimits().maxImageDimension2D() & 0xFFFFFFFFL);
+
+        return score;
+    }
+
+    private static int log2(long value)
+    {
+        return 63 - Long.numberOfLeadingZeros(Math.max(1, value));
+    }
+
+    /**
+     * Checks and scores all the candidates.
+     *
+     * @param candidates The candidates to rank.
+     *
+     * @return The rankings of the candidates, with the accepted candidates first from the highest score to the lowest,
+     * followed by the rejected candidates. Candidates with the same score stay in the order of the driver.
+     */
+    public List<Ranking> rank(List<DeviceCandidate> candidates)
+    {
+        List<Ranking> rankings = new ArrayList<>(candidates.size());
+
+        for (DeviceCandidate candidate : candidates)
+        {
+            String rejection = null;
+
+            for (Requirement requirement : requirements)
+            {
+                if (!requirement.test.test(candidate))
+                {
+                    rejection = requirement.description;
+                    break;
+                }
+            }
+
+            rankings.add(new Ranking(candidate, rejection == null ? scorer.score(candidate) : 0, rejection));
+        }
+
+        // The sort is stable, so the ties keep the order of the driver
+        rankings.sort((a, b) ->
+        {
+            if (a.isAccepted() != b.isAccepted())
+                return a.isAccepted() ? -1 : 1;
+
+            return Double.compare(b.score, a.score);
+        });
+
+        return Collections.unmodifiableList(rankings);
+    }
+
+    /**
+     * Picks the best candidate, or the one that is forced with {@code -Dvulkan.device}.
+     *
+     * @param rankings The rankings from {@link #rank(List)}.
+     *
+     * @return The picked candidate.
+     *
+     * @throws IllegalStateException If all the candidates were rejected.
+     */
+    public DeviceCandidate select(List<Ranking> rankings)
+    {
+        if (rankings.isEmpty() || !rankings.get(0).isAccepted())
+            throw new IllegalStateException("No physical device meets the requirements\n" + getReport(rankings));
+
+        String forced = System.getProperty("vulkan.device");
+
+        if (forced != null)
+        {
+            // An index is matched before any name, since a name like "GTX 1080" contains most small indices
+            DeviceCandidate candidate = findForced(rankings, forced, true);
+
+            if (candidate == null)
+                candidate = findForced(rankings, forced, false);
+
+            if (candidate != null)
+                return candidate;
+
+            System.err.println("No device that meets the requirements matches -Dvulkan.device=" + forced +
+                               ", using the best device instead");
+        }
+
+        return rankings.get(0).getCandidate();
+    }
+
+    private static DeviceCandidate findForced(List<Ranking> rankings, String forced, boolean byIndex)
+    {
+        for (Ranking ranking : rankings)
+        {
+            DeviceCandidate candidate = ranking.getCandidate();
+
+            if (!ranking.isAccepted())
+                continue;
+
+            if (byIndex ? forced.equals(Integer.toString(candidate.getIndex())) : candidate.getName().contains(forced))
+                return candidate;
+        }
+
+        return null;
+    }
+
+    /**
+     * Ranks the candidates and picks the best one.
+     *
+     * @param candidates  The candidates to pick from.
+     * @param printReport Whether to print the report of the rankings.
+     *
+     * @return The picked candidate.
+     *
+     * @throws IllegalStateException If all the candidates were rejected.
+     */
+    public DeviceCandidate select(List<DeviceCandidate> candidates, boolean printReport)
+    {
+        List<Ranking> rankings = rank(candidates);
+
+        if (printReport)
+            printReport(rankings);
+
+        return select(rankings);
+    }
+
+    /**
+     * Formats the rankings as a table, with the facts that the default scorer looks at for every candidate.
+     *
+     * @param rankings The rankings from {@link #rank(List)}.
+     *
+     * @return The report as a string.
+     */
+    public static String getReport(List<Ranking> rankings)
+    {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-4s %-10s %-15s %-10s %-8s %-12s %s%n", "Rank", "Score", "Type", "Memory",
+                "Queues", "Storage", "Device"));
+
+        for (int i = 0; i < rankings.size(); i++)
+        {
+            Ranking ranking = rankings.get(i);
+            DeviceCandidate candidate = ranking.getCandidate();
+
+            String queues = (candidate.getGraphicsQueueFamily() >= 0 ? "G" : "-") +
+                            (candidate.getComputeQueueFamily() >= 0 ? candidate.hasDedicatedComputeQueue() ? "C" : "c"
+                                                                    : "-") +
+                            (candidate.hasDedicatedTransferQueue() ? "T" : "-");
+
+            report.append(String.format("%-4s %-10s %-15s %-10s %-8s %-12s %d: %s%n",
+                    ranking.isAccepted() ? Integer.toString(i + 1) : "-",
+                    ranking.isAccepted() ? String.format("%.0f", ranking.getScore()) : "Rejected",
+                    translatePhysicalDeviceType(candidate.getDeviceType()),
+                    candidate.getDeviceLocalMemory() / MB + " MB",
+                    queues,
+                    candidate.getLimits().maxStorageBufferRange() & 0xFFFFFFFFL,
+                    candidate.getIndex(), candidate.getName()));
+
+            if (!ranking.isAccepted())
+                report.append("     Missing: ").append(ranking.getRejection()).append(System.lineSeparator());
+        }
+
+        return report.toString();
+    }
+
+    /**
+     * Prints the report of the rankings to the standard output.
+     *
+     * @param rankings The rankings from {@link #rank(List)}.
+     */
+    public static void printReport(List<Ranking> rankings)
+    {
+        System.out.print(getReport(rankings));
+    }
+}
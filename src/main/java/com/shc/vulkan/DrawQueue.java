@@ -0,0 +1,399 @@
+package com.shc.vulkan;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Collects the draws of a frame as 64-bit sort keys, sorts them by their state, and merges the draws with the same
+ * state and mesh into instanced draws, so that a frame is recorded with the fewest binds and draw calls. Examples
+ * submit their draws from {@code render()} in any order, and flush the queue into a {@link Target} once all the draws
+ * are in, usually a {@link VkDrawRecorder} that records the binds and the draws into a command buffer.
+ * <p>
+ * A key packs, from the most significant bits down, the pass, the pipeline, the descriptor set, the material, the mesh
+ * and a quantized depth, see {@link #encodeKey(int, int, int, int, int, int)}. So sorting the keys as unsigned numbers
+ * groups the draws by pass first and by pipeline next, which are the most expensive to switch, and orders the draws
+ * with the same state front to back. Every draw also carries an instance, like the index of the entity in a
+ * {@link TransformSystem}, which is what the instances of a merged draw read with {@code gl_InstanceIndex}.
+ * <p>
+ * The keys and the instances are kept in primitive arrays, and sorted with a least significant digit radix sort of
+ * eight passes over the bytes of the keys. The histograms of all the bytes are counted in a single pass first, and the
+ * passes whose byte is the same for every key are skipped, which is common for the pass and the pipeline. The sort is
+ * stable, so draws with the same key keep the order they were submitted in. Nothing is allocated once the arrays have
+ * grown to the number of draws of a frame.
+ * <p>
+ * The queue assumes that all the pipelines share a compatible pipeline layout, so the bound descriptor sets stay valid
+ * across a change of pipeline and are only bound again when they change. Everything is bound again at the start of a
+ * pass.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class DrawQueue
+{
+    /**
+     * Receives the binds and the draws of a flushed queue, in the order they have to be recorded.
+     */
+    public interface Target
+    {
+        void beginPass(int pass);
+
+        void bindPipeline(int pipeline);
+
+        void bindDescriptorSet(int descriptorSet);
+
+        void bindMaterial(int material);
+
+        /**
+         * Draws a mesh with a range of instances. The ids of the instances are at the positions {@code firstInstance}
+         * to {@code firstInstance + instanceCount} of the instances written by {@link #flush(Target, IntBuffer)}.
+         *
+         * @param mesh          The mesh to draw.
+         * @param firstInstance The first instance.
+         * @param instanceCount The number of instances.
+         */
+        void drawInstanced(int mesh, int firstInstance, int instanceCount);
+    }
+
+    public static final int PASS_BITS           = 4;
+    public static final int PIPELINE_BITS       = 10;
+    public static final int DESCRIPTOR_SET_BITS = 12;
+    public static final int MATERIAL_BITS       = 12;
+    public static final int MESH_BITS           = 14;
+    public static final int DEPTH_BITS          = 12;
+
+    private static final int DEPTH_SHIFT          = 0;
+    private static final int MESH_SHIFT           = DEPTH_SHIFT + DEPTH_BITS;
+    private static final int MATERIAL_SHIFT       = MESH_SHIFT + MESH_BITS;
+    private static final int DESCRIPTOR_SET_SHIFT = MATERIAL_SHIFT + MATERIAL_BITS;
+    private static final int PIPELINE_SHIFT       = DESCRIPTOR_SET_SHIFT + DESCRIPTOR_SET_BITS;
+    private static final int PASS_SHIFT           = PIPELINE_SHIFT + PIPELINE_BITS;
+
+    private long[] keys      = new long[1024];
+    private int[]  instances = new int[1024];
+
+    // The other half of the ping pong buffers of the radix sort
+    private long[] sortedKeys      = new long[1024];
+    private int[]  sortedInstances = new int[1024];
+
+    private final int[] histograms = new int[8 * 256];
+
+    private int count;
+
+    // The statistics of the last flush
+    private int drawCalls;
+    private int pipelineBinds;
+    private int descriptorSetBinds;
+    private int materialBinds;
+    private int sortPasses;
+
+    /**
+     * Packs the state of a draw into a sort key.
+     *
+     * @param pass          The pass, from zero to 15. Draws are sorted by the pass before anything else.
+     * @param pipeline      The pipeline, from zero to 1023.
+     * @param descriptorSet The descriptor set, from zero to 4095.
+     * @param material      The material, from zero to 4095.
+     * @param mesh          The mesh, from zero to 16383.
+     * @param depth         The quantized depth from {@link #quantizeDepth(float, float, float)}, from zero to 4095.
+     *
+     * @return The sort key.
+     */
+    public static long encodeKey(int pass, int pipeline, int descriptorSet, int material, int mesh, int depth)
+    {
+        checkField("pass", pass, PASS_BITS);
+        checkField("pipeline", pipeline, PIPELINE_BITS);
+        checkField("descriptor set", descriptorSet, DESCRIPTOR_SET_BITS);
+        checkField("material", material, MATERIAL_BITS);
+        checkField("mesh", mesh, MESH_BITS);
+        checkField("depth", depth, DEPTH_BITS);
+
+        return (long) pass << PASS_SHIFT
+               | (long) pipeline << PIPELINE_SHIFT
+               | (long) descriptorSet << DESCRIPTOR_SET_SHIFT
+               | (long) material << MATERIAL_SHIFT
+               | (long) mesh << MESH_SHIFT
+               | (long) depth << DEPTH_SHIFT;
+    }
+
+    private static void checkField(String name, int value, int bits)
+    {
+        if ((value >>> bits) != 0)
+            throw new IllegalArgumentException("The " + name + " " + value + " doesn't fit in " + bits + " bits");
+    }
+
+    /**
+     * Quantizes a view space depth into the bits of the key, linearly between the near and the far planes. Depths
+     * outside of the planes are clamped.
+     *
+     * @param depth The distance from the camera.
+     * @param near  The distance of the near plane.
+     * @param far   The distance of the far plane.
+     *
+     * @return The quantized depth, from zero for the near plane to 4095 for the far plane.
+     */
+    public static int quantizeDepth(float depth, float near, float far)
+    {
+        float t = (depth - near) / (far - near);
+        int maxDepth = (1 << DEPTH_BITS) - 1;
+
+        return Math.max(0, Math.min(maxDepth, (int) (t * maxDepth)));
+    }
+
+    public static int getPass(long key)
+    {
+        return (int) (key >>> PASS_SHIFT) & ((1 << PASS_BITS) - 1);
+    }
+
+    public static int getPipeline(long key)
+    {
+        return (int) (key >>> PIPELINE_SHIFT) & ((1 << PIPELINE_BITS) - 1);
+    }
+
+    public static int getDescriptorSet(long key)
+    {
+        return (int) (key >>> DESCRIPTOR_SET_SHIFT) & ((1 << DESCRIPTOR_SET_BITS) - 1);
+    }
+
+    public static int getMaterial(long key)
+    {
+        return (int) (key >>> MATERIAL_SHIFT) & ((1 << MATERIAL_BITS) - 1);
+    }
+
+    public static int getMesh(long key)
+    {
+        return (int) (key >>> MESH_SHIFT) & ((1 << MESH_BITS) - 1);
+    }
+
+    public static int getDepth(long key)
+    {
+        return (int) (key >>> DEPTH_SHIFT) & ((1 << DEPTH_BITS) - 1);
+    }
+
+    /**
+     * Adds a draw to the queue.
+     *
+     * @param key      The sort key of the draw, from {@link #encodeKey(int, int, int, int, int, int)}.
+     * @param instance The instance of the draw, like the index of it's transform.
+     */
+    public void submit(long key, int instance)
+    {
+        if (count == keys.length)
+            grow();
+
+        keys[count] = key;
+        instances[count] = instance;
+        count++;
+    }
+
+    private void grow()
+    {
+        int capacity = keys.length * 2;
+
+        keys = Arrays.copyOf(keys, capacity);
+        instances = Arrays.copyOf(instances, capacity);
+        sortedKeys = new long[capacity];
+        sortedInstances = new int[capacity];
+    }
+
+    /**
+     * Returns the number of draws submitted since the last flush.
+     *
+     * @return The number of draws in the queue.
+     */
+    public int size()
+    {
+        return count;
+    }
+
+    /**
+     * Sorts the draws, writes their instances in the sorted order, and emits the binds and the merged draws to the
+     * target. The queue is empty after this.
+     *
+     * @param target    The target to emit the binds and the draws to.
+     * @param instances The buffer to write the instances to, from it's position, usually a view of a mapped storage
+     *                  buffer. This can be null if the instances are not used.
+     */
+    public void flush(Target target, IntBuffer instances)
+    {
+        sort();
+
+        if (instances != null)
+            instances.put(this.instances, 0, count);
+
+        merge(target);
+
+        count = 0;
+    }
+
+    /**
+     * Sorts the keys as unsigned numbers, along with their instances.
+     */
+    private void sort()
+    {
+        int n = count;
+
+        sortPasses = 0;
+
+        if (n < 2)
+            return;
+
+        Arrays.fill(histograms, 0);
+
+        // Count the histograms of all the bytes in a single pass over the keys
+        for (int i = 0; i < n; i++)
+        {
+            long key = keys[i];
+
+            for (int b = 0; b < 8; b++)
+                histograms[(b << 8) | (int) ((key >>> (b << 3)) & 0xFF)]++;
+        }
+
+        long[] sourceKeys = keys;
+        int[] sourceInstances = instances;
+        long[] destinationKeys = sortedKeys;
+        int[] destinationInstances = sortedInstances;
+
+        for (int b = 0; b < 8; b++)
+        {
+            int base = b << 8;
+            int shift = b << 3;
+
+            // All the keys have the same byte here, so the pass would not move anything
+            if (histograms[base | (int) ((sourceKeys[0] >>> shift) & 0xFF)] == n)
+                continue;
+
+            // Turn the counts into the offsets of the buckets
+            int offset = 0;
+
+            for (int i = base; i < base + 256; i++)
+            {
+                int bucketCount = histograms[i];
+                histograms[i] = offset;
+                offset += bucketCount;
+            }
+
+            for (int i = 0; i < n; i++)
+            {
+                long key = sourceKeys[i];
+                int index = histograms[base | (int) ((key >>> shift) & 0xFF)]++;
+
+                destinationKeys[index] = key;
+                destinationInstances[index] = sourceInstances[i];
+            }
+
+            long[] tempKeys = sourceKeys;
+            sourceKeys = destinationKeys;
+            destinationKeys = tempKeys;
+
+            int[] tempInstances = sourceInstances;
+            sourceInstances = destinationInstances;
+            destinationInstances = tempInstances;
+
+            sortPasses++;
+        }
+
+        // The sorted draws end up in either half, so swap the halves instead of copying them back
+        keys = sourceKeys;
+        instances = sourceInstances;
+        sortedKeys = destinationKeys;
+        sortedInstances = destinationInstances;
+    }
+
+    /**
+     * Emits the sorted draws, merging the runs of draws that only differ in depth into a single instanced draw.
+     */
+    private void merge(Target target)
+    {
+        int n = count;
+
+        drawCalls = 0;
+        pipelineBinds = 0;
+        descriptorSetBinds = 0;
+        materialBinds = 0;
+
+        int pass = -1;
+        int pipeline = -1;
+        int descriptorSet = -1;
+        int material = -1;
+
+        int start = 0;
+
+        while (start < n)
+        {
+            long key = keys[start];
+            long state = key >>> MESH_SHIFT;
+
+            int end = start + 1;
+
+            while (end < n && (keys[end] >>> MESH_SHIFT) == state)
+                end++;
+
+            if (getPass(key) != pass)
+            {
+                pass = getPass(key);
+                target.beginPass(pass);
+
+                pipeline = -1;
+                descriptorSet = -1;
+                material = -1;
+            }
+
+            if (getPipeline(key) != pipeline)
+            {
+                pipeline = getPipeline(key);
+                target.bindPipeline(pipeline);
+                pipelineBinds++;
+            }
+
+            if (getDescriptorSet(key) != descriptorSet)
+            {
+                descriptorSet = getDescriptorSet(key);
+                target.bindDescriptorSet(descriptorSet);
+                descriptorSetBinds++;
+            }
+
+            if (getMaterial(key) != material)
+            {
+                material = getMaterial(key);
+                target.bindMaterial(material);
+                materialBinds++;
+            }
+
+            target.drawInstanced(getMesh(key), start, end - start);
+            drawCalls++;
+
+            start = end;
+        }
+    }
+
+    /**
+     * Returns the number of draw calls that the last flush emitted, after merging.
+     */
+    public int getDrawCalls()
+    {
+        return drawCalls;
+    }
+
+    public int getPipelineBinds()
+    {
+        return pipelineBinds;
+    }
+
+    public int getDescriptorSetBinds()
+    {
+        return descriptorSetBinds;
+    }
+
+    public int getMaterialBinds()
+    {
+        return materialBinds;
+    }
+
+    /**
+     * Returns the number of radix sort passes that the last flush ran, out of eight. The rest were skipped because all
+     * the keys had the same byte.
+     */
+    public int getSortPasses()
+    {
+        return sortPasses;
+    }
+}
@@ -0,0 +1,29 @@
+package com.shc.vulkan;
+
+/**
+ * A monotonically increasing counter of the work completed by the device. Every submission to the queue is given the
+ * next value of the clock, and the clock reports the latest value whose work has completed. Systems that have to wait
+ * for the device before reusing something, like the {@link StagingRing}, tag their resources with these values instead
+ * of holding on to the fences themselves.
+ * <p>
+ * The {@link VkFenceClock} implements this with a ring of VkFences. Since the systems only see the numbers, they can be
+ * tested with a clock that is advanced by hand.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public interface FenceClock
+{
+    /**
+     * Returns the latest value whose work is known to be complete. All the earlier values are complete too.
+     *
+     * @return The latest completed value, or zero if nothing has completed yet.
+     */
+    long getCompletedValue();
+
+    /**
+     * Blocks till the work of the given value is complete.
+     *
+     * @param value The value to wait for.
+     */
+    void waitFor(long value);
+}
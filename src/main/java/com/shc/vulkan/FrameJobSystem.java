@@ -0,0 +1,212 @@
+package com.shc.vulkan;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A small job system that splits the work of a frame across a pool of worker threads. The work is a range of items,
+ * like the draws of a scene, which is split into contiguous chunks. Every chunk is run on one thread, and the chunks
+ * are always split the same way for the same item count, so the results of the chunks can be merged in chunk order to
+ * get the same output no matter which thread ran which chunk.
+ * <p>
+ * The system is built on a {@link ForkJoinPool}. The tasks of the chunks are created once and reused every frame, so
+ * running a frame does not allocate anything once the number of chunks stops growing. The {@link #run(int, int, Job)}
+ * method blocks till all the chunks are done. It should only be called from one thread at a time, usually the render
+ * thread.
+ * <p>
+ * The {@link ParallelCommandRecorder} uses this to record secondary command buffers in parallel.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class FrameJobSystem
+{
+    /**
+     * The work of a single chunk of items.
+     */
+    @FunctionalInterface
+    public interface Job
+    {
+        /**
+         * Runs the work of a chunk. Chunks are run concurrently, so a job must only touch the state of it's own chunk.
+         *
+         * @param chunk The index of the chunk, from zero to the chunk count.
+         * @param start The index of the first item of the chunk.
+         * @param end   The index after the last item of the chunk.
+         */
+        void execute(int chunk, int start, int end);
+    }
+
+    private final ForkJoinPool pool;
+    private final int          threadCount;
+
+    private final RootTask root = new RootTask();
+
+    private ChunkTask[] chunkTasks = new ChunkTask[0];
+
+    /**
+     * Creates a job system with one worker thread for every processor.
+     */
+    public FrameJobSystem()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a job system with the given number of worker threads.
+     *
+     * @param threadCount The number of worker threads.
+     */
+    public FrameJobSystem(int threadCount)
+    {
+        if (threadCount <= 0)
+            throw new IllegalArgumentException("The thread count must be positive");
+
+        this.threadCount = threadCount;
+
+        pool = new ForkJoinPool(threadCount);
+    }
+
+    /**
+     * Splits the items into one chunk for every worker thread and runs the job on all the chunks.
+     *
+     * @param itemCount The number of items to split.
+     * @param job       The job to run on every chunk.
+     */
+    public void run(int itemCount, Job job)
+    {
+        run(itemCount, threadCount, job);
+    }
+
+    /**
+     * Splits the items into the given number of contiguous chunks and runs the job on all the chunks, waiting for all
+     * of them to complete. The first {@code itemCount % chunkCount} chunks get one item more than the rest, and chunks
+     * can be empty when there are less items than chunks.
+     *
+     * @param itemCount  The number of items to split.
+     * @param chunkCount The number of chunks to split the items into.
+     * @param job        The job to run on every chunk.
+     */
+    public void run(int itemCount, int chunkCount, Job job)
+    {
+        if (chunkCount <= 0)
+            throw new IllegalArgumentException("The chunk count must be positive");
+
+        if (chunkCount == 1)
+        {
+            // Not worth handing over to the pool
+            job.execute(0, 0, itemCount);
+            return;
+        }
+
+        if (chunkTasks.length < chunkCount)
+        {
+            ChunkTask[] tasks = new ChunkTask[chunkCount];
+            System.arraycopy(chunkTasks, 0, tasks, 0, chunkTasks.length);
+
+            for (int i = chunkTasks.length; i < chunkCount; i++)
+                tasks[i] = new ChunkTask();
+
+            chunkTasks = tasks;
+        }
+
+        for (int i = 0; i < chunkCount; i++)
+        {
+            ChunkTask task = chunkTasks[i];
+            task.reinitialize();
+
+            task.job = job;
+            task.chunk = i;
+            task.start = getChunkStart(itemCount, chunkCount, i);
+            task.end = getChunkStart(itemCount, chunkCount, i + 1);
+        }
+
+        root.reinitialize();
+        root.chunkCount = chunkCount;
+
+        try
+        {
+            pool.invoke(root);
+        }
+        finally
+        {
+            for (int i = 0; i < chunkCount; i++)
+                chunkTasks[i].job = null;
+        }
+    }
+
+    /**
+     * Returns the index of the first item of a chunk, the same way that the {@link #run(int, int, Job)} method splits
+     * the items.
+     *
+     * @param itemCount  The number of items that are split.
+     * @param chunkCount The number of chunks that the items are split into.
+     * @param chunk      The index of the chunk.
+     *
+     * @return The index of the first item of the chunk.
+     */
+    public static int getChunkStart(int itemCount, int chunkCount, int chunk)
+    {
+        int size = itemCount / chunkCount;
+        int remainder = itemCount % chunkCount;
+
+        return chunk * size + Math.min(chunk, remainder);
+    }
+
+    public int getThreadCount()
+    {
+        return threadCount;
+    }
+
+    /**
+     * Stops the worker threads once they are done with the work that is already running.
+     */
+    public void shutdown()
+    {
+        pool.shutdown();
+    }
+
+    private class RootTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private int chunkCount;
+
+        @Override
+        protected void compute()
+        {
+            // Forks all the chunks but the first, runs the first one on this thread, and then joins the rest
+            for (int i = chunkCount - 1; i > 0; i--)
+                chunkTasks[i].fork();
+
+            try
+            {
+                chunkTasks[0].invoke();
+            }
+            finally
+            {
+                // Wait for the others even if the first chunk failed, so no chunk outlives the frame
+                for (int i = 1; i < chunkCount; i++)
+                    chunkTasks[i].quietlyJoin();
+            }
+
+            for (int i = 1; i < chunkCount; i++)
+                chunkTasks[i].join();
+        }
+    }
+
+    private static class ChunkTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private Job job;
+        private int chunk;
+        private int start;
+        private int end;
+
+        @Override
+        protected void compute()
+        {
+            job.execute(chunk, start, end);
+        }
+    }
+}
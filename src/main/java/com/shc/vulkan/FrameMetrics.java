@@ -0,0 +1,337 @@
+package com.shc.vulkan;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Collects the per-frame timings of the event loop in {@link VulkanExample}. The time spent in polling the events and
+ * the time spent in rendering are recorded separately, each into it's own {@link FrameTimeHistogram}, along with the
+ * total time of the frame. Recording does not allocate, so this can be left enabled even when benchmarking. The
+ * latency from every input event to the end of the frame that handled it is recorded into another histogram.
+ * <p>
+ * The metrics can be read from within the process using {@link VulkanExample#getFrameMetrics()}, and snapshots of them
+ * can be written periodically to a file by passing {@code -Dvulkan.metrics.file=path} to the JVM. A file name ending
+ * with {@code .json} gets one JSON object per line, and any other file gets CSV rows. The interval between snapshots
+ * is set with {@code -Dvulkan.metrics.interval=millis}, and defaults to five seconds.
+ * <p>
+ * The snapshots are not written by the thread that records the frames, since formatting and writing the file would
+ * show up in the very histograms that are being written. Instead the histograms are copied into a second set that is
+ * allocated up front, and an exporter thread formats and writes the copies. If the exporter is still busy with the
+ * last snapshot when the next one is due, the copy is put off to a later frame. A last snapshot is written by
+ * {@link #shutdown()}.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class FrameMetrics
+{
+    private static final String CSV_HEADER = "timestamp_ms,phase,count,mean_us,p50_us,p95_us,p99_us,max_us\n";
+
+    private final FrameTimeHistogram pollEvents = new FrameTimeHistogram();
+    private final FrameTimeHistogram render     = new FrameTimeHistogram();
+    private final FrameTimeHistogram frame      = new FrameTimeHistogram();
+
+    private final FrameTimeHistogram inputLatency = new FrameTimeHistogram();
+
+    // The copies of the histograms that the exporter thread writes, owned by it while a snapshot is pending
+    private final FrameTimeHistogram pollEventsCopy   = new FrameTimeHistogram();
+    private final FrameTimeHistogram renderCopy       = new FrameTimeHistogram();
+    private final FrameTimeHistogram frameCopy        = new FrameTimeHistogram();
+    private final FrameTimeHistogram inputLatencyCopy = new FrameTimeHistogram();
+
+    // The builder is reused for every snapshot so that the periodic export doesn't create garbage every time
+    private final StringBuilder snapshot = new StringBuilder(1024);
+
+    private final String snapshotFile;
+    private final long   snapshotIntervalNanos;
+    private final boolean json;
+
+    private final Thread exporter;
+
+    private volatile boolean snapshotPending;
+    private volatile boolean shutdown;
+
+    private long    snapshotTimestamp;
+    private long    lastSnapshotTime;
+    private boolean headerWritten;
+
+    /**
+     * Creates the frame metrics, using the system properties to configure the periodic snapshots.
+     */
+    public FrameMetrics()
+    {
+        this(System.getProperty("vulkan.metrics.file"), Long.getLong("vulkan.metrics.interval", 5000L));
+    }
+
+    /**
+     * Creates the frame metrics that write periodic snapshots to the given file.
+     *
+     * @param snapshotFile           The path of the file to write the snapshots to, or null to disable snapshots.
+     * @param snapshotIntervalMillis The interval between two snapshots in milliseconds.
+     */
+    public FrameMetrics(String snapshotFile, long snapshotIntervalMillis)
+    {
+        this.snapshotFile = snapshotFile;
+        this.snapshotIntervalNanos = snapshotIntervalMillis * 1000000L;
+        this.json = snapshotFile != null && snapshotFile.endsWith(".json");
+
+        lastSnapshotTime = System.nanoTime();
+
+        if (snapshotFile == null)
+            exporter = null;
+        else
+        {
+            exporter = new Thread(this::exportSnapshots, "Frame Metrics Exporter");
+            exporter.setDaemon(true);
+            exporter.start();
+        }
+    }
+
+    /**
+     * Records the timings of a single frame. The three timestamps are taken before polling the events, after polling
+     * the events, and after rendering the frame.
+     *
+     * @param frameStart   The time before polling the events, in nanoseconds.
+     * @param eventsPolled The time after polling the events, in nanoseconds.
+     * @param frameEnd     The time after rendering the frame, in nanoseconds.
+     */
+    public void recordFrame(long frameStart, long eventsPolled, long frameEnd)
+    {
+        pollEvents.record(eventsPolled - frameStart);
+        render.record(frameEnd - eventsPolled);
+        frame.record(frameEnd - frameStart);
+
+        // The copy is only taken when the exporter is done with the last one, otherwise it is tried again next frame
+        if (exporter != null && !snapshotPending && frameEnd - lastSnapshotTime >= snapshotIntervalNanos)
+        {
+            lastSnapshotTime = frameEnd;
+
+            copyHistograms();
+            snapshotPending = true;
+            LockSupport.unpark(exporter);
+        }
+    }
+
+    private void copyHistograms()
+    {
+        pollEvents.copyTo(pollEventsCopy);
+        render.copyTo(renderCopy);
+        frame.copyTo(frameCopy);
+        inputLatency.copyTo(inputLatencyCopy);
+
+        snapshotTimestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * The loop of the exporter thread, which writes every snapshot that the frames hand to it.
+     */
+    private void exportSnapshots()
+    {
+        while (!shutdown)
+        {
+            if (!snapshotPending)
+            {
+                LockSupport.park(this);
+                continue;
+            }
+
+            writeSnapshot();
+            snapshotPending = false;
+        }
+    }
+
+    /**
+     * Stops the exporter thread, and writes a last snapshot of the histograms if the snapshots are enabled. This is
+     * called once no more frames are recorded.
+     */
+    public void shutdown()
+    {
+        if (exporter == null || shutdown)
+            return;
+
+        shutdown = true;
+        LockSupport.unpark(exporter);
+
+        boolean interrupted = false;
+
+        while (exporter.isAlive())
+        {
+            try
+            {
+                exporter.join();
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        // A snapshot that was handed over but not written yet is replaced by this one, which is newer
+        copyHistograms();
+        writeSnapshot();
+    }
+
+    /**
+     * Records the latency of a single input event, from the time the event was received to the end of the frame that
+     * handled it.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    public void recordInputLatency(long nanos)
+    {
+        inputLatency.record(nanos);
+    }
+
+    public FrameTimeHistogram getPollEventsHistogram()
+    {
+        return pollEvents;
+    }
+
+    public FrameTimeHistogram getRenderHistogram()
+    {
+        return render;
+    }
+
+    public FrameTimeHistogram getFrameHistogram()
+    {
+        return frame;
+    }
+
+    public FrameTimeHistogram getInputLatencyHistogram()
+    {
+        return inputLatency;
+    }
+
+    /**
+     * Appends a CSV snapshot of all the histograms to the given builder, one row for every phase of the frame. The
+     * header row is not included.
+     *
+     * @param builder The builder to append the rows to.
+     *
+     * @return The same builder, for chaining the calls.
+     */
+    public StringBuilder appendCsv(StringBuilder builder)
+    {
+        return appendCsv(builder, System.currentTimeMillis(), pollEvents, render, frame, inputLatency);
+    }
+
+    private static StringBuilder appendCsv(StringBuilder builder, long timestamp, FrameTimeHistogram pollEvents,
+                                           FrameTimeHistogram render, FrameTimeHistogram frame,
+                                           FrameTimeHistogram inputLatency)
+    {
+        appendCsvRow(builder, timestamp, "poll_events", pollEvents);
+        appendCsvRow(builder, timestamp, "render", render);
+        appendCsvRow(builder, timestamp, "frame", frame);
+        appendCsvRow(builder, timestamp, "input_latency", inputLatency);
+
+        return builder;
+    }
+
+    /**
+     * Appends a JSON snapshot of all the histograms to the given builder, as a single JSON object on a single line.
+     *
+     * @param builder The builder to append the object to.
+     *
+     * @return The same builder, for chaining the calls.
+     */
+    public StringBuilder appendJson(StringBuilder builder)
+    {
+        return appendJson(builder, System.currentTimeMillis(), pollEvents, render, frame, inputLatency);
+    }
+
+    private static StringBuilder appendJson(StringBuilder builder, long timestamp, FrameTimeHistogram pollEvents,
+                                            FrameTimeHistogram render, FrameTimeHistogram frame,
+                                            FrameTimeHistogram inputLatency)
+    {
+        builder.append("{\"timestamp_ms\":").append(timestamp);
+
+        appendJsonPhase(builder.append(','), "poll_events", pollEvents);
+        appendJsonPhase(builder.append(','), "render", render);
+        appendJsonPhase(builder.append(','), "frame", frame);
+        appendJsonPhase(builder.append(','), "input_latency", inputLatency);
+
+        return builder.append('}');
+    }
+
+    /**
+     * Prints a summary of the frame timings to the standard output.
+     */
+    public void printSummary()
+    {
+        System.out.println("Frame Timings (microseconds)");
+        System.out.println("~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
+
+        printPhase("Poll Events", pollEvents);
+        printPhase("Render", render);
+        printPhase("Frame", frame);
+
+        if (inputLatency.getCount() > 0)
+            printPhase("Input Latency", inputLatency);
+    }
+
+    /**
+     * Writes the copies of the histograms to the file, on the exporter thread, or on the thread that shuts it down.
+     */
+    private void writeSnapshot()
+    {
+        snapshot.setLength(0);
+
+        if (json)
+            appendJson(snapshot, snapshotTimestamp, pollEventsCopy, renderCopy, frameCopy, inputLatencyCopy)
+                    .append('\n');
+        else
+        {
+            if (!headerWritten)
+                snapshot.append(CSV_HEADER);
+
+            appendCsv(snapshot, snapshotTimestamp, pollEventsCopy, renderCopy, frameCopy, inputLatencyCopy);
+        }
+
+        try (Writer writer = new FileWriter(snapshotFile, headerWritten))
+        {
+            writer.append(snapshot);
+            headerWritten = true;
+        }
+        catch (IOException e)
+        {
+            System.err.println("Could not write the frame metrics to " + snapshotFile + ": " + e.getMessage());
+        }
+    }
+
+    private static void appendCsvRow(StringBuilder builder, long timestamp, String phase, FrameTimeHistogram histogram)
+    {
+        builder.append(timestamp).append(',')
+                .append(phase).append(',')
+                .append(histogram.getCount()).append(',')
+                .append(histogram.getMeanNanos() / 1000.0).append(',')
+                .append(histogram.getPercentile(50) / 1000.0).append(',')
+                .append(histogram.getPercentile(95) / 1000.0).append(',')
+                .append(histogram.getPercentile(99) / 1000.0).append(',')
+                .append(histogram.getMaxNanos() / 1000.0).append('\n');
+    }
+
+    private static void appendJsonPhase(StringBuilder builder, String phase, FrameTimeHistogram histogram)
+    {
+        builder.append('"').append(phase).append("\":{")
+                .append("\"count\":").append(histogram.getCount())
+                .append(",\"mean_us\":").append(histogram.getMeanNanos() / 1000.0)
+                .append(",\"p50_us\":").append(histogram.getPercentile(50) / 1000.0)
+                .append(",\"p95_us\":").append(histogram.getPercentile(95) / 1000.0)
+                .append(",\"p99_us\":").append(histogram.getPercentile(99) / 1000.0)
+                .append(",\"max_us\":").append(histogram.getMaxNanos() / 1000.0)
+                .append('}');
+    }
+
+    private static void printPhase(String name, FrameTimeHistogram histogram)
+    {
+        System.out.println("\t" + name + ": " + String.format("p50 %.1f, p95 %.1f, p99 %.1f, max %.1f",
+                histogram.getPercentile(50) / 1000.0,
+                histogram.getPercentile(95) / 1000.0,
+                histogram.getPercentile(99) / 1000.0,
+                histogram.getMaxNanos() / 1000.0));
+    }
+}
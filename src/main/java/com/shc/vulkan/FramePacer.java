@@ -0,0 +1,94 @@
+package com.shc.vulkan;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces the frames of the render loop to a target frame rate. The frames are scheduled on a fixed grid of deadlines, so
+ * a frame that starts late doesn't push all the frames after it, and the average rate stays on the target. If the loop
+ * falls behind by more than a whole frame, the grid is restarted from the current time instead of rendering a burst of
+ * frames to catch up.
+ * <p>
+ * Waiting parks the thread till shortly before the deadline, and spins for the rest, since parking alone often wakes
+ * up a millisecond or more late, which is a lot at high frame rates.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class FramePacer
+{
+    // How long before the deadline the pacer stops parking and starts spinning
+    private static final long SPIN_NANOS = 1000000L;
+
+    private final long frameNanos;
+
+    private long nextFrame;
+    private long waitedNanos;
+
+    /**
+     * Creates the pacer.
+     *
+     * @param targetFps The target number of frames per second, or zero to not limit the frame rate.
+     */
+    public FramePacer(double targetFps)
+    {
+        if (targetFps < 0)
+            throw new IllegalArgumentException("The target frame rate can't be negative");
+
+        frameNanos = targetFps == 0 ? 0 : (long) (1e9 / targetFps);
+    }
+
+    /**
+     * Waits till it is time to start the next frame. Returns right away when the frame rate is not limited.
+     *
+     * @return The time at which the frame starts, in nanoseconds.
+     */
+    public long waitForNextFrame()
+    {
+        long now = System.nanoTime();
+
+        if (frameNanos == 0)
+            return now;
+
+        if (nextFrame == 0 || now - nextFrame > frameNanos)
+            nextFrame = now;
+
+        long deadline = nextFrame;
+        long waitStart = now;
+
+        while (deadline - now > SPIN_NANOS)
+        {
+            LockSupport.parkNanos(deadline - now - SPIN_NANOS);
+            now = System.nanoTime();
+        }
+
+        while (deadline - now > 0)
+        {
+            Thread.yield();
+            now = System.nanoTime();
+        }
+
+        waitedNanos += now - waitStart;
+        nextFrame = deadline + frameNanos;
+
+        return now;
+    }
+
+    /**
+     * Returns the length of a frame at the target frame rate.
+     *
+     * @return The length of a frame in nanoseconds, or zero if the frame rate is not limited.
+     */
+    public long getFrameNanos()
+    {
+        return frameNanos;
+    }
+
+    /**
+     * Returns the time that was spent waiting for the frames to start, which is the idle time of the render loop.
+     *
+     * @return The total waiting time in nanoseconds.
+     */
+    public long getWaitedNanos()
+    {
+        return waitedNanos;
+    }
+}
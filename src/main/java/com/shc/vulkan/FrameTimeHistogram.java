@@ -0,0 +1,168 @@
+package com.shc.vulkan;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of durations in nanoseconds, with a fixed set of log-linear buckets. Values below 32 nanoseconds get a
+ * bucket of their own, and every power of two above that is split into 16 linear sub-buckets, which keeps the relative
+ * error of any reported value under about 6%. All the buckets are allocated up front, so recording a value never
+ * allocates, which is what allows this to be used in the event loop without disturbing the frame times it measures.
+ * <p>
+ * This class is not thread safe. It is meant to be written by the thread that runs the event loop, and to be read by
+ * the same thread or copied with {@link #copyTo(FrameTimeHistogram)} for reading elsewhere.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class FrameTimeHistogram
+{
+    private static final int SUB_BUCKET_HALF_BITS = 4;
+    private static final int SUB_BUCKET_HALF      = 1 << SUB_BUCKET_HALF_BITS;
+    private static final int SUB_BUCKET_COUNT     = SUB_BUCKET_HALF << 1;
+
+    /**
+     * The largest value that can be recorded exactly in a bucket (about 18 minutes). Larger values are clamped into the
+     * last bucket, but they are still reported correctly as the maximum.
+     */
+    public static final long MAX_TRACKABLE_NANOS = (1L << 40) - 1;
+
+    private static final int BUCKET_COUNT = bucketIndex(MAX_TRACKABLE_NANOS) + 1;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+
+    private long totalCount;
+    private long totalNanos;
+    private long minNanos = Long.MAX_VALUE;
+    private long maxNanos;
+
+    private static int bucketIndex(long nanos)
+    {
+        if (nanos < SUB_BUCKET_COUNT)
+            return (int) nanos;
+
+        int shift = (63 - Long.numberOfLeadingZeros(nanos)) - SUB_BUCKET_HALF_BITS;
+        int subBucket = (int) (nanos >>> shift);
+
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (subBucket - SUB_BUCKET_HALF);
+    }
+
+    private static long bucketUpperBound(int index)
+    {
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+
+        int offset = index - SUB_BUCKET_COUNT;
+        int shift = offset / SUB_BUCKET_HALF + 1;
+        long subBucket = offset % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Records a single duration into this histogram. Negative durations are recorded as zero.
+     *
+     * @param nanos The duration in nanoseconds.
+     */
+    public void record(long nanos)
+    {
+        if (nanos < 0)
+            nanos = 0;
+
+        counts[bucketIndex(Math.min(nanos, MAX_TRACKABLE_NANOS))]++;
+
+        totalCount++;
+        totalNanos += nanos;
+
+        if (nanos < minNanos)
+            minNanos = nanos;
+
+        if (nanos > maxNanos)
+            maxNanos = nanos;
+    }
+
+    /**
+     * Returns the duration below which the given fraction of the recorded values fall. The value returned is the upper
+     * bound of the bucket that holds the percentile, but never more than the largest value recorded.
+     *
+     * @param percentile The percentile to find, in the range of 0 to 100.
+     *
+     * @return The duration in nanoseconds at the percentile, or zero if nothing is recorded yet.
+     */
+    public long getPercentile(double percentile)
+    {
+        if (totalCount == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(Math.max(0.0, Math.min(100.0, percentile)) / 100.0 * totalCount);
+
+        if (rank < 1)
+            rank = 1;
+
+        if (rank >= totalCount)
+            return maxNanos;
+
+        long cumulative = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            cumulative += counts[i];
+
+            if (cumulative >= rank)
+                return Math.min(bucketUpperBound(i), maxNanos);
+        }
+
+        return maxNanos;
+    }
+
+    public long getCount()
+    {
+        return totalCount;
+    }
+
+    public long getTotalNanos()
+    {
+        return totalNanos;
+    }
+
+    public long getMinNanos()
+    {
+        return totalCount == 0 ? 0 : minNanos;
+    }
+
+    public long getMaxNanos()
+    {
+        return maxNanos;
+    }
+
+    public double getMeanNanos()
+    {
+        return totalCount == 0 ? 0.0 : (double) totalNanos / totalCount;
+    }
+
+    /**
+     * Copies all the recorded values of this histogram into the other histogram, replacing whatever it had before.
+     *
+     * @param other The histogram to copy the values into.
+     */
+    public void copyTo(FrameTimeHistogram other)
+    {
+        System.arraycopy(counts, 0, other.counts, 0, BUCKET_COUNT);
+
+        other.totalCount = totalCount;
+        other.totalNanos = totalNanos;
+        other.minNanos = minNanos;
+        other.maxNanos = maxNanos;
+    }
+
+    /**
+     * Clears all the recorded values in this histogram.
+     */
+    public void reset()
+    {
+        Arrays.fill(counts, 0);
+
+        totalCount = 0;
+        totalNanos = 0;
+        minNanos = Long.MAX_VALUE;
+        maxNanos = 0;
+    }
+}
@@ -0,0 +1,599 @@
+package com.shc.vulkan;
+
+import org.lwjgl.vulkan.VkCommandBuffer;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Measures how long named regions of the command buffers take on the GPU, with timestamp queries. Every frame, call
+ * {@link #beginFrame(VkCommandBuffer, long)} at the start of the command buffer, wrap the regions in
+ * {@link #beginScope(VkCommandBuffer, String)} and {@link #endScope(VkCommandBuffer, int)}, and call
+ * {@link #endFrame()} once the command buffer is recorded. Scopes can be nested.
+ * <p>
+ * The queries are kept in a ring with one range for every frame slot, and the results of a frame are only read once
+ * the {@link FenceClock} says that the frame is complete, a few frames after it was recorded. So reading the results
+ * never waits for the device. If a slot comes around again before it's frame has completed, the results of that frame
+ * are dropped instead. The ticks of the timestamps are converted to nanoseconds with the {@code timestampPeriod} of the
+ * device, and the differences are masked with the valid bits of the queue, so a timestamp that wraps around doesn't
+ * give a negative time.
+ * <p>
+ * Along with the GPU time, the profiler measures the CPU time spent recording every scope. Both are aggregated per
+ * scope name into histograms, printed by {@link #printSummary()}, and the scopes of every frame are also kept as events
+ * of a trace, written by {@link #writeTrace(String)} in the JSON format that {@code chrome://tracing} and Perfetto can
+ * open. The GPU clock has no known relation to the CPU clock, so the GPU events are placed on the CPU timeline with an
+ * offset that never lets a frame start on the GPU before it's recording ended on the CPU.
+ * <p>
+ * The queries are hidden behind {@link TimestampQueries}, so the profiler can be run against the {@link
+ * VkTimestampQueries} of a device, or a simulated GPU.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class GpuProfiler
+{
+    /**
+     * The timestamp queries that the profiler writes and reads.
+     */
+    public interface TimestampQueries
+    {
+        /**
+         * Records the reset of a range of queries into the command buffer. This is recorded before the queries are
+         * written again, outside of any render pass.
+         *
+         * @param commandBuffer The command buffer to record into.
+         * @param firstQuery    The first query to reset.
+         * @param queryCount    The number of queries to reset.
+         */
+        void reset(VkCommandBuffer commandBuffer, int firstQuery, int queryCount);
+
+        /**
+         * Records the write of a timestamp into the command buffer.
+         *
+         * @param commandBuffer The command buffer to record into.
+         * @param pipelineStage The pipeline stage that the timestamp is written after.
+         * @param query         The query to write the timestamp to.
+         */
+        void writeTimestamp(VkCommandBuffer commandBuffer, int pipelineStage, int query);
+
+        /**
+         * Reads the ticks of a range of queries, without waiting for them to be available.
+         *
+         * @param firstQuery The first query to read.
+         * @param queryCount The number of queries to read.
+         * @param ticks      The array to read the ticks into, from index zero.
+         *
+         * @return True if all the queries were available, false if nothing was read.
+         */
+        boolean getResults(int firstQuery, int queryCount, long[] ticks);
+
+        /**
+         * Returns the number of nanoseconds that the timestamp counter takes to increment by one.
+         *
+         * @return The {@code timestampPeriod} of the device.
+         */
+        float getTimestampPeriod();
+
+        /**
+         * Returns the number of bits of the timestamps that are valid, between 36 and 64.
+         *
+         * @return The {@code timestampValidBits} of the queue.
+         */
+        int getTimestampValidBits();
+
+        void destroy();
+    }
+
+    /**
+     * The timings of all the scopes with the same name.
+     */
+    public static class ScopeStats
+    {
+        private final String name;
+
+        private final FrameTimeHistogram gpuTime = new FrameTimeHistogram();
+        private final FrameTimeHistogram cpuTime = new FrameTimeHistogram();
+
+        ScopeStats(String name)
+        {
+            this.name = name;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public FrameTimeHistogram getGpuTime()
+        {
+            return gpuTime;
+        }
+
+        public FrameTimeHistogram getCpuTime()
+        {
+            return cpuTime;
+        }
+    }
+
+    private static final int CPU_THREAD = 1;
+    private static final int GPU_THREAD = 2;
+
+    private final TimestampQueries queries;
+    private final FenceClock       clock;
+    private final int              slotCount;
+    private final int              maxScopes;
+    private final double           timestampPeriod;
+    private final long             timestampMask;
+
+    // The scopes of every slot, indexed by slot * maxScopes + scope
+    private final String[] scopeNames;
+    private final long[]   cpuBegins;
+    private final long[]   cpuEnds;
+
+    // The frame that was last recorded into every slot, zero once it's results are read or dropped
+    private final long[] slotFrames;
+    private final int[]  slotScopeCounts;
+    private final long[] slotRecordEnds;
+
+    private final long[] ticks;
+
+    private final Map<String, ScopeStats> stats     = new HashMap<>();
+    private final List<ScopeStats>        statsList = new ArrayList<>();
+
+    // The events of the trace, kept in preallocated arrays up to a fixed count
+    private final String[] traceNames;
+    private final long[]   traceStarts;
+    private final long[]   traceDurations;
+    private final long[]   traceFrames;
+    private final byte[]   traceThreads;
+    private int            traceCount;
+    private long           droppedTraceEvents;
+
+    private long frameValue;
+    private int  slot = -1;
+    private int  scopeCount;
+    private int  depth;
+
+    // The GPU clock without the wrap around, and the offset that takes it to the CPU timeline
+    private long    lastFirstTick;
+    private long    gpuClockNanos;
+    private long    gpuToCpuOffset;
+    private boolean offsetKnown;
+
+    private long collectedFrames;
+    private long droppedFrames;
+    private long droppedScopes;
+
+    /**
+     * Creates the profiler.
+     *
+     * @param queries        The queries to use, with at least {@link #getQueryCount(int, int)} queries.
+     * @param clock          The clock of the submissions of the frames.
+     * @param slotCount      The number of frame slots. This should be more than the number of frames in flight, so that
+     *                       the results of a slot are read before the slot is used again.
+     * @param maxScopes      The maximum number of scopes in a frame.
+     * @param maxTraceEvents The number of events that the trace keeps, or zero to not keep a trace.
+     */
+    public GpuProfiler(TimestampQueries queries, FenceClock clock, int slotCount, int maxScopes, int maxTraceEvents)
+    {
+        if (slotCount <= 0 || maxScopes <= 0)
+            throw new IllegalArgumentException("The number of slots and scopes must be positive");
+
+        int validBits = queries.getTimestampValidBits();
+
+        if (validBits == 0)
+            throw new UnsupportedOperationException("The queue doesn't support timestamps");
+
+        this.queries = queries;
+        this.clock = clock;
+        this.slotCount = slotCount;
+        this.maxScopes = maxScopes;
+
+        timestampPeriod = queries.getTimestampPeriod();
+        timestampMask = validBits >= 64 ? -1L : (1L << validBits) - 1;
+
+        scopeNames = new String[slotCount * maxScopes];
+        cpuBegins = new long[slotCount * maxScopes];
+        cpuEnds = new long[slotCount * maxScopes];
+
+        slotFrames = new long[slotCount];
+        slotScopeCounts = new int[slotCount];
+        slotRecordEnds = new long[slotCount];
+
+        ticks = new long[maxScopes * 2];
+
+        traceNames = new String[maxTraceEvents];
+        traceStarts = new long[maxTraceEvents];
+        traceDurations = new long[maxTraceEvents];
+        traceFrames = new long[maxTraceEvents];
+        traceThreads = new byte[maxTraceEvents];
+    }
+
+    /**
+     * Returns the number of queries that a profiler needs, two for every scope of every slot.
+     *
+     * @param slotCount The number of frame slots.
+     * @param maxScopes The maximum number of scopes in a frame.
+     *
+     * @return The number of timestamp queries.
+     */
+    public static int getQueryCount(int slotCount, int maxScopes)
+    {
+        return slotCount * maxScopes * 2;
+    }
+
+    /**
+     * Begins profiling a frame. This reads the results of the frames that have completed, and records the reset of the
+     * queries of the slot into the command buffer, so it has to be called before any scope, outside of a render pass.
+     *
+     * @param commandBuffer The command buffer of the frame.
+     * @param frameValue    The clock value that the submission of the frame signals.
+     */
+    public void beginFrame(VkCommandBuffer commandBuffer, long frameValue)
+    {
+        collect();
+
+        this.frameValue = frameValue;
+
+        slot = (int) (frameValue % slotCount);
+        scopeCount = 0;
+        depth = 0;
+
+        // The slot comes around before it's frame has completed, the results of that frame are lost
+        if (slotFrames[slot] != 0)
+        {
+            slotFrames[slot] = 0;
+            droppedFrames++;
+        }
+
+        queries.reset(commandBuffer, slot * maxScopes * 2, maxScopes * 2);
+    }
+
+    /**
+     * Begins a scope, writing a timestamp before the commands that follow.
+     *
+     * @param commandBuffer The command buffer of the frame.
+     * @param name          The name of the scope. Use constant strings, the name is kept until the frame is read.
+     *
+     * @return The scope, to pass to {@link #endScope(VkCommandBuffer, int)}, or -1 if the frame has no scopes left.
+     */
+    public int beginScope(VkCommandBuffer commandBuffer, String name)
+    {
+        if (scopeCount == maxScopes)
+        {
+            droppedScopes++;
+            return -1;
+        }
+
+        int scope = scopeCount++;
+        int index = slot * maxScopes + scope;
+
+        scopeNames[index] = name;
+        depth++;
+        cpuBegins[index] = System.nanoTime();
+        cpuEnds[index] = 0;
+
+        queries.writeTimestamp(commandBuffer, VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT, index * 2);
+
+        return scope;
+    }
+
+    /**
+     * Ends a scope, writing a timestamp once the commands before it have completed.
+     *
+     * @param commandBuffer The command buffer of the frame.
+     * @param scope         The scope returned by {@link #beginScope(VkCommandBuffer, String)}.
+     */
+    public void endScope(VkCommandBuffer commandBuffer, int scope)
+    {
+        if (scope < 0)
+            return;
+
+        int index = slot * maxScopes + scope;
+
+        if (cpuEnds[index] != 0)
+            throw new IllegalStateException("The scope " + scopeNames[index] + " is already ended");
+
+        queries.writeTimestamp(commandBuffer, VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT, index * 2 + 1);
+
+        cpuEnds[index] = System.nanoTime();
+        depth--;
+    }
+
+    /**
+     * Ends the frame. Call this once the command buffer is recorded, and before it is submitted.
+     */
+    public void endFrame()
+    {
+        if (depth != 0)
+            throw new IllegalStateException(depth + " scopes of the frame are not ended");
+
+        slotFrames[slot] = frameValue;
+        slotScopeCounts[slot] = scopeCount;
+        slotRecordEnds[slot] = System.nanoTime();
+    }
+
+    /**
+     * Reads the results of every frame that has completed, oldest first, without waiting for the device. This is
+     * called by {@link #beginFrame(VkCommandBuffer, long)}, and can be called at any other time too.
+     */
+    public void collect()
+    {
+        long completedValue = clock.getCompletedValue();
+
+        while (true)
+        {
+            // The oldest frame that is waiting to be read
+            int oldest = -1;
+
+            for (int i = 0; i < slotCount; i++)
+            {
+                if (slotFrames[i] != 0 && (oldest < 0 || slotFrames[i] < slotFrames[oldest]))
+                    oldest = i;
+            }
+
+            if (oldest < 0 || slotFrames[oldest] > completedValue)
+                return;
+
+            collect(oldest);
+        }
+    }
+
+    private void collect(int slot)
+    {
+        int count = slotScopeCounts[slot];
+        long frame = slotFrames[slot];
+
+        slotFrames[slot] = 0;
+
+        if (count == 0)
+            return;
+
+        // The frame has completed, so the queries should be available, but a missing result is dropped, not waited for
+        if (!queries.getResults(slot * maxScopes * 2, count * 2, ticks))
+        {
+            droppedFrames++;
+            return;
+        }
+
+        int base = slot * maxScopes;
+        long firstTick = ticks[0];
+
+        // The timestamps wrap around at the valid bits, so the GPU clock is continued from the previous frame
+        if (offsetKnown)
+            gpuClockNanos += toNanos((firstTick - lastFirstTick) & timestampMask);
+
+        lastFirstTick = firstTick;
+
+        long firstNanos = gpuClockNanos;
+
+        // The GPU can't start the frame before it's recording ended on the CPU, so that only moves the offset forward
+        if (!offsetKnown || gpuToCpuOffset + firstNanos < slotRecordEnds[slot])
+        {
+            gpuToCpuOffset = slotRecordEnds[slot] - firstNanos;
+            offsetKnown = true;
+        }
+
+        long frameStart = gpuToCpuOffset + firstNanos;
+
+        for (int scope = 0; scope < count; scope++)
+        {
+            int index = base + scope;
+
+            long gpuNanos = toNanos((ticks[scope * 2 + 1] - ticks[scope * 2]) & timestampMask);
+            long gpuStart = frameStart + toNanos((ticks[scope * 2] - firstTick) & timestampMask);
+            long cpuNanos = cpuEnds[index] - cpuBegins[index];
+
+            ScopeStats scopeStats = stats.get(scopeNames[index]);
+
+            if (scopeStats == null)
+            {
+                scopeStats = new ScopeStats(scopeNames[index]);
+                stats.put(scopeStats.name, scopeStats);
+                statsList.add(scopeStats);
+            }
+
+            scopeStats.gpuTime.record(gpuNanos);
+            scopeStats.cpuTime.record(cpuNanos);
+
+            addTraceEvent(scopeNames[index], CPU_THREAD, cpuBegins[index], cpuNanos, frame);
+            addTraceEvent(scopeNames[index], GPU_THREAD, gpuStart, gpuNanos, frame);
+
+            scopeNames[index] = null;
+        }
+
+        collectedFrames++;
+    }
+
+    private long toNanos(long ticks)
+    {
+        return (long) (ticks * timestampPeriod);
+    }
+
+    private void addTraceEvent(String name, int thread, long start, long duration, long frame)
+    {
+        if (traceCount == traceNames.length)
+        {
+            droppedTraceEvents++;
+            return;
+        }
+
+        traceNames[traceCount] = name;
+        traceStarts[traceCount] = start;
+        traceDurations[traceCount] = duration;
+        traceFrames[traceCount] = frame;
+        traceThreads[traceCount] = (byte) thread;
+        traceCount++;
+    }
+
+    /**
+     * Returns the timings of a scope.
+     *
+     * @param name The name of the scope.
+     *
+     * @return The timings, or null if no frame with the scope has been read yet.
+     */
+    public ScopeStats getScopeStats(String name)
+    {
+        return stats.get(name);
+    }
+
+    /**
+     * Returns the timings of all the scopes, in the order they were first read.
+     *
+     * @return The list of the timings.
+     */
+    public List<ScopeStats> getScopeStats()
+    {
+        return statsList;
+    }
+
+    /**
+     * Returns the number of frames whose results were read.
+     *
+     * @return The number of frames read.
+     */
+    public long getCollectedFrames()
+    {
+        return collectedFrames;
+    }
+
+    /**
+     * Returns the number of frames whose results were lost, because their slot was used again before they completed.
+     *
+     * @return The number of frames dropped.
+     */
+    public long getDroppedFrames()
+    {
+        return droppedFrames;
+    }
+
+    /**
+     * Returns the number of scopes that were not measured, because their frame had no scopes left.
+     *
+     * @return The number of scopes dropped.
+     */
+    public long getDroppedScopes()
+    {
+        return droppedScopes;
+    }
+
+    public int getTraceEventCount()
+    {
+        return traceCount;
+    }
+
+    /**
+     * Appends the trace to the given builder, in the JSON format of {@code chrome://tracing} and Perfetto. The CPU and
+     * the GPU scopes are two threads of the same process, and the times are in microseconds.
+     *
+     * @param builder The builder to append the trace to.
+     *
+     * @return The same builder, for chaining the calls.
+     */
+    public StringBuilder appendTrace(StringBuilder builder)
+    {
+        builder.append("{\"displayTimeUnit\":\"ns\",\"traceEvents\":[");
+
+        appendThreadName(builder, CPU_THREAD, "CPU");
+        appendThreadName(builder.append(",\n"), GPU_THREAD, "GPU");
+
+        // Start the trace at zero, which the viewers handle better than the raw nanoTime
+        long origin = Long.MAX_VALUE;
+
+        for (int i = 0; i < traceCount; i++)
+            origin = Math.min(origin, traceStarts[i]);
+
+        for (int i = 0; i < traceCount; i++)
+        {
+            builder.append(",\n{\"name\":\"");
+            appendEscaped(builder, traceNames[i]);
+
+            builder.append("\",\"ph\":\"X\",\"pid\":1,\"tid\":").append(traceThreads[i])
+                    .append(",\"ts\":").append((traceStarts[i] - origin) / 1000.0)
+                    .append(",\"dur\":").append(traceDurations[i] / 1000.0)
+                    .append(",\"args\":{\"frame\":").append(traceFrames[i]).append("}}");
+        }
+
+        return builder.append("]}\n");
+    }
+
+    private static void appendThreadName(StringBuilder builder, int thread, String name)
+    {
+        builder.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":").append(thread)
+                .append(",\"args\":{\"name\":\"").append(name).append("\"}}");
+    }
+
+    private static void appendEscaped(StringBuilder builder, String text)
+    {
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+
+            if (c == '"' || c == '\\')
+                builder.append('\\').append(c);
+            else if (c < ' ')
+                builder.append(String.format("\\u%04x", (int) c));
+            else
+                builder.append(c);
+        }
+    }
+
+    /**
+     * Writes the trace to a file, that can be opened in {@code chrome://tracing} or Perfetto.
+     *
+     * @param traceFile The path of the file.
+     */
+    public void writeTrace(String traceFile)
+    {
+        try (Writer writer = new FileWriter(traceFile))
+        {
+            writer.append(appendTrace(new StringBuilder()));
+        }
+        catch (IOException e)
+        {
+            System.err.println("Could not write the GPU trace to " + traceFile + ": " + e.getMessage());
+        }
+
+        if (droppedTraceEvents > 0)
+            System.err.println("The GPU trace was full, " + droppedTraceEvents + " events were not written");
+    }
+
+    /**
+     * Prints the GPU and CPU timings of every scope to the standard output.
+     */
+    public void printSummary()
+    {
+        System.out.println("GPU Scopes (microseconds)");
+        System.out.println("~~~~~~~~~~~~~~~~~~~~~~~~~");
+        System.out.println(String.format("%-20s %-8s %-10s %-10s %-10s %-10s", "Scope", "Count", "GPU mean",
+                "GPU p99", "GPU max", "CPU mean"));
+
+        for (ScopeStats scopeStats : statsList)
+        {
+            System.out.println(String.format("%-20s %-8d %-10.2f %-10.2f %-10.2f %-10.2f", scopeStats.name,
+                    scopeStats.gpuTime.getCount(), scopeStats.gpuTime.getMeanNanos() / 1000.0,
+                    scopeStats.gpuTime.getPercentile(99) / 1000.0, scopeStats.gpuTime.getMaxNanos() / 1000.0,
+                    scopeStats.cpuTime.getMeanNanos() / 1000.0));
+        }
+
+        if (droppedFrames > 0 || droppedScopes > 0)
+            System.out.println(droppedFrames + " frames and " + droppedScopes + " scopes were dropped");
+    }
+
+    /**
+     * Reads the frames that have completed, and destroys the queries. The frames that are still in flight are not
+     * waited for, so wait for the device first to get all the results.
+     */
+    public void destroy()
+    {
+        collect();
+        queries.destroy();
+    }
+}
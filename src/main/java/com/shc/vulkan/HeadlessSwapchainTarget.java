@@ -0,0 +1,539 @@
+package com.shc.vulkan;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.lwjgl.vulkan.KHRSurface.*;
+import static org.lwjgl.vulkan.KHRSwapchain.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * A {@link SwapchainManager.Target} that simulates a display in memory, so that the frame pacing of the examples can be
+ * run and measured without a window, a display or a GPU. No Vulkan call is ever made.
+ * <p>
+ * The simulated display refreshes at a fixed rate. The work of every frame is simulated by a GPU that takes a fixed
+ * time per frame and runs the frames one after the other, and an image can only be shown once the work of it's frame
+ * is done. The present modes behave like they do on a real display:
+ * <ul>
+ * <li>FIFO queues the presented images, and shows one at every refresh. Once all the images are queued or shown,
+ * acquiring waits for the next refresh, which paces the frames to the refresh rate.</li>
+ * <li>MAILBOX keeps only the latest presented image whose work is done, and shows it at the next refresh. The images
+ * it replaces are given back right away, and are counted as dropped.</li>
+ * <li>IMMEDIATE shows every image as soon as it's work is done, without waiting for a refresh, which is counted as a
+ * tear.</li>
+ * </ul>
+ * The target also checks the rules that the manager must follow: no more frames are in flight than the manager asked
+ * for, only the images that were acquired are presented, and a replaced swapchain is only destroyed once the frames
+ * that used it are complete.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class HeadlessSwapchainTarget implements SwapchainManager.Target
+{
+    private static final int FREE      = 0;
+    private static final int ACQUIRED  = 1;
+    private static final int QUEUED    = 2;
+    private static final int DISPLAYED = 3;
+
+    private final long  refreshNanos;
+    private final long  gpuNanos;
+    private final int[] presentModes;
+    private final long  startTime = System.nanoTime();
+
+    private final FrameClock clock = new FrameClock();
+
+    private int windowWidth;
+    private int windowHeight;
+
+    // The current swapchain
+    private long   swapchain;
+    private int    width;
+    private int    height;
+    private int    presentMode;
+    private int[]  imageStates       = new int[0];
+    private long[] imageReadyTimes   = new long[0];
+    private long[] imagePresentTimes = new long[0];
+
+    // The images that were presented and are not shown yet, in the order they were presented
+    private int[] queue = new int[0];
+    private int   queueHead;
+    private int   queueSize;
+
+    private int  displayedImage = -1;
+    private long lastRefresh    = startTime;
+
+    private long nextHandle = 1;
+    private int  framesInFlight;
+
+    // The value of the last frame that used every swapchain that is not destroyed yet
+    private final Map<Long, Long> lastUse = new HashMap<>();
+
+    private final FrameTimeHistogram displayLatency = new FrameTimeHistogram();
+
+    private long displayedFrames;
+    private long droppedFrames;
+    private long repeatedRefreshes;
+    private long tornFrames;
+    private long acquireWaitNanos;
+    private long createdSwapchains;
+    private long maxFramesInFlight;
+
+    /**
+     * Creates the target with a display that supports all the present modes.
+     *
+     * @param refreshRate The refresh rate of the simulated display, in Hz.
+     * @param gpuNanos    The time that the simulated GPU takes for every frame.
+     * @param width       The width of the simulated window.
+     * @param height      The height of the simulated window.
+     */
+    public HeadlessSwapchainTarget(double refreshRate, long gpuNanos, int width, int height)
+    {
+        this(refreshRate, gpuNanos, width, height,
+                VK_PRESENT_MODE_FIFO_KHR, VK_PRESENT_MODE_MAILBOX_KHR, VK_PRESENT_MODE_IMMEDIATE_KHR);
+    }
+
+    /**
+     * Creates the target.
+     *
+     * @param refreshRate  The refresh rate of the simulated display, in Hz.
+     * @param gpuNanos     The time that the simulated GPU takes for every frame.
+     * @param width        The width of the simulated window.
+     * @param height       The height of the simulated window.
+     * @param presentModes The present modes that the simulated display supports.
+     */
+    public HeadlessSwapchainTarget(double refreshRate, long gpuNanos, int width, int height, int... presentModes)
+    {
+        this.refreshNanos = (long) (1e9 / refreshRate);
+        this.gpuNanos = gpuNanos;
+        this.presentModes = presentModes.clone();
+
+        windowWidth = width;
+        windowHeight = height;
+    }
+
+    /**
+     * Resizes the simulated window. The current swapchain becomes out of date, like it does when a real window is
+     * resized, and the manager has to find out on it's own.
+     *
+     * @param width  The new width, or zero to simulate a minimized window.
+     * @param height The new height, or zero to simulate a minimized window.
+     */
+    public void setWindowSize(int width, int height)
+    {
+        windowWidth = width;
+        windowHeight = height;
+    }
+
+    @Override
+    public int[] getPresentModes()
+    {
+        return presentModes.clone();
+    }
+
+    @Override
+    public boolean getCurrentExtent(int[] extent)
+    {
+        extent[0] = windowWidth;
+        extent[1] = windowHeight;
+
+        return true;
+    }
+
+    @Override
+    public long createSwapchain(int width, int height, int presentMode, int framesInFlight, long oldSwapchain)
+    {
+        if (oldSwapchain != swapchain)
+            throw new IllegalStateException("The old swapchain must be the current swapchain");
+
+        boolean supported = false;
+
+        for (int mode : presentModes)
+            supported |= mode == presentMode;
+
+        if (!supported)
+            throw new IllegalArgumentException("The present mode " + presentMode + " is not supported");
+
+        if (clock.submittedValue > 0 && framesInFlight != this.framesInFlight)
+            throw new IllegalArgumentException("The number of frames in flight can't change between swapchains");
+
+        this.framesInFlight = framesInFlight;
+        this.width = width;
+        this.height = height;
+        this.presentMode = presentMode;
+
+        int imageCount = Math.max(3, framesInFlight + 1);
+
+        // The images of the old swapchain are given back to it, and the display starts over with the new images
+        imageStates = new int[imageCount];
+        imageReadyTimes = new long[imageCount];
+        imagePresentTimes = new long[imageCount];
+        queue = new int[imageCount];
+        queueHead = 0;
+        queueSize = 0;
+        displayedImage = -1;
+
+        swapchain = nextHandle++;
+        lastUse.put(swapchain, clock.submittedValue);
+        createdSwapchains++;
+
+        return swapchain;
+    }
+
+    @Override
+    public int getImageCount(long swapchain)
+    {
+        return swapchain == this.swapchain ? imageStates.length : 0;
+    }
+
+    @Override
+    public void destroySwapchain(long swapchain)
+    {
+        Long lastValue = lastUse.remove(swapchain);
+
+        if (lastValue == null)
+            throw new IllegalStateException("The swapchain " + swapchain + " is destroyed twice");
+
+        if (lastValue > clock.getCompletedValue())
+            throw new IllegalStateException("The swapchain " + swapchain + " is destroyed while frame " + lastValue +
+                                            " still uses it");
+    }
+
+    @Override
+    public FenceClock getClock()
+    {
+        return clock;
+    }
+
+    @Override
+    public long beginSubmission()
+    {
+        return clock.beginSubmission();
+    }
+
+    @Override
+    public void skipSubmission(long value)
+    {
+        clock.submit(value, System.nanoTime(), 0);
+    }
+
+    @Override
+    public int acquireNextImage(long swapchain, int frameIndex)
+    {
+        if (swapchain != this.swapchain || width != windowWidth || height != windowHeight)
+            return -1;
+
+        long waitStart = System.nanoTime();
+
+        while (true)
+        {
+            long now = System.nanoTime();
+            updateDisplay(now);
+
+            for (int i = 0; i < imageStates.length; i++)
+            {
+                if (imageStates[i] == FREE)
+                {
+                    imageStates[i] = ACQUIRED;
+                    acquireWaitNanos += now - waitStart;
+                    lastUse.put(swapchain, clock.submittedValue);
+
+                    return i;
+                }
+            }
+
+            if (queueSize == 0)
+                throw new IllegalStateException("All the images of the swapchain are acquired");
+
+            // An image is given back when the display moves on to the next image, or when the mailbox replaces it
+            long nextRefresh = getRefreshTime(getRefreshIndex(now) + 1);
+            long nextReady = imageReadyTimes[queue[(queueHead + queueSize - 1) % queue.length]];
+
+            if (presentMode == VK_PRESENT_MODE_IMMEDIATE_KHR)
+                sleepUntil(imageReadyTimes[queue[queueHead]]);
+            else if (presentMode == VK_PRESENT_MODE_MAILBOX_KHR && queueSize > 1)
+                sleepUntil(Math.min(nextRefresh, nextReady));
+            else
+                sleepUntil(nextRefresh);
+        }
+    }
+
+    @Override
+    public int present(long swapchain, int frameIndex, int imageIndex)
+    {
+        if (swapchain != this.swapchain || imageStates[imageIndex] != ACQUIRED)
+            throw new IllegalStateException("The image " + imageIndex + " is presented without being acquired");
+
+        long now = System.nanoTime();
+
+        // The work of the frame is submitted before it is presented, and the GPU runs the frames in order
+        long readyTime = clock.submit(clock.submittedValue, now, gpuNanos);
+
+        imageStates[imageIndex] = QUEUED;
+        imageReadyTimes[imageIndex] = readyTime;
+        imagePresentTimes[imageIndex] = now;
+
+        queue[(queueHead + queueSize++) % queue.length] = imageIndex;
+
+        updateDisplay(now);
+
+        return width != windowWidth || height != windowHeight ? VK_SUBOPTIMAL_KHR : VK_SUCCESS;
+    }
+
+    /**
+     * Moves the simulated display forward to the given time, showing the queued images that are due by then.
+     */
+    private void updateDisplay(long now)
+    {
+        if (presentMode == VK_PRESENT_MODE_IMMEDIATE_KHR)
+        {
+            while (queueSize > 0 && imageReadyTimes[queue[queueHead]] <= now)
+            {
+                int image = queue[queueHead];
+                show(image, imageReadyTimes[image]);
+                tornFrames++;
+            }
+
+            return;
+        }
+
+        if (presentMode == VK_PRESENT_MODE_MAILBOX_KHR)
+        {
+            // The mailbox holds the latest image whose work is done, it replaces the older images that were waiting
+            while (queueSize > 1 && imageReadyTimes[queue[(queueHead + 1) % queue.length]] <= now)
+            {
+                imageStates[queue[queueHead]] = FREE;
+                queueHead = (queueHead + 1) % queue.length;
+                queueSize--;
+                droppedFrames++;
+            }
+        }
+
+        long lastIndex = getRefreshIndex(lastRefresh);
+        long currentIndex = getRefreshIndex(now);
+
+        // Every refresh shows the next queued image if it's work is done by then, or shows the same image again
+        for (long index = lastIndex + 1; index <= currentIndex; index++)
+        {
+            long refreshTime = getRefreshTime(index);
+
+            if (queueSize > 0 && imageReadyTimes[queue[queueHead]] <= refreshTime)
+                show(queue[queueHead], refreshTime);
+            else if (displayedImage >= 0)
+                repeatedRefreshes++;
+        }
+
+        lastRefresh = getRefreshTime(currentIndex);
+    }
+
+    private void show(int image, long time)
+    {
+        queueHead = (queueHead + 1) % queue.length;
+        queueSize--;
+
+        if (displayedImage >= 0)
+            imageStates[displayedImage] = FREE;
+
+        imageStates[image] = DISPLAYED;
+        displayedImage = image;
+
+        displayedFrames++;
+        displayLatency.record(time - imagePresentTimes[image]);
+    }
+
+    private long getRefreshIndex(long time)
+    {
+        return (time - startTime) / refreshNanos;
+    }
+
+    private long getRefreshTime(long index)
+    {
+        return startTime + index * refreshNanos;
+    }
+
+    private static void sleepUntil(long time)
+    {
+        long now;
+
+        while ((now = System.nanoTime()) < time)
+            LockSupport.parkNanos(time - now);
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Returns the number of frames that were shown on the simulated display.
+     *
+     * @return The number of shown frames.
+     */
+    public long getDisplayedFrames()
+    {
+        return displayedFrames;
+    }
+
+    /**
+     * Returns the number of presented frames that were replaced in the mailbox before they could be shown.
+     *
+     * @return The number of dropped frames.
+     */
+    public long getDroppedFrames()
+    {
+        return droppedFrames;
+    }
+
+    /**
+     * Returns the number of refreshes that showed the same image again since no new image was ready, which are the
+     * stutters of the FIFO and MAILBOX modes.
+     *
+     * @return The number of repeated refreshes.
+     */
+    public long getRepeatedRefreshes()
+    {
+        return repeatedRefreshes;
+    }
+
+    /**
+     * Returns the number of frames that were shown between two refreshes in the IMMEDIATE mode.
+     *
+     * @return The number of torn frames.
+     */
+    public long getTornFrames()
+    {
+        return tornFrames;
+    }
+
+    /**
+     * Returns the total time spent waiting in acquire for an image to be given back by the display.
+     *
+     * @return The waiting time in nanoseconds.
+     */
+    public long getAcquireWaitNanos()
+    {
+        return acquireWaitNanos;
+    }
+
+    /**
+     * Returns the histogram of the time from presenting a frame to it being shown.
+     *
+     * @return The histogram of the display latency.
+     */
+    public FrameTimeHistogram getDisplayLatency()
+    {
+        return displayLatency;
+    }
+
+    public long getCreatedSwapchains()
+    {
+        return createdSwapchains;
+    }
+
+    /**
+     * Returns the number of swapchains that are created and not destroyed yet.
+     *
+     * @return The number of live swapchains.
+     */
+    public int getLiveSwapchains()
+    {
+        return lastUse.size();
+    }
+
+    /**
+     * Returns the most frames that were seen in flight at the same time.
+     *
+     * @return The highest number of frames in flight.
+     */
+    public long getMaxFramesInFlight()
+    {
+        return maxFramesInFlight;
+    }
+
+    @Override
+    public void destroy()
+    {
+        if (clock.submittedValue > 0)
+            clock.waitFor(clock.submittedValue);
+    }
+
+    /**
+     * The clock of the simulated GPU. Every frame completes a fixed time after the previous frame completed, or after it
+     * was submitted if the GPU was idle.
+     */
+    private final class FrameClock implements FenceClock
+    {
+        private long[] completionTimes = new long[0];
+
+        private long submittedValue;
+        private long completedValue;
+        private long lastCompletionTime;
+
+        long beginSubmission()
+        {
+            long value = submittedValue + 1;
+
+            if (completionTimes.length != framesInFlight)
+                completionTimes = new long[framesInFlight];
+
+            if (value > completionTimes.length)
+                waitFor(value - completionTimes.length);
+
+            // Until it is submitted, the frame never completes
+            completionTimes[(int) (value % completionTimes.length)] = Long.MAX_VALUE;
+            submittedValue = value;
+
+            maxFramesInFlight = Math.max(maxFramesInFlight, submittedValue - getCompletedValue());
+
+            return value;
+        }
+
+        /**
+         * Submits the work of a frame, which starts once the GPU is done with the previous frame.
+         *
+         * @return The time at which the work of the frame completes.
+         */
+        long submit(long value, long now, long workNanos)
+        {
+            lastCompletionTime = Math.max(now, lastCompletionTime) + workNanos;
+            completionTimes[(int) (value % completionTimes.length)] = lastCompletionTime;
+
+            return lastCompletionTime;
+        }
+
+        @Override
+        public long getCompletedValue()
+        {
+            long now = System.nanoTime();
+
+            while (completedValue < submittedValue &&
+                   completionTimes[(int) ((completedValue + 1) % completionTimes.length)] <= now)
+                completedValue++;
+
+            return completedValue;
+        }
+
+        @Override
+        public void waitFor(long value)
+        {
+            if (value <= completedValue)
+                return;
+
+            if (value > submittedValue)
+                throw new IllegalArgumentException("The value " + value + " is not submitted yet");
+
+            long completionTime = completionTimes[(int) (value % completionTimes.length)];
+
+            if (completionTime == Long.MAX_VALUE)
+                throw new IllegalStateException("The frame " + value + " is waited for but was never submitted");
+
+            sleepUntil(completionTime);
+            completedValue = value;
+        }
+    }
+}
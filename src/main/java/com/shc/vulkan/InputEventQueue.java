@@ -0,0 +1,255 @@
+package com.shc.vulkan;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock free queue of input events from the thread that polls the window events to the render thread. It is a single
+ * producer and single consumer ring, so the GLFW callbacks on the main thread are the only ones that offer events, and
+ * the render thread is the only one that drains them.
+ * <p>
+ * Every event is encoded into three longs of a preallocated array, so queueing and draining events never allocate and
+ * never lock. The first long has the type, the code, the action and the modifiers of the event, the second has the data
+ * of the event like the position of the cursor, and the third has the time at which the event was received, which the
+ * render thread uses to measure the latency from the input to the frame. The producer and the consumer each keep their
+ * own index, and only publish it to the other thread with an ordered write once the slots are written or read.
+ * <p>
+ * When the render thread falls behind so far that the ring is full, new events are dropped and counted instead of
+ * blocking the thread that polls the events.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class InputEventQueue
+{
+    /**
+     * A key was pressed, repeated or released. The code is the GLFW key, and the data is the scancode.
+     */
+    public static final int KEY = 1;
+
+    /**
+     * A mouse button was pressed or released. The code is the GLFW mouse button.
+     */
+    public static final int MOUSE_BUTTON = 2;
+
+    /**
+     * The cursor moved. The data has the position of the cursor as two floats.
+     */
+    public static final int CURSOR_POS = 3;
+
+    /**
+     * The mouse wheel or the touch pad scrolled. The data has the offsets as two floats.
+     */
+    public static final int SCROLL = 4;
+
+    /**
+     * A character was typed. The code is the unicode code point.
+     */
+    public static final int CHAR = 5;
+
+    /**
+     * The framebuffer was resized. The data has the width and the height as two ints.
+     */
+    public static final int FRAMEBUFFER_SIZE = 6;
+
+    /**
+     * Receives the events that are drained from the queue.
+     */
+    @FunctionalInterface
+    public interface Handler
+    {
+        /**
+         * Handles a single event. The meaning of the code and the data depends on the type of the event.
+         *
+         * @param type      The type of the event, one of the constants of this class.
+         * @param code      The key, the mouse button or the code point of the event.
+         * @param action    The GLFW action of the event, like press or release.
+         * @param mods      The GLFW modifier bits that were held down.
+         * @param data      The data of the event, unpack it with the methods of this class.
+         * @param timestamp The time at which the event was received, in nanoseconds.
+         */
+        void handle(int type, int code, int action, int mods, long data, long timestamp);
+    }
+
+    private static final int LONGS_PER_EVENT = 3;
+
+    private final long[] events;
+    private final int    mask;
+
+    // The indices of the next event to read and to write, published to the other thread
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    // The state of the producer, which is only touched by the producer
+    private long producerIndex;
+    private long cachedHead;
+
+    // The state of the consumer, which is only touched by the consumer
+    private long consumerIndex;
+
+    private volatile long droppedCount;
+
+    /**
+     * Creates the queue.
+     *
+     * @param capacity The number of events that the queue can hold, which is rounded up to a power of two.
+     */
+    public InputEventQueue(int capacity)
+    {
+        if (capacity <= 0 || capacity > (1 << 28))
+            throw new IllegalArgumentException("The capacity must be between 1 and 2^28");
+
+        int size = Integer.highestOneBit(capacity);
+
+        if (size < capacity)
+            size <<= 1;
+
+        events = new long[size * LONGS_PER_EVENT];
+        mask = size - 1;
+    }
+
+    /**
+     * Adds an event to the queue. Only the producer thread can call this.
+     *
+     * @param type      The type of the event, one of the constants of this class.
+     * @param code      The key, the mouse button or the code point of the event.
+     * @param action    The GLFW action of the event.
+     * @param mods      The GLFW modifier bits of the event.
+     * @param data      The data of the event.
+     * @param timestamp The time at which the event was received, in nanoseconds.
+     *
+     * @return True if the event was queued, false if the queue was full and the event was dropped.
+     */
+    public boolean offer(int type, int code, int action, int mods, long data, long timestamp)
+    {
+        long index = producerIndex;
+
+        if (index - cachedHead > mask)
+        {
+            // Only read the index of the consumer when the ring looks full, to keep it's cache line where it is
+            cachedHead = head.get();
+
+            if (index - cachedHead > mask)
+            {
+                droppedCount++;
+                return false;
+            }
+        }
+
+        int offset = (int) (index & mask) * LONGS_PER_EVENT;
+
+        events[offset] = ((long) type << 56) | ((long) (action & 0xFF) << 48) | ((long) (mods & 0xFFFF) << 32) |
+                         (code & 0xFFFFFFFFL);
+        events[offset + 1] = data;
+        events[offset + 2] = timestamp;
+
+        producerIndex = index + 1;
+        tail.lazySet(index + 1);
+
+        return true;
+    }
+
+    /**
+     * Hands all the queued events to the handler, in the order they were offered. Only the consumer thread can call
+     * this.
+     *
+     * @param handler The handler to give the events to.
+     *
+     * @return The number of events that were drained.
+     */
+    public int drain(Handler handler)
+    {
+        long index = consumerIndex;
+        long end = tail.get();
+
+        while (index < end)
+        {
+            int offset = (int) (index & mask) * LONGS_PER_EVENT;
+
+            long header = events[offset];
+            long data = events[offset + 1];
+            long timestamp = events[offset + 2];
+
+            // Give the slot back before handling the event, the event is already copied out of it
+            head.lazySet(++index);
+
+            handler.handle((int) (header >>> 56), (int) header, (int) (header >>> 48) & 0xFF,
+                    (int) (header >>> 32) & 0xFFFF, data, timestamp);
+        }
+
+        int count = (int) (index - consumerIndex);
+        consumerIndex = index;
+
+        return count;
+    }
+
+    /**
+     * Returns the number of events that are queued and not yet drained. The value is only a snapshot when it is read
+     * while the other thread is running.
+     *
+     * @return The number of queued events.
+     */
+    public int size()
+    {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int getCapacity()
+    {
+        return mask + 1;
+    }
+
+    /**
+     * Returns the number of events that were dropped since the queue was full.
+     *
+     * @return The number of dropped events.
+     */
+    public long getDroppedCount()
+    {
+        return droppedCount;
+    }
+
+    /**
+     * Packs two floats, like the position of the cursor, into the data of an event.
+     *
+     * @param first  The first float, stored in the upper half.
+     * @param second The second float, stored in the lower half.
+     *
+     * @return The packed data.
+     */
+    public static long packFloats(float first, float second)
+    {
+        return ((long) Float.floatToRawIntBits(first) << 32) | (Float.floatToRawIntBits(second) & 0xFFFFFFFFL);
+    }
+
+    public static float getFirstFloat(long data)
+    {
+        return Float.intBitsToFloat((int) (data >>> 32));
+    }
+
+    public static float getSecondFloat(long data)
+    {
+        return Float.intBitsToFloat((int) data);
+    }
+
+    /**
+     * Packs two ints, like the size of the framebuffer, into the data of an event.
+     *
+     * @param first  The first int, stored in the upper half.
+     * @param second The second int, stored in the lower half.
+     *
+     * @return The packed data.
+     */
+    public static long packInts(int first, int second)
+    {
+        return ((long) first << 32) | (second & 0xFFFFFFFFL);
+    }
+
+    public static int getFirstInt(long data)
+    {
+        return (int) (data >>> 32);
+    }
+
+    public static int getSecondInt(long data)
+    {
+        return (int) data;
+    }
+}
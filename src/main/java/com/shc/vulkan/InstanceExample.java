@@ -33,11 +33,13 @@ public class InstanceExample extends VulkanExample
     public VkInstance initVulkan()
     {
         // We need to say which extensions to enable at the time of creating the instance. We should also add in the
-        // extensions required by GLFW to create the surface. Note that this should not be freed manually.
-        PointerBuffer glfwExtensions = glfwGetRequiredInstanceExtensions();
+        // extensions required by GLFW to create the surface. Note that this should not be freed manually. When running
+        // headless GLFW is never initialized, and there is no surface, so we skip the GLFW extensions.
+        PointerBuffer glfwExtensions = isHeadless() ? null : glfwGetRequiredInstanceExtensions();
+        int glfwExtensionCount = glfwExtensions == null ? 0 : glfwExtensions.remaining();
 
         // Create a PointerBuffer with memory enough to hold pointers for all the extension names.
-        PointerBuffer enabledExtensionNames = memAllocPointer(glfwExtensions.remaining() + 1);
+        PointerBuffer enabledExtensionNames = memAllocPointer(glfwExtensionCount + 1);
 
         // Encode the surface extension names into a ByteBuffer so we can put it in the PointerBuffer.
         ByteBuffer KHR_SURFACE_EXTENSION = memASCII(VK_KHR_SURFACE_EXTENSION_NAME);
@@ -47,7 +49,7 @@ public class InstanceExample extends VulkanExample
         enabledExtensionNames.put(KHR_SURFACE_EXTENSION);
 
         // Also put in the GLFW extensions into the enabledExtensionNames list so they get enabled too.
-        while (glfwExtensions.remaining() > 0)
+        for (int i = 0; i < glfwExtensionCount; i++)
             enabledExtensionNames.put(glfwExtensions.get());
 
         // Flip the buffer so that the system can read from the buffer.
@@ -0,0 +1,319 @@
+package com.shc.vulkan;
+
+import org.lwjgl.system.Configuration;
+import org.lwjgl.system.MemoryUtil.MemoryAllocator;
+import org.lwjgl.system.jemalloc.JEmallocAllocator;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks every live native allocation that is made through LWJGL, like the {@code memAlloc} calls and the
+ * {@code calloc()} of the struct classes, with the place in the code where it was allocated. At shutdown, the
+ * allocations that were never freed are reported as leaks, grouped by their allocation site.
+ * <p>
+ * This is a debug mode, enabled by passing {@code -Dvulkan.debug.leaks=true} to the JVM, since capturing the stack of
+ * every allocation is slow. Like the {@link AllocationCounter}, the tracking allocator has to be installed with
+ * {@link #install()} before LWJGL allocates any memory, which the {@link VulkanExample} does as the first thing it does
+ * when the debug mode is enabled. If the counting allocator of the {@link AllocationCounter} is installed first, this
+ * allocator wraps it, so both can be used together.
+ * <p>
+ * Memory from the {@code MemoryStack} is not tracked, as it is freed when the stack is popped.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public final class LeakTracker
+{
+    private static final boolean enabled = Boolean.getBoolean("vulkan.debug.leaks");
+
+    private static final Map<Long, Allocation> liveAllocations = new ConcurrentHashMap<>();
+
+    private static volatile boolean installed;
+
+    /**
+     * A live native allocation, with the stack of the thread that made it.
+     */
+    private static final class Allocation extends Throwable
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final long size;
+
+        Allocation(long size)
+        {
+            super(Thread.currentThread().getName(), null, false, true);
+            this.size = size;
+        }
+    }
+
+    private LeakTracker()
+    {
+    }
+
+    /**
+     * Returns whether leak tracking was asked for with {@code -Dvulkan.debug.leaks=true}.
+     *
+     * @return True if the debug mode is enabled.
+     */
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Installs the tracking memory allocator into LWJGL. This has no effect if LWJGL has already created it's
+     * allocator, so it should be called before anything else touches the LWJGL memory functions.
+     */
+    public static synchronized void install()
+    {
+        if (installed)
+            return;
+
+        Object current = Configuration.MEMORY_ALLOCATOR.get();
+        MemoryAllocator delegate = current instanceof MemoryAllocator ? (MemoryAllocator) current
+                                                                      : new JEmallocAllocator();
+
+        Configuration.MEMORY_ALLOCATOR.set(new TrackingAllocator(delegate));
+        installed = true;
+    }
+
+    public static boolean isInstalled()
+    {
+        return installed;
+    }
+
+    /**
+     * Returns the number of native allocations that are live right now.
+     *
+     * @return The number of allocations that were not freed yet.
+     */
+    public static int getLiveAllocationCount()
+    {
+        return liveAllocations.size();
+    }
+
+    /**
+     * Returns the total size of the native allocations that are live right now.
+     *
+     * @return The number of bytes that were not freed yet.
+     */
+    public static long getLiveBytes()
+    {
+        long bytes = 0;
+
+        for (Allocation allocation : liveAllocations.values())
+            bytes += allocation.size;
+
+        return bytes;
+    }
+
+    /**
+     * Builds the report of the live allocations, grouped by the first frame of their stacks that is outside of LWJGL
+     * and this class, with the largest groups first. Allocations made entirely inside LWJGL, like the capabilities of
+     * the instance and the device, are grouped under the frame of LWJGL that made them.
+     *
+     * @return The report, or an empty string if there are no live allocations.
+     */
+    public static String getReport()
+    {
+        Map<String, long[]> sites = new LinkedHashMap<>();
+        Map<String, Allocation> examples = new LinkedHashMap<>();
+
+        for (Allocation allocation : liveAllocations.values())
+        {
+            String site = getSite(allocation.getStackTrace());
+
+            long[] totals = sites.computeIfAbsent(site, key -> new long[2]);
+            totals[0]++;
+            totals[1] += allocation.size;
+
+            examples.putIfAbsent(site, allocation);
+        }
+
+        List<Map.Entry<String, long[]>> entries = new ArrayList<>(sites.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]));
+
+        StringBuilder report = new StringBuilder();
+
+        for (Map.Entry<String, long[]> entry : entries)
+        {
+            Allocation example = examples.get(entry.getKey());
+
+            report.append(String.format("%d bytes in %d allocations at %s (thread %s)%n", entry.getValue()[1],
+                    entry.getValue()[0], entry.getKey(), example.getMessage()));
+
+            // The rest of the stack of one of the allocations, to see how the site was reached
+            StackTraceElement[] stack = example.getStackTrace();
+            boolean started = false;
+            int printed = 0;
+
+            for (StackTraceElement element : stack)
+            {
+                started |= element.toString().equals(entry.getKey());
+
+                if (started && printed++ < 8)
+                    report.append("\tat ").append(element).append(System.lineSeparator());
+            }
+        }
+
+        return report.toString();
+    }
+
+    private static String getSite(StackTraceElement[] stack)
+    {
+        StackTraceElement lwjglFrame = null;
+
+        for (StackTraceElement element : stack)
+        {
+            String className = element.getClassName();
+
+            if (className.startsWith(LeakTracker.class.getName()))
+                continue;
+
+            if (className.startsWith("org.lwjgl."))
+            {
+                if (lwjglFrame == null)
+                    lwjglFrame = element;
+
+                continue;
+            }
+
+            if (!className.startsWith("java.") && !className.startsWith("sun."))
+                return element.toString();
+        }
+
+        return lwjglFrame == null ? "an unknown site" : lwjglFrame.toString();
+    }
+
+    /**
+     * Prints the report of the live allocations to the standard error, if there are any.
+     *
+     * @return The number of allocations that were reported as leaked.
+     */
+    public static int printLeaks()
+    {
+        int count = liveAllocations.size();
+
+        if (count == 0)
+        {
+            System.out.println("No native memory leaks");
+            return 0;
+        }
+
+        System.err.println(String.format("%d native allocations of %d bytes were never freed:", count, getLiveBytes()));
+        System.err.print(getReport());
+
+        return count;
+    }
+
+    private static long track(long address, long size)
+    {
+        if (address != 0)
+            liveAllocations.put(address, new Allocation(size));
+
+        return address;
+    }
+
+    private static void untrack(long address)
+    {
+        if (address != 0)
+            liveAllocations.remove(address);
+    }
+
+    /**
+     * A memory allocator that records the allocations and forwards them to another allocator. The function pointers
+     * are forwarded as is, so calls made by native code through them are not tracked.
+     */
+    private static final class TrackingAllocator implements MemoryAllocator
+    {
+        private final MemoryAllocator delegate;
+
+        TrackingAllocator(MemoryAllocator delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public long getMalloc()
+        {
+            return delegate.getMalloc();
+        }
+
+        @Override
+        public long getCalloc()
+        {
+            return delegate.getCalloc();
+        }
+
+        @Override
+        public long getRealloc()
+        {
+            return delegate.getRealloc();
+        }
+
+        @Override
+        public long getFree()
+        {
+            return delegate.getFree();
+        }
+
+        @Override
+        public long getAlignedAlloc()
+        {
+            return delegate.getAlignedAlloc();
+        }
+
+        @Override
+        public long getAlignedFree()
+        {
+            return delegate.getAlignedFree();
+        }
+
+        @Override
+        public long malloc(long size)
+        {
+            return track(delegate.malloc(size), size);
+        }
+
+        @Override
+        public long calloc(long num, long size)
+        {
+            return track(delegate.calloc(num, size), num * size);
+        }
+
+        @Override
+        public long realloc(long ptr, long size)
+        {
+            long address = delegate.realloc(ptr, size);
+
+            // A failed realloc leaves the old allocation alone
+            if (address != 0 || size == 0)
+                untrack(ptr);
+
+            return track(address, size);
+        }
+
+        @Override
+        public void free(long ptr)
+        {
+            untrack(ptr);
+            delegate.free(ptr);
+        }
+
+        @Override
+        public long aligned_alloc(long alignment, long size)
+        {
+            return track(delegate.aligned_alloc(alignment, size), size);
+        }
+
+        @Override
+        public void aligned_free(long ptr)
+        {
+            untrack(ptr);
+            delegate.aligned_free(ptr);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.shc.vulkan;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkCommandBufferAllocateInfo;
+import org.lwjgl.vulkan.VkCommandBufferBeginInfo;
+import org.lwjgl.vulkan.VkCommandBufferInheritanceInfo;
+import org.lwjgl.vulkan.VkCommandPoolCreateInfo;
+import org.lwjgl.vulkan.VkDevice;
+
+import java.nio.LongBuffer;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Records the draw work of a render pass into secondary command buffers on the worker threads of a
+ * {@link FrameJobSystem}, and executes them from the primary command buffer in a fixed order.
+ * <p>
+ * Command pools must be externally synchronized, so every chunk of the job system has a VkCommandPool of it's own for
+ * every frame in flight. A chunk is only ever run by one thread at a time, which makes the pools per thread in effect
+ * without having to map the worker threads to pools. The pools of a frame are reset as a whole when the frame is
+ * recorded again, which is cheaper than resetting the command buffers one by one.
+ * <p>
+ * The secondary command buffers are executed in chunk order, and the chunks are split the same way every frame, so
+ * the primary command buffer has the same commands in the same order regardless of how the chunks were scheduled.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class ParallelCommandRecorder
+{
+    /**
+     * Records the commands for a range of items into a secondary command buffer.
+     */
+    @FunctionalInterface
+    public interface RecordTask
+    {
+        /**
+         * Records the commands for the items into the secondary command buffer, which is already begun and is ended
+         * after this returns. This is called concurrently on the worker threads.
+         *
+         * @param commandBuffer The secondary command buffer to record into.
+         * @param start         The index of the first item.
+         * @param end           The index after the last item.
+         */
+        void record(VkCommandBuffer commandBuffer, int start, int end);
+    }
+
+    private final FrameJobSystem jobSystem;
+    private final VkDevice       device;
+    private final int            chunkCount;
+
+    // Indexed by the frame in flight and then the chunk
+    private final long[][]            commandPools;
+    private final VkCommandBuffer[][] commandBuffers;
+
+    private final PointerBuffer pCommandBuffers;
+
+    // The state of the recording in progress, read by the worker threads
+    private int        frame;
+    private long       renderPass;
+    private int        subpass;
+    private long       framebuffer;
+    private RecordTask task;
+
+    private final FrameJobSystem.Job recordJob = this::recordChunk;
+
+    /**
+     * Creates the command pools and the secondary command buffers for every chunk and frame in flight.
+     *
+     * @param jobSystem        The job system to record on. One chunk is recorded for every worker thread.
+     * @param device           The device to create the command pools on.
+     * @param queueFamilyIndex The queue family that the primary command buffers are submitted to.
+     * @param framesInFlight   The number of frames that can be recorded before the first one is done on the device.
+     */
+    public ParallelCommandRecorder(FrameJobSystem jobSystem, VkDevice device, int queueFamilyIndex,
+                                   int framesInFlight)
+    {
+        this.jobSystem = jobSystem;
+        this.device = device;
+
+        chunkCount = jobSystem.getThreadCount();
+        commandPools = new long[framesInFlight][chunkCount];
+        commandBuffers = new VkCommandBuffer[framesInFlight][chunkCount];
+        pCommandBuffers = memAllocPointer(chunkCount);
+
+        try (MemoryStack stack = stackPush())
+        {
+            VkCommandPoolCreateInfo poolInfo = VkCommandPoolCreateInfo.callocStack(stack)
+                    .sType(VK_STRUCTURE_TYPE_COMMAND_POOL_CREATE_INFO)
+                    .flags(VK_COMMAND_POOL_CREATE_TRANSIENT_BIT)
+                    .queueFamilyIndex(queueFamilyIndex);
+
+            VkCommandBufferAllocateInfo allocateInfo = VkCommandBufferAllocateInfo.callocStack(stack)
+                    .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_ALLOCATE_INFO)
+                    .level(VK_COMMAND_BUFFER_LEVEL_SECONDARY)
+                    .commandBufferCount(1);
+
+            LongBuffer pCommandPool = stack.mallocLong(1);
+            PointerBuffer pCommandBuffer = stack.mallocPointer(1);
+
+            for (int f = 0; f < framesInFlight; f++)
+            {
+                for (int c = 0; c < chunkCount; c++)
+                {
+                    int err = vkCreateCommandPool(device, poolInfo, null, pCommandPool);
+
+                    if (err != VK_SUCCESS)
+                        throw new IllegalStateException("Could not create a command pool: " + err);
+
+                    commandPools[f][c] = pCommandPool.get(0);
+
+                    allocateInfo.commandPool(commandPools[f][c]);
+                    err = vkAllocateCommandBuffers(device, allocateInfo, pCommandBuffer);
+
+                    if (err != VK_SUCCESS)
+                        throw new IllegalStateException("Could not allocate a secondary command buffer: " + err);
+
+                    commandBuffers[f][c] = new VkCommandBuffer(pCommandBuffer.get(0), device);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the items into secondary command buffers in parallel, and executes them from the primary command buffer.
+     * The primary command buffer must be inside the render pass instance, begun with
+     * {@code VK_SUBPASS_CONTENTS_SECONDARY_COMMAND_BUFFERS}. The device must be done with the previous submission of
+     * the same frame index, since it's command pools are reset here.
+     *
+     * @param primary     The primary command buffer to execute the secondary command buffers from.
+     * @param frame       The index of the frame in flight, used to pick the command pools.
+     * @param renderPass  The render pass that the secondary command buffers continue.
+     * @param subpass     The index of the subpass that the secondary command buffers continue.
+     * @param framebuffer The framebuffer of the render pass instance, or {@code VK_NULL_HANDLE} if not known.
+     * @param itemCount   The number of items to record.
+     * @param task        The task that records the commands for a range of items.
+     */
+    public void record(VkCommandBuffer primary, int frame, long renderPass, int subpass, long framebuffer,
+                       int itemCount, RecordTask task)
+    {
+        for (int c = 0; c < chunkCount; c++)
+        {
+            int err = vkResetCommandPool(device, commandPools[frame][c], 0);
+
+            if (err != VK_SUCCESS)
+                throw new IllegalStateException("Could not reset the command pool: " + err);
+        }
+
+        this.frame = frame;
+        this.renderPass = renderPass;
+        this.subpass = subpass;
+        this.framebuffer = framebuffer;
+        this.task = task;
+
+        try
+        {
+            jobSystem.run(itemCount, chunkCount, recordJob);
+        }
+        finally
+        {
+            this.task = null;
+        }
+
+        // The merge is always in chunk order, which keeps the primary command buffer deterministic
+        for (int c = 0; c < chunkCount; c++)
+            pCommandBuffers.put(c, commandBuffers[frame][c]);
+
+        vkCmdExecuteCommands(primary, pCommandBuffers);
+    }
+
+    private void recordChunk(int chunk, int start, int end)
+    {
+        VkCommandBuffer commandBuffer = commandBuffers[frame][chunk];
+
+        // The stack is thread local, so every worker marshals on it's own stack
+        try (MemoryStack stack = stackPush())
+        {
+            VkCommandBufferInheritanceInfo inheritanceInfo = VkCommandBufferInheritanceInfo.callocStack(stack)
+                    .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_INHERITANCE_INFO)
+                    .renderPass(renderPass)
+                    .subpass(subpass)
+                    .framebuffer(framebuffer);
+
+            VkCommandBufferBeginInfo beginInfo = VkCommandBufferBeginInfo.callocStack(stack)
+                    .sType(VK_STRUCTURE_TYPE_COMMAND_BUFFER_BEGIN_INFO)
+                    .flags(VK_COMMAND_BUFFER_USAGE_ONE_TIME_SUBMIT_BIT |
+                           VK_COMMAND_BUFFER_USAGE_RENDER_PASS_CONTINUE_BIT)
+                    .pInheritanceInfo(inheritanceInfo);
+
+            int err = vkBeginCommandBuffer(commandBuffer, beginInfo);
+
+            if (err != VK_SUCCESS)
+                throw new IllegalStateException("Could not begin the secondary command buffer: " + err);
+        }
+
+        // Empty chunks are still begun and ended, so that the merge does not have to skip anything
+        if (start < end)
+            task.record(commandBuffer, start, end);
+
+        int err = vkEndCommandBuffer(commandBuffer);
+
+        if (err != VK_SUCCESS)
+            throw new IllegalStateException("Could not end the secondary command buffer: " + err);
+    }
+
+    public int getChunkCount()
+    {
+        return chunkCount;
+    }
+
+    /**
+     * Destroys the command pools, which frees the secondary command buffers. The device must be done with all the
+     * submissions that executed them.
+     */
+    public void destroy()
+    {
+        for (long[] pools : commandPools)
+            for (long pool : pools)
+                vkDestroyCommandPool(device, pool, null);
+
+        memFree(pCommandBuffers);
+    }
+}
@@ -0,0 +1,181 @@
+package com.shc.vulkan;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkInstance;
+import org.lwjgl.vulkan.VkPhysicalDevice;
+import org.lwjgl.vulkan.VkPhysicalDeviceProperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Enumerates the physical devices of an instance once, and keeps a {@link PhysicalDeviceSnapshot} of the capabilities
+ * of every device on the disk, so that later launches don't have to query the driver for them again.
+ * <p>
+ * The snapshot files are named after the vendor ID, the device ID, the driver version and the pipeline cache UUID of the
+ * device. Only the VkPhysicalDeviceProperties of a device are queried on every launch, since they are needed to find
+ * the file. The memory properties, the queue families and the extensions are read from the file instead. When the
+ * driver is updated the name no longer matches, so the snapshot is captured again and the older snapshots of the same
+ * device are deleted. The snapshots are freed with {@link #destroy()}, so the structs from them must not be used after
+ * the registry is destroyed.
+ * <p>
+ * The snapshots are stored in the directory given by {@code -Dvulkan.cache.dir}, which defaults to
+ * {@code .vulkan-tests/devices} in the home directory of the user.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class PhysicalDeviceRegistry
+{
+    private final VkPhysicalDevice[]       devices;
+    private final PhysicalDeviceSnapshot[] snapshots;
+
+    private final File cacheDirectory;
+
+    /**
+     * Creates a registry for the devices of the instance, that stores the snapshots in the default directory.
+     *
+     * @param instance The instance to enumerate the physical devices of.
+     */
+    public PhysicalDeviceRegistry(VkInstance instance)
+    {
+        this(instance, getDefaultCacheDirectory());
+    }
+
+    /**
+     * Creates a registry for the devices of the instance.
+     *
+     * @param instance       The instance to enumerate the physical devices of.
+     * @param cacheDirectory The directory to store the snapshots in.
+     */
+    public PhysicalDeviceRegistry(VkInstance instance, File cacheDirectory)
+    {
+        this.cacheDirectory = cacheDirectory;
+
+        try (MemoryStack stack = stackPush())
+        {
+            IntBuffer gpuCount = stack.mallocInt(1);
+            vkEnumeratePhysicalDevices(instance, gpuCount, null);
+
+            PointerBuffer pDevices = stack.mallocPointer(gpuCount.get(0));
+            vkEnumeratePhysicalDevices(instance, gpuCount, pDevices);
+
+            devices = new VkPhysicalDevice[gpuCount.get(0)];
+            snapshots = new PhysicalDeviceSnapshot[devices.length];
+
+            for (int i = 0; i < devices.length; i++)
+                devices[i] = new VkPhysicalDevice(pDevices.get(i), instance);
+        }
+    }
+
+    /**
+     * Returns the directory where the snapshots are stored by default.
+     *
+     * @return The default directory for the snapshots.
+     */
+    public static File getDefaultCacheDirectory()
+    {
+        String directory = System.getProperty("vulkan.cache.dir");
+
+        if (directory == null)
+            return new File(System.getProperty("user.home"), ".vulkan-tests" + File.separator + "devices");
+
+        return new File(directory, "devices");
+    }
+
+    public int getDeviceCount()
+    {
+        return devices.length;
+    }
+
+    public VkPhysicalDevice getDevice(int index)
+    {
+        return devices[index];
+    }
+
+    /**
+     * Returns the snapshot of the capabilities of a device. The snapshot is read from the disk if there is a valid one
+     * for the current driver, otherwise it is queried from the driver and written to the disk for the next launch.
+     *
+     * @param index The index of the device.
+     *
+     * @return The snapshot of the capabilities of the device.
+     */
+    public PhysicalDeviceSnapshot getSnapshot(int index)
+    {
+        if (snapshots[index] == null)
+            snapshots[index] = loadOrCapture(devices[index]);
+
+        return snapshots[index];
+    }
+
+    private PhysicalDeviceSnapshot loadOrCapture(VkPhysicalDevice device)
+    {
+        try (MemoryStack stack = stackPush())
+        {
+            VkPhysicalDeviceProperties properties = VkPhysicalDeviceProperties.mallocStack(stack);
+            vkGetPhysicalDeviceProperties(device, properties);
+
+            File file = new File(cacheDirectory, getSnapshotName(properties));
+            PhysicalDeviceSnapshot snapshot = PhysicalDeviceSnapshot.load(file);
+
+            if (snapshot != null && snapshot.matches(properties))
+                return snapshot;
+
+            if (snapshot != null)
+                snapshot.destroy();
+
+            snapshot = PhysicalDeviceSnapshot.capture(device, file);
+            deleteStaleSnapshots(properties, file);
+
+            return snapshot;
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException("Could not read or write the physical device snapshot", e);
+        }
+    }
+
+    /**
+     * Frees the snapshots that were loaded or captured. The structs of the snapshots must not be used after this.
+     */
+    public void destroy()
+    {
+        for (int i = 0; i < snapshots.length; i++)
+        {
+            if (snapshots[i] != null)
+                snapshots[i].destroy();
+
+            snapshots[i] = null;
+        }
+    }
+
+    private void deleteStaleSnapshots(VkPhysicalDeviceProperties properties, File current)
+    {
+        String devicePrefix = String.format("%08x-%08x-", properties.vendorID(), properties.deviceID());
+        File[] files = cacheDirectory.listFiles();
+
+        if (files == null)
+            return;
+
+        for (File file : files)
+            if (file.getName().startsWith(devicePrefix) && !file.equals(current) && !file.delete())
+                System.err.println("Could not delete the stale snapshot " + file);
+    }
+
+    private static String getSnapshotName(VkPhysicalDeviceProperties properties)
+    {
+        StringBuilder name = new StringBuilder(64);
+        name.append(String.format("%08x-%08x-%08x-", properties.vendorID(), properties.deviceID(),
+                properties.driverVersion()));
+
+        for (int i = 0; i < VK_UUID_SIZE; i++)
+            name.append(String.format("%02x", properties.pipelineCacheUUID(i) & 0xFF));
+
+        return name.append(".bin").toString();
+    }
+}
@@ -0,0 +1,330 @@
+package com.shc.vulkan;
+
+import org.lwjgl.vulkan.VkExtensionProperties;
+import org.lwjgl.vulkan.VkPhysicalDevice;
+import org.lwjgl.vulkan.VkPhysicalDeviceLimits;
+import org.lwjgl.vulkan.VkPhysicalDeviceMemoryProperties;
+import org.lwjgl.vulkan.VkPhysicalDeviceProperties;
+import org.lwjgl.vulkan.VkQueueFamilyProperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * A compact binary snapshot of the capabilities of a physical device. The snapshot holds the raw bytes of the
+ * VkPhysicalDeviceProperties (which has the limits), the VkPhysicalDeviceMemoryProperties, the array of
+ * VkQueueFamilyProperties and the array of VkExtensionProperties, exactly as the driver wrote them.
+ * <p>
+ * Snapshots are stored in files, and are read into a single block of native memory when loaded. The struct accessors
+ * return LWJGL structs that point straight into the block, so nothing is parsed. The file is not kept mapped, so it
+ * can be replaced or deleted while the snapshot is in use, which Windows doesn't allow for a mapped file. The block is
+ * freed with {@link #destroy()}. The file is laid out as follows, with every section aligned to 16 bytes:
+ * <pre>
+ * header       magic, format version, the sizes of the four structs, queue family count, extension count
+ * properties   VkPhysicalDeviceProperties
+ * memory       VkPhysicalDeviceMemoryProperties
+ * queues       VkQueueFamilyProperties[queue family count]
+ * extensions   VkExtensionProperties[extension count]
+ * </pre>
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public final class PhysicalDeviceSnapshot
+{
+    private static final int MAGIC          = 0x564B5044; // VKPD
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE    = 32;
+
+    private final ByteBuffer data;
+    private final boolean    fromCache;
+
+    private final int queueFamilyCount;
+    private final int extensionCount;
+
+    private final int memoryOffset;
+    private final int queuesOffset;
+    private final int extensionsOffset;
+
+    private VkPhysicalDeviceProperties        properties;
+    private VkPhysicalDeviceMemoryProperties  memoryProperties;
+    private VkQueueFamilyProperties.Buffer    queueFamilies;
+    private VkExtensionProperties.Buffer      extensions;
+
+    private PhysicalDeviceSnapshot(ByteBuffer data, boolean fromCache)
+    {
+        this.data = data;
+        this.fromCache = fromCache;
+
+        queueFamilyCount = data.getInt(24);
+        extensionCount = data.getInt(28);
+
+        memoryOffset = align(HEADER_SIZE + VkPhysicalDeviceProperties.SIZEOF);
+        queuesOffset = align(memoryOffset + VkPhysicalDeviceMemoryProperties.SIZEOF);
+        extensionsOffset = align(queuesOffset + queueFamilyCount * VkQueueFamilyProperties.SIZEOF);
+    }
+
+    private static int align(int offset)
+    {
+        return (offset + 15) & ~15;
+    }
+
+    /**
+     * Queries all the capabilities of the physical device from the driver, and writes them into a snapshot file. The
+     * file is written to a temporary file first and then moved in place, so a reader never sees a half written file.
+     *
+     * @param physicalDevice The physical device to query.
+     * @param file           The file to write the snapshot to.
+     *
+     * @return The snapshot, holding the bytes that were written to the file.
+     *
+     * @throws IOException If the snapshot file could not be written.
+     */
+    static PhysicalDeviceSnapshot capture(VkPhysicalDevice physicalDevice, File file) throws IOException
+    {
+        int[] queueFamilyCount = new int[1];
+        int[] extensionCount = new int[1];
+
+        vkGetPhysicalDeviceQueueFamilyProperties(physicalDevice, queueFamilyCount, null);
+        vkEnumerateDeviceExtensionProperties(physicalDevice, (ByteBuffer) null, extensionCount, null);
+
+        int memoryOffset = align(HEADER_SIZE + VkPhysicalDeviceProperties.SIZEOF);
+        int queuesOffset = align(memoryOffset + VkPhysicalDeviceMemoryProperties.SIZEOF);
+        int extensionsOffset = align(queuesOffset + queueFamilyCount[0] * VkQueueFamilyProperties.SIZEOF);
+        int size = extensionsOffset + extensionCount[0] * VkExtensionProperties.SIZEOF;
+
+        ByteBuffer data = memCalloc(size).order(ByteOrder.nativeOrder());
+        File temporary = null;
+
+        try
+        {
+            data.putInt(0, MAGIC)
+                    .putInt(4, FORMAT_VERSION)
+                    .putInt(8, VkPhysicalDeviceProperties.SIZEOF)
+                    .putInt(12, VkPhysicalDeviceMemoryProperties.SIZEOF)
+                    .putInt(16, VkQueueFamilyProperties.SIZEOF)
+                    .putInt(20, VkExtensionProperties.SIZEOF)
+                    .putInt(24, queueFamilyCount[0])
+                    .putInt(28, extensionCount[0]);
+
+            long address = memAddress(data);
+
+            vkGetPhysicalDeviceProperties(physicalDevice, VkPhysicalDeviceProperties.create(address + HEADER_SIZE));
+            vkGetPhysicalDeviceMemoryProperties(physicalDevice,
+                    VkPhysicalDeviceMemoryProperties.create(address + memoryOffset));
+            vkGetPhysicalDeviceQueueFamilyProperties(physicalDevice, queueFamilyCount,
+                    VkQueueFamilyProperties.create(address + queuesOffset, queueFamilyCount[0]));
+            vkEnumerateDeviceExtensionProperties(physicalDevice, (ByteBuffer) null, extensionCount,
+                    VkExtensionProperties.create(address + extensionsOffset, extensionCount[0]));
+
+            File directory = file.getAbsoluteFile().getParentFile();
+
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new IOException("Could not create the directory " + directory);
+
+            temporary = File.createTempFile(file.getName(), ".tmp", directory);
+
+            // The position of the block stays at zero, since the structs are made from it's address
+            ByteBuffer contents = data.duplicate();
+
+            try (FileChannel channel = new RandomAccessFile(temporary, "rw").getChannel())
+            {
+                while (contents.hasRemaining())
+                    channel.write(contents);
+            }
+
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // A write that failed half way must not leave the temporary file behind in the cache directory
+            if (temporary != null)
+                temporary.delete();
+
+            memFree(data);
+            throw e;
+        }
+
+        // The captured bytes are the same as the file, so they are kept instead of reading the file back
+        return new PhysicalDeviceSnapshot(data, false);
+    }
+
+    /**
+     * Reads a snapshot file into native memory. The header is checked against the struct sizes of this build of LWJGL,
+     * since the snapshots hold the raw structs.
+     *
+     * @param file The snapshot file to read.
+     *
+     * @return The snapshot, or null if the file does not exist or is not a valid snapshot.
+     *
+     * @throws IOException If the file exists but could not be read.
+     */
+    static PhysicalDeviceSnapshot load(File file) throws IOException
+    {
+        if (!file.isFile())
+            return null;
+
+        ByteBuffer data;
+
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel())
+        {
+            long size = channel.size();
+
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE)
+                return null;
+
+            data = memAlloc((int) size).order(ByteOrder.nativeOrder());
+
+            try
+            {
+                // Reading through a duplicate keeps the position of the block at zero
+                ByteBuffer destination = data.duplicate();
+
+                while (destination.hasRemaining())
+                    if (channel.read(destination) < 0)
+                        throw new IOException("The snapshot " + file + " ended before it's size");
+            }
+            catch (IOException | RuntimeException e)
+            {
+                memFree(data);
+                throw e;
+            }
+        }
+
+        if (!isValid(data))
+        {
+            memFree(data);
+            return null;
+        }
+
+        return new PhysicalDeviceSnapshot(data, true);
+    }
+
+    private static boolean isValid(ByteBuffer data)
+    {
+        if (data.getInt(0) != MAGIC || data.getInt(4) != FORMAT_VERSION
+            || data.getInt(8) != VkPhysicalDeviceProperties.SIZEOF
+            || data.getInt(12) != VkPhysicalDeviceMemoryProperties.SIZEOF
+            || data.getInt(16) != VkQueueFamilyProperties.SIZEOF
+            || data.getInt(20) != VkExtensionProperties.SIZEOF)
+            return false;
+
+        int queueFamilyCount = data.getInt(24);
+        int extensionCount = data.getInt(28);
+
+        if (queueFamilyCount < 0 || extensionCount < 0)
+            return false;
+
+        long queuesOffset = align(align(HEADER_SIZE + VkPhysicalDeviceProperties.SIZEOF)
+                                  + VkPhysicalDeviceMemoryProperties.SIZEOF);
+        long extensionsOffset = (queuesOffset + (long) queueFamilyCount * VkQueueFamilyProperties.SIZEOF + 15) & ~15L;
+
+        return extensionsOffset + (long) extensionCount * VkExtensionProperties.SIZEOF <= data.capacity();
+    }
+
+    /**
+     * Checks whether this snapshot was captured from the same device and driver as the given properties. The vendor,
+     * the device, the driver version and the pipeline cache UUID all have to match.
+     *
+     * @param live The properties that were just queried from the driver.
+     *
+     * @return True if the snapshot is still valid for the device.
+     */
+    boolean matches(VkPhysicalDeviceProperties live)
+    {
+        VkPhysicalDeviceProperties cached = getProperties();
+
+        if (cached.vendorID() != live.vendorID() || cached.deviceID() != live.deviceID()
+            || cached.driverVersion() != live.driverVersion())
+            return false;
+
+        for (int i = 0; i < VK_UUID_SIZE; i++)
+            if (cached.pipelineCacheUUID(i) != live.pipelineCacheUUID(i))
+                return false;
+
+        return true;
+    }
+
+    /**
+     * Returns whether this snapshot was loaded from a file written by an earlier launch, instead of being queried from
+     * the driver in this launch.
+     *
+     * @return True if the capabilities came from the cache.
+     */
+    public boolean isFromCache()
+    {
+        return fromCache;
+    }
+
+    public VkPhysicalDeviceProperties getProperties()
+    {
+        if (properties == null)
+            properties = VkPhysicalDeviceProperties.create(memAddress(data) + HEADER_SIZE);
+
+        return properties;
+    }
+
+    public VkPhysicalDeviceLimits getLimits()
+    {
+        return getProperties().limits();
+    }
+
+    public VkPhysicalDeviceMemoryProperties getMemoryProperties()
+    {
+        if (memoryProperties == null)
+            memoryProperties = VkPhysicalDeviceMemoryProperties.create(memAddress(data) + memoryOffset);
+
+        return memoryProperties;
+    }
+
+    public VkQueueFamilyProperties.Buffer getQueueFamilies()
+    {
+        if (queueFamilies == null)
+            queueFamilies = VkQueueFamilyProperties.create(memAddress(data) + queuesOffset, queueFamilyCount);
+
+        return queueFamilies;
+    }
+
+    public VkExtensionProperties.Buffer getExtensions()
+    {
+        if (extensions == null)
+            extensions = VkExtensionProperties.create(memAddress(data) + extensionsOffset, extensionCount);
+
+        return extensions;
+    }
+
+    /**
+     * Checks whether the device supports the given extension.
+     *
+     * @param extensionName The name of the extension.
+     *
+     * @return True if the extension is in the list of extensions of the device.
+     */
+    public boolean hasExtension(String extensionName)
+    {
+        VkExtensionProperties.Buffer extensions = getExtensions();
+
+        for (int i = 0; i < extensionCount; i++)
+            if (extensions.get(i).extensionNameString().equals(extensionName))
+                return true;
+
+        return false;
+    }
+
+    /**
+     * Frees the native memory of the snapshot. The structs of the snapshot must not be used after this.
+     */
+    public void destroy()
+    {
+        memFree(data);
+    }
+}
@@ -1,22 +1,21 @@
 package com.shc.vulkan;
 
-import org.lwjgl.PointerBuffer;
 import org.lwjgl.vulkan.VkInstance;
-import org.lwjgl.vulkan.VkPhysicalDevice;
 import org.lwjgl.vulkan.VkPhysicalDeviceLimits;
 import org.lwjgl.vulkan.VkPhysicalDeviceProperties;
 
-import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 import static com.shc.vulkan.VkUtils.*;
-import static org.lwjgl.system.MemoryUtil.*;
 import static org.lwjgl.vulkan.KHRSurface.*;
 import static org.lwjgl.vulkan.VK10.*;
 
 /**
  * This example demonstrates enumerating the Physical devices from a Vulkan instance. This explains how to get a list of
- * the physical devices, and how to find the properties of the devices.
+ * the physical devices, and how to find the properties of the devices. The capabilities of the devices are kept in a
+ * {@link PhysicalDeviceRegistry}, so they are only queried from the driver on the first launch.
  *
  * @author Sri Harsha Chilakapati
  */
@@ -42,53 +41,39 @@ public class PhysicalDevicesExample extends VulkanExample
         // but this function createInstance(title, extensions) is from the VkUtils class.
         instance = createInstance(title, extensions);
 
-        // Create an int buffer to hold one int. This int tells us the number of GPUs that are present on the system.
-        IntBuffer gpuCount = memAllocInt(1);
-
-        // Query the number of physical devices that are connected to the system. We do this by using the function
-        // vkEnumeratePhysicalDevices which can be used for two purposes, query the number of GPUs, and also query the
-        // list of connected GPUs. We pass null when we just want the GPU count.
-        vkEnumeratePhysicalDevices(instance, gpuCount, null);
-
-        // Now create a PointerBuffer to be able to hold the number of pointers (one for each device) specified by
-        // the integer in gpuCount that we queried recently.
-        PointerBuffer devices = memAllocPointer(gpuCount.get(0));
-
-        // Now we call vkEnumeratePhysicalDevices again, but this time to actually retrieve the device pointers.
-        // We tell the system to get us the first gpuCount number of devices.
-        vkEnumeratePhysicalDevices(instance, gpuCount, devices);
+        // Enumerating the devices and querying all of their capabilities from the driver on every launch is slow, so
+        // we use a PhysicalDeviceRegistry instead. It calls vkEnumeratePhysicalDevices once (first with a null buffer
+        // to get the count and then again to fill the device pointers), and keeps a snapshot of the properties,
+        // limits, memory types, queue families and extensions of every device on the disk. The next launch reads the
+        // snapshot file into native memory, and only queries the driver again when the driver version has changed.
+        PhysicalDeviceRegistry registry = new PhysicalDeviceRegistry(instance);
 
         // Now we loop over the physical devices, so that we can observe their properties.
-        for (int i = 0; i < gpuCount.get(0); i++)
+        for (int i = 0; i < registry.getDeviceCount(); i++)
         {
-            // The devices buffer does contain pointers for the VkPhysicalDevice type, but we need to use the wrapper
-            // LWJGL provides since pointers are in the form of long primitives in Java. We additionally need to pass
-            // the instance to the VkPhysicalDevice class constructor so that it can use the instance to get the
-            // VkCapabilities instance.
-            VkPhysicalDevice physicalDevice = new VkPhysicalDevice(devices.get(i), instance);
-
-            // Next we create an struct instance of VkPhysicalDeviceProperties type. We use this to cache all the
-            // properties of a physical device.
-            VkPhysicalDeviceProperties physicalDeviceProperties = VkPhysicalDeviceProperties.calloc();
-
-            // This tells the driver to store all the properties of the physicalDevice in the physicalDeviceProperties
-            vkGetPhysicalDeviceProperties(physicalDevice, physicalDeviceProperties);
+            // The snapshot gives us LWJGL structs that point straight into the bytes it read from the file. They behave
+            // like the VkPhysicalDeviceProperties struct that vkGetPhysicalDeviceProperties would fill for the device.
+            PhysicalDeviceSnapshot snapshot = registry.getSnapshot(i);
+            VkPhysicalDeviceProperties physicalDeviceProperties = snapshot.getProperties();
 
             // Print out some of the device properties.
             System.out.println("Physical Device " + i);
             System.out.println("~~~~~~~~~~~~~~~~~");
 
-            int[] apiVersion = VK_EXTRACT_VERSION(physicalDeviceProperties.apiVersion());
+            int apiVersion = physicalDeviceProperties.apiVersion();
 
-            System.out.println("\tAPI Version: " + String.format("%d.%d.%d", apiVersion[0], apiVersion[1], apiVersion[2]));
+            System.out.println("\tAPI Version: " + String.format("%d.%d.%d", VK_VERSION_MAJOR(apiVersion),
+                    VK_VERSION_MINOR(apiVersion), VK_VERSION_PATCH(apiVersion)));
             System.out.println("\tDriver Version: " + physicalDeviceProperties.driverVersion());
             System.out.println("\tVendor ID: " + physicalDeviceProperties.vendorID());
             System.out.println("\tDevice ID: " + physicalDeviceProperties.deviceID());
             System.out.println("\tDevice Type: " + translatePhysicalDeviceType(physicalDeviceProperties.deviceType()));
             System.out.println("\tDevice Name: " + physicalDeviceProperties.deviceNameString());
+            System.out.println("\tCapabilities: " + (snapshot.isFromCache() ? "Loaded from snapshot"
+                                                                          : "Queried from driver"));
 
             long uuidLong1 = physicalDeviceProperties.pipelineCacheUUID().getLong(0);
-            long uuidLong2 = physicalDeviceProperties.pipelineCacheUUID().getLong(1);
+            long uuidLong2 = physicalDeviceProperties.pipelineCacheUUID().getLong(8);
 
             UUID pipelineCacheUUID = new UUID(uuidLong1, uuidLong2);
             System.out.println("\tPipeline Cache UUID: " + pipelineCacheUUID);
@@ -114,14 +99,26 @@ public class PhysicalDevicesExample extends VulkanExample
 
             // There are a lot of other limits in the device, but let's ignore them. We will take only what we like.
 
-            // Free the device properties now
-            physicalDeviceProperties.free();
+            System.out.println("\tMemory Heaps: " + snapshot.getMemoryProperties().memoryHeapCount());
+            System.out.println("\tMemory Types: " + snapshot.getMemoryProperties().memoryTypeCount());
+            System.out.println("\tQueue Families: " + snapshot.getQueueFamilies().remaining());
+            System.out.println("\tExtensions: " + snapshot.getExtensions().remaining());
         }
 
-        // Free the gpuCount, the integer that we dynamically allocated before. Also free the devices, we do not need
-        // them anymore in this example.
-        memFree(gpuCount);
-        memFree(devices);
+        // Examples should not just take the first device, since on a machine with several GPUs that is often the
+        // integrated GPU or a CPU device. The DeviceSelector checks every device against the requirements of the
+        // example and scores the rest, preferring discrete GPUs with more memory. Here we print the ranking it made.
+        List<DeviceCandidate> candidates = new ArrayList<>();
+
+        for (int i = 0; i < registry.getDeviceCount(); i++)
+            candidates.add(DeviceCandidate.fromRegistry(registry, i));
+
+        System.out.println("Device Ranking");
+        System.out.println("~~~~~~~~~~~~~~");
+        DeviceSelector.printReport(new DeviceSelector().requireQueueFlags(VK_QUEUE_GRAPHICS_BIT).rank(candidates));
+
+        // The snapshots hold native memory, which is freed once we are done with all the structs from them
+        registry.destroy();
 
         return instance;
     }
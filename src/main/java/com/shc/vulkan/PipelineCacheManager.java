@@ -0,0 +1,349 @@
+package com.shc.vulkan;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkPhysicalDeviceProperties;
+import org.lwjgl.vulkan.VkPipelineCacheCreateInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Manages a VkPipelineCache that is persisted on the disk between the launches, so that the pipelines that were
+ * compiled once don't have to be compiled again on the next launch.
+ * <p>
+ * When created, the manager reads the blob that was saved by the previous launch into native memory, and checks it's
+ * header against the device before handing it to the driver. The header of a pipeline cache blob has the length of the
+ * header, the header version, the vendor ID, the device ID and the pipeline cache UUID, and the blob is only used if
+ * all of them match the device, since a driver is free to reject or even misbehave on a blob from another device or
+ * driver version. The blob is freed once the driver has copied it, so the file is never kept open or mapped, and
+ * {@link #save()} can move a new blob over it on any platform. The blob is written back when the manager is destroyed,
+ * which should be done in the {@code cleanUp()} of the example.
+ * <p>
+ * Worker threads that create pipelines should use their own caches from {@link #createWorkerCache()}, since a
+ * VkPipelineCache can not be used by multiple threads at the same time, and merge them back with
+ * {@link #merge(long)} when they are done.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class PipelineCacheManager
+{
+    private static final int HEADER_SIZE = 16 + VK_UUID_SIZE;
+
+    private final VkDevice device;
+    private final File     file;
+
+    private final int    vendorID;
+    private final int    deviceID;
+    private final byte[] pipelineCacheUUID = new byte[VK_UUID_SIZE];
+
+    private final long pipelineCache;
+
+    private final boolean warm;
+    private final long    loadedBytes;
+    private final long    createTimeNanos;
+
+    /**
+     * Creates the pipeline cache for the device, using the blob stored in the given file if it is valid.
+     *
+     * @param device     The logical device to create the pipeline cache for.
+     * @param properties The properties of the physical device of the logical device.
+     * @param file       The file to load the blob from, and save the blob to.
+     */
+    public PipelineCacheManager(VkDevice device, VkPhysicalDeviceProperties properties, File file)
+    {
+        this.device = device;
+        this.file = file;
+
+        vendorID = properties.vendorID();
+        deviceID = properties.deviceID();
+
+        for (int i = 0; i < VK_UUID_SIZE; i++)
+            pipelineCacheUUID[i] = properties.pipelineCacheUUID(i);
+
+        long startTime = System.nanoTime();
+        ByteBuffer blob = readBlob();
+
+        try
+        {
+            if (blob != null && !isCompatible(blob))
+            {
+                System.err.println("Ignoring the pipeline cache " + file + " as it is from another device or driver");
+                memFree(blob);
+                blob = null;
+            }
+
+            // The driver copies the initial data, so the blob is not needed once the cache is created
+            pipelineCache = createPipelineCache(blob);
+
+            warm = blob != null;
+            loadedBytes = blob == null ? 0 : blob.remaining();
+        }
+        finally
+        {
+            if (blob != null)
+                memFree(blob);
+        }
+
+        createTimeNanos = System.nanoTime() - startTime;
+    }
+
+    /**
+     * Creates the pipeline cache for the device, and stores it in a file named after the pipeline cache UUID in the
+     * directory given by {@code -Dvulkan.cache.dir}, or in the {@code .vulkan-tests} directory of the user.
+     *
+     * @param device     The logical device to create the pipeline cache for.
+     * @param properties The properties of the physical device of the logical device.
+     */
+    public PipelineCacheManager(VkDevice device, VkPhysicalDeviceProperties properties)
+    {
+        this(device, properties, getDefaultFile(properties));
+    }
+
+    private static File getDefaultFile(VkPhysicalDeviceProperties properties)
+    {
+        String directory = System.getProperty("vulkan.cache.dir");
+        File root = directory == null ? new File(System.getProperty("user.home"), ".vulkan-tests")
+                                      : new File(directory);
+
+        StringBuilder name = new StringBuilder(48);
+
+        for (int i = 0; i < VK_UUID_SIZE; i++)
+            name.append(String.format("%02x", properties.pipelineCacheUUID(i) & 0xFF));
+
+        return new File(new File(root, "pipelines"), name.append(".bin").toString());
+    }
+
+    /**
+     * Reads the blob from the file into native memory, which the caller has to free.
+     */
+    private ByteBuffer readBlob()
+    {
+        if (!file.isFile())
+            return null;
+
+        ByteBuffer blob = null;
+
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel())
+        {
+            long size = channel.size();
+
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE)
+                return null;
+
+            blob = memAlloc((int) size);
+
+            while (blob.hasRemaining())
+                if (channel.read(blob) < 0)
+                    throw new IOException("The file ended before it's size");
+
+            blob.flip();
+            return blob;
+        }
+        catch (IOException e)
+        {
+            System.err.println("Could not read the pipeline cache " + file + ": " + e.getMessage());
+
+            if (blob != null)
+                memFree(blob);
+
+            return null;
+        }
+    }
+
+    private boolean isCompatible(ByteBuffer blob)
+    {
+        // The header is written by the driver in the byte order of the host
+        ByteBuffer header = blob.duplicate().order(ByteOrder.nativeOrder());
+
+        int headerLength = header.getInt(0);
+
+        if (headerLength < HEADER_SIZE || headerLength > blob.remaining())
+            return false;
+
+        if (header.getInt(4) != VK_PIPELINE_CACHE_HEADER_VERSION_ONE
+            || header.getInt(8) != vendorID
+            || header.getInt(12) != deviceID)
+            return false;
+
+        for (int i = 0; i < VK_UUID_SIZE; i++)
+            if (header.get(16 + i) != pipelineCacheUUID[i])
+                return false;
+
+        return true;
+    }
+
+    private long createPipelineCache(ByteBuffer initialData)
+    {
+        try (MemoryStack stack = stackPush())
+        {
+            VkPipelineCacheCreateInfo createInfo = VkPipelineCacheCreateInfo.callocStack(stack)
+                    .sType(VK_STRUCTURE_TYPE_PIPELINE_CACHE_CREATE_INFO)
+                    .pInitialData(initialData);
+
+            LongBuffer pPipelineCache = stack.mallocLong(1);
+            int err = vkCreatePipelineCache(device, createInfo, null, pPipelineCache);
+
+            if (err != VK_SUCCESS)
+                throw new IllegalStateException("Could not create the pipeline cache: " + err);
+
+            return pPipelineCache.get(0);
+        }
+    }
+
+    /**
+     * Creates an empty pipeline cache for a worker thread. It should be merged into the main cache using the
+     * {@link #merge(long)} method once the worker is done with it.
+     *
+     * @return The handle of the pipeline cache for the worker.
+     */
+    public long createWorkerCache()
+    {
+        return createPipelineCache(null);
+    }
+
+    /**
+     * Merges a pipeline cache created by a worker thread into the main cache, and destroys the worker cache. This can
+     * be called from any thread, but should not be called while the main cache is being used to create pipelines.
+     *
+     * @param workerCache The handle of the worker cache to merge.
+     */
+    public synchronized void merge(long workerCache)
+    {
+        try (MemoryStack stack = stackPush())
+        {
+            int err = vkMergePipelineCaches(device, pipelineCache, stack.longs(workerCache));
+
+            if (err != VK_SUCCESS)
+                throw new IllegalStateException("Could not merge the pipeline caches: " + err);
+        }
+
+        vkDestroyPipelineCache(device, workerCache, null);
+    }
+
+    /**
+     * Writes the contents of the pipeline cache to the file. The contents are written to a temporary file first and
+     * then moved over the old file, so that a crash while saving never leaves a partial blob behind. The temporary file
+     * is deleted if the write or the move fails.
+     */
+    public synchronized void save()
+    {
+        ByteBuffer data = null;
+        File temporary = null;
+
+        try (MemoryStack stack = stackPush())
+        {
+            PointerBuffer pDataSize = stack.mallocPointer(1);
+            vkGetPipelineCacheData(device, pipelineCache, pDataSize, null);
+
+            data = memAlloc((int) pDataSize.get(0));
+            int err = vkGetPipelineCacheData(device, pipelineCache, pDataSize, data);
+
+            if (err != VK_SUCCESS)
+                throw new IllegalStateException("Could not get the pipeline cache data: " + err);
+
+            data.limit((int) pDataSize.get(0));
+
+            File directory = file.getAbsoluteFile().getParentFile();
+
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new IOException("Could not create the directory " + directory);
+
+            temporary = File.createTempFile(file.getName(), ".tmp", directory);
+
+            try (FileChannel channel = new RandomAccessFile(temporary, "rw").getChannel())
+            {
+                while (data.hasRemaining())
+                    channel.write(data);
+
+                channel.force(true);
+            }
+
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+
+            temporary = null;
+        }
+        catch (IOException e)
+        {
+            System.err.println("Could not save the pipeline cache " + file + ": " + e.getMessage());
+        }
+        finally
+        {
+            // A write or a move that failed must not leave the temporary file behind in the cache directory
+            if (temporary != null)
+                temporary.delete();
+
+            if (data != null)
+                memFree(data);
+        }
+    }
+
+    /**
+     * Saves the pipeline cache to the file and destroys it. Call this from the {@code cleanUp()} method of the example,
+     * before destroying the device.
+     */
+    public void destroy()
+    {
+        try
+        {
+            save();
+        }
+        finally
+        {
+            // The cache is destroyed even if saving it failed, so that the device can be destroyed after this
+            vkDestroyPipelineCache(device, pipelineCache, null);
+        }
+    }
+
+    public long getPipelineCache()
+    {
+        return pipelineCache;
+    }
+
+    /**
+     * Returns whether the pipeline cache was created from a blob saved by an earlier launch.
+     *
+     * @return True if the cache is warm, false if it started out empty.
+     */
+    public boolean isWarm()
+    {
+        return warm;
+    }
+
+    public long getLoadedBytes()
+    {
+        return loadedBytes;
+    }
+
+    /**
+     * Returns the time taken to read, validate and create the pipeline cache in nanoseconds.
+     *
+     * @return The time taken to create the pipeline cache.
+     */
+    public long getCreateTimeNanos()
+    {
+        return createTimeNanos;
+    }
+
+    /**
+     * Prints whether the cache is cold or warm, and how long it took to create it, to the standard output.
+     */
+    public void printStartupTiming()
+    {
+        System.out.println("Pipeline Cache: " + (warm ? "Warm (" + loadedBytes + " bytes)" : "Cold") +
+                           String.format(", created in %.3f ms", createTimeNanos / 1e6));
+    }
+}
@@ -0,0 +1,1208 @@
+package com.shc.vulkan;
+
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkImageMemoryBarrier;
+import org.lwjgl.vulkan.VkImageSubresourceRange;
+import org.lwjgl.vulkan.VkMemoryBarrier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * A render graph that takes care of the synchronization between the passes of a frame. Every pass declares the
+ * resources that it reads and writes with a {@link ResourceUsage}, and the graph works out the order of the passes,
+ * the barriers between them, and the memory of the transient resources.
+ * <p>
+ * Compiling the graph does the following, all in plain Java without calling into Vulkan, so it can be tested and
+ * benchmarked without a device:
+ * <ul>
+ * <li>The dependencies between the passes are found from the order in which they are added, like reading a resource
+ * after a pass that writes to it, or writing a resource that an earlier pass reads.</li>
+ * <li>Passes whose results are never used are culled. A pass is used if it writes an imported resource, is marked as
+ * having a side effect, or writes something that a used pass reads.</li>
+ * <li>The passes are sorted into levels, where no pass in a level depends on another pass in the same level. Passes
+ * are placed in the latest level possible, which keeps the transient resources alive for as short as possible.</li>
+ * <li>All the barriers that the passes of a level need are merged into a single {@code vkCmdPipelineBarrier} before
+ * the level. Buffers are synchronized with one global memory barrier, and images with image barriers that do the
+ * layout transitions.</li>
+ * <li>Transient resources whose lifetimes don't overlap are given overlapping offsets in a single block of memory.
+ * The first barrier of a resource that reuses memory waits for the last use of the previous resources there.</li>
+ * </ul>
+ * After compiling, the transient images and buffers are created at the offsets from {@link #getMemoryOffset(int)} in
+ * a memory of {@link #getTransientMemorySize()} bytes and set with {@link #setHandle(int, long)}. The graph is then
+ * executed into a command buffer every frame with {@link #execute(VkCommandBuffer)}, and only has to be compiled
+ * again when the passes change.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class RenderGraph
+{
+    /**
+     * Records the commands of a pass.
+     */
+    @FunctionalInterface
+    public interface PassCallback
+    {
+        /**
+         * Records the commands of the pass into the command buffer. The barriers for the resources of the pass are
+         * already recorded when this is called.
+         *
+         * @param commandBuffer The command buffer to record into.
+         */
+        void execute(VkCommandBuffer commandBuffer);
+    }
+
+    /**
+     * A pass of the graph, which declares the resources that it uses.
+     */
+    public final class Pass
+    {
+        private final String       name;
+        private final PassCallback callback;
+
+        private int[]           resourceIds = new int[4];
+        private ResourceUsage[] usages      = new ResourceUsage[4];
+        private int             accessCount;
+
+        private boolean sideEffect;
+
+        private Pass(String name, PassCallback callback)
+        {
+            this.name = name;
+            this.callback = callback;
+        }
+
+        /**
+         * Declares that this pass reads the resource.
+         *
+         * @param resource The ID of the resource.
+         * @param usage    How the resource is read.
+         *
+         * @return This pass, for chaining.
+         */
+        public Pass read(int resource, ResourceUsage usage)
+        {
+            if (usage.isWrite())
+                throw new IllegalArgumentException("The usage " + usage + " is not a read");
+
+            return use(resource, usage);
+        }
+
+        /**
+         * Declares that this pass writes the resource.
+         *
+         * @param resource The ID of the resource.
+         * @param usage    How the resource is written.
+         *
+         * @return This pass, for chaining.
+         */
+        public Pass write(int resource, ResourceUsage usage)
+        {
+            if (!usage.isWrite())
+                throw new IllegalArgumentException("The usage " + usage + " is not a write");
+
+            return use(resource, usage);
+        }
+
+        /**
+         * Marks this pass as having effects outside of the graph, so that it is never culled.
+         *
+         * @return This pass, for chaining.
+         */
+        public Pass markSideEffect()
+        {
+            sideEffect = true;
+            compiled = false;
+
+            return this;
+        }
+
+        private Pass use(int resource, ResourceUsage usage)
+        {
+            if (resource < 0 || resource >= resources.size())
+                throw new IllegalArgumentException("There is no resource with the ID " + resource);
+
+            if (accessCount == resourceIds.length)
+            {
+                resourceIds = Arrays.copyOf(resourceIds, accessCount * 2);
+                usages = Arrays.copyOf(usages, accessCount * 2);
+            }
+
+            resourceIds[accessCount] = resource;
+            usages[accessCount] = usage;
+            accessCount++;
+
+            compiled = false;
+
+            return this;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+    }
+
+    private static final class Resource
+    {
+        private String  name;
+        private boolean image;
+        private boolean imported;
+        private int     aspectMask;
+        private long    size;
+        private long    alignment;
+        private long    handle;
+        private int     initialLayout;
+        private int     finalLayout;
+    }
+
+    private final long granularity;
+
+    private final List<Pass>     passes    = new ArrayList<>();
+    private final List<Resource> resources = new ArrayList<>();
+
+    private boolean compiled;
+
+    // The live passes, level by level in the order they are executed
+    private int[] passOrder = new int[0];
+    private int[] passLevel = new int[0];
+    private int[] levelStart = new int[1];
+    private int   levelCount;
+
+    // One barrier batch before every level, and a final one after the last level
+    private int[] batchSrcStage;
+    private int[] batchDstStage;
+    private int[] batchMemorySrcAccess;
+    private int[] batchMemoryDstAccess;
+    private int[] batchImageStart;
+
+    private int[] barrierResource   = new int[16];
+    private int[] barrierOldLayout  = new int[16];
+    private int[] barrierNewLayout  = new int[16];
+    private int[] barrierSrcAccess  = new int[16];
+    private int[] barrierDstAccess  = new int[16];
+    private int   barrierCount;
+
+    private long[] memoryOffsets = new long[0];
+    private long   transientMemorySize;
+    private long   unaliasedMemorySize;
+
+    private int hazardCount;
+    private int barrierCallCount;
+    private int maxImageBarriersPerBatch;
+
+    private VkImageMemoryBarrier.Buffer imageBarriers;
+    private VkMemoryBarrier             memoryBarrier;
+
+    /**
+     * Creates an empty render graph, whose transient resources are only aligned to their own alignments.
+     */
+    public RenderGraph()
+    {
+        this(1);
+    }
+
+    /**
+     * Creates an empty render graph.
+     *
+     * @param bufferImageGranularity The bufferImageGranularity limit of the device. The transient resources are placed
+     *                               at multiples of this, so that buffers and images can alias each other.
+     */
+    public RenderGraph(long bufferImageGranularity)
+    {
+        this.granularity = Math.max(1, bufferImageGranularity);
+    }
+
+    /**
+     * Declares a transient image, which only lives within the graph and whose memory can be shared with other
+     * transient resources.
+     *
+     * @param name       The name of the image.
+     * @param aspectMask The VkImageAspectFlags of the image.
+     * @param size       The size of the memory of the image, from it's VkMemoryRequirements.
+     * @param alignment  The alignment of the memory of the image, from it's VkMemoryRequirements.
+     *
+     * @return The ID of the resource.
+     */
+    public int createImage(String name, int aspectMask, long size, long alignment)
+    {
+        Resource resource = addResource(name, true, false);
+        resource.aspectMask = aspectMask;
+        resource.size = size;
+        resource.alignment = alignment;
+        resource.initialLayout = VK_IMAGE_LAYOUT_UNDEFINED;
+        resource.finalLayout = VK_IMAGE_LAYOUT_UNDEFINED;
+
+        return resources.size() - 1;
+    }
+
+    /**
+     * Declares a transient buffer, which only lives within the graph and whose memory can be shared with other
+     * transient resources.
+     *
+     * @param name      The name of the buffer.
+     * @param size      The size of the memory of the buffer, from it's VkMemoryRequirements.
+     * @param alignment The alignment of the memory of the buffer, from it's VkMemoryRequirements.
+     *
+     * @return The ID of the resource.
+     */
+    public int createBuffer(String name, long size, long alignment)
+    {
+        Resource resource = addResource(name, false, false);
+        resource.size = size;
+        resource.alignment = alignment;
+
+        return resources.size() - 1;
+    }
+
+    /**
+     * Imports an image that lives outside of the graph, like a swapchain image. Passes that write to imported
+     * resources are never culled.
+     *
+     * @param name          The name of the image.
+     * @param image         The handle of the VkImage.
+     * @param aspectMask    The VkImageAspectFlags of the image.
+     * @param initialLayout The layout that the image is in before the graph is executed.
+     * @param finalLayout   The layout that the image has to be in after the graph is executed, or
+     *                      {@code VK_IMAGE_LAYOUT_UNDEFINED} to leave it in the layout of it's last use.
+     *
+     * @return The ID of the resource.
+     */
+    public int importImage(String name, long image, int aspectMask, int initialLayout, int finalLayout)
+    {
+        Resource resource = addResource(name, true, true);
+        resource.handle = image;
+        resource.aspectMask = aspectMask;
+        resource.initialLayout = initialLayout;
+        resource.finalLayout = finalLayout;
+
+        return resources.size() - 1;
+    }
+
+    /**
+     * Imports a buffer that lives outside of the graph. Passes that write to imported resources are never culled.
+     *
+     * @param name   The name of the buffer.
+     * @param buffer The handle of the VkBuffer.
+     *
+     * @return The ID of the resource.
+     */
+    public int importBuffer(String name, long buffer)
+    {
+        Resource resource = addResource(name, false, true);
+        resource.handle = buffer;
+
+        return resources.size() - 1;
+    }
+
+    private Resource addResource(String name, boolean image, boolean imported)
+    {
+        Resource resource = new Resource();
+        resource.name = name;
+        resource.image = image;
+        resource.imported = imported;
+
+        resources.add(resource);
+        compiled = false;
+
+        return resource;
+    }
+
+    /**
+     * Sets the handle of a resource, like a transient image once it is created at it's offset, or an imported image
+     * that changes every frame. Changing the handles does not need the graph to be compiled again.
+     *
+     * @param resource The ID of the resource.
+     * @param handle   The handle of the VkImage or VkBuffer.
+     */
+    public void setHandle(int resource, long handle)
+    {
+        resources.get(resource).handle = handle;
+    }
+
+    /**
+     * Adds a pass to the graph. The order in which the passes are added is the order in which they access the
+     * resources, which the graph keeps while reordering the independent passes.
+     *
+     * @param name     The name of the pass.
+     * @param callback The callback that records the commands of the pass.
+     *
+     * @return The pass, to declare the resources that it uses.
+     */
+    public Pass addPass(String name, PassCallback callback)
+    {
+        Pass pass = new Pass(name, callback);
+        passes.add(pass);
+
+        compiled = false;
+
+        return pass;
+    }
+
+    /**
+     * Removes all the passes and resources, to build the graph again.
+     */
+    public void reset()
+    {
+        passes.clear();
+        resources.clear();
+
+        compiled = false;
+    }
+
+    /**
+     * Compiles the graph: culls the unused passes, sorts the rest into levels, places the transient resources in memory
+     * and computes the barriers. This does not call into Vulkan.
+     */
+    public void compile()
+    {
+        int passCount = passes.size();
+        int resourceCount = resources.size();
+
+        // Find the dependencies from the order of the accesses. Producer edges, from a writer to the passes that read
+        // or write after it, decide which passes are used. The other edges, from readers to the writers or readers in
+        // other layouts that come after them, only decide the order.
+        EdgeList edges = new EdgeList();
+
+        int[] lastWriter = new int[resourceCount];
+        int[][] readers = new int[resourceCount][];
+        int[] readerCount = new int[resourceCount];
+        int[] readLayout = new int[resourceCount];
+
+        Arrays.fill(lastWriter, -1);
+
+        for (int p = 0; p < passCount; p++)
+        {
+            Pass pass = passes.get(p);
+
+            for (int a = 0; a < pass.accessCount; a++)
+            {
+                int r = pass.resourceIds[a];
+                ResourceUsage usage = pass.usages[a];
+
+                if (lastWriter[r] >= 0 && lastWriter[r] != p)
+                    edges.add(lastWriter[r], p, true);
+
+                if (usage.isWrite()
+                    || (resources.get(r).image && readerCount[r] > 0 && readLayout[r] != usage.getLayout()))
+                {
+                    for (int i = 0; i < readerCount[r]; i++)
+                        if (readers[r][i] != p)
+                            edges.add(readers[r][i], p, false);
+
+                    readerCount[r] = 0;
+                }
+
+                if (usage.isWrite())
+                    lastWriter[r] = p;
+                else if (readerCount[r] == 0 || readers[r][readerCount[r] - 1] != p)
+                {
+                    if (readers[r] == null)
+                        readers[r] = new int[4];
+                    else if (readerCount[r] == readers[r].length)
+                        readers[r] = Arrays.copyOf(readers[r], readerCount[r] * 2);
+
+                    readers[r][readerCount[r]++] = p;
+                    readLayout[r] = usage.getLayout();
+                }
+            }
+        }
+
+        int[] outStart = new int[passCount + 1];
+        int[] outEdges = edges.toAdjacency(passCount, outStart, false, false);
+
+        int[] producerStart = new int[passCount + 1];
+        int[] producers = edges.toAdjacency(passCount, producerStart, true, true);
+
+        // Cull the passes that are not needed by a pass with a side effect or a write to an imported resource
+        boolean[] live = new boolean[passCount];
+        int[] stack = new int[passCount];
+        int stackSize = 0;
+
+        for (int p = 0; p < passCount; p++)
+        {
+            Pass pass = passes.get(p);
+            boolean root = pass.sideEffect;
+
+            for (int a = 0; a < pass.accessCount && !root; a++)
+                root = pass.usages[a].isWrite() && resources.get(pass.resourceIds[a]).imported;
+
+            if (root)
+            {
+                live[p] = true;
+                stack[stackSize++] = p;
+            }
+        }
+
+        while (stackSize > 0)
+        {
+            int p = stack[--stackSize];
+
+            for (int i = producerStart[p]; i < producerStart[p + 1]; i++)
+            {
+                int q = producers[i];
+
+                if (!live[q])
+                {
+                    live[q] = true;
+                    stack[stackSize++] = q;
+                }
+            }
+        }
+
+        // Sort the live passes topologically, and find the earliest level of every pass on the way
+        int[] inDegree = new int[passCount];
+        int liveCount = 0;
+
+        for (int p = 0; p < passCount; p++)
+        {
+            if (!live[p])
+                continue;
+
+            liveCount++;
+
+            for (int i = outStart[p]; i < outStart[p + 1]; i++)
+                if (live[outEdges[i]])
+                    inDegree[outEdges[i]]++;
+        }
+
+        int[] topological = new int[liveCount];
+        int[] level = new int[passCount];
+        int head = 0, tail = 0;
+
+        for (int p = 0; p < passCount; p++)
+            if (live[p] && inDegree[p] == 0)
+                topological[tail++] = p;
+
+        int maxLevel = 0;
+
+        while (head < tail)
+        {
+            int p = topological[head++];
+            maxLevel = Math.max(maxLevel, level[p]);
+
+            for (int i = outStart[p]; i < outStart[p + 1]; i++)
+            {
+                int s = outEdges[i];
+
+                if (!live[s])
+                    continue;
+
+                level[s] = Math.max(level[s], level[p] + 1);
+
+                if (--inDegree[s] == 0)
+                    topological[tail++] = s;
+            }
+        }
+
+        if (tail != liveCount)
+            throw new IllegalStateException("The render graph has a cycle");
+
+        // Move every pass to the latest level that is still before all of it's dependents, so that the resources that
+        // it writes are created as late as possible
+        for (int i = liveCount - 1; i >= 0; i--)
+        {
+            int p = topological[i];
+            int latest = maxLevel;
+
+            for (int j = outStart[p]; j < outStart[p + 1]; j++)
+                if (live[outEdges[j]])
+                    latest = Math.min(latest, level[outEdges[j]] - 1);
+
+            level[p] = latest;
+        }
+
+        levelCount = liveCount == 0 ? 0 : maxLevel + 1;
+        levelStart = new int[levelCount + 1];
+        passOrder = new int[liveCount];
+
+        for (int p = 0; p < passCount; p++)
+            if (live[p])
+                levelStart[level[p] + 1]++;
+
+        for (int l = 0; l < levelCount; l++)
+            levelStart[l + 1] += levelStart[l];
+
+        int[] position = Arrays.copyOf(levelStart, levelCount);
+
+        for (int p = 0; p < passCount; p++)
+            if (live[p])
+                passOrder[position[level[p]]++] = p;
+
+        passLevel = new int[passCount];
+
+        for (int p = 0; p < passCount; p++)
+            passLevel[p] = live[p] ? level[p] : -1;
+
+        // The lifetimes of the resources in levels, and the stages and writes of their last level
+        int[] firstLevel = new int[resourceCount];
+        int[] lastLevel = new int[resourceCount];
+        int[] lastStage = new int[resourceCount];
+        int[] lastWriteAccess = new int[resourceCount];
+
+        Arrays.fill(firstLevel, -1);
+        Arrays.fill(lastLevel, -1);
+
+        for (int l = 0; l < levelCount; l++)
+        {
+            for (int i = levelStart[l]; i < levelStart[l + 1]; i++)
+            {
+                Pass pass = passes.get(passOrder[i]);
+
+                for (int a = 0; a < pass.accessCount; a++)
+                {
+                    int r = pass.resourceIds[a];
+                    ResourceUsage usage = pass.usages[a];
+
+                    if (firstLevel[r] < 0)
+                        firstLevel[r] = l;
+
+                    if (lastLevel[r] < l)
+                    {
+                        lastLevel[r] = l;
+                        lastStage[r] = 0;
+                        lastWriteAccess[r] = 0;
+                    }
+
+                    lastStage[r] |= usage.getStageMask();
+
+                    if (usage.isWrite())
+                        lastWriteAccess[r] |= usage.getAccessMask();
+                }
+            }
+        }
+
+        int[] aliasSrcStage = new int[resourceCount];
+        int[] aliasSrcAccess = new int[resourceCount];
+
+        placeTransientResources(firstLevel, lastLevel, lastStage, lastWriteAccess, aliasSrcStage, aliasSrcAccess);
+        computeBarriers(firstLevel, aliasSrcStage, aliasSrcAccess);
+
+        compiled = true;
+    }
+
+    private void placeTransientResources(int[] firstLevel, int[] lastLevel, int[] lastStage, int[] lastWriteAccess,
+                                         int[] aliasSrcStage, int[] aliasSrcAccess)
+    {
+        int resourceCount = resources.size();
+
+        memoryOffsets = new long[resourceCount];
+        Arrays.fill(memoryOffsets, -1);
+
+        transientMemorySize = 0;
+        unaliasedMemorySize = 0;
+
+        // Place the largest resources first, each one at the lowest offset that is free for it's whole lifetime
+        int[] order = new int[resourceCount];
+        int orderCount = 0;
+
+        long[] negatedSizes = new long[resourceCount];
+
+        for (int r = 0; r < resourceCount; r++)
+        {
+            if (!resources.get(r).imported && firstLevel[r] >= 0)
+            {
+                order[orderCount++] = r;
+                negatedSizes[r] = -resources.get(r).size;
+            }
+        }
+
+        sortByKey(order, orderCount, negatedSizes);
+
+        int[] placed = new int[orderCount];
+        int placedCount = 0;
+
+        long[] sizes = new long[resourceCount];
+        int[] overlapping = new int[orderCount];
+
+        for (int o = 0; o < orderCount; o++)
+        {
+            int r = order[o];
+            Resource resource = resources.get(r);
+
+            long alignment = Math.max(resource.alignment, granularity);
+            long size = alignUp(resource.size, granularity);
+
+            sizes[r] = size;
+            unaliasedMemorySize += size;
+
+            int overlapCount = 0;
+
+            for (int i = 0; i < placedCount; i++)
+            {
+                int q = placed[i];
+
+                if (firstLevel[q] <= lastLevel[r] && firstLevel[r] <= lastLevel[q])
+                    overlapping[overlapCount++] = q;
+            }
+
+            sortByKey(overlapping, overlapCount, memoryOffsets);
+
+            long offset = 0;
+
+            for (int i = 0; i < overlapCount; i++)
+            {
+                int q = overlapping[i];
+
+                if (alignUp(offset, alignment) + size <= memoryOffsets[q])
+                    break;
+
+                offset = Math.max(offset, memoryOffsets[q] + sizes[q]);
+            }
+
+            offset = alignUp(offset, alignment);
+
+            memoryOffsets[r] = offset;
+            transientMemorySize = Math.max(transientMemorySize, offset + size);
+
+            placed[placedCount++] = r;
+        }
+
+        // Find the resources that used the memory before, the first barrier of the new resource has to wait for them
+        for (int i = 0; i < placedCount; i++)
+        {
+            int r = placed[i];
+
+            for (int j = 0; j < placedCount; j++)
+            {
+                int q = placed[j];
+
+                if (lastLevel[q] < firstLevel[r] && memoryOffsets[q] < memoryOffsets[r] + sizes[r]
+                    && memoryOffsets[r] < memoryOffsets[q] + sizes[q])
+                {
+                    aliasSrcStage[r] |= lastStage[q];
+                    aliasSrcAccess[r] |= lastWriteAccess[q];
+                }
+            }
+        }
+    }
+
+    private void computeBarriers(int[] firstLevel, int[] aliasSrcStage, int[] aliasSrcAccess)
+    {
+        int resourceCount = resources.size();
+
+        // The state of every resource at the point of the level being processed
+        int[] layout = new int[resourceCount];
+        int[] writeStage = new int[resourceCount];
+        int[] writeAccess = new int[resourceCount];
+        int[] readStage = new int[resourceCount];
+        int[] visibleStage = new int[resourceCount];
+        int[] visibleAccess = new int[resourceCount];
+        boolean[] written = new boolean[resourceCount];
+        boolean[] used = new boolean[resourceCount];
+
+        int[] barrierLevel = new int[resourceCount];
+        int[] barrierIndex = new int[resourceCount];
+
+        for (int r = 0; r < resourceCount; r++)
+            layout[r] = resources.get(r).initialLayout;
+
+        Arrays.fill(barrierLevel, -1);
+
+        batchSrcStage = new int[levelCount + 1];
+        batchDstStage = new int[levelCount + 1];
+        batchMemorySrcAccess = new int[levelCount + 1];
+        batchMemoryDstAccess = new int[levelCount + 1];
+        batchImageStart = new int[levelCount + 2];
+
+        barrierCount = 0;
+        hazardCount = 0;
+
+        for (int l = 0; l < levelCount; l++)
+        {
+            batchImageStart[l] = barrierCount;
+
+            for (int i = levelStart[l]; i < levelStart[l + 1]; i++)
+            {
+                Pass pass = passes.get(passOrder[i]);
+
+                for (int a = 0; a < pass.accessCount; a++)
+                {
+                    int r = pass.resourceIds[a];
+                    ResourceUsage usage = pass.usages[a];
+                    Resource resource = resources.get(r);
+
+                    boolean layoutChange = resource.image && layout[r] != usage.getLayout();
+                    boolean needed = layoutChange;
+
+                    int srcStage = 0;
+                    int srcAccess = 0;
+
+                    if (!used[r] && aliasSrcStage[r] != 0)
+                    {
+                        srcStage |= aliasSrcStage[r];
+                        srcAccess |= aliasSrcAccess[r];
+                        needed = true;
+                    }
+
+                    if (usage.isWrite())
+                    {
+                        // Write after write, and write after read
+                        if (written[r])
+                        {
+                            srcStage |= writeStage[r];
+                            srcAccess |= writeAccess[r];
+                            needed = true;
+                        }
+
+                        if (readStage[r] != 0)
+                        {
+                            srcStage |= readStage[r];
+                            needed = true;
+                        }
+                    }
+                    else
+                    {
+                        // Read after write, unless an earlier barrier already made the write visible to this read
+                        if (written[r] && ((usage.getStageMask() & ~visibleStage[r]) != 0
+                                           || (usage.getAccessMask() & ~visibleAccess[r]) != 0))
+                        {
+                            srcStage |= writeStage[r];
+                            srcAccess |= writeAccess[r];
+                            needed = true;
+                        }
+
+                        // The readers of the old layout have to finish before the transition
+                        if (layoutChange)
+                            srcStage |= readStage[r];
+                    }
+
+                    if (!needed)
+                        continue;
+
+                    hazardCount++;
+
+                    batchSrcStage[l] |= srcStage;
+                    batchDstStage[l] |= usage.getStageMask();
+
+                    if (!resource.image)
+                    {
+                        batchMemorySrcAccess[l] |= srcAccess;
+                        batchMemoryDstAccess[l] |= usage.getAccessMask();
+                    }
+                    else if (barrierLevel[r] == l)
+                    {
+                        barrierSrcAccess[barrierIndex[r]] |= srcAccess;
+                        barrierDstAccess[barrierIndex[r]] |= usage.getAccessMask();
+                    }
+                    else
+                    {
+                        barrierLevel[r] = l;
+                        barrierIndex[r] = addImageBarrier(r, layout[r], usage.getLayout(), srcAccess,
+                                usage.getAccessMask());
+                    }
+                }
+            }
+
+            // Update the states only after the whole level, since the passes of a level don't wait for each other
+            for (int i = levelStart[l]; i < levelStart[l + 1]; i++)
+            {
+                Pass pass = passes.get(passOrder[i]);
+
+                for (int a = 0; a < pass.accessCount; a++)
+                {
+                    int r = pass.resourceIds[a];
+                    ResourceUsage usage = pass.usages[a];
+
+                    used[r] = true;
+
+                    if (resources.get(r).image && layout[r] != usage.getLayout())
+                    {
+                        // A layout transition is a write, that is done before the stages of this level
+                        layout[r] = usage.getLayout();
+                        written[r] = true;
+                        writeStage[r] |= usage.getStageMask();
+                        readStage[r] = 0;
+                        visibleStage[r] = 0;
+                        visibleAccess[r] = 0;
+                    }
+
+                    if (usage.isWrite())
+                    {
+                        written[r] = true;
+                        writeStage[r] = usage.getStageMask();
+                        writeAccess[r] = usage.getAccessMask();
+                        readStage[r] = 0;
+                        visibleStage[r] = 0;
+                        visibleAccess[r] = 0;
+                    }
+                    else
+                    {
+                        readStage[r] |= usage.getStageMask();
+                        visibleStage[r] |= usage.getStageMask();
+                        visibleAccess[r] |= usage.getAccessMask();
+                    }
+                }
+            }
+
+            if (batchDstStage[l] != 0 && batchSrcStage[l] == 0)
+                batchSrcStage[l] = VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT;
+        }
+
+        // Move the imported images to their final layouts after the last level
+        batchImageStart[levelCount] = barrierCount;
+
+        for (int r = 0; r < resourceCount; r++)
+        {
+            Resource resource = resources.get(r);
+
+            if (!resource.imported || !resource.image || resource.finalLayout == VK_IMAGE_LAYOUT_UNDEFINED
+                || resource.finalLayout == layout[r])
+                continue;
+
+            batchSrcStage[levelCount] |= writeStage[r] | readStage[r];
+            batchDstStage[levelCount] = VK_PIPELINE_STAGE_BOTTOM_OF_PIPE_BIT;
+
+            addImageBarrier(r, layout[r], resource.finalLayout, written[r] ? writeAccess[r] : 0, 0);
+        }
+
+        if (batchDstStage[levelCount] != 0 && batchSrcStage[levelCount] == 0)
+            batchSrcStage[levelCount] = VK_PIPELINE_STAGE_TOP_OF_PIPE_BIT;
+
+        batchImageStart[levelCount + 1] = barrierCount;
+
+        barrierCallCount = 0;
+        maxImageBarriersPerBatch = 0;
+
+        for (int l = 0; l <= levelCount; l++)
+        {
+            if (batchDstStage[l] != 0)
+                barrierCallCount++;
+
+            maxImageBarriersPerBatch = Math.max(maxImageBarriersPerBatch, batchImageStart[l + 1] - batchImageStart[l]);
+        }
+    }
+
+    private int addImageBarrier(int resource, int oldLayout, int newLayout, int srcAccess, int dstAccess)
+    {
+        if (barrierCount == barrierResource.length)
+        {
+            int capacity = barrierCount * 2;
+
+            barrierResource = Arrays.copyOf(barrierResource, capacity);
+            barrierOldLayout = Arrays.copyOf(barrierOldLayout, capacity);
+            barrierNewLayout = Arrays.copyOf(barrierNewLayout, capacity);
+            barrierSrcAccess = Arrays.copyOf(barrierSrcAccess, capacity);
+            barrierDstAccess = Arrays.copyOf(barrierDstAccess, capacity);
+        }
+
+        barrierResource[barrierCount] = resource;
+        barrierOldLayout[barrierCount] = oldLayout;
+        barrierNewLayout[barrierCount] = newLayout;
+        barrierSrcAccess[barrierCount] = srcAccess;
+        barrierDstAccess[barrierCount] = dstAccess;
+
+        return barrierCount++;
+    }
+
+    /**
+     * Records the graph into a command buffer: the barriers before every level and the commands of the passes. The
+     * graph is compiled first if it was changed. The transient resources must have their handles set.
+     *
+     * @param commandBuffer The command buffer to record into.
+     */
+    public void execute(VkCommandBuffer commandBuffer)
+    {
+        if (!compiled)
+            compile();
+
+        if (imageBarriers == null || imageBarriers.capacity() < maxImageBarriersPerBatch)
+        {
+            if (imageBarriers != null)
+                imageBarriers.free();
+
+            imageBarriers = VkImageMemoryBarrier.calloc(Math.max(maxImageBarriersPerBatch, 8));
+
+            for (int i = 0; i < imageBarriers.capacity(); i++)
+            {
+                long barrier = imageBarriers.address() + i * VkImageMemoryBarrier.SIZEOF;
+                long range = barrier + VkImageMemoryBarrier.SUBRESOURCERANGE;
+
+                VkImageMemoryBarrier.nsType(barrier, VK_STRUCTURE_TYPE_IMAGE_MEMORY_BARRIER);
+                VkImageMemoryBarrier.nsrcQueueFamilyIndex(barrier, VK_QUEUE_FAMILY_IGNORED);
+                VkImageMemoryBarrier.ndstQueueFamilyIndex(barrier, VK_QUEUE_FAMILY_IGNORED);
+                VkImageSubresourceRange.nlevelCount(range, VK_REMAINING_MIP_LEVELS);
+                VkImageSubresourceRange.nlayerCount(range, VK_REMAINING_ARRAY_LAYERS);
+            }
+        }
+
+        if (memoryBarrier == null)
+            memoryBarrier = VkMemoryBarrier.calloc().sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER);
+
+        for (int l = 0; l < levelCount; l++)
+        {
+            recordBarriers(commandBuffer, l);
+
+            for (int i = levelStart[l]; i < levelStart[l + 1]; i++)
+                passes.get(passOrder[i]).callback.execute(commandBuffer);
+        }
+
+        recordBarriers(commandBuffer, levelCount);
+    }
+
+    private void recordBarriers(VkCommandBuffer commandBuffer, int batch)
+    {
+        if (batchDstStage[batch] == 0)
+            return;
+
+        int imageBarrierCount = batchImageStart[batch + 1] - batchImageStart[batch];
+
+        for (int i = 0; i < imageBarrierCount; i++)
+        {
+            int b = batchImageStart[batch] + i;
+            Resource resource = resources.get(barrierResource[b]);
+
+            long barrier = imageBarriers.address() + i * VkImageMemoryBarrier.SIZEOF;
+
+            VkImageMemoryBarrier.nsrcAccessMask(barrier, barrierSrcAccess[b]);
+            VkImageMemoryBarrier.ndstAccessMask(barrier, barrierDstAccess[b]);
+            VkImageMemoryBarrier.noldLayout(barrier, barrierOldLayout[b]);
+            VkImageMemoryBarrier.nnewLayout(barrier, barrierNewLayout[b]);
+            VkImageMemoryBarrier.nimage(barrier, resource.handle);
+            VkImageSubresourceRange.naspectMask(barrier + VkImageMemoryBarrier.SUBRESOURCERANGE, resource.aspectMask);
+        }
+
+        boolean hasMemoryBarrier = batchMemoryDstAccess[batch] != 0;
+
+        memoryBarrier.srcAccessMask(batchMemorySrcAccess[batch])
+                     .dstAccessMask(batchMemoryDstAccess[batch]);
+
+        nvkCmdPipelineBarrier(commandBuffer, batchSrcStage[batch], batchDstStage[batch], 0,
+                hasMemoryBarrier ? 1 : 0, hasMemoryBarrier ? memoryBarrier.address() : NULL,
+                0, NULL,
+                imageBarrierCount, imageBarrierCount == 0 ? NULL : imageBarriers.address());
+    }
+
+    private static long alignUp(long value, long alignment)
+    {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+
+    /**
+     * Sorts the first count indices by their keys in ascending order, and indices with equal keys by themselves. This
+     * is a shell sort on the plain indices, so that they are not boxed for a comparator.
+     */
+    private static void sortByKey(int[] indices, int count, long[] keys)
+    {
+        for (int gap = count / 2; gap > 0; gap = gap == 2 ? 1 : gap * 5 / 11)
+        {
+            for (int i = gap; i < count; i++)
+            {
+                int index = indices[i];
+                long key = keys[index];
+                int j = i;
+
+                while (j >= gap && (keys[indices[j - gap]] > key
+                                    || keys[indices[j - gap]] == key && indices[j - gap] > index))
+                {
+                    indices[j] = indices[j - gap];
+                    j -= gap;
+                }
+
+                indices[j] = index;
+            }
+        }
+    }
+
+    /**
+     * Returns the level that a pass is executed in. Passes in the same level have no barriers between them. Only valid
+     * after the graph is compiled.
+     *
+     * @param pass The index of the pass, in the order that the passes were added.
+     *
+     * @return The level of the pass, or -1 if the pass was culled.
+     */
+    public int getPassLevel(int pass)
+    {
+        return passLevel[pass];
+    }
+
+    /**
+     * Returns the offset of a transient resource in the transient memory. Only valid after the graph is compiled.
+     *
+     * @param resource The ID of the resource.
+     *
+     * @return The offset in bytes, or -1 if the resource is imported or not used by any live pass.
+     */
+    public long getMemoryOffset(int resource)
+    {
+        return memoryOffsets[resource];
+    }
+
+    /**
+     * Returns the size of the memory that all the transient resources are placed in, with the aliasing.
+     *
+     * @return The size of the transient memory in bytes.
+     */
+    public long getTransientMemorySize()
+    {
+        return transientMemorySize;
+    }
+
+    /**
+     * Returns the size of the memory that the transient resources would need if none of them were aliased.
+     *
+     * @return The size of the memory without aliasing in bytes.
+     */
+    public long getUnaliasedMemorySize()
+    {
+        return unaliasedMemorySize;
+    }
+
+    public int getPassCount()
+    {
+        return passes.size();
+    }
+
+    public int getLivePassCount()
+    {
+        return passOrder.length;
+    }
+
+    public int getLevelCount()
+    {
+        return levelCount;
+    }
+
+    /**
+     * Returns the order in which the live passes are executed, as indices in the order that they were added.
+     *
+     * @return The execution order of the passes. The array must not be modified.
+     */
+    public int[] getExecutionOrder()
+    {
+        return passOrder;
+    }
+
+    /**
+     * Returns the number of resource accesses that needed synchronization. Without the batching, every one of them
+     * would be a separate barrier.
+     *
+     * @return The number of accesses that needed a barrier.
+     */
+    public int getHazardCount()
+    {
+        return hazardCount;
+    }
+
+    /**
+     * Returns the number of {@code vkCmdPipelineBarrier} calls that executing the graph records.
+     *
+     * @return The number of barrier calls.
+     */
+    public int getBarrierCallCount()
+    {
+        return barrierCallCount;
+    }
+
+    public int getImageBarrierCount()
+    {
+        return barrierCount;
+    }
+
+    /**
+     * Prints the execution order of the passes with the barriers before every level, for debugging.
+     */
+    public void print()
+    {
+        for (int l = 0; l <= levelCount; l++)
+        {
+            if (batchDstStage[l] != 0)
+            {
+                System.out.println(String.format("Barrier 0x%08x -> 0x%08x", batchSrcStage[l], batchDstStage[l]));
+
+                if (batchMemoryDstAccess[l] != 0)
+                    System.out.println(String.format("\tMemory 0x%08x -> 0x%08x", batchMemorySrcAccess[l],
+                            batchMemoryDstAccess[l]));
+
+                for (int b = batchImageStart[l]; b < batchImageStart[l + 1]; b++)
+                    System.out.println(String.format("\tImage %s: layout %d -> %d, access 0x%08x -> 0x%08x",
+                            resources.get(barrierResource[b]).name, barrierOldLayout[b], barrierNewLayout[b],
+                            barrierSrcAccess[b], barrierDstAccess[b]));
+            }
+
+            if (l == levelCount)
+                break;
+
+            for (int i = levelStart[l]; i < levelStart[l + 1]; i++)
+                System.out.println("Level " + l + ": " + passes.get(passOrder[i]).name);
+        }
+    }
+
+    /**
+     * Frees the barrier structs that are used for recording.
+     */
+    public void destroy()
+    {
+        if (imageBarriers != null)
+            imageBarriers.free();
+
+        if (memoryBarrier != null)
+            memoryBarrier.free();
+
+        imageBarriers = null;
+        memoryBarrier = null;
+    }
+
+    /**
+     * A growable list of the dependency edges between the passes.
+     */
+    private static final class EdgeList
+    {
+        private int[]     from     = new int[64];
+        private int[]     to       = new int[64];
+        private boolean[] producer = new boolean[64];
+        private int       count;
+
+        private void add(int fromPass, int toPass, boolean isProducer)
+        {
+            if (count == from.length)
+            {
+                from = Arrays.copyOf(from, count * 2);
+                to = Arrays.copyOf(to, count * 2);
+                producer = Arrays.copyOf(producer, count * 2);
+            }
+
+            from[count] = fromPass;
+            to[count] = toPass;
+            producer[count] = isProducer;
+            count++;
+        }
+
+        /**
+         * Builds a compressed adjacency list, where the neighbours of pass p are from start[p] to start[p + 1].
+         *
+         * @param passCount     The number of passes.
+         * @param start         The array to store the start of every pass in, of the pass count plus one.
+         * @param producersOnly Whether to only include the producer edges.
+         * @param reversed      Whether to list the passes that the edges come from instead of go to.
+         *
+         * @return The neighbours of all the passes.
+         */
+        private int[] toAdjacency(int passCount, int[] start, boolean producersOnly, boolean reversed)
+        {
+            int[] source = reversed ? to : from;
+            int[] target = reversed ? from : to;
+
+            for (int i = 0; i < count; i++)
+                if (!producersOnly || producer[i])
+                    start[source[i] + 1]++;
+
+            for (int p = 0; p < passCount; p++)
+                start[p + 1] += start[p];
+
+            int[] position = Arrays.copyOf(start, passCount);
+            int[] adjacency = new int[start[passCount]];
+
+            for (int i = 0; i < count; i++)
+                if (!producersOnly || producer[i])
+                    adjacency[position[source[i]]++] = target[i];
+
+            return adjacency;
+        }
+    }
+}
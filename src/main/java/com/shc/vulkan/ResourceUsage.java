@@ -0,0 +1,133 @@
+package com.shc.vulkan;
+
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Describes how a pass of a {@link RenderGraph} uses a resource: the pipeline stages that access it, the kind of access
+ * and the layout that an image has to be in. The render graph computes the barriers between the passes from these, so
+ * the passes never have to write the synchronization themselves.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public final class ResourceUsage
+{
+    public static final ResourceUsage COLOR_ATTACHMENT = new ResourceUsage("Color Attachment", true,
+            VK_PIPELINE_STAGE_COLOR_ATTACHMENT_OUTPUT_BIT,
+            VK_ACCESS_COLOR_ATTACHMENT_READ_BIT | VK_ACCESS_COLOR_ATTACHMENT_WRITE_BIT,
+            VK_IMAGE_LAYOUT_COLOR_ATTACHMENT_OPTIMAL);
+
+    public static final ResourceUsage DEPTH_ATTACHMENT = new ResourceUsage("Depth Attachment", true,
+            VK_PIPELINE_STAGE_EARLY_FRAGMENT_TESTS_BIT | VK_PIPELINE_STAGE_LATE_FRAGMENT_TESTS_BIT,
+            VK_ACCESS_DEPTH_STENCIL_ATTACHMENT_READ_BIT | VK_ACCESS_DEPTH_STENCIL_ATTACHMENT_WRITE_BIT,
+            VK_IMAGE_LAYOUT_DEPTH_STENCIL_ATTACHMENT_OPTIMAL);
+
+    public static final ResourceUsage DEPTH_READ = new ResourceUsage("Depth Read", false,
+            VK_PIPELINE_STAGE_EARLY_FRAGMENT_TESTS_BIT | VK_PIPELINE_STAGE_LATE_FRAGMENT_TESTS_BIT,
+            VK_ACCESS_DEPTH_STENCIL_ATTACHMENT_READ_BIT,
+            VK_IMAGE_LAYOUT_DEPTH_STENCIL_READ_ONLY_OPTIMAL);
+
+    public static final ResourceUsage SAMPLED_FRAGMENT = new ResourceUsage("Sampled in Fragment Shader", false,
+            VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT,
+            VK_ACCESS_SHADER_READ_BIT,
+            VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL);
+
+    public static final ResourceUsage SAMPLED_COMPUTE = new ResourceUsage("Sampled in Compute Shader", false,
+            VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT,
+            VK_ACCESS_SHADER_READ_BIT,
+            VK_IMAGE_LAYOUT_SHADER_READ_ONLY_OPTIMAL);
+
+    public static final ResourceUsage STORAGE_READ_COMPUTE = new ResourceUsage("Storage Read in Compute Shader", false,
+            VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT,
+            VK_ACCESS_SHADER_READ_BIT,
+            VK_IMAGE_LAYOUT_GENERAL);
+
+    public static final ResourceUsage STORAGE_WRITE_COMPUTE = new ResourceUsage("Storage Write in Compute Shader", true,
+            VK_PIPELINE_STAGE_COMPUTE_SHADER_BIT,
+            VK_ACCESS_SHADER_READ_BIT | VK_ACCESS_SHADER_WRITE_BIT,
+            VK_IMAGE_LAYOUT_GENERAL);
+
+    public static final ResourceUsage TRANSFER_SRC = new ResourceUsage("Transfer Source", false,
+            VK_PIPELINE_STAGE_TRANSFER_BIT,
+            VK_ACCESS_TRANSFER_READ_BIT,
+            VK_IMAGE_LAYOUT_TRANSFER_SRC_OPTIMAL);
+
+    public static final ResourceUsage TRANSFER_DST = new ResourceUsage("Transfer Destination", true,
+            VK_PIPELINE_STAGE_TRANSFER_BIT,
+            VK_ACCESS_TRANSFER_WRITE_BIT,
+            VK_IMAGE_LAYOUT_TRANSFER_DST_OPTIMAL);
+
+    public static final ResourceUsage VERTEX_BUFFER = new ResourceUsage("Vertex Buffer", false,
+            VK_PIPELINE_STAGE_VERTEX_INPUT_BIT,
+            VK_ACCESS_VERTEX_ATTRIBUTE_READ_BIT,
+            VK_IMAGE_LAYOUT_UNDEFINED);
+
+    public static final ResourceUsage INDEX_BUFFER = new ResourceUsage("Index Buffer", false,
+            VK_PIPELINE_STAGE_VERTEX_INPUT_BIT,
+            VK_ACCESS_INDEX_READ_BIT,
+            VK_IMAGE_LAYOUT_UNDEFINED);
+
+    public static final ResourceUsage UNIFORM_BUFFER = new ResourceUsage("Uniform Buffer", false,
+            VK_PIPELINE_STAGE_VERTEX_SHADER_BIT | VK_PIPELINE_STAGE_FRAGMENT_SHADER_BIT,
+            VK_ACCESS_UNIFORM_READ_BIT,
+            VK_IMAGE_LAYOUT_UNDEFINED);
+
+    public static final ResourceUsage INDIRECT_BUFFER = new ResourceUsage("Indirect Buffer", false,
+            VK_PIPELINE_STAGE_DRAW_INDIRECT_BIT,
+            VK_ACCESS_INDIRECT_COMMAND_READ_BIT,
+            VK_IMAGE_LAYOUT_UNDEFINED);
+
+    private final String  name;
+    private final boolean write;
+    private final int     stageMask;
+    private final int     accessMask;
+    private final int     layout;
+
+    /**
+     * Creates a new usage, for the uses that are not covered by the constants.
+     *
+     * @param name       The name of the usage, used when printing the graph.
+     * @param write      Whether the usage writes to the resource.
+     * @param stageMask  The VkPipelineStageFlags of the stages that access the resource.
+     * @param accessMask The VkAccessFlags of the accesses.
+     * @param layout     The VkImageLayout that an image must be in, ignored for buffers.
+     */
+    public ResourceUsage(String name, boolean write, int stageMask, int accessMask, int layout)
+    {
+        this.name = name;
+        this.write = write;
+        this.stageMask = stageMask;
+        this.accessMask = accessMask;
+        this.layout = layout;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public boolean isWrite()
+    {
+        return write;
+    }
+
+    public int getStageMask()
+    {
+        return stageMask;
+    }
+
+    public int getAccessMask()
+    {
+        return accessMask;
+    }
+
+    public int getLayout()
+    {
+        return layout;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
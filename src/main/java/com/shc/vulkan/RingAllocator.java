@@ -0,0 +1,232 @@
+package com.shc.vulkan;
+
+import java.util.Arrays;
+
+/**
+ * The bookkeeping of a ring buffer whose regions are in use by the device till a {@link FenceClock} value completes.
+ * This class only hands out offsets, it does not touch any memory, so it can be tested with a simulated clock.
+ * <p>
+ * Regions are allocated at the head of the ring, one after the other. When a batch of regions is submitted, it is
+ * tagged with the clock value of the submission. The space is given back once that value has completed, by moving the
+ * tail of the ring past the batch. When a region does not fit in the space left before the end of the ring, the ring
+ * wraps around and the region starts at offset zero, so every region is contiguous.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class RingAllocator
+{
+    private final long capacity;
+
+    // The head and the tail are positions that only increase, the offset in the ring is the position modulo capacity
+    private long head;
+    private long tail;
+    private long submittedHead;
+
+    // A queue of the batches that are in flight, with the head at the end of every batch and it's clock value
+    private long[] batchEnds   = new long[16];
+    private long[] batchValues = new long[16];
+    private int    batchStart;
+    private int    batchCount;
+
+    private long stallCount;
+
+    /**
+     * Creates the bookkeeping for a ring of the given size.
+     *
+     * @param capacity The size of the ring in bytes.
+     */
+    public RingAllocator(long capacity)
+    {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("The capacity must be positive");
+
+        this.capacity = capacity;
+    }
+
+    /**
+     * Allocates a contiguous region at the head of the ring.
+     *
+     * @param size      The size of the region in bytes.
+     * @param alignment The alignment of the offset of the region, which must be a power of two.
+     *
+     * @return The offset of the region in the ring, or -1 if the ring is too full for it right now.
+     */
+    public long allocate(long size, long alignment)
+    {
+        if (size <= 0 || size > capacity)
+            throw new IllegalArgumentException("The size must be positive and at most the capacity");
+
+        long position = head;
+        long offset = position % capacity;
+        long aligned = (offset + alignment - 1) & -alignment;
+
+        // Wrap around when the region would cross the end of the ring, wasting the space that is left at the end.
+        if (aligned + size > capacity)
+        {
+            position += capacity - offset;
+            aligned = 0;
+        }
+        else
+            position += aligned - offset;
+
+        long newHead = position + size;
+
+        if (newHead - tail > capacity)
+            return -1;
+
+        head = newHead;
+
+        return aligned;
+    }
+
+    /**
+     * Allocates a contiguous region at the head of the ring, waiting on the clock for the oldest batches in flight to
+     * complete if the ring is too full for it. Every wait is counted as a stall.
+     *
+     * @param size      The size of the region in bytes.
+     * @param alignment The alignment of the offset of the region, which must be a power of two.
+     * @param clock     The clock that the values of the submitted batches come from.
+     *
+     * @return The offset of the region in the ring.
+     *
+     * @throws IllegalStateException If the region does not fit even with nothing in flight, because the regions that
+     *                               are not submitted yet take up the rest of the ring.
+     */
+    public long reserve(long size, long alignment, FenceClock clock)
+    {
+        long offset = allocate(size, alignment);
+
+        if (offset >= 0)
+            return offset;
+
+        retire(clock.getCompletedValue());
+
+        while ((offset = allocate(size, alignment)) < 0)
+        {
+            long oldest = getOldestPendingValue();
+
+            if (oldest < 0)
+                throw new IllegalStateException("The regions of a single submission do not fit in the ring of " + capacity +
+                                                " bytes, submit more often or make the ring larger");
+
+            stallCount++;
+            clock.waitFor(oldest);
+            retire(oldest);
+        }
+
+        return offset;
+    }
+
+    /**
+     * Tags all the regions allocated since the last submit with a clock value. They are given back once the value has
+     * completed. Nothing is recorded if no region was allocated since the last submit.
+     *
+     * @param value The clock value of the submission that uses the regions.
+     */
+    public void submit(long value)
+    {
+        if (head == submittedHead)
+            return;
+
+        if (batchCount == batchEnds.length)
+        {
+            long[] ends = new long[batchEnds.length * 2];
+            long[] values = new long[batchValues.length * 2];
+
+            for (int i = 0; i < batchCount; i++)
+            {
+                ends[i] = batchEnds[(batchStart + i) % batchEnds.length];
+                values[i] = batchValues[(batchStart + i) % batchValues.length];
+            }
+
+            batchEnds = ends;
+            batchValues = values;
+            batchStart = 0;
+        }
+
+        int index = (batchStart + batchCount) % batchEnds.length;
+
+        batchEnds[index] = head;
+        batchValues[index] = value;
+        batchCount++;
+
+        submittedHead = head;
+    }
+
+    /**
+     * Gives back the space of all the batches whose clock values have completed.
+     *
+     * @param completedValue The latest completed clock value.
+     */
+    public void retire(long completedValue)
+    {
+        while (batchCount > 0 && batchValues[batchStart] <= completedValue)
+        {
+            tail = batchEnds[batchStart];
+
+            batchStart = (batchStart + 1) % batchEnds.length;
+            batchCount--;
+        }
+
+        // When nothing is allocated, start again at the beginning so that large regions don't have to wrap
+        if (tail == head)
+        {
+            head = tail = submittedHead = 0;
+            batchStart = 0;
+        }
+    }
+
+    /**
+     * Returns the clock value of the oldest batch that is still in flight. Waiting for this value frees up the most
+     * space that can be freed with the least waiting.
+     *
+     * @return The oldest clock value in flight, or -1 if there is nothing in flight.
+     */
+    public long getOldestPendingValue()
+    {
+        return batchCount == 0 ? -1 : batchValues[batchStart];
+    }
+
+    public boolean hasUnsubmittedRegions()
+    {
+        return head != submittedHead;
+    }
+
+    /**
+     * Returns the number of times that {@link #reserve(long, long, FenceClock)} had to wait on the clock because the
+     * ring was full.
+     *
+     * @return The number of stalls.
+     */
+    public long getStallCount()
+    {
+        return stallCount;
+    }
+
+    public long getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of bytes that are in use, which includes the regions in flight, the regions that are not
+     * submitted yet, and the space wasted by alignment and wrapping.
+     *
+     * @return The number of bytes in use.
+     */
+    public long getUsedBytes()
+    {
+        return head - tail;
+    }
+
+    /**
+     * Forgets about all the regions, as if they have all completed.
+     */
+    public void reset()
+    {
+        head = tail = submittedHead = 0;
+        batchStart = batchCount = 0;
+
+        Arrays.fill(batchValues, 0);
+    }
+}
@@ -0,0 +1,814 @@
+package com.shc.vulkan;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkShaderModuleCreateInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Loads the SPIR-V shaders of the examples from a directory into shader modules, on a pool of background threads so
+ * that the startup does not wait on the disk one file at a time.
+ * <p>
+ * Every file is memory mapped with a {@link FileChannel}, and the address of the mapping is passed straight to
+ * {@code vkCreateShaderModule}, so the code is not copied on it's way to the driver. While mapped, the code is hashed,
+ * and files with the same contents share a single shader module, like the variants of a shader that only differ in
+ * their name. The hash only finds the candidates, every module keeps a copy of it's code in native memory, and a file
+ * shares the module only if the code is the same byte for byte, so two shaders whose hashes collide never get each
+ * other's module. The copy is off the heap, so the garbage collector never scans or moves it, and it is freed with the
+ * module. The mapping itself is not kept, since the file can change under it when it is written again, and is unmapped
+ * when the garbage collector finds it.
+ * <p>
+ * {@link #load(String)} returns at once with a {@link Shader}, whose {@link Shader#getModule()} waits till the module
+ * is made. With {@link #enableHotReload()}, the directory is watched for changes, and the changed shaders are loaded
+ * again in the background. The new modules are swapped in by {@link #applyReloads(ReloadListener)}, which should be
+ * called once a frame by the thread that creates the pipelines, so that the listener can build them again. A pipeline
+ * does not need the shader module it was made from, so the old modules are destroyed right away.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class ShaderCache
+{
+    /**
+     * Makes and destroys the shader modules. The cache uses a factory on the device, and the benchmark uses one that
+     * only reads the code, so that the loading can be measured without a GPU.
+     */
+    public interface ModuleFactory
+    {
+        /**
+         * Makes a shader module. This is called by the loader threads, possibly many at a time.
+         *
+         * @param code     The address of the SPIR-V code.
+         * @param codeSize The size of the code in bytes.
+         *
+         * @return The handle of the shader module.
+         */
+        long create(long code, long codeSize);
+
+        /**
+         * Destroys a shader module that was made by this factory.
+         *
+         * @param module The handle of the shader module.
+         */
+        void destroy(long module);
+    }
+
+    /**
+     * Told about the shaders that were swapped by {@link #applyReloads(ReloadListener)}.
+     */
+    @FunctionalInterface
+    public interface ReloadListener
+    {
+        /**
+         * Called after the module of a shader was swapped, to create the pipelines that use the shader again.
+         *
+         * @param shader The shader that was reloaded.
+         */
+        void reloaded(Shader shader);
+    }
+
+    /**
+     * A shader loaded by the cache. The module of the shader changes when it is reloaded, so it should be taken with
+     * {@link #getModule()} every time a pipeline is made, and not stored.
+     */
+    public static final class Shader
+    {
+        private final String name;
+        private final Path   path;
+
+        private final FutureTask<Module> loading;
+
+        private final AtomicInteger reloadTickets = new AtomicInteger();
+
+        private volatile Module module;
+        private volatile int    generation;
+
+        // The ticket of the last reload that was applied, only used by applyReloads
+        private int appliedTicket;
+
+        private Shader(String name, Path path, FutureTask<Module> loading)
+        {
+            this.name = name;
+            this.path = path;
+            this.loading = loading;
+        }
+
+        /**
+         * Returns the shader module, waiting for the shader to be loaded the first time.
+         *
+         * @return The handle of the shader module.
+         *
+         * @throws IllegalStateException If the shader could not be loaded.
+         */
+        public long getModule()
+        {
+            Module current = module;
+
+            if (current != null)
+                return current.handle;
+
+            try
+            {
+                return loading.get().handle;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while loading the shader " + name, e);
+            }
+            catch (ExecutionException e)
+            {
+                throw new IllegalStateException("Could not load the shader " + name, e.getCause());
+            }
+        }
+
+        /**
+         * Returns whether the shader module is ready, so that {@link #getModule()} would not wait.
+         *
+         * @return True if the shader was loaded.
+         */
+        public boolean isLoaded()
+        {
+            return module != null;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * Returns the hash of the code of the current module, which is the same for all shaders with the same code.
+         *
+         * @return The 64 bit hash of the code, or zero if the shader is not loaded.
+         */
+        public long getHash()
+        {
+            Module current = module;
+            return current == null ? 0 : current.hash;
+        }
+
+        /**
+         * Returns the number of times the module of this shader was swapped by a reload.
+         *
+         * @return The number of reloads of the shader.
+         */
+        public int getGeneration()
+        {
+            return generation;
+        }
+
+        private void awaitLoad()
+        {
+            try
+            {
+                loading.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException e)
+            {
+                // The reload is a chance to fix a shader that failed the first time
+            }
+        }
+    }
+
+    /**
+     * A shader module, shared by all the shaders with the same code.
+     */
+    private static final class Module
+    {
+        private final long       handle;
+        private final long       hash;
+        private final ByteBuffer code;
+
+        private int references = 1;
+
+        private Module(long handle, long hash, ByteBuffer code)
+        {
+            this.handle = handle;
+            this.hash = hash;
+            this.code = code;
+        }
+
+        private boolean hasCode(ByteBuffer code)
+        {
+            // Equals compares the remaining bytes, and buffers of different sizes are never equal
+            return this.code.equals(code);
+        }
+    }
+
+    private static final class Reload
+    {
+        private final Shader shader;
+        private final Module module;
+        private final int    ticket;
+
+        private Reload(Shader shader, Module module, int ticket)
+        {
+            this.shader = shader;
+            this.module = module;
+            this.ticket = ticket;
+        }
+    }
+
+    private static final int SPIRV_MAGIC = 0x07230203;
+
+    // The SPIR-V header is five words: the magic, the version, the generator, the bound and the schema
+    private static final int SPIRV_HEADER_SIZE = 20;
+
+    // How long the watcher waits after a change before reloading, so that a file being written is not read half way
+    private static final long RELOAD_DELAY_MILLIS = 50;
+
+    private final ModuleFactory   factory;
+    private final Path            directory;
+    private final ExecutorService loaders;
+
+    private final Map<Path, Shader> shaders = new ConcurrentHashMap<>();
+
+    // The modules by the hash of their code, guarded by itself
+    private final Map<Long, Module> modules = new HashMap<>();
+
+    private final Set<Shader>                   queuedReloads    = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<Reload> completedReloads = new ConcurrentLinkedQueue<>();
+
+    private WatchService watchService;
+    private Thread       watcher;
+
+    private final AtomicInteger createdModules = new AtomicInteger();
+    private final AtomicInteger sharedModules  = new AtomicInteger();
+    private final AtomicLong    mappedBytes    = new AtomicLong();
+    private final AtomicLong    loadNanos      = new AtomicLong();
+
+    /**
+     * Creates a cache that makes the shader modules on a device, with a loader thread for every processor.
+     *
+     * @param device    The logical device to make the shader modules on.
+     * @param directory The directory that the names of the shaders are relative to.
+     */
+    public ShaderCache(VkDevice device, File directory)
+    {
+        this(new DeviceModuleFactory(device), directory, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a cache that makes the shader modules with the given factory.
+     *
+     * @param factory     The factory that makes and destroys the shader modules.
+     * @param directory   The directory that the names of the shaders are relative to.
+     * @param threadCount The number of loader threads.
+     */
+    public ShaderCache(ModuleFactory factory, File directory, int threadCount)
+    {
+        this.factory = factory;
+        this.directory = directory.toPath().toAbsolutePath().normalize();
+
+        AtomicInteger threadNumber = new AtomicInteger();
+
+        loaders = Executors.newFixedThreadPool(Math.max(1, threadCount), runnable ->
+        {
+            Thread thread = new Thread(runnable, "Shader Loader " + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+
+            return thread;
+        });
+    }
+
+    /**
+     * Starts loading a shader in the background, unless it is already loaded or being loaded.
+     *
+     * @param name The path of the SPIR-V file, relative to the directory of the cache.
+     *
+     * @return The shader, whose module is ready once {@link Shader#isLoaded()} returns true.
+     */
+    public Shader load(String name)
+    {
+        Path path = directory.resolve(name).toAbsolutePath().normalize();
+        Shader shader = shaders.get(path);
+
+        if (shader != null)
+            return shader;
+
+        Shader[] created = new Shader[1];
+
+        FutureTask<Module> loading = new FutureTask<>(() ->
+        {
+            Module module = acquire(path);
+            created[0].module = module;
+
+            return module;
+        });
+
+        created[0] = new Shader(name, path, loading);
+        shader = shaders.putIfAbsent(path, created[0]);
+
+        if (shader != null)
+            return shader;
+
+        loaders.execute(loading);
+
+        return created[0];
+    }
+
+    /**
+     * Maps a SPIR-V file, and finds the module with the same code or makes a new one.
+     */
+    private Module acquire(Path path) throws IOException
+    {
+        long startTime = System.nanoTime();
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+
+            if (size < SPIRV_HEADER_SIZE || size % 4 != 0 || size > Integer.MAX_VALUE)
+                throw new IOException(path + " is not a SPIR-V file, it's size is " + size + " bytes");
+
+            MappedByteBuffer code = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            code.order(ByteOrder.nativeOrder());
+
+            // The mapping is unmapped when the buffer is collected, and nothing after this uses the buffer itself, so
+            // hold it's monitor to keep it reachable while it's address is being read
+            synchronized (code)
+            {
+                if (code.getInt(0) != SPIRV_MAGIC)
+                    throw new IOException(path + " is not a SPIR-V file in the byte order of the host");
+
+                long address = memAddress(code);
+                long hash = hash(code);
+                Module module = retain(hash, code);
+
+                if (module != null)
+                {
+                    sharedModules.incrementAndGet();
+                    return module;
+                }
+
+                ByteBuffer copy = memAlloc((int) size);
+                memCopy(address, memAddress(copy), (int) size);
+
+                try
+                {
+                    module = new Module(factory.create(address, size), hash, copy);
+                }
+                catch (RuntimeException e)
+                {
+                    memFree(copy);
+                    throw e;
+                }
+
+                createdModules.incrementAndGet();
+                mappedBytes.addAndGet(size);
+
+                return insert(module);
+            }
+        }
+        finally
+        {
+            loadNanos.addAndGet(System.nanoTime() - startTime);
+        }
+    }
+
+    private Module retain(long hash, ByteBuffer code)
+    {
+        synchronized (modules)
+        {
+            Module module = modules.get(hash);
+
+            if (module == null || !module.hasCode(code))
+                return null;
+
+            module.references++;
+
+            return module;
+        }
+    }
+
+    private Module insert(Module module)
+    {
+        Module existing;
+
+        synchronized (modules)
+        {
+            existing = modules.get(module.hash);
+
+            if (existing == null)
+            {
+                modules.put(module.hash, module);
+                return module;
+            }
+
+            // Two loaders made a module for the same code at the same time, keep the one that was first. If the code is
+            // different, the hashes collided, and the module is used without being shared.
+            if (existing.hasCode(module.code))
+                existing.references++;
+            else
+                return module;
+        }
+
+        factory.destroy(module.handle);
+        memFree(module.code);
+        createdModules.decrementAndGet();
+
+        return existing;
+    }
+
+    private void release(Module module)
+    {
+        synchronized (modules)
+        {
+            if (--module.references > 0)
+                return;
+
+            if (modules.get(module.hash) == module)
+                modules.remove(module.hash);
+        }
+
+        factory.destroy(module.handle);
+        memFree(module.code);
+    }
+
+    /**
+     * Hashes the code of a shader. The code is read 32 bytes at a time into four independent lanes, so that the
+     * multiplies of the lanes overlap instead of waiting on each other, and the lanes are mixed together at the end.
+     * The size of SPIR-V code is a multiple of 4, so the rest is read a word at a time. The code is read through the
+     * buffer rather than by it's address, since the absolute reads of a direct buffer are intrinsics of the JVM.
+     *
+     * @param code The code, in the byte order of the host.
+     *
+     * @return The 64 bit hash of the code.
+     */
+    static long hash(ByteBuffer code)
+    {
+        int size = code.capacity();
+
+        long h0 = 0x9E3779B97F4A7C15L ^ size;
+        long h1 = 0xC2B2AE3D27D4EB4FL;
+        long h2 = 0x165667B19E3779F9L;
+        long h3 = 0x27D4EB2F165667C5L;
+
+        int i = 0;
+
+        for (; i + 32 <= size; i += 32)
+        {
+            h0 = mix(h0, code.getLong(i));
+            h1 = mix(h1, code.getLong(i + 8));
+            h2 = mix(h2, code.getLong(i + 16));
+            h3 = mix(h3, code.getLong(i + 24));
+        }
+
+        long h = Long.rotateLeft(h0, 1) + Long.rotateLeft(h1, 7) + Long.rotateLeft(h2, 12) + Long.rotateLeft(h3, 18);
+
+        for (; i < size; i += 4)
+            h = mix(h, code.getInt(i) & 0xFFFFFFFFL);
+
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+
+        return h;
+    }
+
+    private static long mix(long h, long word)
+    {
+        return Long.rotateLeft(h ^ (word * 0xC2B2AE3D27D4EB4FL), 31) * 0x9E3779B97F4A7C15L;
+    }
+
+    /**
+     * Starts watching the directory of the cache and all the directories in it, so that the shaders are loaded again
+     * when their files change. The reloaded modules are swapped in by {@link #applyReloads(ReloadListener)}.
+     *
+     * @throws IOException If the directory could not be watched.
+     */
+    public synchronized void enableHotReload() throws IOException
+    {
+        if (watchService != null)
+            return;
+
+        watchService = FileSystems.getDefault().newWatchService();
+
+        try (Stream<Path> paths = Files.walk(directory))
+        {
+            paths.filter(Files::isDirectory).forEach(this::register);
+        }
+        catch (IOException | UncheckedIOException e)
+        {
+            watchService.close();
+            watchService = null;
+
+            throw e instanceof UncheckedIOException ? ((UncheckedIOException) e).getCause() : (IOException) e;
+        }
+
+        watcher = new Thread(this::watch, "Shader Watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void register(Path path)
+    {
+        try
+        {
+            path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void watch()
+    {
+        try
+        {
+            while (true)
+            {
+                WatchKey key = watchService.take();
+
+                // Let the writer finish, the events of the other writes are collected with the first one
+                Thread.sleep(RELOAD_DELAY_MILLIS);
+
+                Path parent = (Path) key.watchable();
+
+                for (WatchEvent<?> event : key.pollEvents())
+                {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                    {
+                        shaders.values().forEach(this::queueReload);
+                        continue;
+                    }
+
+                    Path path = parent.resolve((Path) event.context());
+                    Shader shader = shaders.get(path);
+
+                    if (shader != null)
+                        queueReload(shader);
+
+                    else if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path))
+                        register(path);
+                }
+
+                key.reset();
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException e)
+        {
+            // The cache is being destroyed
+        }
+        catch (UncheckedIOException e)
+        {
+            System.err.println("Stopped watching the shaders: " + e.getCause().getMessage());
+        }
+    }
+
+    private void queueReload(Shader shader)
+    {
+        if (!queuedReloads.add(shader))
+            return;
+
+        loaders.execute(() ->
+        {
+            queuedReloads.remove(shader);
+
+            // A change after this point queues another reload, which reads the file later and gets a later ticket
+            int ticket = shader.reloadTickets.incrementAndGet();
+            shader.awaitLoad();
+
+            try
+            {
+                completedReloads.add(new Reload(shader, acquire(shader.path), ticket));
+            }
+            catch (IOException | RuntimeException e)
+            {
+                System.err.println("Could not reload the shader " + shader.name + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Swaps in the modules of the shaders that were reloaded since the last call, and destroys the modules they
+     * replace. This must not be called while pipelines are being made from the shaders of this cache.
+     *
+     * @param listener The listener to tell about every swapped shader, or null.
+     *
+     * @return The number of shaders that were swapped.
+     */
+    public int applyReloads(ReloadListener listener)
+    {
+        int count = 0;
+        Reload reload;
+
+        while ((reload = completedReloads.poll()) != null)
+        {
+            Shader shader = reload.shader;
+            Module old = shader.module;
+
+            // Reloads of the same shader can finish out of order, and saving a file without changing it gives the
+            // same module back, neither of which is a change
+            if (reload.ticket < shader.appliedTicket || reload.module == old)
+            {
+                release(reload.module);
+                continue;
+            }
+
+            shader.appliedTicket = reload.ticket;
+            shader.module = reload.module;
+            shader.generation++;
+
+            if (old != null)
+                release(old);
+
+            if (listener != null)
+                listener.reloaded(shader);
+
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Waits till all the shaders that were asked for are loaded, whether they could be loaded or not.
+     */
+    public void awaitAll()
+    {
+        for (Shader shader : shaders.values())
+            shader.awaitLoad();
+    }
+
+    /**
+     * Returns the number of shader modules that were made, which is less than the number of shaders when some of them
+     * have the same code.
+     *
+     * @return The number of shader modules made.
+     */
+    public int getCreatedModuleCount()
+    {
+        return createdModules.get();
+    }
+
+    /**
+     * Returns the number of times that a shader got an existing module since it's code was already loaded.
+     *
+     * @return The number of shared modules.
+     */
+    public int getSharedModuleCount()
+    {
+        return sharedModules.get();
+    }
+
+    public int getShaderCount()
+    {
+        return shaders.size();
+    }
+
+    public long getMappedBytes()
+    {
+        return mappedBytes.get();
+    }
+
+    /**
+     * Returns the time spent in mapping, hashing and making the modules, summed over all the loader threads.
+     *
+     * @return The total load time in nanoseconds.
+     */
+    public long getLoadNanos()
+    {
+        return loadNanos.get();
+    }
+
+    /**
+     * Prints the number of shaders and modules, and the time spent loading them, to the standard output.
+     */
+    public void printStatistics()
+    {
+        System.out.println("Shader Cache: " + getShaderCount() + " shaders, " + getCreatedModuleCount() +
+                           " modules, " + getSharedModuleCount() + " shared, " + getMappedBytes() + " bytes" +
+                           String.format(", loaded in %.3f ms", getLoadNanos() / 1e6));
+    }
+
+    /**
+     * Stops the watcher and the loaders, and destroys all the shader modules. Call this from the {@code cleanUp()}
+     * method of the example, before destroying the device.
+     */
+    public void destroy()
+    {
+        synchronized (this)
+        {
+            if (watchService != null)
+            {
+                try
+                {
+                    watchService.close();
+                    watcher.join();
+                }
+                catch (IOException e)
+                {
+                    System.err.println("Could not stop watching the shaders: " + e.getMessage());
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+
+                watchService = null;
+            }
+        }
+
+        loaders.shutdown();
+
+        try
+        {
+            loaders.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        // Every shader and every reload that was not applied holds a reference on it's module
+        applyReloads(null);
+
+        for (Shader shader : shaders.values())
+            if (shader.module != null)
+                release(shader.module);
+
+        shaders.clear();
+    }
+
+    /**
+     * Makes the shader modules on a device. Creating shader modules does not need any external synchronization, so
+     * this is called from all the loader threads at once.
+     */
+    private static final class DeviceModuleFactory implements ModuleFactory
+    {
+        private final VkDevice device;
+
+        private DeviceModuleFactory(VkDevice device)
+        {
+            this.device = device;
+        }
+
+        @Override
+        public long create(long code, long codeSize)
+        {
+            try (MemoryStack stack = stackPush())
+            {
+                long createInfo = stack.ncalloc(VkShaderModuleCreateInfo.ALIGNOF, 1, VkShaderModuleCreateInfo.SIZEOF);
+
+                memPutInt(createInfo + VkShaderModuleCreateInfo.STYPE, VK_STRUCTURE_TYPE_SHADER_MODULE_CREATE_INFO);
+                memPutAddress(createInfo + VkShaderModuleCreateInfo.CODESIZE, codeSize);
+                memPutAddress(createInfo + VkShaderModuleCreateInfo.PCODE, code);
+
+                long pModule = stack.nmalloc(8, 8);
+                int err = nvkCreateShaderModule(device, createInfo, NULL, pModule);
+
+                if (err != VK_SUCCESS)
+                    throw new IllegalStateException("Could not create the shader module: " + err);
+
+                return memGetLong(pModule);
+            }
+        }
+
+        @Override
+        public void destroy(long module)
+        {
+            vkDestroyShaderModule(device, module, null);
+        }
+    }
+}
@@ -0,0 +1,464 @@
+package com.shc.vulkan;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkBufferCopy;
+import org.lwjgl.vulkan.VkBufferCreateInfo;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkMemoryAllocateInfo;
+import org.lwjgl.vulkan.VkMemoryBarrier;
+import org.lwjgl.vulkan.VkMemoryRequirements;
+import org.lwjgl.vulkan.VkPhysicalDeviceMemoryProperties;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * A staging ring buffer for uploading vertex, index, uniform and texture data to device local buffers. The ring is a
+ * single host visible and coherent buffer that is mapped once and stays mapped for it's whole life, so the data is
+ * written straight into the memory the device copies from, without any intermediate copies.
+ * <p>
+ * Every upload reserves a region of the ring and records a copy into it's destination buffer. The copies are not
+ * issued right away, they are batched till {@link #flush(VkCommandBuffer, long)} is called once per frame, which merges
+ * the copies that are contiguous in both the ring and the destination, and records a single {@code vkCmdCopyBuffer}
+ * for every destination buffer. Copies that write over each other in a destination are recorded in the order they were
+ * staged instead, split into more commands with a transfer barrier between them, so the last one staged wins. The
+ * regions are tagged with the {@link FenceClock} value of the submission that
+ * carries the copies, and are reused only once that value has completed.
+ * <p>
+ * When the ring wraps around onto regions that are still in flight, reserving waits for the oldest submission to
+ * complete. This backpressure keeps the CPU from overwriting data the device is still reading. The caller is
+ * responsible for the barrier between the transfer and the use of the destination buffers.
+ * <p>
+ * Texture uploads can use {@link #reserve(long, long)} to get a region, and record their own
+ * {@code vkCmdCopyBufferToImage} from {@link #getBuffer()} at the returned offset.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class StagingRing
+{
+    private final VkDevice      device;
+    private final FenceClock    clock;
+    private final RingAllocator ring;
+
+    private final long buffer;
+    private final long memory;
+    private final long mappedAddress;
+
+    // The copies recorded since the last flush, kept as primitive arrays
+    private long[] copyDstBuffers = new long[256];
+    private long[] copySrcOffsets = new long[256];
+    private long[] copyDstOffsets = new long[256];
+    private long[] copySizes      = new long[256];
+    private int    copyCount;
+
+    // The order of the copies after sorting, and the other half of the merge sort, as indices into the copy arrays
+    private int[] copyOrder   = new int[256];
+    private int[] sortScratch = new int[256];
+
+    private VkBufferCopy.Buffer regions = VkBufferCopy.malloc(256);
+
+    // Orders the copies that write over each other in a destination, the same barrier is used for every flush
+    private final VkMemoryBarrier transferBarrier = VkMemoryBarrier.calloc()
+            .sType(VK_STRUCTURE_TYPE_MEMORY_BARRIER)
+            .srcAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT)
+            .dstAccessMask(VK_ACCESS_TRANSFER_WRITE_BIT);
+
+    private long uploadedBytes;
+
+    /**
+     * Creates the staging ring.
+     *
+     * @param device           The device to create the ring on.
+     * @param memoryProperties The memory properties of the physical device.
+     * @param capacity         The size of the ring in bytes.
+     * @param clock            The clock used to know when the device is done with the regions.
+     */
+    public StagingRing(VkDevice device, VkPhysicalDeviceMemoryProperties memoryProperties, long capacity,
+                       FenceClock clock)
+    {
+        this.device = device;
+        this.clock = clock;
+
+        ring = new RingAllocator(capacity);
+
+        try (MemoryStack stack = stackPush())
+        {
+            VkBufferCreateInfo bufferInfo = VkBufferCreateInfo.callocStack(stack)
+                    .sType(VK_STRUCTURE_TYPE_BUFFER_CREATE_INFO)
+                    .size(capacity)
+                    .usage(VK_BUFFER_USAGE_TRANSFER_SRC_BIT)
+                    .sharingMode(VK_SHARING_MODE_EXCLUSIVE);
+
+            LongBuffer pHandle = stack.mallocLong(1);
+            int err = vkCreateBuffer(device, bufferInfo, null, pHandle);
+
+            if (err != VK_SUCCESS)
+                throw new IllegalStateException("Could not create the staging buffer: " + err);
+
+            buffer = pHandle.get(0);
+
+            VkMemoryRequirements requirements = VkMemoryRequirements.mallocStack(stack);
+            vkGetBufferMemoryRequirements(device, buffer, requirements);
+
+            int memoryType = VkUtils.findMemoryType(memoryProperties, requirements.memoryTypeBits(),
+                    VK_MEMORY_PROPERTY_HOST_VISIBLE_BIT | VK_MEMORY_PROPERTY_HOST_COHERENT_BIT);
+
+            if (memoryType < 0)
+                throw new IllegalStateException("No host visible and coherent memory type for the staging buffer");
+
+            // The ring is mapped for it's whole life, and vkMapMemory can only map a VkDeviceMemory once, so it gets a
+            // memory allocation of it's own instead of a range in a shared block.
+            VkMemoryAllocateInfo allocateInfo = VkMemoryAllocateInfo.callocStack(stack)
+                    .sType(VK_STRUCTURE_TYPE_MEMORY_ALLOCATE_INFO)
+                    .allocationSize(requirements.size())
+                    .memoryTypeIndex(memoryType);
+
+            err = vkAllocateMemory(device, allocateInfo, null, pHandle);
+
+            if (err != VK_SUCCESS)
+                throw new IllegalStateException("Could not allocate the staging memory: " + err);
+
+            memory = pHandle.get(0);
+
+            vkBindBufferMemory(device, buffer, memory, 0);
+
+            PointerBuffer pData = stack.mallocPointer(1);
+            err = vkMapMemory(device, memory, 0, capacity, 0, pData);
+
+            if (err != VK_SUCCESS)
+                throw new IllegalStateException("Could not map the staging memory: " + err);
+
+            mappedAddress = pData.get(0);
+        }
+    }
+
+    /**
+     * Reserves a region of the ring without recording any copy. This waits for the device if the ring is full.
+     *
+     * @param size      The size of the region in bytes.
+     * @param alignment The alignment of the offset of the region, which must be a power of two.
+     *
+     * @return The offset of the region in the staging buffer.
+     *
+     * @throws IllegalStateException If the uploads since the last flush don't leave room for the region.
+     */
+    public long reserve(long size, long alignment)
+    {
+        return ring.reserve(size, alignment, clock);
+    }
+
+    /**
+     * Reserves a region of the ring and records a copy from it into the destination buffer. The data should be written
+     * to the returned address, for example with the {@code memPut} or {@code memCopy} methods of LWJGL, before the
+     * next flush.
+     *
+     * @param dstBuffer The buffer to copy the data into.
+     * @param dstOffset The offset in the destination buffer.
+     * @param size      The size of the data in bytes.
+     * @param alignment The alignment of the region in the ring, which must be a power of two.
+     *
+     * @return The address in the mapped memory to write the data to.
+     */
+    public long stage(long dstBuffer, long dstOffset, long size, long alignment)
+    {
+        long srcOffset = reserve(size, alignment);
+
+        if (copyCount == copyDstBuffers.length)
+        {
+            int capacity = copyCount * 2;
+
+            copyDstBuffers = Arrays.copyOf(copyDstBuffers, capacity);
+            copySrcOffsets = Arrays.copyOf(copySrcOffsets, capacity);
+            copyDstOffsets = Arrays.copyOf(copyDstOffsets, capacity);
+            copySizes = Arrays.copyOf(copySizes, capacity);
+
+            copyOrder = new int[capacity];
+            sortScratch = new int[capacity];
+        }
+
+        copyDstBuffers[copyCount] = dstBuffer;
+        copySrcOffsets[copyCount] = srcOffset;
+        copyDstOffsets[copyCount] = dstOffset;
+        copySizes[copyCount] = size;
+        copyCount++;
+
+        uploadedBytes += size;
+
+        return mappedAddress + srcOffset;
+    }
+
+    /**
+     * Copies the data from a native address into the destination buffer through the ring.
+     *
+     * @param dstBuffer  The buffer to copy the data into.
+     * @param dstOffset  The offset in the destination buffer.
+     * @param srcAddress The address of the data to upload.
+     * @param size       The size of the data in bytes.
+     * @param alignment  The alignment of the region in the ring, which must be a power of two.
+     */
+    public void upload(long dstBuffer, long dstOffset, long srcAddress, int size, long alignment)
+    {
+        memCopy(srcAddress, stage(dstBuffer, dstOffset, size, alignment), size);
+    }
+
+    /**
+     * Copies the remaining data of a direct ByteBuffer into the destination buffer through the ring.
+     *
+     * @param dstBuffer The buffer to copy the data into.
+     * @param dstOffset The offset in the destination buffer.
+     * @param data      The data to upload.
+     * @param alignment The alignment of the region in the ring, which must be a power of two.
+     */
+    public void upload(long dstBuffer, long dstOffset, ByteBuffer data, long alignment)
+    {
+        upload(dstBuffer, dstOffset, memAddress(data), data.remaining(), alignment);
+    }
+
+    /**
+     * Records all the copies since the last flush into the command buffer, and tags their regions with the clock value
+     * of the submission that will carry the command buffer. Copies to the same destination that are contiguous in both
+     * the ring and the destination are merged into one region, and all the regions of a destination are recorded with
+     * a single {@code vkCmdCopyBuffer}. The regions of a single command must not overlap, so when copies to a
+     * destination write over each other, they are recorded in the order they were staged, with a new command after a
+     * transfer barrier whenever a copy overlaps one that is already in the current command.
+     *
+     * @param commandBuffer The command buffer to record the copies into.
+     * @param clockValue    The clock value of the submission of the command buffer.
+     */
+    public void flush(VkCommandBuffer commandBuffer, long clockValue)
+    {
+        if (copyCount > 0)
+        {
+            sortCopies();
+
+            int[] order = copyOrder;
+            int start = 0;
+
+            while (start < copyCount)
+            {
+                long dstBuffer = copyDstBuffers[order[start]];
+                int end = start;
+
+                // The copies are sorted by the destination offset, so a copy overlaps an earlier one if it starts
+                // before the furthest end so far
+                boolean overlapping = false;
+                long furthestEnd = Long.MIN_VALUE;
+
+                while (end < copyCount && copyDstBuffers[order[end]] == dstBuffer)
+                {
+                    int copy = order[end++];
+
+                    overlapping |= copyDstOffsets[copy] < furthestEnd;
+                    furthestEnd = Math.max(furthestEnd, copyDstOffsets[copy] + copySizes[copy]);
+                }
+
+                ensureRegionCapacity(end - start);
+
+                if (overlapping)
+                    recordOverlapping(commandBuffer, dstBuffer, start, end);
+                else
+                    recordMerged(commandBuffer, dstBuffer, start, end);
+
+                start = end;
+            }
+
+            copyCount = 0;
+        }
+
+        ring.submit(clockValue);
+    }
+
+    private void recordMerged(VkCommandBuffer commandBuffer, long dstBuffer, int start, int end)
+    {
+        int[] order = copyOrder;
+        int regionCount = 0;
+
+        // The regions are written straight into the struct array, without a wrapper object for every region
+        long regionsAddress = regions.address0();
+
+        for (int i = start; i < end; )
+        {
+            int copy = order[i++];
+
+            long srcOffset = copySrcOffsets[copy];
+            long dstOffset = copyDstOffsets[copy];
+            long size = copySizes[copy];
+
+            // Grow the region while the next copy continues where this one ends, in both the buffers
+            while (i < end && copySrcOffsets[order[i]] == srcOffset + size
+                   && copyDstOffsets[order[i]] == dstOffset + size)
+                size += copySizes[order[i++]];
+
+            putRegion(regionsAddress, regionCount++, srcOffset, dstOffset, size);
+        }
+
+        nvkCmdCopyBuffer(commandBuffer, buffer, dstBuffer, regionCount, regionsAddress);
+    }
+
+    private void recordOverlapping(VkCommandBuffer commandBuffer, long dstBuffer, int start, int end)
+    {
+        // The indices of the copies are the order they were staged in
+        int[] order = copyOrder;
+        Arrays.sort(order, start, end);
+
+        int regionCount = 0;
+        long regionsAddress = regions.address0();
+
+        for (int i = start; i < end; i++)
+        {
+            int copy = order[i];
+
+            long dstOffset = copyDstOffsets[copy];
+            long size = copySizes[copy];
+
+            for (int j = 0; j < regionCount; j++)
+            {
+                long region = regionsAddress + (long) j * VkBufferCopy.SIZEOF;
+                long regionOffset = VkBufferCopy.ndstOffset(region);
+
+                if (dstOffset < regionOffset + VkBufferCopy.nsize(region) && regionOffset < dstOffset + size)
+                {
+                    // The copies of the next command have to wait for the writes of this one
+                    nvkCmdCopyBuffer(commandBuffer, buffer, dstBuffer, regionCount, regionsAddress);
+                    nvkCmdPipelineBarrier(commandBuffer, VK_PIPELINE_STAGE_TRANSFER_BIT,
+                            VK_PIPELINE_STAGE_TRANSFER_BIT, 0, 1, transferBarrier.address(), 0, NULL, 0, NULL);
+
+                    regionCount = 0;
+                    break;
+                }
+            }
+
+            putRegion(regionsAddress, regionCount++, copySrcOffsets[copy], dstOffset, size);
+        }
+
+        nvkCmdCopyBuffer(commandBuffer, buffer, dstBuffer, regionCount, regionsAddress);
+    }
+
+    private static void putRegion(long regionsAddress, int index, long srcOffset, long dstOffset, long size)
+    {
+        long region = regionsAddress + (long) index * VkBufferCopy.SIZEOF;
+
+        VkBufferCopy.nsrcOffset(region, srcOffset);
+        VkBufferCopy.ndstOffset(region, dstOffset);
+        VkBufferCopy.nsize(region, size);
+    }
+
+    private void ensureRegionCapacity(int capacity)
+    {
+        if (regions.capacity() >= capacity)
+            return;
+
+        regions.free();
+        regions = VkBufferCopy.malloc(Math.max(capacity, regions.capacity() * 2));
+    }
+
+    /**
+     * Sorts the copies by the destination buffer and then the destination offset, into {@link #copyOrder}. The copy
+     * arrays are not moved, only the indices are sorted, with a bottom up merge sort that is stable and doesn't
+     * allocate. Uploads often arrive in order already, which is found in a single pass and needs no sorting.
+     */
+    private void sortCopies()
+    {
+        int count = copyCount;
+        int[] source = copyOrder;
+
+        for (int i = 0; i < count; i++)
+            source[i] = i;
+
+        boolean sorted = true;
+
+        for (int i = 1; i < count && sorted; i++)
+            sorted = !comesBefore(i, i - 1);
+
+        if (sorted)
+            return;
+
+        int[] destination = sortScratch;
+
+        for (int width = 1; width < count; width <<= 1)
+        {
+            for (int left = 0; left < count; left += width << 1)
+            {
+                int middle = Math.min(left + width, count);
+                int right = Math.min(left + (width << 1), count);
+
+                mergeRuns(source, destination, left, middle, right);
+            }
+
+            int[] temp = source;
+            source = destination;
+            destination = temp;
+        }
+
+        copyOrder = source;
+        sortScratch = destination;
+    }
+
+    private void mergeRuns(int[] source, int[] destination, int left, int middle, int right)
+    {
+        int i = left;
+        int j = middle;
+
+        for (int k = left; k < right; k++)
+        {
+            // Taking from the left run on ties keeps the sort stable
+            if (i < middle && (j >= right || !comesBefore(source[j], source[i])))
+                destination[k] = source[i++];
+            else
+                destination[k] = source[j++];
+        }
+    }
+
+    private boolean comesBefore(int a, int b)
+    {
+        if (copyDstBuffers[a] != copyDstBuffers[b])
+            return copyDstBuffers[a] < copyDstBuffers[b];
+
+        return copyDstOffsets[a] < copyDstOffsets[b];
+    }
+
+    public long getBuffer()
+    {
+        return buffer;
+    }
+
+    public long getMappedAddress()
+    {
+        return mappedAddress;
+    }
+
+    public long getUploadedBytes()
+    {
+        return uploadedBytes;
+    }
+
+    /**
+     * Returns the number of times that reserving a region had to wait for the device because the ring was full.
+     *
+     * @return The number of stalls.
+     */
+    public long getStallCount()
+    {
+        return ring.getStallCount();
+    }
+
+    /**
+     * Destroys the staging buffer. The device must be done with all the submissions that used the ring.
+     */
+    public void destroy()
+    {
+        vkUnmapMemory(device, memory);
+        vkDestroyBuffer(device, buffer, null);
+        vkFreeMemory(device, memory, null);
+
+        regions.free();
+        transferBarrier.free();
+    }
+}
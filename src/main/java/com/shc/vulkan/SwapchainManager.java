@@ -0,0 +1,461 @@
+package com.shc.vulkan;
+
+import static org.lwjgl.vulkan.KHRSurface.*;
+import static org.lwjgl.vulkan.KHRSwapchain.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Runs the frames of an example through a swapchain, with a fixed number of frames in flight. Every frame is begun with
+ * {@link #beginFrame()}, which waits till the device is done with the frame that last used the same frame slot and
+ * acquires the next image, and ended with {@link #endFrame()}, which presents the image. The {@link VulkanExample}
+ * calls these around it's {@code render()} method when a swapchain is set, so the render method only records and
+ * submits the work of the frame, waiting on the image available semaphore of the frame slot, signalling the render
+ * finished semaphore of the frame slot and the fence of the {@link #getFrameValue() frame value}.
+ * <p>
+ * The swapchain is recreated when the window is resized, or when acquiring or presenting reports that it is out of date
+ * or suboptimal. The new swapchain is created with the old one as it's {@code oldSwapchain}, and the old one is retired
+ * instead of destroyed: it is tagged with the value of the last frame that used it, and is destroyed once the clock of
+ * the frames passes that value. So a resize never waits for the device to go idle. While the window is minimized, the
+ * frames are skipped.
+ * <p>
+ * The swapchain itself is hidden behind a {@link Target}. The {@link VkSwapchainTarget} is the Vulkan swapchain of a
+ * surface, and the {@link HeadlessSwapchainTarget} simulates a display in memory, so that the frame pacing can be
+ * tested without a window or a GPU.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class SwapchainManager
+{
+    /**
+     * The swapchain that the frames are presented to. All the calls are made from the render thread.
+     */
+    public interface Target
+    {
+        /**
+         * Returns the present modes that the target supports. FIFO is always supported.
+         *
+         * @return The VkPresentModeKHR values.
+         */
+        int[] getPresentModes();
+
+        /**
+         * Gets the current size of the surface, if the surface decides the size of the swapchain.
+         *
+         * @param extent The array to write the width and the height to, in that order.
+         *
+         * @return True if the size was written, false if the size of the swapchain decides the size of the surface.
+         */
+        boolean getCurrentExtent(int[] extent);
+
+        /**
+         * Creates a swapchain.
+         *
+         * @param width          The width of the images.
+         * @param height         The height of the images.
+         * @param presentMode    The VkPresentModeKHR to present with.
+         * @param framesInFlight The number of frames in flight, which decides the number of images.
+         * @param oldSwapchain   The swapchain that is replaced, or zero for the first swapchain.
+         *
+         * @return The handle of the swapchain.
+         */
+        long createSwapchain(int width, int height, int presentMode, int framesInFlight, long oldSwapchain);
+
+        int getImageCount(long swapchain);
+
+        void destroySwapchain(long swapchain);
+
+        /**
+         * Returns the clock of the frames. The submission of every frame signals the value of the frame.
+         *
+         * @return The clock of the frames.
+         */
+        FenceClock getClock();
+
+        /**
+         * Starts the submission of the next frame, waiting till the frame that last used the same frame slot is done.
+         *
+         * @return The clock value of the frame.
+         */
+        long beginSubmission();
+
+        /**
+         * Signals the value of a frame that submits no work, since no image could be acquired for it.
+         *
+         * @param value The clock value of the frame.
+         */
+        void skipSubmission(long value);
+
+        /**
+         * Acquires the next image of the swapchain, signalling the image available semaphore of the frame slot.
+         *
+         * @param swapchain  The handle of the swapchain.
+         * @param frameIndex The index of the frame slot.
+         *
+         * @return The index of the image, or -1 if the swapchain is out of date.
+         */
+        int acquireNextImage(long swapchain, int frameIndex);
+
+        /**
+         * Presents an image once the render finished semaphore of the image is signalled.
+         *
+         * @param swapchain  The handle of the swapchain.
+         * @param frameIndex The index of the frame slot.
+         * @param imageIndex The index of the image.
+         *
+         * @return VK_SUCCESS, VK_SUBOPTIMAL_KHR or VK_ERROR_OUT_OF_DATE_KHR.
+         */
+        int present(long swapchain, int frameIndex, int imageIndex);
+
+        /**
+         * Waits for all the frames and destroys the objects of the target, but not the swapchains.
+         */
+        void destroy();
+    }
+
+    /**
+     * The policy that picks the present mode out of the modes that the target supports.
+     */
+    public enum PresentPolicy
+    {
+        /**
+         * Shows every frame as soon as possible. Prefers MAILBOX, which never tears, then IMMEDIATE.
+         */
+        LOW_LATENCY(VK_PRESENT_MODE_MAILBOX_KHR, VK_PRESENT_MODE_IMMEDIATE_KHR),
+
+        /**
+         * Renders no more frames than the display shows, which saves power. Always uses FIFO.
+         */
+        POWER_SAVING();
+
+        private final int[] preferredModes;
+
+        PresentPolicy(int... preferredModes)
+        {
+            this.preferredModes = preferredModes;
+        }
+
+        /**
+         * Picks the present mode out of the supported modes, falling back to FIFO which is always supported.
+         *
+         * @param supportedModes The present modes of the target.
+         *
+         * @return The VkPresentModeKHR to use.
+         */
+        public int choose(int[] supportedModes)
+        {
+            for (int mode : preferredModes)
+                for (int supported : supportedModes)
+                    if (mode == supported)
+                        return mode;
+
+            return VK_PRESENT_MODE_FIFO_KHR;
+        }
+
+        /**
+         * Returns the policy given by {@code -Dvulkan.present=low-latency} or {@code -Dvulkan.present=power}.
+         *
+         * @return The policy, which is POWER_SAVING unless low latency is asked for.
+         */
+        public static PresentPolicy fromProperty()
+        {
+            return "low-latency".equals(System.getProperty("vulkan.present")) ? LOW_LATENCY : POWER_SAVING;
+        }
+    }
+
+    private final Target        target;
+    private final FenceClock    clock;
+    private final int           framesInFlight;
+    private final PresentPolicy policy;
+
+    private long swapchain;
+    private int  width;
+    private int  height;
+    private int  presentMode;
+    private int  imageCount;
+
+    // The size that the window asked for, and whether the swapchain has to be recreated before the next frame
+    private int     requestedWidth;
+    private int     requestedHeight;
+    private boolean outOfDate = true;
+
+    private final int[] currentExtent = new int[2];
+
+    // The swapchains that were replaced, tagged with the value of the last frame that used them
+    private final DeletionQueue           retiredSwapchains;
+    private final DeletionQueue.Destroyer swapchainDestroyer;
+
+    private long frameValue;
+    private int  frameIndex;
+    private int  imageIndex = -1;
+
+    private long recreateCount;
+    private long skippedFrames;
+
+    /**
+     * Creates the manager. The swapchain is created on the first frame.
+     *
+     * @param target         The target to present to.
+     * @param framesInFlight The number of frames that can be in flight on the device at the same time.
+     * @param policy         The policy that picks the present mode.
+     */
+    public SwapchainManager(Target target, int framesInFlight, PresentPolicy policy)
+    {
+        if (framesInFlight <= 0)
+            throw new IllegalArgumentException("The number of frames in flight must be positive");
+
+        this.target = target;
+        this.framesInFlight = framesInFlight;
+        this.policy = policy;
+
+        clock = target.getClock();
+
+        retiredSwapchains = new DeletionQueue(null, clock);
+        swapchainDestroyer = target::destroySwapchain;
+    }
+
+    /**
+     * Asks for the swapchain to be recreated with the given size before the next frame. Call this when the framebuffer
+     * of the window is resized.
+     *
+     * @param width  The width of the framebuffer.
+     * @param height The height of the framebuffer.
+     */
+    public void resize(int width, int height)
+    {
+        requestedWidth = width;
+        requestedHeight = height;
+
+        if (width != this.width || height != this.height)
+            outOfDate = true;
+    }
+
+    /**
+     * Begins a frame: waits for the frame slot, destroys the swapchains that are no longer used, and acquires the next
+     * image, recreating the swapchain if it is out of date.
+     *
+     * @return True if an image was acquired and the frame should be rendered, false if the frame should be skipped,
+     * which happens while the window is minimized.
+     */
+    public boolean beginFrame()
+    {
+        imageIndex = -1;
+        retiredSwapchains.flush();
+
+        if (outOfDate && !recreate())
+        {
+            skippedFrames++;
+            return false;
+        }
+
+        frameValue = target.beginSubmission();
+        frameIndex = (int) (frameValue % framesInFlight);
+
+        imageIndex = target.acquireNextImage(swapchain, frameIndex);
+
+        // The old swapchain can't give out images anymore, try once more with a new one
+        if (imageIndex < 0 && recreate())
+            imageIndex = target.acquireNextImage(swapchain, frameIndex);
+
+        if (imageIndex < 0)
+        {
+            // Nothing is submitted for this frame, but it's value still has to be signalled for the clock to advance
+            target.skipSubmission(frameValue);
+            outOfDate = true;
+            skippedFrames++;
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Ends the frame by presenting the image. The work of the frame must be submitted before this is called.
+     */
+    public void endFrame()
+    {
+        if (imageIndex < 0)
+            throw new IllegalStateException("No frame was begun");
+
+        int result = target.present(swapchain, frameIndex, imageIndex);
+
+        if (result == VK_SUBOPTIMAL_KHR || result == VK_ERROR_OUT_OF_DATE_KHR)
+            outOfDate = true;
+        else if (result != VK_SUCCESS)
+            throw new IllegalStateException("Could not present the image: " + result);
+
+        imageIndex = -1;
+    }
+
+    /**
+     * Creates a new swapchain that replaces the current one, and retires the current one.
+     *
+     * @return True if the swapchain was created, false if the window has no area.
+     */
+    private boolean recreate()
+    {
+        boolean surfaceSized = target.getCurrentExtent(currentExtent);
+
+        int newWidth = surfaceSized ? currentExtent[0] : requestedWidth;
+        int newHeight = surfaceSized ? currentExtent[1] : requestedHeight;
+
+        if (newWidth <= 0 || newHeight <= 0)
+            return false;
+
+        int newPresentMode = policy.choose(target.getPresentModes());
+        long oldSwapchain = swapchain;
+
+        swapchain = target.createSwapchain(newWidth, newHeight, newPresentMode, framesInFlight, oldSwapchain);
+        imageCount = target.getImageCount(swapchain);
+
+        width = newWidth;
+        height = newHeight;
+        presentMode = newPresentMode;
+        outOfDate = false;
+
+        if (oldSwapchain != 0)
+        {
+            recreateCount++;
+            retiredSwapchains.destroy(swapchainDestroyer, oldSwapchain, frameValue);
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the clock value of the current frame, which the submission of the frame must signal.
+     *
+     * @return The value of the frame.
+     */
+    public long getFrameValue()
+    {
+        return frameValue;
+    }
+
+    /**
+     * Returns the index of the frame slot of the current frame, which selects the semaphores and any other per frame
+     * resources of the example.
+     *
+     * @return The index of the frame slot, from zero to the number of frames in flight.
+     */
+    public int getFrameIndex()
+    {
+        return frameIndex;
+    }
+
+    /**
+     * Returns the index of the image that was acquired for the current frame.
+     *
+     * @return The index of the image, or -1 if no frame is begun.
+     */
+    public int getImageIndex()
+    {
+        return imageIndex;
+    }
+
+    public int getFramesInFlight()
+    {
+        return framesInFlight;
+    }
+
+    public Target getTarget()
+    {
+        return target;
+    }
+
+    public long getSwapchain()
+    {
+        return swapchain;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public int getPresentMode()
+    {
+        return presentMode;
+    }
+
+    public int getImageCount()
+    {
+        return imageCount;
+    }
+
+    /**
+     * Returns the number of times the swapchain was replaced after it was first created.
+     *
+     * @return The number of recreations.
+     */
+    public long getRecreateCount()
+    {
+        return recreateCount;
+    }
+
+    /**
+     * Returns the number of frames that were skipped because no image could be acquired.
+     *
+     * @return The number of skipped frames.
+     */
+    public long getSkippedFrames()
+    {
+        return skippedFrames;
+    }
+
+    /**
+     * Returns the number of replaced swapchains that are waiting for the device to be done with them.
+     *
+     * @return The number of retired swapchains.
+     */
+    public int getRetiredCount()
+    {
+        return retiredSwapchains.size();
+    }
+
+    /**
+     * Returns the name of a present mode, for printing.
+     *
+     * @param presentMode The VkPresentModeKHR.
+     *
+     * @return The name of the present mode.
+     */
+    public static String translatePresentMode(int presentMode)
+    {
+        switch (presentMode)
+        {
+            case VK_PRESENT_MODE_IMMEDIATE_KHR:
+                return "IMMEDIATE";
+            case VK_PRESENT_MODE_MAILBOX_KHR:
+                return "MAILBOX";
+            case VK_PRESENT_MODE_FIFO_KHR:
+                return "FIFO";
+            case VK_PRESENT_MODE_FIFO_RELAXED_KHR:
+                return "FIFO_RELAXED";
+            default:
+                return "UNKNOWN (" + presentMode + ")";
+        }
+    }
+
+    /**
+     * Waits for all the frames, and destroys the swapchains and the target. Call this before the surface is destroyed.
+     */
+    public void destroy()
+    {
+        if (frameValue > 0)
+            clock.waitFor(frameValue);
+
+        retiredSwapchains.destroy();
+
+        if (swapchain != 0)
+            target.destroySwapchain(swapchain);
+
+        swapchain = 0;
+        target.destroy();
+    }
+}
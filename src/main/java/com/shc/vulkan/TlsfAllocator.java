@@ -0,0 +1,505 @@
+package com.shc.vulkan;
+
+import java.util.Arrays;
+
+/**
+ * Places sub-allocations inside a single block of memory using the TLSF (two level segregated fit) algorithm. This
+ * class does not touch any memory, it only keeps track of which ranges of offsets are in use, so it is used for blocks
+ * of VkDeviceMemory by the {@link DeviceMemoryAllocator}, and can be tested and benchmarked without a GPU.
+ * <p>
+ * The free ranges are kept in lists segregated by size. The first level splits the sizes by powers of two, and the
+ * second level splits every power of two into 16 linear classes. Two bitmaps tell which lists are not empty, so both
+ * allocating and freeing take constant time, no matter how many ranges there are. Adjacent free ranges are always
+ * merged when a range is freed.
+ * <p>
+ * Vulkan requires that linear resources (buffers and linear images) and optimal resources (optimal tiling images) are
+ * not placed in the same page of {@code bufferImageGranularity} bytes in a block. Every allocation is tagged with it's
+ * resource type, and is pushed into the next page when it's neighbour is of the other type. All the ranges are
+ * referred to by integer handles, and the bookkeeping is kept in arrays of primitives.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class TlsfAllocator
+{
+    /**
+     * The resource type of a free range.
+     */
+    public static final int TYPE_FREE = 0;
+
+    /**
+     * The resource type of buffers and linear tiling images.
+     */
+    public static final int TYPE_LINEAR = 1;
+
+    /**
+     * The resource type of optimal tiling images.
+     */
+    public static final int TYPE_OPTIMAL = 2;
+
+    private static final int SL_BITS  = 4;
+    private static final int SL_COUNT = 1 << SL_BITS;
+    private static final int FL_COUNT = 64 - SL_BITS;
+
+    private static final int NONE = -1;
+
+    private final long size;
+    private final long granularity;
+
+    // The bookkeeping of every range, indexed by the handle of the range
+    private long[] offsets;
+    private long[] sizes;
+    private int[]  types;
+    private int[]  prevPhysical;
+    private int[]  nextPhysical;
+    private int[]  prevFree;
+    private int[]  nextFree;
+
+    // Handles of the ranges that are no longer used, to be reused for new ranges
+    private int[] unusedHandles;
+    private int   unusedHandleCount;
+    private int   handleCount;
+
+    private final int[] freeLists = new int[FL_COUNT * SL_COUNT];
+    private final int[] slBitmaps = new int[FL_COUNT];
+    private long        flBitmap;
+
+    private long usedBytes;
+    private int  allocationCount;
+    private int  freeRangeCount;
+
+    /**
+     * Creates an allocator for a block of memory.
+     *
+     * @param size        The size of the block in bytes.
+     * @param granularity The bufferImageGranularity limit of the device. Pass 1 if linear and optimal resources never
+     *                    share this block.
+     */
+    public TlsfAllocator(long size, long granularity)
+    {
+        if (size <= 0)
+            throw new IllegalArgumentException("The size of the block must be positive");
+
+        if (granularity <= 0 || Long.bitCount(granularity) != 1)
+            throw new IllegalArgumentException("The granularity must be a power of two");
+
+        this.size = size;
+        this.granularity = granularity;
+
+        int capacity = 64;
+
+        offsets = new long[capacity];
+        sizes = new long[capacity];
+        types = new int[capacity];
+        prevPhysical = new int[capacity];
+        nextPhysical = new int[capacity];
+        prevFree = new int[capacity];
+        nextFree = new int[capacity];
+        unusedHandles = new int[capacity];
+
+        Arrays.fill(freeLists, NONE);
+
+        int range = newHandle();
+
+        offsets[range] = 0;
+        sizes[range] = size;
+        types[range] = TYPE_FREE;
+        prevPhysical[range] = NONE;
+        nextPhysical[range] = NONE;
+
+        insertFree(range);
+    }
+
+    /**
+     * Allocates a range of the block.
+     *
+     * @param size      The size of the range in bytes.
+     * @param alignment The alignment of the offset of the range, which must be a power of two.
+     * @param type      The resource type, either {@link #TYPE_LINEAR} or {@link #TYPE_OPTIMAL}.
+     *
+     * @return The handle of the allocated range, or -1 if there is no free range large enough.
+     */
+    public int allocate(long size, long alignment, int type)
+    {
+        if (size <= 0)
+            throw new IllegalArgumentException("The size of the allocation must be positive");
+
+        if (alignment <= 0 || Long.bitCount(alignment) != 1)
+            throw new IllegalArgumentException("The alignment must be a power of two");
+
+        if (type != TYPE_LINEAR && type != TYPE_OPTIMAL)
+            throw new IllegalArgumentException("Unknown resource type " + type);
+
+        // Any free range in the list that is found must be large enough for the worst case padding. The start is moved
+        // up to the alignment, or to the next page when the previous neighbour is of the other type, and the end must
+        // stay out of the page of the next neighbour when it is of the other type. The end doesn't depend on the
+        // alignment, since the next neighbour can start anywhere in a page.
+        long searchSize = size + Math.max(alignment, granularity) - 1;
+
+        if (granularity > 1)
+            searchSize += granularity - 1;
+
+        if (searchSize > this.size)
+            return NONE;
+
+        int range = findFree(searchSize);
+
+        if (range == NONE)
+            return NONE;
+
+        removeFree(range);
+
+        long rangeStart = offsets[range];
+        long rangeEnd = rangeStart + sizes[range];
+
+        long offset = alignUp(rangeStart, alignment);
+
+        // Free ranges are always merged, so the physical neighbours of a free range are always in use.
+        int previous = prevPhysical[range];
+
+        if (previous != NONE && conflicts(types[previous], type)
+            && page(offsets[previous] + sizes[previous] - 1) == page(offset))
+            offset = alignUp(offset, granularity);
+
+        int next = nextPhysical[range];
+        long end = offset + size;
+
+        // The padding in the search size keeps the end out of the page of the next neighbour, so this can not happen,
+        // but keep the range free if it ever does
+        if (next != NONE && conflicts(types[next], type) && page(end - 1) == page(rangeEnd))
+        {
+            insertFree(range);
+            return NONE;
+        }
+
+        // Split off the padding before the allocation as a free range of it's own
+        if (offset > rangeStart)
+        {
+            int padding = newHandle();
+
+            offsets[padding] = rangeStart;
+            sizes[padding] = offset - rangeStart;
+            types[padding] = TYPE_FREE;
+
+            linkBefore(padding, range);
+            insertFree(padding);
+
+            offsets[range] = offset;
+            sizes[range] = rangeEnd - offset;
+        }
+
+        // Split off the rest of the range after the allocation
+        if (end < rangeEnd)
+        {
+            int remainder = newHandle();
+
+            offsets[remainder] = end;
+            sizes[remainder] = rangeEnd - end;
+            types[remainder] = TYPE_FREE;
+
+            linkAfter(remainder, range);
+            insertFree(remainder);
+
+            sizes[range] = size;
+        }
+
+        types[range] = type;
+
+        usedBytes += sizes[range];
+        allocationCount++;
+
+        return range;
+    }
+
+    /**
+     * Frees a range that was allocated before, and merges it with the free ranges next to it.
+     *
+     * @param handle The handle of the range, as returned by {@link #allocate(long, long, int)}.
+     */
+    public void free(int handle)
+    {
+        if (handle < 0 || handle >= handleCount || types[handle] == TYPE_FREE)
+            throw new IllegalArgumentException("The handle " + handle + " is not an allocated range");
+
+        usedBytes -= sizes[handle];
+        allocationCount--;
+
+        types[handle] = TYPE_FREE;
+
+        int next = nextPhysical[handle];
+
+        if (next != NONE && types[next] == TYPE_FREE)
+        {
+            removeFree(next);
+
+            sizes[handle] += sizes[next];
+            unlink(next);
+            releaseHandle(next);
+        }
+
+        int previous = prevPhysical[handle];
+
+        if (previous != NONE && types[previous] == TYPE_FREE)
+        {
+            removeFree(previous);
+
+            sizes[previous] += sizes[handle];
+            unlink(handle);
+            releaseHandle(handle);
+
+            handle = previous;
+        }
+
+        insertFree(handle);
+    }
+
+    public long getOffset(int handle)
+    {
+        return offsets[handle];
+    }
+
+    public long getSize(int handle)
+    {
+        return sizes[handle];
+    }
+
+    public long getBlockSize()
+    {
+        return size;
+    }
+
+    public long getUsedBytes()
+    {
+        return usedBytes;
+    }
+
+    public long getFreeBytes()
+    {
+        return size - usedBytes;
+    }
+
+    public int getAllocationCount()
+    {
+        return allocationCount;
+    }
+
+    public int getFreeRangeCount()
+    {
+        return freeRangeCount;
+    }
+
+    public boolean isEmpty()
+    {
+        return allocationCount == 0;
+    }
+
+    /**
+     * Returns the size of the largest free range in the block. This is the largest allocation that can be made without
+     * any alignment or granularity padding.
+     *
+     * @return The size of the largest free range in bytes.
+     */
+    public long getLargestFreeRange()
+    {
+        if (flBitmap == 0)
+            return 0;
+
+        int fl = 63 - Long.numberOfLeadingZeros(flBitmap);
+        int sl = 31 - Integer.numberOfLeadingZeros(slBitmaps[fl]);
+
+        long largest = 0;
+
+        for (int range = freeLists[fl * SL_COUNT + sl]; range != NONE; range = nextFree[range])
+            largest = Math.max(largest, sizes[range]);
+
+        return largest;
+    }
+
+    /**
+     * Returns how fragmented the free space of the block is. This is zero when all the free space is a single range,
+     * and gets closer to one as the free space is split into more and smaller ranges.
+     *
+     * @return The fragmentation of the block, between zero and one.
+     */
+    public double getFragmentation()
+    {
+        long free = getFreeBytes();
+        return free == 0 ? 0.0 : 1.0 - (double) getLargestFreeRange() / free;
+    }
+
+    private boolean conflicts(int type, int otherType)
+    {
+        return type != TYPE_FREE && type != otherType && granularity > 1;
+    }
+
+    private long page(long offset)
+    {
+        return offset & -granularity;
+    }
+
+    private static long alignUp(long value, long alignment)
+    {
+        return (value + alignment - 1) & -alignment;
+    }
+
+    private static int firstLevel(long size)
+    {
+        if (size < SL_COUNT)
+            return 0;
+
+        return (63 - Long.numberOfLeadingZeros(size)) - SL_BITS + 1;
+    }
+
+    private static int secondLevel(long size, int fl)
+    {
+        if (fl == 0)
+            return (int) size;
+
+        return (int) (size >>> (fl - 1)) - SL_COUNT;
+    }
+
+    private int findFree(long size)
+    {
+        // Round the size up to the next class, so that every range in the list that is found is large enough
+        if (size >= SL_COUNT)
+            size += (1L << (63 - Long.numberOfLeadingZeros(size) - SL_BITS)) - 1;
+
+        int fl = firstLevel(size);
+        int sl = secondLevel(size, fl);
+
+        if (fl >= FL_COUNT)
+            return NONE;
+
+        int slMap = slBitmaps[fl] & (-1 << sl);
+
+        if (slMap == 0)
+        {
+            long flMap = fl + 1 < 64 ? flBitmap & (-1L << (fl + 1)) : 0;
+
+            if (flMap == 0)
+                return NONE;
+
+            fl = Long.numberOfTrailingZeros(flMap);
+            slMap = slBitmaps[fl];
+        }
+
+        sl = Integer.numberOfTrailingZeros(slMap);
+
+        return freeLists[fl * SL_COUNT + sl];
+    }
+
+    private void insertFree(int range)
+    {
+        int fl = firstLevel(sizes[range]);
+        int sl = secondLevel(sizes[range], fl);
+        int list = fl * SL_COUNT + sl;
+
+        int head = freeLists[list];
+
+        prevFree[range] = NONE;
+        nextFree[range] = head;
+
+        if (head != NONE)
+            prevFree[head] = range;
+
+        freeLists[list] = range;
+        slBitmaps[fl] |= 1 << sl;
+        flBitmap |= 1L << fl;
+
+        freeRangeCount++;
+    }
+
+    private void removeFree(int range)
+    {
+        int fl = firstLevel(sizes[range]);
+        int sl = secondLevel(sizes[range], fl);
+        int list = fl * SL_COUNT + sl;
+
+        int previous = prevFree[range];
+        int next = nextFree[range];
+
+        if (previous != NONE)
+            nextFree[previous] = next;
+        else
+            freeLists[list] = next;
+
+        if (next != NONE)
+            prevFree[next] = previous;
+
+        if (freeLists[list] == NONE)
+        {
+            slBitmaps[fl] &= ~(1 << sl);
+
+            if (slBitmaps[fl] == 0)
+                flBitmap &= ~(1L << fl);
+        }
+
+        freeRangeCount--;
+    }
+
+    private void linkBefore(int range, int next)
+    {
+        int previous = prevPhysical[next];
+
+        prevPhysical[range] = previous;
+        nextPhysical[range] = next;
+        prevPhysical[next] = range;
+
+        if (previous != NONE)
+            nextPhysical[previous] = range;
+    }
+
+    private void linkAfter(int range, int previous)
+    {
+        int next = nextPhysical[previous];
+
+        prevPhysical[range] = previous;
+        nextPhysical[range] = next;
+        nextPhysical[previous] = range;
+
+        if (next != NONE)
+            prevPhysical[next] = range;
+    }
+
+    private void unlink(int range)
+    {
+        int previous = prevPhysical[range];
+        int next = nextPhysical[range];
+
+        if (previous != NONE)
+            nextPhysical[previous] = next;
+
+        if (next != NONE)
+            prevPhysical[next] = previous;
+    }
+
+    private int newHandle()
+    {
+        if (unusedHandleCount > 0)
+            return unusedHandles[--unusedHandleCount];
+
+        if (handleCount == offsets.length)
+        {
+            int capacity = handleCount * 2;
+
+            offsets = Arrays.copyOf(offsets, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            types = Arrays.copyOf(types, capacity);
+            prevPhysical = Arrays.copyOf(prevPhysical, capacity);
+            nextPhysical = Arrays.copyOf(nextPhysical, capacity);
+            prevFree = Arrays.copyOf(prevFree, capacity);
+            nextFree = Arrays.copyOf(nextFree, capacity);
+            unusedHandles = Arrays.copyOf(unusedHandles, capacity);
+        }
+
+        return handleCount++;
+    }
+
+    private void releaseHandle(int handle)
+    {
+        // Mark the handle so that freeing it again is caught as an error
+        types[handle] = TYPE_FREE;
+        sizes[handle] = 0;
+
+        unusedHandles[unusedHandleCount++] = handle;
+    }
+}
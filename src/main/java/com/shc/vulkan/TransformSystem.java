@@ -0,0 +1,318 @@
+package com.shc.vulkan;
+
+import org.joml.Matrix4f;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import static org.lwjgl.system.MemoryUtil.*;
+
+/**
+ * Keeps the transforms of many entities in off-heap struct-of-arrays buffers, and computes their world matrices in
+ * parallel into a mapped buffer. Every component, like the X of the position or the W of the rotation, is a
+ * contiguous array of floats, so the update walks every array linearly, and an entity is just an index instead of an
+ * object of it's own.
+ * <p>
+ * Every frame, {@link #update(FrameJobSystem, FloatBuffer, int)} splits the entities into the chunks of the
+ * {@link FrameJobSystem}, and every chunk builds the matrix of each entity with a JOML matrix of it's own and writes
+ * it straight into the destination, which is usually a {@code memFloatBuffer} over the mapped memory of an instance or
+ * a uniform buffer. The matrices are column major, which is the layout of a {@code mat4} in GLSL. Nothing is copied
+ * through a staging array, and nothing is allocated per entity or per frame.
+ * <p>
+ * Entities are removed by moving the last entity into their place, so the arrays stay dense. The index of the moved
+ * entity changes, which {@link #remove(int)} returns so that the caller can update it's references.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class TransformSystem
+{
+    // The components of the transform, in the order of the arrays in the block
+    private static final int POSITION_X = 0;
+    private static final int POSITION_Y = 1;
+    private static final int POSITION_Z = 2;
+    private static final int ROTATION_X = 3;
+    private static final int ROTATION_Y = 4;
+    private static final int ROTATION_Z = 5;
+    private static final int ROTATION_W = 6;
+    private static final int SCALE_X    = 7;
+    private static final int SCALE_Y    = 8;
+    private static final int SCALE_Z    = 9;
+
+    private static final int COMPONENT_COUNT = 10;
+
+    /**
+     * The number of floats of a world matrix.
+     */
+    public static final int MATRIX_FLOATS = 16;
+
+    private final int capacity;
+
+    private final ByteBuffer  block;
+    private final FloatBuffer positionX;
+    private final FloatBuffer positionY;
+    private final FloatBuffer positionZ;
+    private final FloatBuffer rotationX;
+    private final FloatBuffer rotationY;
+    private final FloatBuffer rotationZ;
+    private final FloatBuffer rotationW;
+    private final FloatBuffer scaleX;
+    private final FloatBuffer scaleY;
+    private final FloatBuffer scaleZ;
+
+    private int count;
+
+    // The state of the update that is running, read by the chunks
+    private final FrameJobSystem.Job updateJob = this::updateChunk;
+
+    private FloatBuffer destination;
+    private int         stride;
+    private Matrix4f[]  chunkMatrices = new Matrix4f[0];
+
+    /**
+     * Creates the system, allocating the arrays for the given number of entities.
+     *
+     * @param capacity The maximum number of entities.
+     */
+    public TransformSystem(int capacity)
+    {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("The capacity must be positive");
+
+        this.capacity = capacity;
+
+        // One allocation for all the arrays, each starting on a cache line of it's own
+        long arraySize = align((long) capacity * 4);
+        block = memAlignedAlloc(64, (int) (arraySize * COMPONENT_COUNT));
+
+        long address = memAddress(block);
+
+        positionX = memFloatBuffer(address + arraySize * POSITION_X, capacity);
+        positionY = memFloatBuffer(address + arraySize * POSITION_Y, capacity);
+        positionZ = memFloatBuffer(address + arraySize * POSITION_Z, capacity);
+        rotationX = memFloatBuffer(address + arraySize * ROTATION_X, capacity);
+        rotationY = memFloatBuffer(address + arraySize * ROTATION_Y, capacity);
+        rotationZ = memFloatBuffer(address + arraySize * ROTATION_Z, capacity);
+        rotationW = memFloatBuffer(address + arraySize * ROTATION_W, capacity);
+        scaleX = memFloatBuffer(address + arraySize * SCALE_X, capacity);
+        scaleY = memFloatBuffer(address + arraySize * SCALE_Y, capacity);
+        scaleZ = memFloatBuffer(address + arraySize * SCALE_Z, capacity);
+    }
+
+    private static long align(long size)
+    {
+        return (size + 63) & ~63L;
+    }
+
+    /**
+     * Adds an entity with the identity transform.
+     *
+     * @return The index of the entity.
+     */
+    public int add()
+    {
+        if (count == capacity)
+            throw new IllegalStateException("The transform system is full, it has room for " + capacity + " entities");
+
+        int index = count++;
+
+        setPosition(index, 0, 0, 0);
+        setRotation(index, 0, 0, 0, 1);
+        setScale(index, 1, 1, 1);
+
+        return index;
+    }
+
+    /**
+     * Removes an entity by moving the last entity into it's place.
+     *
+     * @param index The index of the entity to remove.
+     *
+     * @return The old index of the entity that now has the given index, or -1 if the removed entity was the last.
+     */
+    public int remove(int index)
+    {
+        checkIndex(index);
+
+        int last = --count;
+
+        if (index == last)
+            return -1;
+
+        positionX.put(index, positionX.get(last));
+        positionY.put(index, positionY.get(last));
+        positionZ.put(index, positionZ.get(last));
+        rotationX.put(index, rotationX.get(last));
+        rotationY.put(index, rotationY.get(last));
+        rotationZ.put(index, rotationZ.get(last));
+        rotationW.put(index, rotationW.get(last));
+        scaleX.put(index, scaleX.get(last));
+        scaleY.put(index, scaleY.get(last));
+        scaleZ.put(index, scaleZ.get(last));
+
+        return last;
+    }
+
+    private void checkIndex(int index)
+    {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("The entity " + index + " doesn't exist, there are " + count);
+    }
+
+    public void setPosition(int index, float x, float y, float z)
+    {
+        positionX.put(index, x);
+        positionY.put(index, y);
+        positionZ.put(index, z);
+    }
+
+    /**
+     * Sets the rotation of an entity as a unit quaternion.
+     */
+    public void setRotation(int index, float x, float y, float z, float w)
+    {
+        rotationX.put(index, x);
+        rotationY.put(index, y);
+        rotationZ.put(index, z);
+        rotationW.put(index, w);
+    }
+
+    public void setScale(int index, float x, float y, float z)
+    {
+        scaleX.put(index, x);
+        scaleY.put(index, y);
+        scaleZ.put(index, z);
+    }
+
+    /**
+     * Returns the array of a component, for systems that update many entities at once, like an animation that moves
+     * all the positions. The buffers are views of the off-heap arrays, indexed by the entity.
+     */
+    public FloatBuffer getPositionX()
+    {
+        return positionX;
+    }
+
+    public FloatBuffer getPositionY()
+    {
+        return positionY;
+    }
+
+    public FloatBuffer getPositionZ()
+    {
+        return positionZ;
+    }
+
+    public FloatBuffer getRotationX()
+    {
+        return rotationX;
+    }
+
+    public FloatBuffer getRotationY()
+    {
+        return rotationY;
+    }
+
+    public FloatBuffer getRotationZ()
+    {
+        return rotationZ;
+    }
+
+    public FloatBuffer getRotationW()
+    {
+        return rotationW;
+    }
+
+    public FloatBuffer getScaleX()
+    {
+        return scaleX;
+    }
+
+    public FloatBuffer getScaleY()
+    {
+        return scaleY;
+    }
+
+    public FloatBuffer getScaleZ()
+    {
+        return scaleZ;
+    }
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Computes the world matrices of all the entities, in parallel chunks, into the destination. The matrix of the
+     * entity {@code i} is written at the float {@code i * stride} of the destination.
+     *
+     * @param jobSystem   The job system to run the chunks on, or null to compute them all on the calling thread.
+     * @param destination The buffer to write the matrices to, usually a view of a mapped buffer.
+     * @param stride      The number of floats from one matrix to the next, at least {@link #MATRIX_FLOATS}. Use the
+     *                    {@code minUniformBufferOffsetAlignment} of the device for dynamic uniform buffers.
+     */
+    public void update(FrameJobSystem jobSystem, FloatBuffer destination, int stride)
+    {
+        if (stride < MATRIX_FLOATS)
+            throw new IllegalArgumentException("The stride is less than a matrix");
+
+        if (count > 0 && (long) (count - 1) * stride + MATRIX_FLOATS > destination.capacity())
+            throw new IllegalArgumentException("The destination has no room for " + count + " matrices");
+
+        int chunkCount = jobSystem == null ? 1 : jobSystem.getThreadCount();
+
+        if (chunkMatrices.length < chunkCount)
+        {
+            Matrix4f[] matrices = new Matrix4f[chunkCount];
+
+            for (int i = 0; i < chunkCount; i++)
+                matrices[i] = i < chunkMatrices.length ? chunkMatrices[i] : new Matrix4f();
+
+            chunkMatrices = matrices;
+        }
+
+        this.destination = destination;
+        this.stride = stride;
+
+        try
+        {
+            if (jobSystem == null)
+                updateChunk(0, 0, count);
+            else
+                jobSystem.run(count, chunkCount, updateJob);
+        }
+        finally
+        {
+            this.destination = null;
+        }
+    }
+
+    private void updateChunk(int chunk, int start, int end)
+    {
+        Matrix4f matrix = chunkMatrices[chunk];
+
+        FloatBuffer destination = this.destination;
+        int stride = this.stride;
+
+        for (int i = start; i < end; i++)
+        {
+            matrix.translationRotateScale(positionX.get(i), positionY.get(i), positionZ.get(i),
+                    rotationX.get(i), rotationY.get(i), rotationZ.get(i), rotationW.get(i),
+                    scaleX.get(i), scaleY.get(i), scaleZ.get(i))
+                  .get(i * stride, destination);
+        }
+    }
+
+    /**
+     * Frees the arrays. The system must not be used after this.
+     */
+    public void destroy()
+    {
+        memAlignedFree(block);
+    }
+}
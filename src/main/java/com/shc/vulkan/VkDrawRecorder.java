@@ -0,0 +1,134 @@
+package com.shc.vulkan;
+
+import org.lwjgl.vulkan.VkCommandBuffer;
+
+import java.nio.LongBuffer;
+
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Records the binds and the merged draws of a {@link DrawQueue} into a command buffer. The ids in the sort keys are
+ * indices into the tables of handles that this recorder is created with: the pipelines, the descriptor sets of set
+ * zero, the descriptor sets of the materials at set one, and the index ranges of the meshes, which all live in the
+ * vertex and index buffers that the caller binds before the flush.
+ * <p>
+ * The passes of the queue are the subpasses of the render pass that the caller begins before the flush. Moving to a
+ * later pass records {@code vkCmdNextSubpass} for every subpass in between, so passes without any draws are still
+ * stepped through. After the flush, the caller moves through the remaining subpasses with {@link #getSubpass()}, and
+ * ends the render pass.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class VkDrawRecorder implements DrawQueue.Target
+{
+    private final long   pipelineLayout;
+    private final long[] pipelines;
+    private final long[] descriptorSets;
+    private final long[] materialSets;
+
+    private final int[] meshIndexCounts;
+    private final int[] meshFirstIndices;
+    private final int[] meshVertexOffsets;
+
+    // A single descriptor set to bind, allocated once
+    private final LongBuffer pDescriptorSet = memAllocLong(1);
+
+    private VkCommandBuffer commandBuffer;
+    private int             subpass;
+
+    /**
+     * Creates the recorder.
+     *
+     * @param pipelineLayout    The pipeline layout shared by all the pipelines.
+     * @param pipelines         The pipelines, indexed by the pipeline of the keys.
+     * @param descriptorSets    The descriptor sets bound to set zero, indexed by the descriptor set of the keys.
+     * @param materialSets      The descriptor sets bound to set one, indexed by the material of the keys.
+     * @param meshIndexCounts   The number of indices of every mesh.
+     * @param meshFirstIndices  The first index of every mesh in the index buffer.
+     * @param meshVertexOffsets The offset of the vertices of every mesh in the vertex buffer.
+     */
+    public VkDrawRecorder(long pipelineLayout, long[] pipelines, long[] descriptorSets, long[] materialSets,
+                          int[] meshIndexCounts, int[] meshFirstIndices, int[] meshVertexOffsets)
+    {
+        this.pipelineLayout = pipelineLayout;
+        this.pipelines = pipelines;
+        this.descriptorSets = descriptorSets;
+        this.materialSets = materialSets;
+        this.meshIndexCounts = meshIndexCounts;
+        this.meshFirstIndices = meshFirstIndices;
+        this.meshVertexOffsets = meshVertexOffsets;
+    }
+
+    /**
+     * Sets the command buffer to record into, which is inside the first subpass of the render pass.
+     *
+     * @param commandBuffer The command buffer to record the next flush into.
+     */
+    public void begin(VkCommandBuffer commandBuffer)
+    {
+        this.commandBuffer = commandBuffer;
+        subpass = 0;
+    }
+
+    @Override
+    public void beginPass(int pass)
+    {
+        if (pass < subpass)
+            throw new IllegalStateException("The pass " + pass + " is before the subpass " + subpass);
+
+        while (subpass < pass)
+        {
+            vkCmdNextSubpass(commandBuffer, VK_SUBPASS_CONTENTS_INLINE);
+            subpass++;
+        }
+    }
+
+    @Override
+    public void bindPipeline(int pipeline)
+    {
+        vkCmdBindPipeline(commandBuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, pipelines[pipeline]);
+    }
+
+    @Override
+    public void bindDescriptorSet(int descriptorSet)
+    {
+        bindSet(0, descriptorSets[descriptorSet]);
+    }
+
+    @Override
+    public void bindMaterial(int material)
+    {
+        bindSet(1, materialSets[material]);
+    }
+
+    private void bindSet(int firstSet, long descriptorSet)
+    {
+        pDescriptorSet.put(0, descriptorSet);
+
+        nvkCmdBindDescriptorSets(commandBuffer, VK_PIPELINE_BIND_POINT_GRAPHICS, pipelineLayout, firstSet, 1,
+                memAddress(pDescriptorSet), 0, NULL);
+    }
+
+    @Override
+    public void drawInstanced(int mesh, int firstInstance, int instanceCount)
+    {
+        vkCmdDrawIndexed(commandBuffer, meshIndexCounts[mesh], instanceCount, meshFirstIndices[mesh],
+                meshVertexOffsets[mesh], firstInstance);
+    }
+
+    /**
+     * Returns the subpass that the last flush ended in.
+     *
+     * @return The index of the current subpass.
+     */
+    public int getSubpass()
+    {
+        return subpass;
+    }
+
+    public void destroy()
+    {
+        memFree(pDescriptorSet);
+    }
+}
@@ -0,0 +1,136 @@
+package com.shc.vulkan;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkFenceCreateInfo;
+
+import java.nio.LongBuffer;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * A {@link FenceClock} backed by a ring of VkFences, one for every submission that can be in flight at the same time.
+ * Before every submission, call {@link #beginSubmission()} to get the clock value of the submission, and pass the fence
+ * from {@link #getFence(long)} to {@code vkQueueSubmit}. If all the fences are in flight, beginning a submission waits
+ * for the oldest one, which keeps the CPU from running more than the given number of submissions ahead of the device.
+ * <p>
+ * All the submissions must go to the same queue, since the clock assumes that they complete in order.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class VkFenceClock implements FenceClock
+{
+    private final VkDevice device;
+    private final long[]   fences;
+
+    private long submittedValue;
+    private long completedValue;
+
+    /**
+     * Creates the clock with the given number of fences.
+     *
+     * @param device      The device to create the fences on.
+     * @param maxInFlight The number of submissions that can be in flight at the same time.
+     */
+    public VkFenceClock(VkDevice device, int maxInFlight)
+    {
+        this.device = device;
+
+        fences = new long[maxInFlight];
+
+        try (MemoryStack stack = stackPush())
+        {
+            VkFenceCreateInfo createInfo = VkFenceCreateInfo.callocStack(stack)
+                    .sType(VK_STRUCTURE_TYPE_FENCE_CREATE_INFO);
+
+            LongBuffer pFence = stack.mallocLong(1);
+
+            for (int i = 0; i < maxInFlight; i++)
+            {
+                int err = vkCreateFence(device, createInfo, null, pFence);
+
+                if (err != VK_SUCCESS)
+                    throw new IllegalStateException("Could not create a fence: " + err);
+
+                fences[i] = pFence.get(0);
+            }
+        }
+    }
+
+    /**
+     * Starts a new submission, waiting for the oldest submission in flight if all the fences are in use.
+     *
+     * @return The clock value of the new submission.
+     */
+    public long beginSubmission()
+    {
+        long value = submittedValue + 1;
+
+        if (value > fences.length)
+        {
+            // The fence is reused from the submission that was made fences.length submissions ago
+            waitFor(value - fences.length);
+            vkResetFences(device, getFence(value));
+        }
+
+        submittedValue = value;
+
+        return value;
+    }
+
+    /**
+     * Returns the fence that should be signalled by the submission with the given clock value.
+     *
+     * @param value The clock value of the submission.
+     *
+     * @return The handle of the VkFence.
+     */
+    public long getFence(long value)
+    {
+        return fences[(int) (value % fences.length)];
+    }
+
+    public long getSubmittedValue()
+    {
+        return submittedValue;
+    }
+
+    @Override
+    public long getCompletedValue()
+    {
+        while (completedValue < submittedValue && vkGetFenceStatus(device, getFence(completedValue + 1)) == VK_SUCCESS)
+            completedValue++;
+
+        return completedValue;
+    }
+
+    @Override
+    public void waitFor(long value)
+    {
+        if (value <= completedValue)
+            return;
+
+        if (value > submittedValue)
+            throw new IllegalArgumentException("The value " + value + " is not submitted yet");
+
+        int err = vkWaitForFences(device, getFence(value), true, -1L);
+
+        if (err != VK_SUCCESS)
+            throw new IllegalStateException("Could not wait for the fence: " + err);
+
+        completedValue = value;
+    }
+
+    /**
+     * Waits for all the submissions to complete, and destroys the fences.
+     */
+    public void destroy()
+    {
+        if (submittedValue > 0)
+            waitFor(submittedValue);
+
+        for (long fence : fences)
+            vkDestroyFence(device, fence, null);
+    }
+}
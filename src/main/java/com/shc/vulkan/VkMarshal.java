@@ -0,0 +1,157 @@
+package com.shc.vulkan;
+
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkApplicationInfo;
+import org.lwjgl.vulkan.VkDeviceCreateInfo;
+import org.lwjgl.vulkan.VkDeviceQueueCreateInfo;
+import org.lwjgl.vulkan.VkInstanceCreateInfo;
+
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.system.Pointer.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * Marshals strings and structs onto a {@link MemoryStack} without allocating anything on the Java heap or on the native
+ * heap. The stack and struct wrapper classes of LWJGL create a small Java object for every buffer and struct, so the
+ * methods here work with raw addresses instead, and write the struct fields directly at their offsets.
+ * <p>
+ * Everything that is returned by these methods lives in the current frame of the stack, and is no longer valid once
+ * that frame is popped. The usual pattern is to push a frame, marshal the structs, make the Vulkan call and then pop.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public final class VkMarshal
+{
+    private VkMarshal()
+    {
+    }
+
+    /**
+     * Encodes the text as a null-terminated ASCII string on the stack.
+     *
+     * @param stack The stack to allocate the string on.
+     * @param text  The text to encode. Characters outside ASCII are truncated to their lower byte.
+     *
+     * @return The address of the encoded string.
+     */
+    public static long nASCII(MemoryStack stack, CharSequence text)
+    {
+        int length = text.length();
+        long address = stack.nmalloc(1, length + 1);
+
+        for (int i = 0; i < length; i++)
+            memPutByte(address + i, (byte) text.charAt(i));
+
+        memPutByte(address + length, (byte) 0);
+
+        return address;
+    }
+
+    /**
+     * Encodes the extension names into an array of pointers on the stack, followed by the pointers to the extensions
+     * that GLFW requires. The GLFW pointers are copied as is, and their strings are not copied.
+     *
+     * @param stack          The stack to allocate the array and the names on.
+     * @param glfwExtensions The extensions required by GLFW, or null if there are none. It's position is not changed.
+     * @param extensions     The names of the extensions to request.
+     *
+     * @return The address of the array of pointers, which has {@code extensions.length + glfwExtensions.remaining()}
+     * elements.
+     */
+    public static long nExtensionNames(MemoryStack stack, PointerBuffer glfwExtensions, String[] extensions)
+    {
+        int glfwExtensionCount = glfwExtensions == null ? 0 : glfwExtensions.remaining();
+        long names = stack.nmalloc(POINTER_SIZE, (extensions.length + glfwExtensionCount) << POINTER_SHIFT);
+
+        for (int i = 0; i < extensions.length; i++)
+            memPutAddress(names + ((long) i << POINTER_SHIFT), nASCII(stack, extensions[i]));
+
+        for (int i = 0; i < glfwExtensionCount; i++)
+        {
+            long name = glfwExtensions.get(glfwExtensions.position() + i);
+            memPutAddress(names + ((long) (extensions.length + i) << POINTER_SHIFT), name);
+        }
+
+        return names;
+    }
+
+    /**
+     * Creates a VkApplicationInfo struct on the stack.
+     *
+     * @param stack           The stack to allocate the struct on.
+     * @param applicationName The name of the application.
+     * @param engineName      The name of the engine.
+     * @param apiVersion      The packed version of the Vulkan API that the application uses.
+     *
+     * @return The address of the struct.
+     */
+    public static long nApplicationInfo(MemoryStack stack, CharSequence applicationName, CharSequence engineName,
+                                        int apiVersion)
+    {
+        long appInfo = stack.ncalloc(VkApplicationInfo.ALIGNOF, 1, VkApplicationInfo.SIZEOF);
+
+        memPutInt(appInfo + VkApplicationInfo.STYPE, VK_STRUCTURE_TYPE_APPLICATION_INFO);
+        memPutAddress(appInfo + VkApplicationInfo.PAPPLICATIONNAME, nASCII(stack, applicationName));
+        memPutAddress(appInfo + VkApplicationInfo.PENGINENAME, nASCII(stack, engineName));
+        memPutInt(appInfo + VkApplicationInfo.APIVERSION, apiVersion);
+
+        return appInfo;
+    }
+
+    /**
+     * Creates a VkInstanceCreateInfo struct on the stack, with no layers enabled.
+     *
+     * @param stack          The stack to allocate the struct on.
+     * @param appInfo        The address of the VkApplicationInfo struct.
+     * @param extensionNames The address of the array of pointers to the extension names.
+     * @param extensionCount The number of extension names in the array.
+     *
+     * @return The address of the struct.
+     */
+    public static long nInstanceCreateInfo(MemoryStack stack, long appInfo, long extensionNames, int extensionCount)
+    {
+        long instInfo = stack.ncalloc(VkInstanceCreateInfo.ALIGNOF, 1, VkInstanceCreateInfo.SIZEOF);
+
+        memPutInt(instInfo + VkInstanceCreateInfo.STYPE, VK_STRUCTURE_TYPE_INSTANCE_CREATE_INFO);
+        memPutAddress(instInfo + VkInstanceCreateInfo.PAPPLICATIONINFO, appInfo);
+        memPutInt(instInfo + VkInstanceCreateInfo.ENABLEDEXTENSIONCOUNT, extensionCount);
+        memPutAddress(instInfo + VkInstanceCreateInfo.PPENABLEDEXTENSIONNAMES, extensionNames);
+
+        return instInfo;
+    }
+
+    /**
+     * Creates a VkDeviceCreateInfo struct on the stack, with a single queue from one queue family, and no layers or
+     * features enabled.
+     *
+     * @param stack          The stack to allocate the struct on.
+     * @param queueFamily    The index of the queue family to create the queue from.
+     * @param extensionNames The address of the array of pointers to the extension names.
+     * @param extensionCount The number of extension names in the array.
+     *
+     * @return The address of the struct.
+     */
+    public static long nDeviceCreateInfo(MemoryStack stack, int queueFamily, long extensionNames, int extensionCount)
+    {
+        long pQueuePriorities = stack.nmalloc(4, 4);
+        memPutFloat(pQueuePriorities, 1.0f);
+
+        long queueInfo = stack.ncalloc(VkDeviceQueueCreateInfo.ALIGNOF, 1, VkDeviceQueueCreateInfo.SIZEOF);
+
+        memPutInt(queueInfo + VkDeviceQueueCreateInfo.STYPE, VK_STRUCTURE_TYPE_DEVICE_QUEUE_CREATE_INFO);
+        memPutInt(queueInfo + VkDeviceQueueCreateInfo.QUEUEFAMILYINDEX, queueFamily);
+        memPutInt(queueInfo + VkDeviceQueueCreateInfo.QUEUECOUNT, 1);
+        memPutAddress(queueInfo + VkDeviceQueueCreateInfo.PQUEUEPRIORITIES, pQueuePriorities);
+
+        long deviceInfo = stack.ncalloc(VkDeviceCreateInfo.ALIGNOF, 1, VkDeviceCreateInfo.SIZEOF);
+
+        memPutInt(deviceInfo + VkDeviceCreateInfo.STYPE, VK_STRUCTURE_TYPE_DEVICE_CREATE_INFO);
+        memPutInt(deviceInfo + VkDeviceCreateInfo.QUEUECREATEINFOCOUNT, 1);
+        memPutAddress(deviceInfo + VkDeviceCreateInfo.PQUEUECREATEINFOS, queueInfo);
+        memPutInt(deviceInfo + VkDeviceCreateInfo.ENABLEDEXTENSIONCOUNT, extensionCount);
+        memPutAddress(deviceInfo + VkDeviceCreateInfo.PPENABLEDEXTENSIONNAMES, extensionNames);
+
+        return deviceInfo;
+    }
+}
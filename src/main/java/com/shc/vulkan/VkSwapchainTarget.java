@@ -0,0 +1,413 @@
+package com.shc.vulkan;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkPhysicalDevice;
+import org.lwjgl.vulkan.VkPresentInfoKHR;
+import org.lwjgl.vulkan.VkQueue;
+import org.lwjgl.vulkan.VkSemaphoreCreateInfo;
+import org.lwjgl.vulkan.VkSurfaceCapabilitiesKHR;
+import org.lwjgl.vulkan.VkSurfaceFormatKHR;
+import org.lwjgl.vulkan.VkSwapchainCreateInfoKHR;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.KHRSurface.*;
+import static org.lwjgl.vulkan.KHRSwapchain.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * The {@link SwapchainManager.Target} of a Vulkan surface. It owns the image available semaphore of every frame slot,
+ * the render finished semaphore of every swapchain image, and a {@link VkFenceClock} with a fence for every frame in
+ * flight. The render method of the example submits the work of the frame with
+ * {@link #getImageAvailableSemaphore(int)} of the frame slot as the wait semaphore,
+ * {@link #getRenderFinishedSemaphore(long, int)} of the acquired image as the signal semaphore, and
+ * {@link #getFence(long)} as the fence. The render finished semaphores are per image and not per frame slot, since the
+ * present that waits on one is only known to be done once it's image is acquired again, which does not follow the
+ * order of the frame slots.
+ * <p>
+ * The format of the images is B8G8R8A8_UNORM in the sRGB color space when the surface supports it, and the first format
+ * of the surface otherwise. The swapchain has one image more than the smallest number the surface allows, and at least
+ * one more than the number of frames in flight, so that acquiring an image rarely has to wait for the display. The
+ * images are always color attachments, and also transfer destinations when the surface supports it. They are opaque
+ * when the surface supports it, and use the first composite alpha mode that the surface supports otherwise.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class VkSwapchainTarget implements SwapchainManager.Target
+{
+    private final VkDevice         device;
+    private final VkPhysicalDevice physicalDevice;
+    private final long             surface;
+    private final VkQueue          presentQueue;
+
+    private final VkFenceClock clock;
+
+    private final long[] imageAvailableSemaphores;
+
+    private final int imageFormat;
+    private final int imageColorSpace;
+    private       int imageUsage;
+
+    private final Map<Long, long[]> swapchainImages          = new HashMap<>();
+    private final Map<Long, long[]> renderFinishedSemaphores = new HashMap<>();
+
+    // The frames present to the newest swapchain, so it's semaphores are also kept here to not box it's handle for a
+    // map lookup every frame
+    private long   newestSwapchain;
+    private long[] newestRenderFinishedSemaphores;
+
+    /**
+     * Creates the target.
+     *
+     * @param device         The device to create the swapchains on.
+     * @param physicalDevice The physical device of the device.
+     * @param surface        The surface to present to.
+     * @param presentQueue   The queue to present on, which must support presenting to the surface.
+     * @param framesInFlight The number of frames that can be in flight at the same time.
+     */
+    public VkSwapchainTarget(VkDevice device, VkPhysicalDevice physicalDevice, long surface, VkQueue presentQueue,
+                             int framesInFlight)
+    {
+        this.device = device;
+        this.physicalDevice = physicalDevice;
+        this.surface = surface;
+        this.presentQueue = presentQueue;
+
+        clock = new VkFenceClock(device, framesInFlight);
+
+        imageAvailableSemaphores = new long[framesInFlight];
+
+        try (MemoryStack stack = stackPush())
+        {
+            VkSemaphoreCreateInfo semaphoreInfo = VkSemaphoreCreateInfo.callocStack(stack)
+                    .sType(VK_STRUCTURE_TYPE_SEMAPHORE_CREATE_INFO);
+
+            LongBuffer pSemaphore = stack.mallocLong(1);
+
+            for (int i = 0; i < framesInFlight; i++)
+            {
+                if (vkCreateSemaphore(device, semaphoreInfo, null, pSemaphore) != VK_SUCCESS)
+                    throw new IllegalStateException("Could not create a semaphore");
+
+                imageAvailableSemaphores[i] = pSemaphore.get(0);
+            }
+
+            IntBuffer pCount = stack.mallocInt(1);
+            vkGetPhysicalDeviceSurfaceFormatsKHR(physicalDevice, surface, pCount, null);
+
+            VkSurfaceFormatKHR.Buffer formats = VkSurfaceFormatKHR.mallocStack(pCount.get(0), stack);
+            vkGetPhysicalDeviceSurfaceFormatsKHR(physicalDevice, surface, pCount, formats);
+
+            int format = formats.get(0).format();
+            int colorSpace = formats.get(0).colorSpace();
+
+            // A single undefined format means that the surface takes any format
+            if (format == VK_FORMAT_UNDEFINED)
+                format = VK_FORMAT_B8G8R8A8_UNORM;
+
+            for (int i = 0; i < formats.remaining(); i++)
+            {
+                if (formats.get(i).format() == VK_FORMAT_B8G8R8A8_UNORM &&
+                    formats.get(i).colorSpace() == VK_COLOR_SPACE_SRGB_NONLINEAR_KHR)
+                {
+                    format = VK_FORMAT_B8G8R8A8_UNORM;
+                    colorSpace = VK_COLOR_SPACE_SRGB_NONLINEAR_KHR;
+                }
+            }
+
+            imageFormat = format;
+            imageColorSpace = colorSpace;
+        }
+    }
+
+    @Override
+    public int[] getPresentModes()
+    {
+        try (MemoryStack stack = stackPush())
+        {
+            IntBuffer pCount = stack.mallocInt(1);
+            vkGetPhysicalDeviceSurfacePresentModesKHR(physicalDevice, surface, pCount, null);
+
+            IntBuffer pModes = stack.mallocInt(pCount.get(0));
+            vkGetPhysicalDeviceSurfacePresentModesKHR(physicalDevice, surface, pCount, pModes);
+
+            int[] modes = new int[pCount.get(0)];
+            pModes.get(modes);
+
+            return modes;
+        }
+    }
+
+    @Override
+    public boolean getCurrentExtent(int[] extent)
+    {
+        try (MemoryStack stack = stackPush())
+        {
+            VkSurfaceCapabilitiesKHR capabilities = VkSurfaceCapabilitiesKHR.mallocStack(stack);
+            vkGetPhysicalDeviceSurfaceCapabilitiesKHR(physicalDevice, surface, capabilities);
+
+            // The special value 0xFFFFFFFF means that the swapchain decides the size of the surface
+            if (capabilities.currentExtent().width() == 0xFFFFFFFF)
+                return false;
+
+            extent[0] = capabilities.currentExtent().width();
+            extent[1] = capabilities.currentExtent().height();
+
+            return true;
+        }
+    }
+
+    @Override
+    public long createSwapchain(int width, int height, int presentMode, int framesInFlight, long oldSwapchain)
+    {
+        try (MemoryStack stack = stackPush())
+        {
+            VkSurfaceCapabilitiesKHR capabilities = VkSurfaceCapabilitiesKHR.mallocStack(stack);
+            vkGetPhysicalDeviceSurfaceCapabilitiesKHR(physicalDevice, surface, capabilities);
+
+            int imageCount = Math.max(capabilities.minImageCount() + 1, framesInFlight + 1);
+
+            // A maximum of zero means that there is no limit
+            if (capabilities.maxImageCount() > 0)
+                imageCount = Math.min(imageCount, capabilities.maxImageCount());
+
+            width = Math.max(capabilities.minImageExtent().width(),
+                    Math.min(capabilities.maxImageExtent().width(), width));
+            height = Math.max(capabilities.minImageExtent().height(),
+                    Math.min(capabilities.maxImageExtent().height(), height));
+
+            // Color attachments are always supported, transfers into the images only by some surfaces
+            int usage = VK_IMAGE_USAGE_COLOR_ATTACHMENT_BIT
+                        | (capabilities.supportedUsageFlags() & VK_IMAGE_USAGE_TRANSFER_DST_BIT);
+
+            VkSwapchainCreateInfoKHR createInfo = VkSwapchainCreateInfoKHR.callocStack(stack)
+                    .sType(VK_STRUCTURE_TYPE_SWAPCHAIN_CREATE_INFO_KHR)
+                    .surface(surface)
+                    .minImageCount(imageCount)
+                    .imageFormat(imageFormat)
+                    .imageColorSpace(imageColorSpace)
+                    .imageArrayLayers(1)
+                    .imageUsage(usage)
+                    .imageSharingMode(VK_SHARING_MODE_EXCLUSIVE)
+                    .preTransform(capabilities.currentTransform())
+                    .compositeAlpha(chooseCompositeAlpha(capabilities.supportedCompositeAlpha()))
+                    .presentMode(presentMode)
+                    .clipped(true)
+                    .oldSwapchain(oldSwapchain);
+
+            createInfo.imageExtent().width(width).height(height);
+
+            LongBuffer pSwapchain = stack.mallocLong(1);
+            int err = vkCreateSwapchainKHR(device, createInfo, null, pSwapchain);
+
+            if (err != VK_SUCCESS)
+                throw new IllegalStateException("Could not create the swapchain: " + err);
+
+            long swapchain = pSwapchain.get(0);
+
+            IntBuffer pCount = stack.mallocInt(1);
+            vkGetSwapchainImagesKHR(device, swapchain, pCount, null);
+
+            LongBuffer pImages = stack.mallocLong(pCount.get(0));
+            vkGetSwapchainImagesKHR(device, swapchain, pCount, pImages);
+
+            long[] images = new long[pCount.get(0)];
+            pImages.get(images);
+
+            VkSemaphoreCreateInfo semaphoreInfo = VkSemaphoreCreateInfo.callocStack(stack)
+                    .sType(VK_STRUCTURE_TYPE_SEMAPHORE_CREATE_INFO);
+
+            LongBuffer pSemaphore = stack.mallocLong(1);
+            long[] semaphores = new long[images.length];
+
+            for (int i = 0; i < images.length; i++)
+            {
+                if (vkCreateSemaphore(device, semaphoreInfo, null, pSemaphore) != VK_SUCCESS)
+                    throw new IllegalStateException("Could not create a semaphore");
+
+                semaphores[i] = pSemaphore.get(0);
+            }
+
+            swapchainImages.put(swapchain, images);
+            renderFinishedSemaphores.put(swapchain, semaphores);
+
+            newestSwapchain = swapchain;
+            newestRenderFinishedSemaphores = semaphores;
+            imageUsage = usage;
+
+            return swapchain;
+        }
+    }
+
+    /**
+     * Picks opaque images if the surface supports them, and the first composite alpha mode of the surface otherwise.
+     */
+    private static int chooseCompositeAlpha(int supportedCompositeAlpha)
+    {
+        if ((supportedCompositeAlpha & VK_COMPOSITE_ALPHA_OPAQUE_BIT_KHR) != 0)
+            return VK_COMPOSITE_ALPHA_OPAQUE_BIT_KHR;
+
+        if ((supportedCompositeAlpha & VK_COMPOSITE_ALPHA_INHERIT_BIT_KHR) != 0)
+            return VK_COMPOSITE_ALPHA_INHERIT_BIT_KHR;
+
+        // The surface supports at least one mode
+        return Integer.lowestOneBit(supportedCompositeAlpha);
+    }
+
+    /**
+     * Returns the images of a swapchain, to create the image views and framebuffers of the example.
+     *
+     * @param swapchain The handle of the swapchain.
+     *
+     * @return The handles of the VkImages.
+     */
+    public long[] getImages(long swapchain)
+    {
+        return swapchainImages.get(swapchain);
+    }
+
+    public int getImageFormat()
+    {
+        return imageFormat;
+    }
+
+    /**
+     * Returns the usage of the images of the newest swapchain. It always has the color attachment bit, and has the
+     * transfer destination bit only if the surface supports it, so check it before clearing or blitting the images.
+     *
+     * @return The VkImageUsageFlags of the images.
+     */
+    public int getImageUsage()
+    {
+        return imageUsage;
+    }
+
+    @Override
+    public int getImageCount(long swapchain)
+    {
+        return swapchainImages.get(swapchain).length;
+    }
+
+    @Override
+    public void destroySwapchain(long swapchain)
+    {
+        swapchainImages.remove(swapchain);
+        vkDestroySwapchainKHR(device, swapchain, null);
+
+        // The swapchain is only destroyed once the frames that presented to it are done
+        for (long semaphore : renderFinishedSemaphores.remove(swapchain))
+            vkDestroySemaphore(device, semaphore, null);
+
+        if (swapchain == newestSwapchain)
+        {
+            newestSwapchain = VK_NULL_HANDLE;
+            newestRenderFinishedSemaphores = null;
+        }
+    }
+
+    @Override
+    public FenceClock getClock()
+    {
+        return clock;
+    }
+
+    @Override
+    public long beginSubmission()
+    {
+        return clock.beginSubmission();
+    }
+
+    @Override
+    public void skipSubmission(long value)
+    {
+        // A submit without any batches only signals the fence
+        int err = nvkQueueSubmit(presentQueue, 0, NULL, clock.getFence(value));
+
+        if (err != VK_SUCCESS)
+            throw new IllegalStateException("Could not signal the fence of a skipped frame: " + err);
+    }
+
+    @Override
+    public int acquireNextImage(long swapchain, int frameIndex)
+    {
+        try (MemoryStack stack = stackPush())
+        {
+            IntBuffer pImageIndex = stack.mallocInt(1);
+            int err = vkAcquireNextImageKHR(device, swapchain, -1L, imageAvailableSemaphores[frameIndex],
+                    VK_NULL_HANDLE, pImageIndex);
+
+            // A suboptimal swapchain still gives out an image, it is recreated once the image is presented
+            if (err == VK_SUCCESS || err == VK_SUBOPTIMAL_KHR)
+                return pImageIndex.get(0);
+
+            if (err == VK_ERROR_OUT_OF_DATE_KHR)
+                return -1;
+
+            throw new IllegalStateException("Could not acquire the next image: " + err);
+        }
+    }
+
+    @Override
+    public int present(long swapchain, int frameIndex, int imageIndex)
+    {
+        try (MemoryStack stack = stackPush())
+        {
+            VkPresentInfoKHR presentInfo = VkPresentInfoKHR.callocStack(stack)
+                    .sType(VK_STRUCTURE_TYPE_PRESENT_INFO_KHR)
+                    .pWaitSemaphores(stack.longs(getRenderFinishedSemaphore(swapchain, imageIndex)))
+                    .swapchainCount(1)
+                    .pSwapchains(stack.longs(swapchain))
+                    .pImageIndices(stack.ints(imageIndex));
+
+            return vkQueuePresentKHR(presentQueue, presentInfo);
+        }
+    }
+
+    public long getImageAvailableSemaphore(int frameIndex)
+    {
+        return imageAvailableSemaphores[frameIndex];
+    }
+
+    /**
+     * Returns the semaphore that the work of a frame signals, and that the present of the image waits on.
+     *
+     * @param swapchain  The handle of the swapchain, from {@link SwapchainManager#getSwapchain()}.
+     * @param imageIndex The index of the acquired image, from {@link SwapchainManager#getImageIndex()}.
+     *
+     * @return The handle of the VkSemaphore.
+     */
+    public long getRenderFinishedSemaphore(long swapchain, int imageIndex)
+    {
+        if (swapchain == newestSwapchain)
+            return newestRenderFinishedSemaphores[imageIndex];
+
+        return renderFinishedSemaphores.get(swapchain)[imageIndex];
+    }
+
+    /**
+     * Returns the fence that the submission of a frame must signal.
+     *
+     * @param frameValue The clock value of the frame, from {@link SwapchainManager#getFrameValue()}.
+     *
+     * @return The handle of the VkFence.
+     */
+    public long getFence(long frameValue)
+    {
+        return clock.getFence(frameValue);
+    }
+
+    @Override
+    public void destroy()
+    {
+        clock.destroy();
+
+        for (long semaphore : imageAvailableSemaphores)
+            vkDestroySemaphore(device, semaphore, null);
+    }
+}
@@ -0,0 +1,119 @@
+package com.shc.vulkan;
+
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkCommandBuffer;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkQueryPoolCreateInfo;
+
+import java.nio.LongBuffer;
+
+import static org.lwjgl.system.MemoryStack.*;
+import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.vulkan.VK10.*;
+
+/**
+ * The {@link GpuProfiler.TimestampQueries} of a device, backed by a single VkQueryPool of timestamp queries. The
+ * {@code timestampPeriod} comes from the limits of the physical device, and the valid bits from the queue family that
+ * the command buffers are submitted to. The results are read without {@code VK_QUERY_RESULT_WAIT_BIT}, into a buffer
+ * that is allocated once.
+ *
+ * @author Sri Harsha Chilakapati
+ */
+public class VkTimestampQueries implements GpuProfiler.TimestampQueries
+{
+    private final VkDevice device;
+    private final long     queryPool;
+    private final float    timestampPeriod;
+    private final int      timestampValidBits;
+
+    private final LongBuffer results;
+
+    /**
+     * Creates the query pool.
+     *
+     * @param device      The device to create the queries on.
+     * @param snapshot    The snapshot of the physical device of the device.
+     * @param queueFamily The queue family that the command buffers with the queries are submitted to.
+     * @param queryCount  The number of queries.
+     */
+    public VkTimestampQueries(VkDevice device, PhysicalDeviceSnapshot snapshot, int queueFamily, int queryCount)
+    {
+        this.device = device;
+
+        timestampPeriod = snapshot.getLimits().timestampPeriod();
+        timestampValidBits = snapshot.getQueueFamilies().get(queueFamily).timestampValidBits();
+
+        if (timestampValidBits == 0)
+            throw new UnsupportedOperationException("The queue family " + queueFamily + " doesn't support timestamps");
+
+        try (MemoryStack stack = stackPush())
+        {
+            VkQueryPoolCreateInfo createInfo = VkQueryPoolCreateInfo.callocStack(stack)
+                    .sType(VK_STRUCTURE_TYPE_QUERY_POOL_CREATE_INFO)
+                    .queryType(VK_QUERY_TYPE_TIMESTAMP)
+                    .queryCount(queryCount);
+
+            LongBuffer pQueryPool = stack.mallocLong(1);
+            int err = vkCreateQueryPool(device, createInfo, null, pQueryPool);
+
+            if (err != VK_SUCCESS)
+                throw new IllegalStateException("Could not create the query pool: " + err);
+
+            queryPool = pQueryPool.get(0);
+        }
+
+        results = memAllocLong(queryCount);
+    }
+
+    @Override
+    public void reset(VkCommandBuffer commandBuffer, int firstQuery, int queryCount)
+    {
+        vkCmdResetQueryPool(commandBuffer, queryPool, firstQuery, queryCount);
+    }
+
+    @Override
+    public void writeTimestamp(VkCommandBuffer commandBuffer, int pipelineStage, int query)
+    {
+        vkCmdWriteTimestamp(commandBuffer, pipelineStage, queryPool, query);
+    }
+
+    @Override
+    public boolean getResults(int firstQuery, int queryCount, long[] ticks)
+    {
+        results.clear().limit(queryCount);
+
+        int err = vkGetQueryPoolResults(device, queryPool, firstQuery, queryCount, results, 8,
+                VK_QUERY_RESULT_64_BIT);
+
+        // VK_NOT_READY means that some of the queries are not available yet
+        if (err != VK_SUCCESS)
+            return false;
+
+        results.get(ticks, 0, queryCount);
+        return true;
+    }
+
+    @Override
+    public float getTimestampPeriod()
+    {
+        return timestampPeriod;
+    }
+
+    @Override
+    public int getTimestampValidBits()
+    {
+        return timestampValidBits;
+    }
+
+    public long getQueryPool()
+    {
+        return queryPool;
+    }
+
+    @Override
+    public void destroy()
+    {
+        vkDestroyQueryPool(device, queryPool, null);
+        memFree(results);
+    }
+}
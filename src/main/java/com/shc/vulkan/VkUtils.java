@@ -1,16 +1,22 @@
 package com.shc.vulkan;
 
 import org.lwjgl.PointerBuffer;
-import org.lwjgl.vulkan.VkApplicationInfo;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.vulkan.VkDevice;
+import org.lwjgl.vulkan.VkDeviceCreateInfo;
 import org.lwjgl.vulkan.VkInstance;
 import org.lwjgl.vulkan.VkInstanceCreateInfo;
 import org.lwjgl.vulkan.VkPhysicalDevice;
+import org.lwjgl.vulkan.VkPhysicalDeviceMemoryProperties;
 
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
+import static com.shc.vulkan.VkMarshal.*;
 import static org.lwjgl.glfw.GLFWVulkan.*;
+import static org.lwjgl.system.MemoryStack.*;
 import static org.lwjgl.system.MemoryUtil.*;
+import static org.lwjgl.system.Pointer.*;
 import static org.lwjgl.vulkan.VK10.*;
 
 /**
@@ -24,7 +30,12 @@ public final class VkUtils
 
     /**
      * Utility method to create a Vulkan instance. It is used by all the examples except the InstanceExample to reduce
-     * the duplication of code. For explanation and comments, please see the InstanceExample class.
+     * the duplication of code. For explanation and comments, please see the InstanceExample class. When the examples
+     * are running headless, the extensions required by GLFW are not enabled, and the instance is surfaceless unless
+     * the surface extensions are explicitly requested.
+     * <p>
+     * All the structs and the extension names are marshalled on the thread's {@link MemoryStack} with {@link VkMarshal},
+     * so nothing other than the returned VkInstance is allocated.
      *
      * @param applicationName The Application name to be used when creating the instance.
      * @param extensions      The list of extensions to enable for this instance.
@@ -33,55 +44,24 @@ public final class VkUtils
      */
     public static VkInstance createInstance(String applicationName, String... extensions)
     {
-        VkInstance instance;
-
-        PointerBuffer glfwExtensions = glfwGetRequiredInstanceExtensions();
-
-        PointerBuffer enabledExtensionNames = memAllocPointer(extensions.length + glfwExtensions.remaining());
-        ByteBuffer[] extensionNames = new ByteBuffer[extensions.length];
-
-        for (int i = 0; i < extensions.length; i++)
+        try (MemoryStack stack = stackPush())
         {
-            String extensionName = extensions[i];
-            extensionNames[i] = memASCII(extensionName);
-
-            enabledExtensionNames.put(extensionNames[i]);
-        }
-
-        while (glfwExtensions.remaining() > 0)
-            enabledExtensionNames.put(glfwExtensions.get());
-
-        enabledExtensionNames.flip();
+            PointerBuffer glfwExtensions = VulkanExample.isHeadless() ? null : glfwGetRequiredInstanceExtensions();
+            int extensionCount = extensions.length + (glfwExtensions == null ? 0 : glfwExtensions.remaining());
 
-        VkApplicationInfo appInfo = VkApplicationInfo.calloc()
-                .sType(VK_STRUCTURE_TYPE_APPLICATION_INFO)
-                .pApplicationName(memASCII(applicationName))
-                .pEngineName(memASCII(""))
-                .apiVersion(VK_MAKE_VERSION(1, 0, 4));
+            long extensionNames = nExtensionNames(stack, glfwExtensions, extensions);
+            long appInfo = nApplicationInfo(stack, applicationName, "", VK_MAKE_VERSION(1, 0, 4));
+            long instInfo = nInstanceCreateInfo(stack, appInfo, extensionNames, extensionCount);
 
-        VkInstanceCreateInfo instInfo = VkInstanceCreateInfo.calloc()
-                .sType(VK_STRUCTURE_TYPE_INSTANCE_CREATE_INFO)
-                .pNext(NULL)
-                .pApplicationInfo(appInfo)
-                .ppEnabledExtensionNames(enabledExtensionNames);
+            long pInstance = stack.nmalloc(POINTER_SIZE, POINTER_SIZE);
 
-        PointerBuffer pInstance = memAllocPointer(1);
+            int err = nvkCreateInstance(instInfo, NULL, pInstance);
 
-        vkCreateInstance(instInfo, null, pInstance);
+            if (err != VK_SUCCESS)
+                throw new IllegalStateException("Could not create the Vulkan instance: " + err);
 
-        instance = new VkInstance(pInstance.get(), instInfo);
-
-        memFree(pInstance);
-
-        appInfo.free();
-        instInfo.free();
-
-        memFree(enabledExtensionNames);
-
-        for (ByteBuffer byteBuffer : extensionNames)
-            memFree(byteBuffer);
-
-        return instance;
+            return new VkInstance(memGetAddress(pInstance), VkInstanceCreateInfo.create(instInfo));
+        }
     }
 
     public static String translatePhysicalDeviceType(int deviceType)
@@ -108,7 +88,9 @@ public final class VkUtils
     }
 
     /**
-     * Returns the handle to the first physical device connected to the system.
+     * Returns the handle to the first physical device connected to the system. Only the returned handle is allocated,
+     * the enumeration is done on the thread's {@link MemoryStack}. The first device is not always the best one on a
+     * machine with several GPUs, use {@link #selectPhysicalDevice(VkInstance, DeviceSelector)} to pick one.
      *
      * @param instance The instance of the vulkan
      *
@@ -116,17 +98,101 @@ public final class VkUtils
      */
     public static VkPhysicalDevice getFirstPhysicalDevice(VkInstance instance)
     {
-        IntBuffer gpuCount = memAllocInt(1);
+        try (MemoryStack stack = stackPush())
+        {
+            long pGpuCount = stack.nmalloc(4, 4);
+
+            nvkEnumeratePhysicalDevices(instance, pGpuCount, NULL);
+            int gpuCount = memGetInt(pGpuCount);
+
+            if (gpuCount == 0)
+                throw new IllegalStateException("No physical devices found that support Vulkan");
+
+            long pDevices = stack.nmalloc(POINTER_SIZE, gpuCount << POINTER_SHIFT);
+            nvkEnumeratePhysicalDevices(instance, pGpuCount, pDevices);
+
+            return new VkPhysicalDevice(memGetAddress(pDevices), instance);
+        }
+    }
 
-        vkEnumeratePhysicalDevices(instance, gpuCount, null);
-        PointerBuffer devices = memAllocPointer(gpuCount.get(0));
-        vkEnumeratePhysicalDevices(instance, gpuCount, devices);
+    /**
+     * Picks the physical device that scores the highest with the selector, out of the devices that meet it's
+     * requirements. The capabilities of the devices are read from the snapshots of a {@link PhysicalDeviceRegistry}.
+     * The ranking of all the devices is printed when {@code -Dvulkan.device.report=true} is passed to the JVM.
+     *
+     * @param instance The instance of the vulkan
+     * @param selector The selector with the requirements and the scorer.
+     *
+     * @return The picked candidate, which has the physical device and the queue families to use.
+     */
+    public static DeviceCandidate selectPhysicalDevice(VkInstance instance, DeviceSelector selector)
+    {
+        PhysicalDeviceRegistry registry = new PhysicalDeviceRegistry(instance);
+        List<DeviceCandidate> candidates = new ArrayList<>(registry.getDeviceCount());
 
-        VkPhysicalDevice firstPhysicalDevice = new VkPhysicalDevice(devices.get(0), instance);
+        for (int i = 0; i < registry.getDeviceCount(); i++)
+            candidates.add(DeviceCandidate.fromRegistry(registry, i));
 
-        memFree(gpuCount);
-        memFree(devices);
+        // The candidates have their own copies of the structs, so the snapshots are not needed anymore
+        registry.destroy();
+
+        if (candidates.isEmpty())
+            throw new IllegalStateException("No physical devices found that support Vulkan");
+
+        return selector.select(candidates, Boolean.getBoolean("vulkan.device.report"));
+    }
+
+    /**
+     * Creates a logical device with a single queue from the given queue family. No surface or swapchain extension is
+     * needed unless it is asked for, so this works for compute only examples on drivers without any window system.
+     * Like {@link #createInstance(String, String...)}, the structs are marshalled on the thread's {@link MemoryStack}.
+     *
+     * @param physicalDevice The physical device to create the logical device on.
+     * @param queueFamily    The index of the queue family of the queue.
+     * @param extensions     The list of device extensions to enable.
+     *
+     * @return The created logical device. The queue is at index zero of the queue family.
+     */
+    public static VkDevice createDevice(VkPhysicalDevice physicalDevice, int queueFamily, String... extensions)
+    {
+        try (MemoryStack stack = stackPush())
+        {
+            long extensionNames = nExtensionNames(stack, null, extensions);
+            long deviceInfo = nDeviceCreateInfo(stack, queueFamily, extensionNames, extensions.length);
+
+            long pDevice = stack.nmalloc(POINTER_SIZE, POINTER_SIZE);
+
+            int err = nvkCreateDevice(physicalDevice, deviceInfo, NULL, pDevice);
+
+            if (err != VK_SUCCESS)
+                throw new IllegalStateException("Could not create the logical device: " + err);
+
+            return new VkDevice(memGetAddress(pDevice), physicalDevice, VkDeviceCreateInfo.create(deviceInfo));
+        }
+    }
+
+    /**
+     * Finds the first memory type that is allowed by the memoryTypeBits of a resource and has all the required property
+     * flags.
+     *
+     * @param memoryProperties The memory properties of the physical device.
+     * @param memoryTypeBits   The memoryTypeBits of the VkMemoryRequirements of the resource.
+     * @param requiredFlags    The VkMemoryPropertyFlags that the memory type must have.
+     *
+     * @return The index of the memory type, or -1 if no memory type is suitable.
+     */
+    public static int findMemoryType(VkPhysicalDeviceMemoryProperties memoryProperties, int memoryTypeBits,
+                                     int requiredFlags)
+    {
+        for (int i = 0; i < memoryProperties.memoryTypeCount(); i++)
+        {
+            if ((memoryTypeBits & (1 << i)) == 0)
+                continue;
+
+            if ((memoryProperties.memoryTypes(i).propertyFlags() & requiredFlags) == requiredFlags)
+                return i;
+        }
 
-        return firstPhysicalDevice;
+        return -1;
     }
 }
@@ -1,18 +1,41 @@
 package com.shc.vulkan;
 
+import org.lwjgl.system.MemoryStack;
 import org.lwjgl.vulkan.VkInstance;
 
+import java.nio.IntBuffer;
 import java.nio.LongBuffer;
 
+import static org.lwjgl.glfw.Callbacks.*;
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.glfw.GLFWVulkan.*;
 import static org.lwjgl.vulkan.KHRSurface.*;
+import static org.lwjgl.system.MemoryStack.*;
 import static org.lwjgl.system.MemoryUtil.*;
 
 /**
  * This is the base class that all the Vulkan examples in this repository extends from. This class takes care of the
  * window creation using GLFW and also the event loop for the window. It also provides a utility method (macro in C)
  * called as {@code VK_MAKE_VERSION} which allows to create the version.
+ * <p>
+ * Examples can also be run headless, without any window or surface, by passing {@code -Dvulkan.headless=true} to the
+ * JVM. This works with a surfaceless Vulkan driver like lavapipe, so the examples can be load tested on machines
+ * without a GPU or a display. The number of frames to run is set with {@code -Dvulkan.benchmark.frames=N} or the
+ * duration with {@code -Dvulkan.benchmark.millis=N}, and the throughput is printed once the run is complete.
+ * <p>
+ * With a window, the frames are rendered on a render thread of their own, while the main thread only waits for the
+ * window events, which GLFW requires to be handled on the main thread. The GLFW callbacks encode the input events into
+ * an {@link InputEventQueue}, which the render thread drains at the start of every frame and hands to
+ * {@link #onInput(int, int, int, int, long, long)}, so a slow frame never delays the handling of the events and the
+ * events never delay a frame. The latency from every event to the end of the frame that handled it is recorded in the
+ * {@link FrameMetrics}. Pass {@code -Dvulkan.render.thread=false} to render on the main thread instead, and
+ * {@code -Dvulkan.fps=N} to limit the frame rate, which is not limited by default.
+ * <p>
+ * Examples that render to the window create a {@link SwapchainManager} in {@link #onSurfaceCreated(long)}, usually
+ * with a {@link VkSwapchainTarget}, and set it with {@link #setSwapchain(SwapchainManager)}. Every frame is then begun
+ * and presented by the swapchain around the {@link #render()} method, the swapchain follows the resizes of the window,
+ * and it is destroyed before the surface. Headless examples can set a swapchain with a {@link HeadlessSwapchainTarget}
+ * from {@link #initVulkan()} to run the same frame pacing against a simulated display.
  *
  * @author Sri Harsha Chilakapati
  */
@@ -29,6 +52,111 @@ public abstract class VulkanExample
      */
     protected static String title;
 
+    /**
+     * Whether the example runs without a window and a surface. In headless mode GLFW is never initialized, and the
+     * instance is created without the surface extensions that GLFW requires.
+     */
+    protected static boolean headless = Boolean.getBoolean("vulkan.headless");
+
+    /**
+     * The number of frames to render before the example stops on it's own. A value of zero means that there is no
+     * frame limit.
+     */
+    protected static int benchmarkFrames = Integer.getInteger("vulkan.benchmark.frames", 0);
+
+    /**
+     * The duration in milliseconds to render for before the example stops on it's own. A value of zero means that
+     * there is no time limit.
+     */
+    protected static long benchmarkMillis = Long.getLong("vulkan.benchmark.millis", 0L);
+
+    /**
+     * The number of worker threads of the {@link FrameJobSystem} that the examples split their recording on. Set with
+     * {@code -Dvulkan.jobs.threads=N}, and defaults to the number of processors.
+     */
+    protected static int jobThreads = Integer.getInteger("vulkan.jobs.threads",
+            Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Whether the frames are rendered on a thread of their own when there is a window. Set with
+     * {@code -Dvulkan.render.thread=false} to render on the main thread, between the polls of the events.
+     */
+    protected static boolean renderThread = !"false".equals(System.getProperty("vulkan.render.thread"));
+
+    /**
+     * The frame rate that the render loop is paced to. Set with {@code -Dvulkan.fps=N}, and a value of zero means that
+     * the frame rate is not limited.
+     */
+    protected static double targetFps = Double.parseDouble(System.getProperty("vulkan.fps", "0"));
+
+    /**
+     * The number of frames that can be in flight on the device at the same time, for the examples that create a
+     * {@link SwapchainManager}. Set with {@code -Dvulkan.frames.in.flight=N}, and defaults to two.
+     */
+    protected static int framesInFlight = Integer.getInteger("vulkan.frames.in.flight", 2);
+
+    /**
+     * The number of frames that a headless run renders when neither a frame count nor a duration is given.
+     */
+    private static final int DEFAULT_HEADLESS_FRAMES = 1000;
+
+    /**
+     * The number of input events that can be queued for the render thread before new events are dropped.
+     */
+    private static final int INPUT_QUEUE_CAPACITY = 4096;
+
+    /**
+     * The input events from the GLFW callbacks to the render thread.
+     */
+    private final InputEventQueue inputEvents = new InputEventQueue(INPUT_QUEUE_CAPACITY);
+
+    // The handler of the drained events, created once so that draining doesn't allocate
+    private final InputEventQueue.Handler inputHandler = this::handleInput;
+
+    // The times of the events handled in the current frame, to record their latency once the frame is rendered
+    private final long[] inputTimestamps = new long[INPUT_QUEUE_CAPACITY];
+    private       int    inputCount;
+
+    /**
+     * Whether the render loop should keep running. Cleared by the main thread when the window is closed, and by the
+     * render thread when the benchmark is complete.
+     */
+    private volatile boolean running;
+
+    /**
+     * The error that stopped the render thread, which is thrown again from the main thread.
+     */
+    private volatile Throwable renderError;
+
+    private int  renderedFrames;
+    private long renderStartTime;
+
+    /**
+     * The swapchain that the frames are presented to, or null if the example presents nothing.
+     */
+    private SwapchainManager swapchain;
+
+    /**
+     * The timings of every frame of the event loop.
+     */
+    private final FrameMetrics frameMetrics = new FrameMetrics();
+
+    /**
+     * The time taken from the start of the example to the end of the first frame, in nanoseconds. This includes the
+     * initialization of Vulkan, so it shows the effect of caches like the {@link PipelineCacheManager} on the startup.
+     */
+    private long timeToFirstFrame;
+
+    /**
+     * The job system of this example, created when the example first asks for it.
+     */
+    private FrameJobSystem jobSystem;
+
+    /**
+     * The draw queue of this example, created when the example first asks for it.
+     */
+    private DrawQueue drawQueue;
+
     /**
      * This is a utility method that does the job of the VK_MAKE_VERSION macro in the C sources. This is used to pack
      * the Vulkan version that these demos require into a single int which we can pass to VkApplicationInfo struct.
@@ -46,7 +174,9 @@ public abstract class VulkanExample
 
     /**
      * This is a utility method that does the opposite of the VK_MAKE_VERSION method, that it extracts the version from
-     * the packed integer and returns it as major minor patch values in an int array.
+     * the packed integer and returns it as major minor patch values in an int array. This allocates a new array on
+     * every call, use the {@link #VK_VERSION_MAJOR(int)}, {@link #VK_VERSION_MINOR(int)} and
+     * {@link #VK_VERSION_PATCH(int)} methods when the version is extracted often.
      *
      * @param version The packed version integer that contains vulkan version.
      *
@@ -56,17 +186,54 @@ public abstract class VulkanExample
     {
         int[] versions = new int[3];
 
-        versions[0] = version >> 22;
-        versions[1] = version >> 12 & 0xF;
-        versions[2] = version & 0xF;
+        versions[0] = VK_VERSION_MAJOR(version);
+        versions[1] = VK_VERSION_MINOR(version);
+        versions[2] = VK_VERSION_PATCH(version);
 
         return versions;
     }
 
+    /**
+     * Extracts the major version from the packed version integer. Does the job of the VK_VERSION_MAJOR macro.
+     *
+     * @param version The packed version integer that contains vulkan version.
+     *
+     * @return The major version, which is the upper 10 bits of the packed version.
+     */
+    public static int VK_VERSION_MAJOR(int version)
+    {
+        return version >>> 22;
+    }
+
+    /**
+     * Extracts the minor version from the packed version integer. Does the job of the VK_VERSION_MINOR macro.
+     *
+     * @param version The packed version integer that contains vulkan version.
+     *
+     * @return The minor version, which is the middle 10 bits of the packed version.
+     */
+    public static int VK_VERSION_MINOR(int version)
+    {
+        return (version >>> 12) & 0x3FF;
+    }
+
+    /**
+     * Extracts the patch version from the packed version integer. Does the job of the VK_VERSION_PATCH macro.
+     *
+     * @param version The packed version integer that contains vulkan version.
+     *
+     * @return The patch version, which is the lower 12 bits of the packed version.
+     */
+    public static int VK_VERSION_PATCH(int version)
+    {
+        return version & 0xFFF;
+    }
+
     /**
      * The job of this method is to initialize Vulkan and return the VkInstance struct handle so that it is used to
      * create a surface and attaches with the window. The initialization code should request the KHR_SURFACE extension
-     * to be able to create the surface.
+     * to be able to create the surface. When running headless, the surface extensions are not required since no
+     * surface is ever created.
      *
      * @return The VkInstance handle to the successfully initialized Vulkan instance.
      */
@@ -84,12 +251,169 @@ public abstract class VulkanExample
      */
     public abstract void cleanUp();
 
+    /**
+     * Returns whether this example presents anything on a window. Examples that only run compute work override this
+     * to return false, and are then always run headless, so that they never need GLFW, a display or the surface
+     * extensions, and work on drivers that have no window system integration at all.
+     *
+     * @return True if the example needs a window and a surface, false otherwise.
+     */
+    protected boolean needsSurface()
+    {
+        return true;
+    }
+
+    /**
+     * Called on the main thread once the surface of the window is created, and before the first frame. Examples that
+     * present to the window create their {@link SwapchainManager} here. The default implementation does nothing.
+     *
+     * @param surface The handle of the VkSurfaceKHR.
+     */
+    protected void onSurfaceCreated(long surface)
+    {
+    }
+
+    /**
+     * Sets the swapchain that the frames are presented to. From the next frame on, every frame is begun with
+     * {@link SwapchainManager#beginFrame()} before {@link #render()}, and presented with
+     * {@link SwapchainManager#endFrame()} after it. The frames that have no image to render to are skipped. The
+     * swapchain is destroyed by this class after the last frame.
+     *
+     * @param swapchain The swapchain manager.
+     */
+    protected void setSwapchain(SwapchainManager swapchain)
+    {
+        this.swapchain = swapchain;
+    }
+
+    public SwapchainManager getSwapchain()
+    {
+        return swapchain;
+    }
+
+    /**
+     * Handles an input event on the render thread, before the frame is rendered. The default implementation ignores all
+     * the events. The event types and the packing of the data are described by the {@link InputEventQueue}.
+     *
+     * @param type      The type of the event, one of the constants of {@link InputEventQueue}.
+     * @param code      The key, the mouse button or the code point of the event.
+     * @param action    The GLFW action of the event, like press or release.
+     * @param mods      The GLFW modifier bits that were held down.
+     * @param data      The data of the event, unpack it with the methods of {@link InputEventQueue}.
+     * @param timestamp The time at which the event was received, in nanoseconds.
+     */
+    protected void onInput(int type, int code, int action, int mods, long data, long timestamp)
+    {
+    }
+
+    /**
+     * Returns whether the examples are running headless, that is without any window or surface.
+     *
+     * @return True if the examples are running headless, false otherwise.
+     */
+    public static boolean isHeadless()
+    {
+        return headless;
+    }
+
+    /**
+     * Returns the metrics of the event loop, which has the time taken to poll the events and to render every frame.
+     *
+     * @return The frame metrics of this example.
+     */
+    public FrameMetrics getFrameMetrics()
+    {
+        return frameMetrics;
+    }
+
+    /**
+     * Returns the time taken from the start of the example to the end of the first frame.
+     *
+     * @return The time to the first frame in nanoseconds, or zero if no frame was rendered yet.
+     */
+    public long getTimeToFirstFrame()
+    {
+        return timeToFirstFrame;
+    }
+
+    /**
+     * Returns the job system that examples can use to split their work, like recording the draws of a frame with a
+     * {@link ParallelCommandRecorder}, across worker threads. The job system is created on the first call, so examples
+     * that never use it don't start any threads. It is shut down after the {@link #cleanUp()} method.
+     *
+     * @return The job system of this example.
+     */
+    protected FrameJobSystem getJobSystem()
+    {
+        if (jobSystem == null)
+            jobSystem = new FrameJobSystem(jobThreads);
+
+        return jobSystem;
+    }
+
+    /**
+     * Returns the draw queue that examples submit the draws of a frame to from {@link #render()}, in any order. Once all
+     * the draws are in, the example flushes the queue into a {@link VkDrawRecorder}, which records them sorted by state
+     * and merged into instanced draws. The queue is created on the first call.
+     *
+     * @return The draw queue of this example.
+     */
+    protected DrawQueue getDrawQueue()
+    {
+        if (drawQueue == null)
+            drawQueue = new DrawQueue();
+
+        return drawQueue;
+    }
+
+    private void shutdownJobSystem()
+    {
+        if (jobSystem != null)
+            jobSystem.shutdown();
+
+        jobSystem = null;
+    }
+
+    /**
+     * Returns the queue of the input events from the window to the render thread.
+     *
+     * @return The input event queue of this example.
+     */
+    public InputEventQueue getInputEvents()
+    {
+        return inputEvents;
+    }
+
+    private void recordFirstFrame(long launchTime, long frameEnd)
+    {
+        timeToFirstFrame = frameEnd - launchTime;
+        System.out.println("Time to first frame: " + String.format("%.3f ms", timeToFirstFrame / 1e6));
+    }
+
     /**
      * The main heart of an example, it runs the event loop and manages the creation and destruction of the window and
-     * also creates the surface for Vulkan.
+     * also creates the surface for Vulkan. In headless mode, or when the example doesn't {@link #needsSurface() need a
+     * surface}, it skips the window and the surface and just renders the frames.
+     * <p>
+     * The {@link #cleanUp()} method is always called on the main thread, after the render thread has finished it's last
+     * frame and stopped, and before the surface and the window are destroyed. This is the same when the render loop
+     * fails, the error is thrown once everything is destroyed and GLFW is terminated.
      */
     public void start()
     {
+        long launchTime = System.nanoTime();
+
+        // The tracking allocator has to be in place before LWJGL allocates anything
+        if (LeakTracker.isEnabled())
+            LeakTracker.install();
+
+        if (headless || !needsSurface())
+        {
+            headless = true;
+            startHeadless(launchTime);
+            return;
+        }
+
         glfwInit();
 
         // Check if Vulkan is available, if not, exit early.
@@ -108,25 +432,311 @@ public abstract class VulkanExample
         VkInstance vulkanInstance = initVulkan();
 
         // Create the surface and attach to the window.
-        LongBuffer pSurface = memAllocLong(1);
-        int err = glfwCreateWindowSurface(vulkanInstance, windowID, null, pSurface);
+        long surfaceID;
+
+        try (MemoryStack stack = stackPush())
+        {
+            LongBuffer pSurface = stack.mallocLong(1);
+            int err = glfwCreateWindowSurface(vulkanInstance, windowID, null, pSurface);
+
+            if (err != 0)
+                throw new IllegalStateException("Could not create surface for Vulkan");
+
+            surfaceID = pSurface.get(0);
+        }
+
+        onSurfaceCreated(surfaceID);
+
+        if (swapchain != null)
+        {
+            try (MemoryStack stack = stackPush())
+            {
+                IntBuffer pWidth = stack.mallocInt(1);
+                IntBuffer pHeight = stack.mallocInt(1);
+
+                glfwGetFramebufferSize(windowID, pWidth, pHeight);
+                swapchain.resize(pWidth.get(0), pHeight.get(0));
+            }
+        }
+
+        installInputCallbacks();
+
+        running = true;
+
+        if (renderThread)
+        {
+            Thread thread = new Thread(() -> renderLoop(launchTime), "Render Thread");
+            thread.start();
+
+            // The main thread only handles the window events, the callbacks queue them for the render thread. The
+            // render thread posts an empty event to wake this loop up when it stops on it's own.
+            while (running)
+            {
+                glfwWaitEvents();
+
+                if (glfwWindowShouldClose(windowID))
+                    running = false;
+            }
+
+            joinUninterruptibly(thread);
+        }
+        else
+        {
+            renderLoop(launchTime);
+        }
+
+        frameMetrics.shutdown();
+
+        if (renderError == null && (benchmarkFrames > 0 || benchmarkMillis > 0))
+        {
+            printThroughput(renderedFrames, System.nanoTime() - renderStartTime);
+            frameMetrics.printSummary();
+        }
+
+        if (inputEvents.getDroppedCount() > 0)
+            System.err.println("Dropped " + inputEvents.getDroppedCount() + " input events as the queue was full");
+
+        try
+        {
+            // The swapchain waits for the frames in flight, and has to go before the surface it presents to
+            destroySwapchain();
+
+            vkDestroySurfaceKHR(vulkanInstance, surfaceID, null);
+            cleanUp();
+            shutdownJobSystem();
+        }
+        catch (RuntimeException e)
+        {
+            // After a failed frame the device may be lost and destroying can fail too, but the first error is the cause
+            if (renderError == null)
+                throw e;
+
+            renderError.addSuppressed(e);
+        }
+        finally
+        {
+            glfwFreeCallbacks(windowID);
+            glfwDestroyWindow(windowID);
+            glfwTerminate();
+        }
+
+        if (renderError != null)
+            throw new IllegalStateException("The render loop failed", renderError);
+
+        reportLeaks();
+    }
+
+    /**
+     * Sets the GLFW callbacks of the window to encode the input events into the input event queue. The callbacks run on
+     * the main thread, inside the polling of the events.
+     */
+    private void installInputCallbacks()
+    {
+        glfwSetKeyCallback(windowID, (window, key, scancode, action, mods) ->
+                inputEvents.offer(InputEventQueue.KEY, key, action, mods, scancode, System.nanoTime()));
+
+        glfwSetCharCallback(windowID, (window, codepoint) ->
+                inputEvents.offer(InputEventQueue.CHAR, codepoint, 0, 0, 0, System.nanoTime()));
+
+        glfwSetMouseButtonCallback(windowID, (window, button, action, mods) ->
+                inputEvents.offer(InputEventQueue.MOUSE_BUTTON, button, action, mods, 0, System.nanoTime()));
+
+        glfwSetCursorPosCallback(windowID, (window, x, y) ->
+                inputEvents.offer(InputEventQueue.CURSOR_POS, 0, 0, 0,
+                        InputEventQueue.packFloats((float) x, (float) y), System.nanoTime()));
+
+        glfwSetScrollCallback(windowID, (window, x, y) ->
+                inputEvents.offer(InputEventQueue.SCROLL, 0, 0, 0,
+                        InputEventQueue.packFloats((float) x, (float) y), System.nanoTime()));
+
+        glfwSetFramebufferSizeCallback(windowID, (window, width, height) ->
+                inputEvents.offer(InputEventQueue.FRAMEBUFFER_SIZE, 0, 0, 0,
+                        InputEventQueue.packInts(width, height), System.nanoTime()));
+    }
+
+    /**
+     * Renders the frames till the loop is stopped or the benchmark is complete. Every frame drains the input events
+     * first, then renders, and then records the latency of the events it handled.
+     */
+    private void renderLoop(long launchTime)
+    {
+        FramePacer pacer = new FramePacer(targetFps);
+
+        try
+        {
+            renderStartTime = System.nanoTime();
+
+            while (running && !isBenchmarkComplete(renderedFrames, renderStartTime))
+            {
+                long frameStart = pacer.waitForNextFrame();
+
+                inputCount = 0;
+                inputEvents.drain(inputHandler);
+
+                long eventsPolled = System.nanoTime();
+                renderFrame();
+
+                long frameEnd = System.nanoTime();
+                frameMetrics.recordFrame(frameStart, eventsPolled, frameEnd);
+
+                for (int i = 0; i < inputCount; i++)
+                    frameMetrics.recordInputLatency(frameEnd - inputTimestamps[i]);
 
-        if (err != 0)
-            throw new IllegalStateException("Could not create surface for Vulkan");
+                if (renderedFrames++ == 0)
+                    recordFirstFrame(launchTime, frameEnd);
 
-        long surfaceID = pSurface.get();
+                // When rendering on the main thread, the events are polled between the frames
+                if (!renderThread)
+                {
+                    glfwPollEvents();
 
-        memFree(pSurface);
+                    if (glfwWindowShouldClose(windowID))
+                        running = false;
+                }
+            }
+        }
+        catch (Throwable e)
+        {
+            renderError = e;
+        }
+        finally
+        {
+            if (renderThread)
+            {
+                // Wake the main thread up, in case the loop stopped on it's own
+                running = false;
+                glfwPostEmptyEvent();
+            }
+        }
+    }
+
+    /**
+     * Renders a single frame, between beginning and presenting the frame of the swapchain if there is one.
+     */
+    private void renderFrame()
+    {
+        if (swapchain == null)
+            render();
 
-        while (!glfwWindowShouldClose(windowID))
+        else if (swapchain.beginFrame())
         {
-            glfwPollEvents();
             render();
+            swapchain.endFrame();
+        }
+    }
+
+    private void destroySwapchain()
+    {
+        if (swapchain != null)
+            swapchain.destroy();
+
+        swapchain = null;
+    }
+
+    private void handleInput(int type, int code, int action, int mods, long data, long timestamp)
+    {
+        inputTimestamps[inputCount++] = timestamp;
+
+        if (type == InputEventQueue.FRAMEBUFFER_SIZE && swapchain != null)
+            swapchain.resize(InputEventQueue.getFirstInt(data), InputEventQueue.getSecondInt(data));
+
+        onInput(type, code, action, mods, data, timestamp);
+    }
+
+    private static void joinUninterruptibly(Thread thread)
+    {
+        boolean interrupted = false;
+
+        while (thread.isAlive())
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Runs the example without a window or a surface. The render method is called till the frame count or the duration
+     * of the benchmark is reached, and the throughput is printed at the end.
+     *
+     * @param launchTime The time at which the example was started, in nanoseconds.
+     */
+    private void startHeadless(long launchTime)
+    {
+        if (title == null)
+            title = "Vulkan Tests";
+
+        if (benchmarkFrames <= 0 && benchmarkMillis <= 0)
+            benchmarkFrames = DEFAULT_HEADLESS_FRAMES;
+
+        // There is no surface to create, the instance is only used by the example itself.
+        initVulkan();
+
+        FramePacer pacer = new FramePacer(targetFps);
+
+        long startTime = System.nanoTime();
+        int frames = 0;
+
+        while (!isBenchmarkComplete(frames, startTime))
+        {
+            // There are no events to poll, so that part of the frame is always empty.
+            long frameStart = pacer.waitForNextFrame();
+            renderFrame();
+
+            long frameEnd = System.nanoTime();
+            frameMetrics.recordFrame(frameStart, frameStart, frameEnd);
+
+            if (frames++ == 0)
+                recordFirstFrame(launchTime, frameEnd);
         }
 
-        vkDestroySurfaceKHR(vulkanInstance, surfaceID, null);
+        frameMetrics.shutdown();
+
+        printThroughput(frames, System.nanoTime() - startTime);
+        frameMetrics.printSummary();
+
+        destroySwapchain();
         cleanUp();
+        shutdownJobSystem();
+
+        reportLeaks();
+    }
+
+    /**
+     * Prints the native allocations that were never freed, when the leak tracking is enabled with
+     * {@code -Dvulkan.debug.leaks=true}. Everything the example allocated should have been freed by now.
+     */
+    private static void reportLeaks()
+    {
+        if (LeakTracker.isInstalled())
+            LeakTracker.printLeaks();
+    }
+
+    private static boolean isBenchmarkComplete(int frames, long startTime)
+    {
+        if (benchmarkFrames > 0 && frames >= benchmarkFrames)
+            return true;
+
+        return benchmarkMillis > 0 && (System.nanoTime() - startTime) >= benchmarkMillis * 1000000L;
+    }
+
+    private static void printThroughput(int frames, long elapsedNanos)
+    {
+        double elapsedMillis = elapsedNanos / 1e6;
 
-        glfwTerminate();
+        System.out.println("Benchmark: " + title);
+        System.out.println("~~~~~~~~~~");
+        System.out.println("\tFrames: " + frames);
+        System.out.println("\tElapsed: " + String.format("%.3f ms", elapsedMillis));
+        System.out.println("\tAverage Frame Time: " + String.format("%.4f ms", frames == 0 ? 0.0 : elapsedMillis / frames));
+        System.out.println("\tFrames Per Second: " + String.format("%.2f", frames == 0 ? 0.0 : frames / (elapsedMillis / 1000.0)));
     }
 }